@@ -2,51 +2,168 @@ package com.genymobile.scrcpy;
 
 import android.os.Looper;
 
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.EventLoop;
+import com.genymobile.scrcpy.net.HttpRequest;
+import com.genymobile.scrcpy.net.OutboundMessage;
+import com.genymobile.scrcpy.net.PerMessageDeflate;
+import com.genymobile.scrcpy.net.Router;
+import com.genymobile.scrcpy.net.SendQueue;
+import com.genymobile.scrcpy.net.WebSocketDecoder;
 import com.genymobile.scrcpy.util.Ln;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class BaseWsServer implements AsyncProcessor {
+public class BaseWsServer implements AsyncProcessor, EventLoop.Handler {
+
+    /**
+     * A WebSocket service bound to its own path, besides the control WebSocket.
+     */
+    public interface WsEndpoint {
+        /**
+         * Called on the I/O thread of the connection for each message received: must not block.
+         */
+        void onMessage(Connection connection, ByteBuffer payload);
+
+        void onClose(Connection connection);
+    }
+
     private static final String WEBSOCKET_KEY = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int DEFAULT_IO_THREADS = 2;
+    private static final int DEFAULT_SEND_QUEUE_SIZE = 8;
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 15000;
+    private static final int DEFAULT_MAX_REQUESTS = 100;
+    private static final int DEFAULT_PING_INTERVAL = 30000;
+    private static final int DEFAULT_PONG_TIMEOUT = 10000;
 
     private int port;
-    private ServerSocket serverSocket;
-    private final Set<Socket> clients = new CopyOnWriteArraySet<>();
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private int sendQueueSize = DEFAULT_SEND_QUEUE_SIZE;
+    private SendQueue.Policy sendQueuePolicy = SendQueue.Policy.DROP_OLDEST;
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private boolean deflateEnabled = true;
+    private boolean deflateContextTakeover = true;
+    private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private int maxRequests = DEFAULT_MAX_REQUESTS;
+    private int pingInterval = DEFAULT_PING_INTERVAL;
+    private int pongTimeout = DEFAULT_PONG_TIMEOUT;
+    private EventLoop eventLoop;
+    private final Set<Connection> clients = new CopyOnWriteArraySet<>();
+    private final Map<String, WsEndpoint> wsEndpoints = new ConcurrentHashMap<>();
+    private final Map<Connection, WsEndpoint> wsEndpointClients = new ConcurrentHashMap<>();
+
+    // Requests matching no route are passed to handleHttp(), which may block (so it must not run on the I/O threads)
+    private final Router router = new Router();
 
     private volatile boolean running;
 
     private final AtomicBoolean stopped = new AtomicBoolean();
     private Thread thread;
 
+    public BaseWsServer() {
+        router.fallback(Router.Dispatch.BLOCKING, this::handleHttp);
+    }
+
     public void init(int port) {
         this.port = port;
     }
     public int getPort(){
         return this.port;
     }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Set the capacity (in messages) and the overflow policy of the per-client send queues.
+     */
+    public void setSendQueue(int size, SendQueue.Policy policy) {
+        this.sendQueueSize = size;
+        this.sendQueuePolicy = policy;
+    }
+
+    /**
+     * Set the maximum size of a WebSocket message received from a client.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Configure the permessage-deflate WebSocket extension, accepted if the client offers it.
+     *
+     * @param contextTakeover whether the compression context is kept between messages (better ratio, but 32K+ of memory per client)
+     */
+    public void setDeflate(boolean enabled, boolean contextTakeover) {
+        this.deflateEnabled = enabled;
+        this.deflateContextTakeover = contextTakeover;
+    }
+
+    /**
+     * Configure HTTP persistent connections.
+     *
+     * @param timeoutMillis the time after which an idle connection is closed
+     * @param maxRequests   the max number of requests per connection
+     */
+    public void setKeepAlive(int timeoutMillis, int maxRequests) {
+        this.keepAliveTimeout = timeoutMillis;
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Configure the WebSocket heartbeat.
+     *
+     * @param pingIntervalMillis the time without receiving anything after which a ping is sent (0 disables the heartbeat)
+     * @param pongTimeoutMillis  the time to wait for the client to answer before closing the connection
+     */
+    public void setHeartbeat(int pingIntervalMillis, int pongTimeoutMillis) {
+        this.pingInterval = pingIntervalMillis;
+        this.pongTimeout = pongTimeoutMillis;
+    }
+
+    /**
+     * Return the route table of the HTTP requests (routes must be registered before the server starts).
+     */
+    public Router getRouter() {
+        return router;
+    }
+
+    /**
+     * Register a WebSocket endpoint, accepting the handshakes on {@code path} (endpoints must be registered before the server starts).
+     */
+    public void addWsEndpoint(String path, WsEndpoint endpoint) {
+        wsEndpoints.put(path, endpoint);
+    }
+
+    /**
+     * Return the currently open connections (HTTP and WebSocket).
+     */
+    public synchronized Set<Connection> getConnections() {
+        if (eventLoop == null) {
+            return Collections.emptySet();
+        }
+        return eventLoop.getConnections();
+    }
+
     @Override
     public void start(TerminationListener listener) {
         thread = new Thread(() -> {
             Looper.prepare();
             try {
-                serverSocket = new ServerSocket(port);
-                running = true;
-                Ln.i("Server started on port " + port);
-                while (running) {
-                    Socket clientSocket = serverSocket.accept();
-                    new Thread(() -> handleClient(clientSocket)).start();
-                }
+                serve(this);
             } catch (IOException e) {
                 if (running) {
                     Ln.e("Server error: " + e.getMessage());
@@ -59,6 +176,25 @@ public class BaseWsServer implements AsyncProcessor {
         thread.start();
     }
 
+    /**
+     * Serve HTTP and WebSocket clients on the configured port until the server is stopped (or the calling thread is interrupted).
+     *
+     * @param handler the handler receiving the requests and messages
+     */
+    public void serve(EventLoop.Handler handler) throws IOException {
+        onStartServer();
+        synchronized (this) {
+            eventLoop = new EventLoop(port, ioThreads, handler);
+            eventLoop.setSendQueueDefaults(sendQueueSize, sendQueuePolicy);
+            eventLoop.setMaxMessageSize(maxMessageSize);
+            eventLoop.setKeepAlive(keepAliveTimeout, maxRequests);
+            eventLoop.setHeartbeat(pingInterval, pongTimeout);
+            running = true;
+        }
+        Ln.i("Server started on port " + port + " (" + ioThreads + " I/O threads)");
+        eventLoop.run();
+    }
+
     @Override
     public void stop() {
         if (thread != null) {
@@ -78,108 +214,119 @@ public class BaseWsServer implements AsyncProcessor {
             thread.join();
         }
     }
-    public String getRequestString(InputStream input) throws IOException{
-        StringBuilder request = new StringBuilder();
-        int b;
-
-        while ((b = input.read()) != -1) {
-            char line = (char) b;
-            request.append(line);
-            if(request.toString().endsWith("\r\n\r\n")){
-                break;
-            }
+
+    public boolean checkIsWs(HttpRequest request) {
+        return "GET".equals(request.getMethod()) && request.getPath().startsWith("/ws-api");
+    }
+
+    @Override
+    public void onRequest(Connection connection, HttpRequest request) throws IOException {
+        if (acceptWsEndpoint(request, connection)) {
+            return;
         }
-        String requestStr = request.toString().trim();
-        int length = 0;
-        if(requestStr.contains("Content-Length: ")){
-            String len = requestStr.split("Content-Length: ")[1].split("\r\n")[0];
-            length = Integer.parseInt(len);
+        if (checkIsWs(request)) {
+            if (performRequestHandshake(request, connection)) {
+                clients.add(connection);
+                Ln.i("Client connected. Total: " + clients.size());
+            } else {
+                connection.closeAfterFlush();
+            }
+        } else {
+            dispatchHttp(request, connection);
         }
-        if(length > 0){
-            do {
-                length--;
-                int b1 = input.read();
-                char line = (char) b1;
-                request.append(line);
-            } while (length > 0);
+    }
+
+    @Override
+    public void onMessage(Connection connection, ByteBuffer payload) {
+        if (dispatchWsMessage(connection, payload)) {
+            return;
         }
-        return request.toString();
+        byte[] command = new byte[payload.remaining()];
+        payload.get(command);
+        processCommand(command);
     }
 
-    public boolean checkIsWs(String request) {
-        String[] lines = request.split("\r\n");
-        boolean isWs = false;
-        for (String line : lines) {
-            if (line.startsWith("GET /ws-api")) {
-                isWs = true;
-                break;
-            }
+    @Override
+    public void onClose(Connection connection) {
+        removeClient(connection);
+    }
+
+    /**
+     * Answer the WebSocket handshake of a request targeting a registered endpoint (see {@link #addWsEndpoint(String, WsEndpoint)}).
+     * <p>
+     * Must be called from {@link EventLoop.Handler#onRequest(Connection, HttpRequest)}.
+     *
+     * @return {@code false} if the request does not target an endpoint
+     */
+    public boolean acceptWsEndpoint(HttpRequest request, Connection connection) throws IOException {
+        WsEndpoint endpoint = wsEndpoints.get(request.getPath());
+        if (endpoint == null || !"GET".equals(request.getMethod())) {
+            return false;
+        }
+        if (performRequestHandshake(request, connection)) {
+            connection.setLabel("ws " + request.getPath());
+            wsEndpointClients.put(connection, endpoint);
+        } else {
+            connection.closeAfterFlush();
         }
-        return isWs;
+        return true;
     }
-    private void handleClient(Socket clientSocket) {
-        boolean isWs = false;
-        try {
-            InputStream input = clientSocket.getInputStream();
-            OutputStream output = clientSocket.getOutputStream();
-            String request = getRequestString(input);
-            isWs = checkIsWs(request);
-            if(isWs){
-                if (performRequestHandshake(request, output)) {
-                    synchronized (clients) {
-                        clients.add(clientSocket);
-                        Ln.i("Client connected. Total: " + clients.size());
-                    }
-                    while (true) {
-                        try {
-                            byte[] command = readFrame(input);
-                            if (command == null){
-                                break;
-                            }
-                            processCommand(command);
-                        } catch (Exception e) {
-                            Ln.e("RuntimeException",e);
-                            break;
-                        }
-
-                    }
-                }
-            } else{
-                handleHttp(request,input,output,clientSocket);
-            }
-        } catch (IOException e) {
-            Ln.e("Client error: ", e);
-        } finally {
-            if(isWs){
-                removeClient(clientSocket);
-            }
+
+    /**
+     * Pass a message to the endpoint of the connection, if any.
+     * <p>
+     * Must be called from {@link EventLoop.Handler#onMessage(Connection, ByteBuffer)}.
+     *
+     * @return {@code false} if the connection is not bound to an endpoint
+     */
+    public boolean dispatchWsMessage(Connection connection, ByteBuffer payload) {
+        WsEndpoint endpoint = wsEndpointClients.get(connection);
+        if (endpoint == null) {
+            return false;
         }
+        endpoint.onMessage(connection, payload);
+        return true;
+    }
+
+    /**
+     * Handle an HTTP request according to its route (see {@link #getRouter()}).
+     * <p>
+     * Must be called from {@link EventLoop.Handler#onRequest(Connection, HttpRequest)}.
+     */
+    public void dispatchHttp(HttpRequest request, Connection connection) {
+        router.dispatch(request, connection);
     }
 
-    public boolean performRequestHandshake(String request, OutputStream output) throws IOException {
-        String key = extractWebSocketKey(request);
+    /**
+     * Answer the WebSocket handshake and switch the connection to the WebSocket protocol.
+     * <p>
+     * Must be called from {@link EventLoop.Handler#onRequest(Connection, HttpRequest)}.
+     *
+     * @return {@code false} if the request is not a valid WebSocket handshake
+     */
+    public boolean performRequestHandshake(HttpRequest request, Connection connection) throws IOException {
+        String key = request.getHeader("Sec-WebSocket-Key");
         if (key == null) {
             return false;
         }
         String responseKey = computeResponseKey(key);
 
+        PerMessageDeflate deflate = null;
+        if (deflateEnabled) {
+            deflate = PerMessageDeflate.negotiate(request.getHeader("Sec-WebSocket-Extensions"), deflateContextTakeover);
+        }
+
         String response = "HTTP/1.1 101 Switching Protocols\r\n" +
                 "Upgrade: websocket\r\n" +
                 "Connection: Upgrade\r\n" +
-                "Sec-WebSocket-Accept: " + responseKey + "\r\n\r\n";
-        output.write(response.getBytes());
-        output.flush();
-        return true;
-    }
-
-    private String extractWebSocketKey(String request) {
-        String[] lines = request.split("\r\n");
-        for (String line : lines) {
-            if (line.startsWith("Sec-WebSocket-Key:")) {
-                return line.substring("Sec-WebSocket-Key:".length()).trim();
-            }
+                "Sec-WebSocket-Accept: " + responseKey + "\r\n";
+        if (deflate != null) {
+            response += "Sec-WebSocket-Extensions: " + deflate.getResponseHeader() + "\r\n";
         }
-        return null;
+        response += "\r\n";
+        connection.send(ByteBuffer.wrap(response.getBytes()));
+        connection.upgrade(deflate);
+        return true;
     }
 
     private String computeResponseKey(String key) {
@@ -193,110 +340,67 @@ public class BaseWsServer implements AsyncProcessor {
         }
     }
 
-    private void removeClient(Socket clientSocket) {
-        synchronized (clients) {
-            if (clients.remove(clientSocket)) {
-                Ln.i("Client disconnected. Total: " + clients.size());
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    Ln.e("Error closing client socket: " + e.getMessage());
-                }
-            }
+    private void removeClient(Connection connection) {
+        WsEndpoint endpoint = wsEndpointClients.remove(connection);
+        if (endpoint != null) {
+            endpoint.onClose(connection);
+        }
+        if (clients.remove(connection)) {
+            Ln.i("Client disconnected. Total: " + clients.size());
         }
     }
 
     // 向所有客户端广播帧数据
     public void broadcastFrame(byte[] frameData) {
         Ln.d("broadcastFrame: "+clients.size());
-        synchronized (clients) {
-            for (Socket client : clients) {
-                try {
-                    OutputStream output = client.getOutputStream();
-                    sendBinary(output, frameData);
-                } catch (Exception e) {
-                    Ln.e("Error sending frame: " + e.getMessage());
-                    removeClient(client);
-                }
+        // Encoded once, shared by all the clients; each client has its own queue, so a slow client drops frames according to its policy
+        // without delaying the others
+        OutboundMessage frame = OutboundMessage.binaryFrame(frameData);
+        for (Connection client : clients) {
+            try {
+                client.sendFrame(frame);
+            } catch (IOException e) {
+                Ln.e("Error sending frame: " + e.getMessage());
+                client.close();
             }
         }
     }
 
     public void sendBinary(OutputStream output, byte[] data) throws IOException {
         // 构建WebSocket二进制帧
-        ByteBuffer buffer = ByteBuffer.allocate(10 + data.length);
-        buffer.put((byte) 0x82); // FIN + Binary frame
-        if (data.length <= 125) {
-            buffer.put((byte) data.length);
-        } else if (data.length <= 65535) {
-            buffer.put((byte) 126);
-            buffer.putShort((short) data.length);
-        } else {
-            buffer.put((byte) 127);
-            buffer.putLong(data.length);
-        }
-        buffer.put(data);
-        output.write(buffer.array(), 0, buffer.position());
+        ByteBuffer header = OutboundMessage.encodeHeader(WebSocketDecoder.OPCODE_BINARY, data.length);
+        output.write(header.array(), 0, header.limit());
+        output.write(data);
         output.flush();
     }
 
     public void stopServer() throws IOException {
         onStopServer();
         running = false;
-        if (serverSocket != null) {
-            serverSocket.close();
+        synchronized (this) {
+            if (eventLoop != null) {
+                eventLoop.stop();
+            }
         }
+        router.shutdown();
 
         // 关闭所有客户端连接
-        synchronized (clients) {
-            for (Socket client : clients) {
-                try {
-                    client.close();
-                } catch (IOException e) {
-                    Ln.e("Error closing client: " + e.getMessage());
-                }
-            }
-            clients.clear();
+        for (Connection client : clients) {
+            client.close();
         }
+        clients.clear();
     }
 
-    public byte[] readFrame(InputStream input) throws IOException {
-        // 读取WebSocket帧头
-        byte[] header = new byte[2];
-        if (input.read(header) != 2) return null;
-
-        int payloadLength = header[1] & 0x7F;
-        if (payloadLength == 126) {
-            byte[] extended = new byte[2];
-            if (input.read(extended) != 2) return null;
-            payloadLength = ((extended[0] & 0xFF) << 8) | (extended[1] & 0xFF);
-        } else if (payloadLength == 127) {
-            throw new IOException("Large payloads not supported");
-        }
-
-        // 读取掩码
-        byte[] maskingKey = new byte[4];
-        if ((header[1] & 0x80) != 0) {
-            if (input.read(maskingKey) != 4) return null;
-        }
-
-        // 读取有效载荷
-        byte[] payload = new byte[payloadLength];
-        if (input.read(payload) != payloadLength) return null;
-
-        // 应用掩码
-        if ((header[1] & 0x80) != 0) {
-            for (int i = 0; i < payloadLength; i++) {
-                payload[i] ^= maskingKey[i % 4];
-            }
-        }
-
-        return payload;
-    }
+    /**
+     * Called before the server starts listening, once it is configured.
+     */
+    public void onStartServer() {}
 
     public void onStopServer(){}
 
     public void processCommand(byte[] command){}
-    public void handleHttp(String request,InputStream input,OutputStream output,Socket clientSocket) throws IOException {}
+    /**
+     * Handle the requests matching no route.
+     */
+    public void handleHttp(HttpRequest request, OutputStream output, Connection connection) throws IOException {}
 }
-
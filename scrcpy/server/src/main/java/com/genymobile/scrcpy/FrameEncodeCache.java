@@ -0,0 +1,189 @@
+package com.genymobile.scrcpy;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodings of the current frame, keyed by tier (format, quality and scale), shared by all the screenshot consumers.
+ * <p>
+ * Each tier is encoded at most once per frame, lazily, by the first consumer requesting it: concurrent requests for the same tier wait for
+ * this encoding instead of encoding again, while different tiers are encoded in parallel. The encodings are dropped as soon as a newer
+ * frame is requested.
+ */
+public final class FrameEncodeCache {
+
+    // Bounds the memory used by clients requesting many distinct qualities or scales
+    private static final int MAX_TIERS = 16;
+
+    public enum Format {
+        /**
+         * The raw JPEG image.
+         */
+        JPEG,
+        /**
+         * The JPEG image framed with its length and metadata, as sent on {@code /screen.jpeg} and {@code /screenImg.jpeg}.
+         */
+        FRAMED
+    }
+
+    /**
+     * Encodes a tier of the frame (called at most once per tier and frame, unless it fails).
+     */
+    public interface Encoder {
+        byte[] encode() throws IOException;
+    }
+
+    private static final class Key {
+        private final Format format;
+        private final int quality;
+        private final int scaleBits;
+
+        Key(Format format, int quality, float scale) {
+            this.format = format;
+            this.quality = quality;
+            this.scaleBits = Float.floatToIntBits(scale);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return format == key.format && quality == key.quality && scaleBits == key.scaleBits;
+        }
+
+        @Override
+        public int hashCode() {
+            return (format.hashCode() * 31 + quality) * 31 + scaleBits;
+        }
+    }
+
+    private final class Entry {
+        // Written with the lock held, may be read without it
+        private volatile byte[] data;
+
+        synchronized byte[] get(Encoder encoder) throws IOException {
+            if (data != null) {
+                hits.incrementAndGet();
+                return data;
+            }
+            misses.incrementAndGet();
+            data = encoder.encode();
+            return data;
+        }
+    }
+
+    private static final class Generation {
+        private final long sequence;
+        private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+        Generation(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private volatile Generation current = new Generation(-1);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong uncached = new AtomicLong();
+
+    /**
+     * Return the encoding of a tier of a frame, encoding it if no consumer did it yet.
+     *
+     * @param sequence the sequence number of the frame (a greater number invalidates the encodings of the previous frames)
+     * @param encoder  encodes the tier if it is not cached
+     */
+    public byte[] get(long sequence, Format format, int quality, float scale, Encoder encoder) throws IOException {
+        Generation generation = current;
+        if (generation.sequence != sequence) {
+            synchronized (this) {
+                if (current.sequence < sequence) {
+                    current = new Generation(sequence);
+                }
+                generation = current;
+            }
+        }
+
+        Entry entry = null;
+        if (generation.sequence == sequence) {
+            Key key = new Key(format, quality, scale);
+            entry = generation.entries.get(key);
+            if (entry == null && generation.entries.size() < MAX_TIERS) {
+                Entry newEntry = new Entry();
+                entry = generation.entries.putIfAbsent(key, newEntry);
+                if (entry == null) {
+                    entry = newEntry;
+                }
+            }
+        }
+        if (entry == null) {
+            // Too many tiers, or a frame older than the cached one
+            uncached.incrementAndGet();
+            return encoder.encode();
+        }
+        return entry.get(encoder);
+    }
+
+    /**
+     * Return the encoding of a tier of a frame if it is available, without encoding it nor waiting for its encoding.
+     */
+    public byte[] peek(long sequence, Format format, int quality, float scale) {
+        Generation generation = current;
+        if (generation.sequence != sequence) {
+            return null;
+        }
+        Entry entry = generation.entries.get(new Key(format, quality, scale));
+        return entry != null ? entry.data : null;
+    }
+
+    /**
+     * Drop the encodings of the current frame.
+     */
+    public synchronized void clear() {
+        current = new Generation(current.sequence);
+    }
+
+    /**
+     * Return the number of tiers cached for the current frame.
+     */
+    public int getTiers() {
+        return current.entries.size();
+    }
+
+    /**
+     * Return the number of requests served without encoding.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of encodings stored in the cache.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of encodings not stored in the cache (too many tiers, or outdated frame).
+     */
+    public long getUncached() {
+        return uncached.get();
+    }
+
+    /**
+     * Return the ratio of requests served without encoding.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get() + uncached.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
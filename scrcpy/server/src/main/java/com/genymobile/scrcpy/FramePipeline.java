@@ -0,0 +1,337 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.OutboundMessage;
+import com.genymobile.scrcpy.net.WorkerPool;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stages processing the captured frames, so that the capture callback only takes a snapshot of the frame and returns.
+ * <p>
+ * Every stage holds its own reference to the snapshot it processes, so a snapshot is recycled only once it has been published, replaced,
+ * and encoded for all the tiers.
+ * <ol>
+ * <li>capture: the caller (the ImageReader callback) submits a snapshot to a mailbox holding only the latest frame;</li>
+ * <li>publish ({@code frame-publish} thread): the latest frame becomes the current one, and the encoding of the tiers (quality and scale)
+ * requested by the stream subscribers is started;</li>
+ * <li>encode (the encoder pool): each tier is encoded, unless the previous frame is still being encoded for this tier (the frame is then
+ * skipped for this tier, never queued);</li>
+ * <li>send ({@code frame-send} thread): the encoded frames are handed to the send queue of each subscriber of their tier (which drops them
+ * according to its policy if the client does not keep up).</li>
+ * </ol>
+ */
+public final class FramePipeline {
+
+    /**
+     * The processing of the frames, specific to the consumers.
+     */
+    public interface Stages {
+        /**
+         * Make a frame the current one (called on the publish thread, for every frame not superseded in the mailbox).
+         */
+        void publish(FrameSnapshot frame);
+
+        /**
+         * Encode a frame for the stream subscribers (called on a thread of the encoder pool, at most once at a time per tier).
+         */
+        byte[] encode(FrameSnapshot frame, int quality, float scale) throws IOException;
+    }
+
+    private static final class Subscriber {
+        private final Connection connection;
+        private final int quality;
+        private final float scale;
+        private final long tier;
+
+        Subscriber(Connection connection, int quality, float scale) {
+            this.connection = connection;
+            this.quality = quality;
+            this.scale = scale;
+            this.tier = tierKey(quality, scale);
+        }
+    }
+
+    private static final class Delivery {
+        private final long tier;
+        // Shared by all the subscribers of the tier
+        private final OutboundMessage message;
+
+        Delivery(long tier, OutboundMessage message) {
+            this.tier = tier;
+            this.message = message;
+        }
+    }
+
+    private final Stages stages;
+    private final WorkerPool encoderPool;
+    private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+
+    private final Object mailboxLock = new Object();
+    // Guarded by mailboxLock
+    private FrameSnapshot pending;
+    private boolean closed;
+
+    // The tiers being encoded (guarded by itself)
+    private final Set<Long> encoding = new HashSet<>();
+    private final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<>();
+
+    private final Thread publishThread;
+    private final Thread sendThread;
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong encodeSkipped = new AtomicLong();
+    private final AtomicLong encodeRejected = new AtomicLong();
+    private final AtomicLong encodeFailed = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param encoderPool the pool encoding the tiers (its size bounds the number of tiers encoded in parallel)
+     */
+    public FramePipeline(Stages stages, WorkerPool encoderPool) {
+        this.stages = stages;
+        this.encoderPool = encoderPool;
+        publishThread = new Thread(this::runPublish, "frame-publish");
+        publishThread.setDaemon(true);
+        sendThread = new Thread(this::runSend, "frame-send");
+        sendThread.setDaemon(true);
+    }
+
+    public void start() {
+        publishThread.start();
+        sendThread.start();
+    }
+
+    public void close() {
+        synchronized (mailboxLock) {
+            closed = true;
+            if (pending != null) {
+                pending.release();
+                pending = null;
+            }
+            mailboxLock.notify();
+        }
+        sendThread.interrupt();
+    }
+
+    /**
+     * Submit a captured frame (called on the capture thread, never blocks). A frame not published yet is replaced.
+     *
+     * @param frame a snapshot whose reference is transferred to the pipeline
+     */
+    public void submit(FrameSnapshot frame) {
+        captured.incrementAndGet();
+        synchronized (mailboxLock) {
+            if (closed) {
+                frame.release();
+                return;
+            }
+            if (pending != null) {
+                superseded.incrementAndGet();
+                pending.release();
+            }
+            pending = frame;
+            mailboxLock.notify();
+        }
+    }
+
+    /**
+     * Send the frames of a tier to a connection, until it is closed.
+     */
+    public void subscribe(Connection connection, int quality, float scale) {
+        Subscriber subscriber = new Subscriber(connection, quality, scale);
+        subscribers.add(subscriber);
+        connection.addCloseListener(() -> subscribers.remove(subscriber));
+    }
+
+    private void runPublish() {
+        try {
+            while (true) {
+                FrameSnapshot frame;
+                synchronized (mailboxLock) {
+                    while (pending == null && !closed) {
+                        mailboxLock.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    frame = pending;
+                    pending = null;
+                }
+                try {
+                    stages.publish(frame);
+                    published.incrementAndGet();
+                    startEncoding(frame);
+                } catch (RuntimeException e) {
+                    Ln.e("Could not publish frame", e);
+                } finally {
+                    frame.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void startEncoding(FrameSnapshot frame) {
+        // One subscriber per distinct tier
+        Map<Long, Subscriber> tiers = new HashMap<>();
+        for (Subscriber subscriber : subscribers) {
+            if (!tiers.containsKey(subscriber.tier)) {
+                tiers.put(subscriber.tier, subscriber);
+            }
+        }
+        for (Subscriber subscriber : tiers.values()) {
+            long tier = subscriber.tier;
+            synchronized (encoding) {
+                if (!encoding.add(tier)) {
+                    // The previous frame is still being encoded for this tier
+                    encodeSkipped.incrementAndGet();
+                    continue;
+                }
+            }
+            // Released once encoded
+            frame.retain();
+            if (!encoderPool.tryExecute(() -> encode(frame, tier, subscriber.quality, subscriber.scale))) {
+                synchronized (encoding) {
+                    encoding.remove(tier);
+                }
+                frame.release();
+                encodeRejected.incrementAndGet();
+            }
+        }
+    }
+
+    private void encode(FrameSnapshot frame, long tier, int quality, float scale) {
+        try {
+            long start = System.nanoTime();
+            byte[] data = stages.encode(frame, quality, scale);
+            encodeNanos.addAndGet(System.nanoTime() - start);
+            encoded.incrementAndGet();
+            deliveries.add(new Delivery(tier, OutboundMessage.wrap(ByteBuffer.wrap(data))));
+        } catch (Exception e) {
+            Ln.e("Could not encode frame: " + e.getMessage());
+            encodeFailed.incrementAndGet();
+        } finally {
+            synchronized (encoding) {
+                encoding.remove(tier);
+            }
+            frame.release();
+        }
+    }
+
+    private void runSend() {
+        try {
+            while (true) {
+                Delivery delivery = deliveries.take();
+                for (Subscriber subscriber : subscribers) {
+                    if (subscriber.tier == delivery.tier) {
+                        send(subscriber, delivery.message);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void send(Subscriber subscriber, OutboundMessage message) {
+        try {
+            // Frames are only queued here, never waiting for a client: each client is drained independently by the I/O threads
+            if (subscriber.connection.sendFrame(message)) {
+                sent.incrementAndGet();
+            } else {
+                dropped.incrementAndGet();
+            }
+        } catch (IOException e) {
+            Ln.d("Frame not sent: " + e.getMessage());
+            subscribers.remove(subscriber);
+        }
+    }
+
+    public int getSubscribers() {
+        return subscribers.size();
+    }
+
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    /**
+     * Return the number of captured frames replaced in the mailbox by a newer frame before being published.
+     */
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * Return the number of tiers encoded for the stream subscribers.
+     */
+    public long getEncoded() {
+        return encoded.get();
+    }
+
+    public double getEncodeMeanMillis() {
+        long count = encoded.get();
+        return count == 0 ? 0 : encodeNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * Return the number of tiers not encoded for a frame, because the previous frame was still being encoded for the same tier.
+     */
+    public long getEncodeSkipped() {
+        return encodeSkipped.get();
+    }
+
+    /**
+     * Return the number of tiers not encoded for a frame, because the encoder pool was saturated.
+     */
+    public long getEncodeRejected() {
+        return encodeRejected.get();
+    }
+
+    public long getEncodeFailed() {
+        return encodeFailed.get();
+    }
+
+    /**
+     * Return the number of encoded frames waiting for the send stage.
+     */
+    public int getSendPending() {
+        return deliveries.size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Return the number of frames dropped by the send queue of a subscriber which did not keep up.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private static long tierKey(int quality, float scale) {
+        return ((long) quality << 32) | (Float.floatToIntBits(scale) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,93 @@
+package com.genymobile.scrcpy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable copy of a captured frame: tightly packed RGBA pixels (the row stride is {@code width * 4}), owned by the server.
+ * <p>
+ * Snapshots are reference-counted: their buffer returns to the {@link FrameSnapshotStore} pool once the last reference is released, so any
+ * number of readers may use a snapshot concurrently without holding a lock, as long as each releases its own reference.
+ */
+public final class FrameSnapshot {
+
+    private final FrameSnapshotStore store;
+    private final ByteBuffer pixels;
+    private final int width;
+    private final int height;
+    private final long sequence;
+    private final long timestamp;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    FrameSnapshot(FrameSnapshotStore store, ByteBuffer pixels, int width, int height, long sequence, long timestamp) {
+        this.store = store;
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Acquire a new reference, unless the snapshot has already been released by all its owners.
+     *
+     * @return {@code true} if a reference has been acquired (to be released by the caller)
+     */
+    public boolean tryRetain() {
+        while (true) {
+            int count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Acquire a new reference, from a caller already owning one.
+     */
+    public void retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("Snapshot already released");
+        }
+    }
+
+    /**
+     * Release a reference (the snapshot must not be used anymore by the caller).
+     */
+    public void release() {
+        int count = refs.decrementAndGet();
+        if (count == 0) {
+            store.recycle(pixels);
+        } else if (count < 0) {
+            throw new IllegalStateException("Snapshot released too many times");
+        }
+    }
+
+    /**
+     * Return the pixels, which must not be modified, in a buffer whose position and limit are independent of the other readers.
+     */
+    public ByteBuffer getPixels() {
+        ByteBuffer buffer = pixels.duplicate();
+        buffer.rewind();
+        return buffer;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,166 @@
+package com.genymobile.scrcpy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Owner of the frame snapshots: copies the captured images into pooled direct buffers, and publishes the current snapshot.
+ * <p>
+ * The source image may have padded rows (row stride greater than {@code width * pixelStride}) or a pixel stride other than 4: the pixels
+ * are packed while copied, so that the consumers may assume {@code width * 4} bytes per row.
+ */
+public final class FrameSnapshotStore {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int maxIdleBuffers;
+    private final AtomicReference<FrameSnapshot> current = new AtomicReference<>();
+    // Guarded by itself
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong repacked = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * @param maxIdleBuffers the max number of buffers kept for the next snapshots (the current snapshot, one being captured, and the ones
+     *                       still read by slow consumers)
+     */
+    public FrameSnapshotStore(int maxIdleBuffers) {
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    /**
+     * Copy an image into a new snapshot.
+     *
+     * @param source      the pixels of the image (its position and limit are not modified)
+     * @param pixelStride the distance between two pixels, in bytes
+     * @param rowStride   the distance between two rows, in bytes
+     * @return a snapshot owned by the caller (to be released)
+     */
+    public FrameSnapshot capture(ByteBuffer source, int width, int height, int pixelStride, int rowStride, long sequence, long timestamp) {
+        int rowSize = width * BYTES_PER_PIXEL;
+        ByteBuffer pixels = acquireBuffer(rowSize * height);
+        ByteBuffer src = source.duplicate();
+        src.clear();
+        if (pixelStride == BYTES_PER_PIXEL && rowStride == rowSize) {
+            src.limit(rowSize * height);
+            pixels.put(src);
+        } else if (pixelStride == BYTES_PER_PIXEL) {
+            // Skip the padding at the end of each row
+            for (int y = 0; y < height; ++y) {
+                int rowStart = y * rowStride;
+                src.limit(rowStart + rowSize);
+                src.position(rowStart);
+                pixels.put(src);
+            }
+            repacked.incrementAndGet();
+        } else {
+            for (int y = 0; y < height; ++y) {
+                int rowStart = y * rowStride;
+                for (int x = 0; x < width; ++x) {
+                    pixels.putInt(src.getInt(rowStart + x * pixelStride));
+                }
+            }
+            repacked.incrementAndGet();
+        }
+        pixels.flip();
+        captured.incrementAndGet();
+        return new FrameSnapshot(this, pixels, width, height, sequence, timestamp);
+    }
+
+    /**
+     * Make a snapshot the current one. The store acquires its own reference, and releases its reference to the previous snapshot.
+     */
+    public void publish(FrameSnapshot snapshot) {
+        snapshot.retain();
+        FrameSnapshot previous = current.getAndSet(snapshot);
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Return the current snapshot, with a new reference owned by the caller (to be released), or {@code null} if there is none.
+     * <p>
+     * Never blocks: a reader may keep its snapshot while newer frames are published.
+     */
+    public FrameSnapshot acquire() {
+        while (true) {
+            FrameSnapshot snapshot = current.get();
+            if (snapshot == null) {
+                return null;
+            }
+            if (snapshot.tryRetain()) {
+                return snapshot;
+            }
+            // Released meanwhile: a newer snapshot has been published
+        }
+    }
+
+    /**
+     * Return whether there is no current snapshot.
+     */
+    public boolean isEmpty() {
+        return current.get() == null;
+    }
+
+    /**
+     * Drop the current snapshot.
+     */
+    public void clear() {
+        FrameSnapshot previous = current.getAndSet(null);
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    private ByteBuffer acquireBuffer(int capacity) {
+        synchronized (idle) {
+            ByteBuffer buffer;
+            while ((buffer = idle.pollLast()) != null) {
+                if (buffer.capacity() == capacity) {
+                    reused.incrementAndGet();
+                    buffer.clear();
+                    return buffer;
+                }
+                // The capture size changed: the buffers of the previous size are not reusable
+            }
+        }
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    void recycle(ByteBuffer buffer) {
+        synchronized (idle) {
+            if (idle.size() < maxIdleBuffers) {
+                idle.addLast(buffer);
+            }
+        }
+    }
+
+    /**
+     * Return the number of snapshots captured.
+     */
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    /**
+     * Return the number of snapshots whose source had padded rows or a non-default pixel stride.
+     */
+    public long getRepacked() {
+        return repacked.get();
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,364 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.OutboundMessage;
+import com.genymobile.scrcpy.net.UpstreamClient;
+import com.genymobile.scrcpy.net.UpstreamResponse;
+import com.genymobile.scrcpy.net.UpstreamUnavailableException;
+import com.genymobile.scrcpy.net.WebSocketDecoder;
+import com.genymobile.scrcpy.net.WorkerPool;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JSON-RPC over a persistent WebSocket, forwarded to the u2 service.
+ * <p>
+ * Each message is a JSON-RPC request or a batch (array) of requests. The calls of all the clients are executed concurrently by a bounded
+ * pool, each on a pooled upstream connection, and each response is sent (as a text message) as soon as its call completes: a client
+ * correlates the responses with its requests by their id, and a slow call does not delay the others, even within a batch.
+ * Notifications (requests without id) are forwarded, but never answered.
+ */
+public final class JsonRpcMux implements BaseWsServer.WsEndpoint {
+
+    private static final String UPSTREAM_TARGET = "/jsonrpc/0";
+    // Calls pending for a single client (queued or executing)
+    private static final int MAX_IN_FLIGHT = 64;
+
+    // JSON-RPC 2.0 error codes
+    private static final int PARSE_ERROR = -32700;
+    private static final int INVALID_REQUEST = -32600;
+    private static final int SERVER_ERROR = -32000;
+
+    private final UpstreamClient upstream;
+    private final WorkerPool pool;
+    private final Map<Connection, Session> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param pool the pool executing the calls (its number of threads is the max number of concurrent upstream calls)
+     */
+    public JsonRpcMux(UpstreamClient upstream, WorkerPool pool) {
+        this.upstream = upstream;
+        this.pool = pool;
+    }
+
+    private static final class Session {
+        // Ids (raw JSON values) of the calls in flight, to reject a duplicate id which could not be correlated
+        private final Set<String> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private volatile boolean closed;
+    }
+
+    @Override
+    public void onMessage(Connection connection, ByteBuffer payload) {
+        Session session = sessions.get(connection);
+        if (session == null) {
+            session = new Session();
+            sessions.put(connection, session);
+        }
+
+        String message = StandardCharsets.UTF_8.decode(payload).toString().trim();
+        List<String> requests;
+        if (message.startsWith("[")) {
+            requests = splitArray(message);
+            if (requests == null) {
+                sendError(connection, "null", PARSE_ERROR, "Parse error");
+                return;
+            }
+            if (requests.isEmpty()) {
+                sendError(connection, "null", INVALID_REQUEST, "Invalid Request");
+                return;
+            }
+            batches.incrementAndGet();
+        } else {
+            requests = new ArrayList<>(1);
+            requests.add(message);
+        }
+
+        for (String request : requests) {
+            submit(connection, session, request);
+        }
+    }
+
+    private void submit(Connection connection, Session session, String request) {
+        if (!request.startsWith("{")) {
+            sendError(connection, "null", INVALID_REQUEST, "Invalid Request");
+            return;
+        }
+        if (skipValue(request, 0) != request.length()) {
+            sendError(connection, "null", PARSE_ERROR, "Parse error");
+            return;
+        }
+        String id = findMember(request, "id");
+        boolean notification = id == null;
+        String responseId = notification ? "null" : id;
+        // A null id is answered, but cannot be correlated
+        String inFlightId = notification || "null".equals(id) ? null : id;
+
+        if (inFlightId != null) {
+            if (session.inFlight.size() >= MAX_IN_FLIGHT) {
+                sendError(connection, responseId, SERVER_ERROR, "Too many calls in flight");
+                return;
+            }
+            if (!session.inFlight.add(inFlightId)) {
+                sendError(connection, responseId, INVALID_REQUEST, "Duplicate id in flight");
+                return;
+            }
+        }
+
+        calls.incrementAndGet();
+        boolean accepted = pool.tryExecute(() -> {
+            try {
+                call(connection, session, request, responseId, notification);
+            } finally {
+                if (inFlightId != null) {
+                    session.inFlight.remove(inFlightId);
+                }
+            }
+        });
+        if (!accepted) {
+            if (inFlightId != null) {
+                session.inFlight.remove(inFlightId);
+            }
+            sendError(connection, responseId, SERVER_ERROR, "Server busy");
+        }
+    }
+
+    private void call(Connection connection, Session session, String request, String responseId, boolean notification) {
+        if (session.closed) {
+            // The client is gone while the call was queued
+            return;
+        }
+        String error;
+        byte[] body = request.getBytes(StandardCharsets.UTF_8);
+        try (UpstreamResponse response = upstream.execute("POST", UPSTREAM_TARGET, "application/json", body)) {
+            byte[] result = readFully(response.getBody());
+            if (response.getStatus() == 200 && result.length > 0) {
+                if (!notification) {
+                    send(connection, result);
+                }
+                return;
+            }
+            Ln.w("jsonrpc mux: upstream returned " + response.getStatus());
+            error = "Upstream error " + response.getStatus();
+        } catch (UpstreamUnavailableException e) {
+            error = "Upstream unavailable";
+        } catch (SocketTimeoutException e) {
+            error = "Upstream timeout";
+        } catch (IOException e) {
+            Ln.w("jsonrpc mux: " + e.getMessage());
+            error = "Upstream error";
+        }
+
+        if (notification) {
+            errors.incrementAndGet();
+        } else {
+            sendError(connection, responseId, SERVER_ERROR, error);
+        }
+    }
+
+    private void sendError(Connection connection, String id, int code, String message) {
+        errors.incrementAndGet();
+        String error = "{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"error\":{\"code\":" + code + ",\"message\":\"" + message + "\"}}";
+        send(connection, error.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(Connection connection, byte[] data) {
+        try {
+            connection.send(OutboundMessage.dataFrame(WebSocketDecoder.OPCODE_TEXT, data, true));
+        } catch (IOException e) {
+            Ln.d("jsonrpc mux: could not send response: " + e.getMessage());
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int r;
+        while ((r = in.read(buffer)) != -1) {
+            out.write(buffer, 0, r);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void onClose(Connection connection) {
+        Session session = sessions.remove(connection);
+        if (session != null) {
+            session.closed = true;
+        }
+    }
+
+    public int getClients() {
+        return sessions.size();
+    }
+
+    public int getInFlight() {
+        int count = 0;
+        for (Session session : sessions.values()) {
+            count += session.inFlight.size();
+        }
+        return count;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Split a JSON array into the (raw) JSON texts of its elements.
+     *
+     * @return the elements, or {@code null} if {@code json} is not a well-formed array
+     */
+    static List<String> splitArray(String json) {
+        int pos = skipWhitespace(json, 0);
+        if (pos == json.length() || json.charAt(pos) != '[') {
+            return null;
+        }
+        List<String> elements = new ArrayList<>();
+        pos = skipWhitespace(json, pos + 1);
+        if (pos < json.length() && json.charAt(pos) == ']') {
+            return skipWhitespace(json, pos + 1) == json.length() ? elements : null;
+        }
+        while (true) {
+            int end = skipValue(json, pos);
+            if (end == -1) {
+                return null;
+            }
+            elements.add(json.substring(pos, end).trim());
+            pos = skipWhitespace(json, end);
+            if (pos == json.length()) {
+                return null;
+            }
+            char c = json.charAt(pos);
+            if (c == ']') {
+                return skipWhitespace(json, pos + 1) == json.length() ? elements : null;
+            }
+            if (c != ',') {
+                return null;
+            }
+            pos = skipWhitespace(json, pos + 1);
+        }
+    }
+
+    /**
+     * Return the raw JSON text of the value of a top-level member of a JSON object.
+     *
+     * @return the value, or {@code null} if the object has no such member (or is malformed)
+     */
+    static String findMember(String json, String name) {
+        int pos = skipWhitespace(json, 0);
+        if (pos == json.length() || json.charAt(pos) != '{') {
+            return null;
+        }
+        pos = skipWhitespace(json, pos + 1);
+        if (pos < json.length() && json.charAt(pos) == '}') {
+            return null;
+        }
+        while (pos < json.length() && json.charAt(pos) == '"') {
+            int keyEnd = skipValue(json, pos);
+            if (keyEnd == -1) {
+                return null;
+            }
+            String key = json.substring(pos + 1, keyEnd - 1);
+            pos = skipWhitespace(json, keyEnd);
+            if (pos == json.length() || json.charAt(pos) != ':') {
+                return null;
+            }
+            int valueStart = skipWhitespace(json, pos + 1);
+            int valueEnd = skipValue(json, valueStart);
+            if (valueEnd == -1) {
+                return null;
+            }
+            if (key.equals(name)) {
+                return json.substring(valueStart, valueEnd).trim();
+            }
+            pos = skipWhitespace(json, valueEnd);
+            if (pos == json.length() || json.charAt(pos) != ',') {
+                return null;
+            }
+            pos = skipWhitespace(json, pos + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Return the position following the JSON value starting at {@code pos}, or -1 if it is malformed.
+     * <p>
+     * Only the structure is checked (strings, nesting): this is enough to delimit the values, the upstream service parses them.
+     */
+    static int skipValue(String json, int pos) {
+        int length = json.length();
+        if (pos >= length) {
+            return -1;
+        }
+        char c = json.charAt(pos);
+        if (c == '"') {
+            for (int i = pos + 1; i < length; ++i) {
+                char d = json.charAt(i);
+                if (d == '\\') {
+                    ++i;
+                } else if (d == '"') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            for (int i = pos; i < length; ++i) {
+                char d = json.charAt(i);
+                if (d == '"') {
+                    int end = skipValue(json, i);
+                    if (end == -1) {
+                        return -1;
+                    }
+                    i = end - 1;
+                } else if (d == '{' || d == '[') {
+                    ++depth;
+                } else if (d == '}' || d == ']') {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                }
+            }
+            return -1;
+        }
+        // Literal (number, true, false, null)
+        int i = pos;
+        while (i < length && ",]} \t\r\n".indexOf(json.charAt(i)) == -1) {
+            ++i;
+        }
+        return i == pos ? -1 : i;
+    }
+
+    private static int skipWhitespace(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            ++pos;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,222 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.WorkerPool;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Standard MJPEG stream ({@code multipart/x-mixed-replace}), which browsers and ffmpeg consume directly.
+ * <p>
+ * Each subscriber is paced independently: it receives at most {@code fps} frames per second, always the latest one. Frames captured while
+ * a subscriber waits for its next slot (or while its previous frame is still being written) are skipped, never queued. A frame is encoded
+ * only when it is about to be sent, and the encoded frames are shared by the subscribers requesting the same quality and scale.
+ */
+public final class MjpegStreamer {
+
+    private static final String BOUNDARY = "mjpegframe";
+    private static final byte[] PART_END = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    // Delay before retrying to send to a subscriber whose previous frame is not written yet
+    private static final long BUSY_RETRY_MS = 20;
+
+    /**
+     * An encoded frame.
+     */
+    public static final class Frame {
+        private final long sequence;
+        private final byte[] jpeg;
+
+        public Frame(long sequence, byte[] jpeg) {
+            this.sequence = sequence;
+            this.jpeg = jpeg;
+        }
+    }
+
+    /**
+     * Provides the latest captured frame, encoded.
+     */
+    public interface FrameSource {
+        /**
+         * @return the latest frame, or {@code null} if none has been captured
+         */
+        Frame getLatestFrame(int quality, float scale) throws IOException;
+    }
+
+    private final class Subscriber {
+        private final Connection connection;
+        private final int quality;
+        private final float scale;
+        private final long minInterval;
+
+        // Guarded by this
+        private long latestSequence;
+        private long sentSequence;
+        private long sentAt;
+        // A delivery is scheduled or running
+        private boolean busy;
+
+        Subscriber(Connection connection, int quality, float scale, long minInterval) {
+            this.connection = connection;
+            this.quality = quality;
+            this.scale = scale;
+            this.minInterval = minInterval;
+        }
+
+        synchronized void onFrame(long sequence) {
+            if (latestSequence > sentSequence) {
+                // The previous frame has not been sent, and never will
+                skipped.incrementAndGet();
+            }
+            latestSequence = sequence;
+            schedule(0);
+        }
+
+        // Called with the lock held
+        private void schedule(long minDelay) {
+            if (busy || connection.isClosed()) {
+                return;
+            }
+            busy = true;
+            long delay = Math.max(minDelay, sentAt + minInterval - System.currentTimeMillis());
+            if (delay > 0) {
+                timer.schedule(this::submit, delay, TimeUnit.MILLISECONDS);
+            } else {
+                submit();
+            }
+        }
+
+        private void submit() {
+            // Encoding may be expensive: neither on the capture thread nor on the timer thread
+            if (!pool.tryExecute(this::deliver)) {
+                synchronized (this) {
+                    busy = false;
+                }
+                skipped.incrementAndGet();
+            }
+        }
+
+        private void deliver() {
+            synchronized (this) {
+                if (connection.getSendQueue().size() > 0) {
+                    // The client has not received the previous frame yet: do not queue another one
+                    busy = false;
+                    schedule(BUSY_RETRY_MS);
+                    return;
+                }
+            }
+
+            Frame frame = null;
+            try {
+                frame = source.getLatestFrame(quality, scale);
+                if (frame != null && frame.sequence > sentSequence) {
+                    ByteBuffer head = ByteBuffer.wrap(formatPartHeader(frame.sequence, frame.jpeg.length));
+                    connection.send(head, ByteBuffer.wrap(frame.jpeg), ByteBuffer.wrap(PART_END));
+                    sent.incrementAndGet();
+                }
+            } catch (IOException e) {
+                Ln.d("mjpeg: " + e.getMessage());
+                subscribers.remove(this);
+                connection.close();
+                return;
+            }
+
+            synchronized (this) {
+                busy = false;
+                if (frame != null && frame.sequence > sentSequence) {
+                    sentSequence = frame.sequence;
+                    sentAt = System.currentTimeMillis();
+                }
+                if (latestSequence > sentSequence) {
+                    // Captured meanwhile: send it in the next slot
+                    schedule(0);
+                }
+            }
+        }
+    }
+
+    private final FrameSource source;
+    private final WorkerPool pool;
+    private final ScheduledExecutorService timer;
+    private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+    private volatile long latestSequence;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param pool  the pool encoding and sending the frames
+     * @param timer the executor delaying the frames of the paced subscribers
+     */
+    public MjpegStreamer(FrameSource source, WorkerPool pool, ScheduledExecutorService timer) {
+        this.source = source;
+        this.pool = pool;
+        this.timer = timer;
+    }
+
+    /**
+     * Start the stream on a connection (the response head is sent by this method).
+     *
+     * @param fps the max number of frames per second sent to this subscriber
+     */
+    public void subscribe(Connection connection, int quality, float scale, int fps) throws IOException {
+        String head = "HTTP/1.1 200 OK\r\n" +
+                "Connection: close\r\n" +
+                "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n" +
+                "Cache-Control: no-cache, no-store\r\n" +
+                "Pragma: no-cache\r\n" +
+                "Access-Control-Allow-Origin: *\r\n\r\n";
+        connection.setLabel("screen.mjpeg");
+        connection.setStreaming();
+        connection.send(ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)));
+
+        Subscriber subscriber = new Subscriber(connection, quality, scale, 1000 / fps);
+        subscribers.add(subscriber);
+        connection.addCloseListener(() -> subscribers.remove(subscriber));
+        long sequence = latestSequence;
+        if (sequence > 0) {
+            // The current frame, so that the client does not wait for the screen to change
+            subscriber.onFrame(sequence);
+        }
+    }
+
+    /**
+     * Notify a captured frame (called on the capture thread, for every frame: it does not encode anything).
+     */
+    public void onFrame(long sequence) {
+        latestSequence = sequence;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onFrame(sequence);
+        }
+    }
+
+    public int getSubscribers() {
+        return subscribers.size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Return the number of frames not sent to a subscriber, because of its pacing or because it did not keep up.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    static byte[] formatPartHeader(long sequence, int length) {
+        String header = "--" + BOUNDARY + "\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "Content-Length: " + length + "\r\n" +
+                "X-Frame-Sequence: " + sequence + "\r\n\r\n";
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+}
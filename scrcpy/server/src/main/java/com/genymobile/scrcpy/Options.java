@@ -9,6 +9,7 @@ import com.genymobile.scrcpy.device.Device;
 import com.genymobile.scrcpy.device.NewDisplay;
 import com.genymobile.scrcpy.device.Orientation;
 import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.net.SendQueue;
 import com.genymobile.scrcpy.util.CodecOption;
 import com.genymobile.scrcpy.util.Ln;
 import com.genymobile.scrcpy.video.CameraAspectRatio;
@@ -26,6 +27,20 @@ public class Options {
     private boolean boot;
     private boolean ws;
     private int port;
+    private int ioThreads = 2;
+    private int sendQueueSize = 8;
+    private SendQueue.Policy sendQueuePolicy = SendQueue.Policy.DROP_OLDEST;
+    private int wsMaxMessageSize = 16 * 1024 * 1024;
+    private boolean wsDeflate = true;
+    private boolean wsDeflateContextTakeover = true;
+    private int httpKeepAliveTimeout = 15000;
+    private int httpMaxRequests = 100;
+    private int wsPingInterval = 30000;
+    private int wsPongTimeout = 10000;
+    private int jsonRpcParallelism = 4;
+    private int deviceInfoTtl = 5000; // ms
+    private int shellPoolSize = 4;
+    private int screenEncodeThreads = 2;
     private Ln.Level logLevel = Ln.Level.DEBUG;
     private int scid = -1; // 31-bit non-negative value, or -1
     private boolean video = true;
@@ -157,6 +172,62 @@ public class Options {
         return port;
     }
 
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public int getSendQueueSize() {
+        return sendQueueSize;
+    }
+
+    public SendQueue.Policy getSendQueuePolicy() {
+        return sendQueuePolicy;
+    }
+
+    public int getWsMaxMessageSize() {
+        return wsMaxMessageSize;
+    }
+
+    public boolean getWsDeflate() {
+        return wsDeflate;
+    }
+
+    public boolean getWsDeflateContextTakeover() {
+        return wsDeflateContextTakeover;
+    }
+
+    public int getHttpKeepAliveTimeout() {
+        return httpKeepAliveTimeout;
+    }
+
+    public int getHttpMaxRequests() {
+        return httpMaxRequests;
+    }
+
+    public int getWsPingInterval() {
+        return wsPingInterval;
+    }
+
+    public int getWsPongTimeout() {
+        return wsPongTimeout;
+    }
+
+    public int getJsonRpcParallelism() {
+        return jsonRpcParallelism;
+    }
+
+    public int getDeviceInfoTtl() {
+        return deviceInfoTtl;
+    }
+
+    public int getShellPoolSize() {
+        return shellPoolSize;
+    }
+
+    public int getScreenEncodeThreads() {
+        return screenEncodeThreads;
+    }
+
     public Rect getCrop() {
         return crop;
     }
@@ -405,6 +476,84 @@ public class Options {
                 case "port":
                     options.port = Integer.parseInt(value);
                     break;
+                case "io_threads":
+                    options.ioThreads = Integer.parseInt(value);
+                    if (options.ioThreads < 1) {
+                        throw new IllegalArgumentException("Invalid number of I/O threads: " + options.ioThreads);
+                    }
+                    break;
+                case "send_queue_size":
+                    options.sendQueueSize = Integer.parseInt(value);
+                    if (options.sendQueueSize < 1) {
+                        throw new IllegalArgumentException("Invalid send queue size: " + options.sendQueueSize);
+                    }
+                    break;
+                case "send_queue_policy":
+                    options.sendQueuePolicy = SendQueue.Policy.findByName(value);
+                    if (options.sendQueuePolicy == null) {
+                        throw new IllegalArgumentException("Invalid send queue policy: " + value);
+                    }
+                    break;
+                case "ws_max_message_size":
+                    options.wsMaxMessageSize = Integer.parseInt(value);
+                    if (options.wsMaxMessageSize < 1) {
+                        throw new IllegalArgumentException("Invalid WebSocket max message size: " + options.wsMaxMessageSize);
+                    }
+                    break;
+                case "ws_deflate":
+                    options.wsDeflate = Boolean.parseBoolean(value);
+                    break;
+                case "ws_deflate_context_takeover":
+                    options.wsDeflateContextTakeover = Boolean.parseBoolean(value);
+                    break;
+                case "http_keep_alive_timeout":
+                    options.httpKeepAliveTimeout = Integer.parseInt(value);
+                    if (options.httpKeepAliveTimeout < 1) {
+                        throw new IllegalArgumentException("Invalid HTTP keep-alive timeout: " + options.httpKeepAliveTimeout);
+                    }
+                    break;
+                case "http_max_requests":
+                    options.httpMaxRequests = Integer.parseInt(value);
+                    if (options.httpMaxRequests < 1) {
+                        throw new IllegalArgumentException("Invalid max number of HTTP requests per connection: " + options.httpMaxRequests);
+                    }
+                    break;
+                case "ws_ping_interval":
+                    options.wsPingInterval = Integer.parseInt(value);
+                    if (options.wsPingInterval < 0) {
+                        throw new IllegalArgumentException("Invalid WebSocket ping interval: " + options.wsPingInterval);
+                    }
+                    break;
+                case "ws_pong_timeout":
+                    options.wsPongTimeout = Integer.parseInt(value);
+                    if (options.wsPongTimeout < 1) {
+                        throw new IllegalArgumentException("Invalid WebSocket pong timeout: " + options.wsPongTimeout);
+                    }
+                    break;
+                case "jsonrpc_parallelism":
+                    options.jsonRpcParallelism = Integer.parseInt(value);
+                    if (options.jsonRpcParallelism < 1) {
+                        throw new IllegalArgumentException("Invalid JSON-RPC parallelism: " + options.jsonRpcParallelism);
+                    }
+                    break;
+                case "device_info_ttl":
+                    options.deviceInfoTtl = Integer.parseInt(value);
+                    if (options.deviceInfoTtl < 1) {
+                        throw new IllegalArgumentException("Invalid device info TTL: " + options.deviceInfoTtl);
+                    }
+                    break;
+                case "shell_pool_size":
+                    options.shellPoolSize = Integer.parseInt(value);
+                    if (options.shellPoolSize < 1) {
+                        throw new IllegalArgumentException("Invalid shell pool size: " + options.shellPoolSize);
+                    }
+                    break;
+                case "screen_encode_threads":
+                    options.screenEncodeThreads = Integer.parseInt(value);
+                    if (options.screenEncodeThreads < 1) {
+                        throw new IllegalArgumentException("Invalid screen encode threads: " + options.screenEncodeThreads);
+                    }
+                    break;
                 case "crop":
                     if (!value.isEmpty()) {
                         options.crop = parseCrop(value);
@@ -2,329 +2,929 @@ package com.genymobile.scrcpy;
 
 import static com.genymobile.scrcpy.util.LogUtils.buildAppListMessage;
 
-import android.graphics.Bitmap;
 import android.media.Image;
-import android.net.Uri;
-import android.os.SystemClock;
 
 import com.genymobile.scrcpy.control.ControllerFrame;
+import com.genymobile.scrcpy.device.AppIndex;
 import com.genymobile.scrcpy.device.Device;
 import com.genymobile.scrcpy.device.DeviceApp;
+import com.genymobile.scrcpy.device.DeviceInfoCache;
 import com.genymobile.scrcpy.device.Size;
 import com.genymobile.scrcpy.device.StreamerVideo;
+import com.genymobile.scrcpy.net.ChunkedOutputStream;
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.HttpRequest;
+import com.genymobile.scrcpy.net.OutboundMessage;
+import com.genymobile.scrcpy.net.PerMessageDeflate;
+import com.genymobile.scrcpy.net.RouteMetrics;
+import com.genymobile.scrcpy.net.Router;
+import com.genymobile.scrcpy.net.SendQueue;
+import com.genymobile.scrcpy.net.Tunnel;
+import com.genymobile.scrcpy.net.UpstreamClient;
+import com.genymobile.scrcpy.net.UpstreamResponse;
+import com.genymobile.scrcpy.net.UpstreamUnavailableException;
+import com.genymobile.scrcpy.net.WorkerPool;
+import com.genymobile.scrcpy.util.BitmapPool;
 import com.genymobile.scrcpy.util.Ln;
+import com.genymobile.scrcpy.util.ShellPool;
+import com.genymobile.scrcpy.util.ShellTimeoutException;
+import com.genymobile.scrcpy.util.StringUtils;
+import com.genymobile.scrcpy.video.JpegEncoder;
 import com.genymobile.scrcpy.video.SurfaceFrameEncoder;
 import com.genymobile.scrcpy.video.SurfaceVideoEncoder;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.Socket;
-import java.net.URL;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class RecordingServer extends BaseWsServer {
 
-    class ImageBuffer {
-        public final ByteBuffer buffer;
-        public final int width;
-        public final int height;
+    private static final long PROXY_TIMEOUT_MS = 60000;
+    private static final long SHELL_TIMEOUT_MS = 60000;
+    // The timeouts of the work done on behalf of a route (shell command, upstream response head) are shorter than the route timeout by
+    // this margin, so that a stuck request is answered (and its shell or upstream connection released) by the server itself
+    private static final long ROUTE_TIMEOUT_MARGIN_MS = 5000;
+    private static final long DEVICE_TIMEOUT_MS = 10000;
+    private static final int PROXY_THREADS = 8;
+    private static final int PROXY_QUEUE_CAPACITY = 32;
+    private static final int SHELL_THREADS = 4;
+    private static final int SHELL_QUEUE_CAPACITY = 16;
+    private static final long DEFAULT_SHELL_COMMAND_TIMEOUT_MS = 30000;
+    private static final long MAX_SHELL_COMMAND_TIMEOUT_MS = SHELL_TIMEOUT_MS - ROUTE_TIMEOUT_MARGIN_MS;
+    private static final String SHELL_STREAM_WS_PATH = "/ws-shell";
+    // Streamed commands (logcat, top...) running at once, each holding a thread (two for a WebSocket) while it runs
+    private static final int MAX_SHELL_STREAMS = 8;
+    // Long polling of /screenImg.jpeg (?after=<seq>): parked requests hold no thread, only a timer
+    private static final long DEFAULT_SCREEN_POLL_TIMEOUT_MS = 10000;
+    private static final long MAX_SCREEN_POLL_TIMEOUT_MS = 60000;
+    // Frames encoded outside of the capture thread (parked /screenImg.jpeg requests, /screen.mjpeg subscribers)
+    private static final int SCREEN_ENCODE_THREADS = 2;
+    private static final int SCREEN_ENCODE_QUEUE_CAPACITY = 64;
+    // Frame buffers kept for reuse: the current frame, the one being captured, and the ones still read by slow consumers
+    private static final int MAX_IDLE_SNAPSHOT_BUFFERS = 4;
+    // Min delay between two /screen/events events sent to a client, unless it requests another one (?interval=<ms>)
+    private static final long DEFAULT_SCREEN_EVENTS_INTERVAL_MS = 100;
+    private static final long MAX_SCREEN_EVENTS_INTERVAL_MS = 60000;
+    // Max frames per second sent to a /screen.mjpeg client, unless it requests another rate (?fps=<n>)
+    private static final int DEFAULT_MJPEG_FPS = 15;
+    private static final int MAX_MJPEG_FPS = 60;
+    private static final int JSONRPC_PORT = 9008;
+    private static final int AGENT_PORT = 9012;
+    private static final int CLASH_PORT = 9011;
+    // Connections kept open to each upstream service (at most one per concurrent proxied request)
+    private static final int UPSTREAM_MAX_CONNECTIONS = 4;
+    private static final int UPSTREAM_CONNECT_TIMEOUT_MS = 2000;
+    // Max time to wait for the response head
+    private static final int UPSTREAM_READ_TIMEOUT_MS = (int) (PROXY_TIMEOUT_MS - ROUTE_TIMEOUT_MARGIN_MS);
+    private static final String JSONRPC_WS_PATH = "/ws-jsonrpc";
+    private static final int DEFAULT_JSONRPC_PARALLELISM = 4;
+    private static final int JSONRPC_QUEUE_CAPACITY = 256;
+    // Tunnels (WebSocket...) without any data in either direction for longer are closed
+    private static final long TUNNEL_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final long DEFAULT_DEVICE_INFO_TTL_MS = 5000;
 
-        public ImageBuffer(ByteBuffer buffer, int width, int height) {
-            this.buffer = buffer;
-            this.width = width;
-            this.height = height;
-        }
-    }
-    class ScreenClient {
-        public final Socket socket;
-        public final int quality;
-        public final float scale;
-
-        public ScreenClient(Socket socket, int quality, float scale) {
-            this.socket = socket;
-            this.quality = quality;
-            this.scale = scale;
-        }
-    }
     private long lastTimestamp = 0;
+    // Sequence number of the current image (guarded by imageLock)
+    private long frameSequence;
+    // Incremented for every captured frame, including the frames superseded before being published
+    private final AtomicLong captureSequence = new AtomicLong();
+    // The encodings of the current image, shared by /screen.jpeg, /screenImg.jpeg and /screen.mjpeg
+    private final FrameEncodeCache encodeCache = new FrameEncodeCache();
+    // Reuses its bitmaps and output buffers from one frame to the next
+    private final JpegEncoder jpegEncoder = new JpegEncoder();
+    // Encodes the frames outside of the capture thread (/screen.jpeg tiers, parked /screenImg.jpeg requests, /screen.mjpeg)
+    private WorkerPool screenEncodePool;
+    private FramePipeline framePipeline;
+    private final ScheduledExecutorService screenPollTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "screen-poll-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScreenEventChannel screenEvents = new ScreenEventChannel(screenPollTimer);
+    private MjpegStreamer mjpeg;
+    private ScreenImagePoller screenImages;
 
-    private ImageBuffer currentImage;
+    // Owns the captured frames; the current one is read without holding imageLock
+    private final FrameSnapshotStore snapshots = new FrameSnapshotStore(MAX_IDLE_SNAPSHOT_BUFFERS);
     private final Object imageLock = new Object(); // For thread safety
 
-    private final Set<ScreenClient> screenSubClients = new CopyOnWriteArraySet<>();
-    private final Set<Socket> screenStreamClients = new CopyOnWriteArraySet<>();
+    private final Set<Connection> screenStreamClients = new CopyOnWriteArraySet<>();
 
     private ControllerFrame controller = null;
     private SurfaceFrameEncoder surfaceEncoder;
     private SurfaceVideoEncoder surfaceVideoEncoder;
     private StreamerVideo streamerVideo;
 
+    private WorkerPool shellPool;
+    private volatile ShellPool shells = new ShellPool(SHELL_THREADS);
+    private ShellStreamEndpoint shellStream;
+    private final List<UpstreamClient> upstreams = new ArrayList<>();
+    private final Map<Connection, Tunnel> tunnels = new ConcurrentHashMap<>();
+    private int jsonRpcParallelism = DEFAULT_JSONRPC_PARALLELISM;
+    private volatile JsonRpcMux jsonRpcMux;
+    private final DeviceInfoCache deviceInfo = new DeviceInfoCache(DEFAULT_DEVICE_INFO_TTL_MS);
+
     public RecordingServer(int port) {
         init(port);
+        registerRoutes();
     }
 
     public int getScreenSubClientsSize() {
-        return screenSubClients.size();
+        return framePipeline.getSubscribers();
     }
 
-    public void httpClient(String method, String urlString, String body, OutputStream output) {
+    /**
+     * Forward a request to a local upstream service, on a pooled persistent connection.
+     * <p>
+     * The upstream body is streamed to the client as it is received (chunked if its length is unknown). Writes block while the client
+     * send queue is full, so the upstream is only read as fast as the client drains its connection. Only the response head is bounded in
+     * time: the body (server-sent events...) may last as long as the client stays connected.
+     * <p>
+     * An upgrade request (WebSocket...) is forwarded on a dedicated connection; if the upstream accepts it, both connections are spliced
+     * by a {@link Tunnel}.
+     */
+    public void httpClient(UpstreamClient upstream, String method, String target, HttpRequest request, OutputStream output,
+            Connection clientConnection) throws IOException {
+        Ln.i(method + " : " + upstream.getAddress() + target);
+        Ln.d("body: " + request.getContentLength() + " bytes");
+
+        boolean upgrade = "GET".equalsIgnoreCase(method) && request.isUpgradeRequested();
+        UpstreamResponse response;
         try {
-            HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
-            Ln.i(method + " : " + urlString);
-            Ln.d("body: " + body);
-            try {
-                connection.setRequestMethod(method.toUpperCase());
-                connection.setDoOutput(true);
-                connection.setRequestProperty("Content-Length", String.valueOf(body.length()));
-
-                if (!body.isEmpty()) {
-                    connection.setRequestProperty("Accept", "application/json");
-                    connection.setRequestProperty("Content-Type", "application/json");
-                    byte[] input = body.getBytes(StandardCharsets.UTF_8);
-                    connection.getOutputStream().write(input, 0, input.length);
-                }
-                int statusCode = connection.getResponseCode();
+            response = upgrade ? upstream.upgrade(target, request) : upstream.execute(method.toUpperCase(Locale.US), target, request);
+        } catch (UpstreamUnavailableException e) {
+            Ln.w("httpClient: " + e.getMessage());
+            writeUpstreamError(output, clientConnection, 503, "Service Unavailable");
+            return;
+        } catch (SocketTimeoutException e) {
+            Ln.w("httpClient: " + upstream.getName() + " timed out");
+            writeUpstreamError(output, clientConnection, 504, "Gateway Timeout");
+            return;
+        } catch (IOException e) {
+            Ln.e("httpClient error: ", e);
+            writeUpstreamError(output, clientConnection, 502, "Bad Gateway");
+            return;
+        }
 
-                InputStream in = (statusCode > 299) ? connection.getErrorStream() : connection.getInputStream();
+        if (upgrade && response.getStatus() == 101) {
+            startTunnel(upstream, response, output, clientConnection);
+            return;
+        }
 
-                // Combine metadata and image data
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        // Reading the body has no timeout: unblock it if the client disconnects
+        Runnable closeListener = response::close;
+        clientConnection.addCloseListener(closeListener);
+        try {
+            long contentLength = response.getContentLength();
+            // An HTTP/1.0 client does not support chunks: the end of the body is then signaled by closing the connection
+            boolean chunked = contentLength < 0 && !"HTTP/1.0".equals(request.getVersion());
+            boolean closeAfter = contentLength < 0 && !chunked;
+            Ln.d("res : " + target + " " + response.getStatus() + " " + response.getReason() + " (" + (chunked ? "chunked" : contentLength)
+                    + ")");
 
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
+            output.write(buildProxyResponseHead(response, chunked, closeAfter ? "close" : clientConnection.getConnectionHeader()));
+            if (chunked) {
+                ChunkedOutputStream chunkedOutput = new ChunkedOutputStream(output);
+                copy(response.getBody(), chunkedOutput);
+                chunkedOutput.close();
+            } else {
+                copy(response.getBody(), output);
+            }
+            output.flush();
+            if (closeAfter) {
+                output.close();
+            }
+        } finally {
+            clientConnection.removeCloseListener(closeListener);
+            response.close();
+        }
+    }
 
-                String contentType = connection.getContentType();
-                if (contentType == null || contentType.isEmpty()) {
-                    contentType = "text/plain";
-                }
-                Ln.d("res : " + urlString +" "  + statusCode + " " + connection.getResponseMessage());
-                Ln.d("ContentLength : " + outputStream.size());
-                Ln.d("contentType : " + contentType);
-
-                output.write(buildResponseHeader(
-                        connection.getResponseCode(),
-                        connection.getResponseMessage(),
-                        outputStream.size(),
-                        contentType,
-                        "close"
-                ));
-
-                output.write(outputStream.toByteArray());
-                output.flush();
-            } catch (Exception e) {
-                Ln.e("httpClient error: ", e);
-
-                output.write(buildResponseHeader(
-                        500,
-                        "Internal Server Error",
-                        0,
-                        "text/plain",
-                        "close"
-                ));
-                output.flush();
-            } finally {
-                connection.disconnect();
+    private void startTunnel(UpstreamClient upstream, UpstreamResponse response, OutputStream output, Connection connection)
+            throws IOException {
+        Tunnel tunnel = response.openTunnel(upstream.getName(), TUNNEL_IDLE_TIMEOUT_MS);
+        tunnels.put(connection, tunnel);
+        connection.addCloseListener(() -> {
+            tunnels.remove(connection);
+            tunnel.close();
+        });
+        connection.setStreaming();
+        Ln.i("Tunnel " + upstream.getName() + " opened for client " + connection.getId());
+
+        // The handshake headers (Upgrade, Sec-WebSocket-Accept...) are end-to-end for the tunnel: the head is forwarded as is
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 101 ").append(response.getReason()).append("\r\n");
+        for (Map.Entry<String, String> header : response.getHeaders()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        output.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        output.flush();
+        connection.startTunnel(tunnel);
+    }
+
+    private static byte[] buildProxyResponseHead(UpstreamResponse response, boolean chunked, String connection) {
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(response.getStatus()).append(' ').append(response.getReason()).append("\r\n");
+        if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (response.getContentLength() >= 0) {
+            head.append("Content-Length: ").append(response.getContentLength()).append("\r\n");
+        }
+        head.append("Connection: ").append(connection).append("\r\n");
+        for (Map.Entry<String, String> header : response.getHeaders()) {
+            String name = header.getKey();
+            // The framing and the CORS headers are set by the proxy
+            if (!UpstreamClient.isHopByHopHeader(name) && !name.equalsIgnoreCase("Content-Length")
+                    && !name.regionMatches(true, 0, "Access-Control-", 0, 15)) {
+                head.append(name).append(": ").append(header.getValue()).append("\r\n");
             }
-        } catch (Exception e) {
-            Ln.e("httpClient error: ", e);
+        }
+        if (response.getHeader("Content-Type") == null) {
+            head.append("Content-Type: text/plain\r\n");
+        }
+        head.append("Access-Control-Allow-Origin: *\r\n")
+                .append("Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n")
+                .append("Access-Control-Allow-Headers: Content-Type\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private void writeUpstreamError(OutputStream output, Connection connection, int statusCode, String reason) throws IOException {
+        output.write(buildResponseHeader(statusCode, reason, 0, "text/plain", connection.getConnectionHeader()));
+        output.flush();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int r;
+        while ((r = in.read(buffer)) != -1) {
+            out.write(buffer, 0, r);
         }
     }
 
+    private void registerRoutes() {
+        Router router = getRouter();
+        WorkerPool proxyPool = router.createPool("proxy", PROXY_THREADS, PROXY_QUEUE_CAPACITY);
+        shellPool = router.createPool("shell", SHELL_THREADS, SHELL_QUEUE_CAPACITY);
+
+        router.exact("/", Router.Dispatch.INLINE, this::handleHttp);
+        UpstreamClient jsonRpc = createUpstream("jsonrpc", JSONRPC_PORT);
+        UpstreamClient agent = createUpstream("agent", AGENT_PORT);
+        UpstreamClient clash = createUpstream("clash", CLASH_PORT);
+        router.prefix("/jsonrpc", Router.Dispatch.BLOCKING,
+                (request, output, connection) -> httpClient(jsonRpc, "POST", "/jsonrpc/0", request, output, connection))
+                .pool(proxyPool).headTimeout(PROXY_TIMEOUT_MS);
+        router.prefix("/agent", Router.Dispatch.BLOCKING,
+                (request, output, connection) -> httpClient(agent, request.getMethod(), request.getTarget(), request, output, connection))
+                .pool(proxyPool).headTimeout(PROXY_TIMEOUT_MS);
+        router.prefix("/clash", Router.Dispatch.BLOCKING,
+                (request, output, connection) -> httpClient(clash, request.getMethod(), request.getTarget(), request, output, connection))
+                .pool(proxyPool).headTimeout(PROXY_TIMEOUT_MS);
+        router.prefix("/apps/list", Router.Dispatch.BLOCKING, this::handleAppsList).timeout(DEVICE_TIMEOUT_MS);
+        router.prefix("/screen/reset", Router.Dispatch.BLOCKING, this::handleScreenReset).maxConcurrency(1).timeout(DEVICE_TIMEOUT_MS);
+        router.prefix("/screen/size", Router.Dispatch.INLINE, this::handleScreenSize);
+        // Collected in-process and cached: only the first request waits for a collection
+        router.prefix("/deviceInfo", Router.Dispatch.CPU, this::handleDeviceInfo).timeout(DEVICE_TIMEOUT_MS);
+        router.prefix("/shell/exec", Router.Dispatch.BLOCKING, this::handleShell).pool(shellPool).timeout(SHELL_TIMEOUT_MS);
+        router.prefix("/shell/cmd", Router.Dispatch.BLOCKING, this::handleShell).pool(shellPool).timeout(SHELL_TIMEOUT_MS);
+        router.prefix("/shell/backend", Router.Dispatch.BLOCKING, this::handleShellBackend).timeout(DEVICE_TIMEOUT_MS);
+        // No timeout: the stream lasts until the command terminates or the client disconnects
+        WorkerPool shellStreamPool = router.createPool("shell-stream", MAX_SHELL_STREAMS, 0);
+        router.prefix("/shell/stream", Router.Dispatch.BLOCKING, this::handleShellStream).pool(shellStreamPool);
+        shellStream = new ShellStreamEndpoint(router.createPool("shell-stream-ws", 2 * MAX_SHELL_STREAMS, 0), MAX_SHELL_STREAMS);
+        addWsEndpoint(SHELL_STREAM_WS_PATH, shellStream);
+        // Streams only register their subscriber and return: no thread is held while the client is connected
+        router.prefix("/screen.jpeg", Router.Dispatch.INLINE, this::handleScreenStream);
+        router.prefix("/screen/events", Router.Dispatch.INLINE, this::handleScreenEvents);
+        router.prefix("/screen.mjpeg", Router.Dispatch.INLINE, this::handleScreenMjpeg);
+        router.prefix("/stream.avc", Router.Dispatch.BLOCKING, this::handleVideoStream);
+        router.prefix("/screenImg.jpeg", Router.Dispatch.CPU, this::handleScreenImage).timeout(DEVICE_TIMEOUT_MS);
+        screenEncodePool = router.createPool("screen-encode", SCREEN_ENCODE_THREADS, SCREEN_ENCODE_QUEUE_CAPACITY);
+        mjpeg = new MjpegStreamer(this::getLatestMjpegFrame, screenEncodePool, screenPollTimer);
+        screenImages = new ScreenImagePoller(snapshots, this::encodeImage, screenEncodePool, screenPollTimer);
+        framePipeline = new FramePipeline(new FramePipeline.Stages() {
+            @Override
+            public void publish(FrameSnapshot frame) {
+                publishScreenImage(frame);
+            }
+
+            @Override
+            public byte[] encode(FrameSnapshot frame, int quality, float scale) throws IOException {
+                return encodeImage(frame, FrameEncodeCache.Format.FRAMED, quality, scale);
+            }
+        }, screenEncodePool);
+        framePipeline.start();
+        router.prefix("/stats/clients", Router.Dispatch.INLINE,
+                (request, output, connection) -> writeResponse(output, connection, buildClientStats(), "application/json"));
+        router.prefix("/stats/routes", Router.Dispatch.INLINE,
+                (request, output, connection) -> writeResponse(output, connection, buildRouteStats(), "application/json"));
+        router.prefix("/stats/pools", Router.Dispatch.INLINE,
+                (request, output, connection) -> writeResponse(output, connection, buildPoolStats(), "application/json"));
+        router.prefix("/stats/upstreams", Router.Dispatch.INLINE,
+                (request, output, connection) -> writeResponse(output, connection, buildUpstreamStats(), "application/json"));
+        router.prefix("/stats/tunnels", Router.Dispatch.INLINE,
+                (request, output, connection) -> writeResponse(output, connection, buildTunnelStats(), "application/json"));
+        router.prefix("/stats/jsonrpc", Router.Dispatch.INLINE,
+                (request, output, connection) -> writeResponse(output, connection, buildJsonRpcStats(), "application/json"));
+        router.prefix("/stats/screen", Router.Dispatch.INLINE,
+                (request, output, connection) -> writeResponse(output, connection, buildScreenStats(), "application/json"));
+        router.prefix("/stats/shells", Router.Dispatch.INLINE,
+                (request, output, connection) -> writeResponse(output, connection, buildShellStats(), "application/json"));
+        router.prefix("/controller", Router.Dispatch.BLOCKING, this::handleController).timeout(DEVICE_TIMEOUT_MS);
+        router.fallback(Router.Dispatch.INLINE, this::handleHttp);
+    }
+
+    private void writeResponse(OutputStream output, Connection connection, String body, String contentType) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        output.write(buildResponseOk(connection, data.length, contentType));
+        output.write(data);
+        output.flush();
+    }
+
     @Override
-    public void handleHttp(String request, InputStream input, OutputStream output, Socket clientSocket) throws IOException {
-        String[] lines = request.split("\r\n");
-        String url = "";
-        String method = "";
-        String host = "";
-        int i = 0;
-        for (String line : lines) {
-            i++;
-            if (i == 1) {
-                method = line.split(" ")[0];
-                url = line.replace(method + " ", "").split("HTTP")[0];
-            } else if (line.startsWith("Host:")) {
-                host = line.replace("Host: ", "");
+    public void dispatchHttp(HttpRequest request, Connection connection) {
+        String method = request.getMethod();
+        Ln.d("[+] " + method + " " + request.getHeader("Host") + " " + request.getTarget());
+        if (method.equals("HEAD") || method.equals("OPTIONS")) {
+            try {
+                connection.send(ByteBuffer.wrap(buildResponseOk(connection, 0, "text/plain")));
+                connection.finishRequest();
+            } catch (IOException e) {
+                // Already closed
             }
+            return;
         }
-        String body;
-        if (request.contains("\r\n\r\n")) {
-            String[] lines1 = request.split("\r\n\r\n");
-            if (lines1.length == 2) {
-                body = lines1[1].trim();
-            } else {
-                body = "";
+        super.dispatchHttp(request, connection);
+    }
+
+    /**
+     * Answer the requests matching no route with the server version.
+     */
+    @Override
+    public void handleHttp(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        writeResponse(output, connection, BuildConfig.VERSION_NAME, "text/plain");
+    }
+
+    private void handleAppsList(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        String accept = request.getHeader("Accept");
+        if ("json".equals(request.getQueryParameter("format")) || (accept != null && accept.contains("application/json"))) {
+            writeResponse(output, connection, buildAppListJson(), "application/json");
+            return;
+        }
+        List<DeviceApp> apps = Device.listApps();
+        writeResponse(output, connection, buildAppListMessage("List of apps:", apps), "text/plain");
+    }
+
+    private static String buildAppListJson() {
+        AppIndex index = AppIndex.get();
+        List<DeviceApp> apps = index.listLaunchableApps();
+        StringBuilder json = new StringBuilder(64 * apps.size() + 32);
+        json.append("{\"version\":").append(index.getVersion()).append(",\"apps\":[");
+        boolean first = true;
+        for (DeviceApp app : apps) {
+            if (!first) {
+                json.append(',');
             }
-        } else {
-            body = "";
+            first = false;
+            json.append("{\"packageName\":");
+            StringUtils.appendJsonString(json, app.getPackageName()).append(",\"name\":");
+            StringUtils.appendJsonString(json, app.getName()).append(",\"system\":").append(app.isSystem()).append('}');
         }
+        return json.append("]}").toString();
+    }
 
-        Ln.d("[+] " + method + " " + host + " " + url);
-        if (method.equals("HEAD") || method.equals("OPTIONS")) {
-            output.write(buildResponseOk(0,"text/plain"));
-            output.flush();
+    private void handleScreenReset(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        String maxImages = request.getQueryParameter("m");
+        if (maxImages == null) {
+            maxImages = "2";
+        }
+        this.surfaceEncoder.setMaxImages(Integer.parseInt(maxImages.trim()));
+        this.surfaceEncoder.recreateImageReader();
+        output.write(buildResponseOk(connection, 0,"text/plain"));
+        output.flush();
+    }
+
+    private void handleScreenSize(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        Size size = this.surfaceEncoder.getSize();
+        writeResponse(output, connection, "{\"size\":\""+size.getWidth()+"/"+size.getHeight()+"\"}", "application/json");
+    }
+
+    private void handleDeviceInfo(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        DeviceInfoCache.Snapshot snapshot = deviceInfo.get();
+        String etag = snapshot.getEtag();
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        boolean notModified = ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag));
+        byte[] data = notModified ? new byte[0] : snapshot.getJson().getBytes(StandardCharsets.UTF_8);
+        StringBuilder head = new StringBuilder(256);
+        head.append(notModified ? "HTTP/1.1 304 Not Modified\r\n" : "HTTP/1.1 200 OK\r\n");
+        if (!notModified) {
+            head.append("Content-Length: ").append(data.length).append("\r\n")
+                    .append("Content-Type: application/json\r\n");
+        }
+        head.append("Connection: ").append(connection.getConnectionHeader()).append("\r\n")
+                .append("ETag: ").append(etag).append("\r\n")
+                .append("Cache-Control: no-cache\r\n")
+                .append("Access-Control-Allow-Origin: *\r\n")
+                .append("Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n")
+                .append("Access-Control-Allow-Headers: Content-Type, If-None-Match\r\n")
+                .append("Access-Control-Expose-Headers: ETag\r\n\r\n");
+        output.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        output.write(data);
+        output.flush();
+    }
+
+    private void handleShell(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        long timeout = DEFAULT_SHELL_COMMAND_TIMEOUT_MS;
+        String timeoutParam = request.getQueryParameter("timeout");
+        if (timeoutParam != null) {
+            try {
+                timeout = Math.max(1, Math.min(Long.parseLong(timeoutParam.trim()), MAX_SHELL_COMMAND_TIMEOUT_MS));
+            } catch (NumberFormatException e) {
+                writeUpstreamError(output, connection, 400, "Bad Request");
+                return;
+            }
+        }
+        writeResponse(output, connection, shellCmd(request.readBodyAsString().trim(), timeout), "text/plain");
+    }
+
+    private void handleShellStream(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        String cmd = request.getContentLength() != 0 ? request.readBodyAsString().trim() : request.getQueryParameter("cmd");
+        if (cmd == null || cmd.isEmpty()) {
+            writeUpstreamError(output, connection, 400, "Bad Request");
             return;
         }
-        if (url.equals("/")) {
-            output.write(buildResponseOk(5,"text/plain"));
-            output.flush();
-        } else if (url.startsWith("/jsonrpc")) {
-            Thread thread = new Thread(() -> {
-                httpClient("POST", "http://127.0.0.1:9008/jsonrpc/0", body, output);
-            }, "jsonrpc");
-            thread.start();
-        } else if (url.startsWith("/agent")) {
-            String finalMethod = method;
-            String finalUrl = url;
-            Thread thread = new Thread(() -> {
-                httpClient(finalMethod, "http://127.0.0.1:9012"+ finalUrl, body, output);
-            }, "agent");
-            thread.start();
-        } else if (url.startsWith("/clash")) {
-            String finalMethod = method;
-            String finalUrl = url;
-            Thread thread = new Thread(() -> {
-                httpClient(finalMethod, "http://127.0.0.1:9011"+ finalUrl, body, output);
-            }, "agent");
-            thread.start();
-        }else if (url.startsWith("/apps/list")) {
-            List<DeviceApp> apps = Device.listApps();
-            String appsRes = buildAppListMessage("List of apps:", apps);
-            output.write(buildResponseOk(appsRes.getBytes().length,"text/plain"));
-            output.write(appsRes.getBytes());
-            output.flush();
-        } else if (url.startsWith("/screen/reset")) {
-            Uri uri = Uri.parse(url);
-            String maxImages = uri.getQueryParameter("m");
-            if (maxImages == null) {
-                maxImages = "2";
+
+        // An HTTP/1.0 client does not support chunks: the end of the output is then signaled by closing the connection
+        boolean chunked = !"HTTP/1.0".equals(request.getVersion());
+        OutputStream body = chunked ? new ChunkedOutputStream(output) : output;
+        Integer exitCode = shellStream.stream(cmd, connection, body, () -> {
+            try {
+                output.write(("HTTP/1.1 200 OK\r\n"
+                        + (chunked ? "Transfer-Encoding: chunked\r\n" : "")
+                        + "Connection: " + (chunked ? connection.getConnectionHeader() : "close") + "\r\n"
+                        + "Content-Type: text/plain; charset=utf-8\r\n"
+                        + "Cache-Control: no-cache\r\n"
+                        + "X-Content-Type-Options: nosniff\r\n"
+                        + "Access-Control-Allow-Origin: *\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                output.flush();
+            } catch (IOException e) {
+                // Detected by the next write
+                Ln.d("shell stream: " + e.getMessage());
             }
-            this.surfaceEncoder.setMaxImages(Integer.parseInt(maxImages.trim()));
-            this.surfaceEncoder.recreateImageReader();
-            output.write(buildResponseOk(0,"text/plain"));
-            output.flush();
-        } else if (url.startsWith("/screen/size")) {
-            Size size = this.surfaceEncoder.getSize();
-            String bodyRes = "{\"size\":\""+size.getWidth()+"/"+size.getHeight()+"\"}";
-            output.write(buildResponseOk(bodyRes.length(),"application/json"));
-            output.write(bodyRes.getBytes());
-            output.flush();
-        } else if (url.startsWith("/deviceInfo")) {
-            String device = getDeviceInfo();
-            output.write(buildResponseOk(device.getBytes().length,"text/plain"));
-            output.write(device.getBytes());
-            output.flush();
-        } else if (url.startsWith("/shell/exec")) {
-            String res = shellCmd(body);
-            output.write(buildResponseOk(res.getBytes().length,"text/plain"));
-            output.write(res.getBytes());
-            output.flush();
-        } else if (url.startsWith("/shell/cmd")) {
-            String res = shellCmd(body);
-            output.write(buildResponseOk(res.getBytes().length,"text/plain"));
-            output.write(res.getBytes());
+        });
+        if (exitCode == null) {
+            output.write(Router.buildOverloadedResponse(connection).getBytes(StandardCharsets.US_ASCII));
             output.flush();
-        } else if (url.startsWith("/shell/backend")) {
-            output.write(buildResponseOk(2, "text/plain")); // "OK" is 2 bytes
-            output.write("OK".getBytes());
+            return;
+        }
+        Ln.d("shell stream: \"" + cmd + "\" exited with " + exitCode);
+        if (connection.isClosed()) {
+            return;
+        }
+        if (chunked) {
+            body.close();
+        } else {
             output.flush();
+            output.close();
+        }
+    }
 
-            new Thread(() -> {
-                shellCmd(body); // Execute in background
-            }).start();
-
-        } else if (url.startsWith("/screen.jpeg")) {
-            Uri uri = Uri.parse(url);
-            String qualityParam = uri.getQueryParameter("q");
-            String scaleParam = uri.getQueryParameter("s");
-            int quality = qualityParam != null ? Integer.parseInt(qualityParam) : 80;
-            float scale = scaleParam != null ? Float.parseFloat(scaleParam) : 0.5f;
-            output.write(buildResponseKeepLive("image/jpeg"));
+    private void handleShellBackend(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        // The request is only valid until this method returns
+        String body = request.readBodyAsString().trim();
+        if (!shellPool.tryExecute(() -> shellCmd(body, MAX_SHELL_COMMAND_TIMEOUT_MS))) {
+            output.write(Router.buildOverloadedResponse(connection).getBytes(StandardCharsets.US_ASCII));
             output.flush();
-            synchronized (screenSubClients) {
-                screenSubClients.add(new ScreenClient(clientSocket,quality,scale));
-                Ln.i("screenSubClients connected. Total: " + screenSubClients.size());
+            return;
+        }
+        writeResponse(output, connection, "OK", "text/plain");
+    }
+
+    private void handleController(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        if (this.controller == null) {
+            handleHttp(request, output, connection);
+            return;
+        }
+        this.controller.processHttpCmd(request.readBodyAsString().trim(), output, connection);
+    }
+
+    private void handleScreenStream(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        String qualityParam = request.getQueryParameter("q");
+        String scaleParam = request.getQueryParameter("s");
+        int quality = qualityParam != null ? Integer.parseInt(qualityParam) : 80;
+        float scale = scaleParam != null ? Float.parseFloat(scaleParam) : 0.5f;
+        String policyParam = request.getQueryParameter("policy");
+        if (policyParam != null) {
+            SendQueue.Policy policy = SendQueue.Policy.findByName(policyParam);
+            if (policy != null) {
+                connection.getSendQueue().setPolicy(policy);
+            }
+        }
+        connection.setLabel("screen.jpeg");
+        connection.setStreaming();
+        output.write(buildResponseKeepLive("image/jpeg"));
+        output.flush();
+        framePipeline.subscribe(connection, quality, scale);
+        Ln.i("screenSubClients connected. Total: " + framePipeline.getSubscribers());
+        connection.addCloseListener(() -> Ln.i("screenSubClients disconnected. Total: " + framePipeline.getSubscribers()));
+    }
+
+    private void handleScreenEvents(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        long interval = DEFAULT_SCREEN_EVENTS_INTERVAL_MS;
+        String intervalParam = request.getQueryParameter("interval");
+        if (intervalParam != null) {
+            try {
+                interval = Math.max(0, Math.min(Long.parseLong(intervalParam.trim()), MAX_SCREEN_EVENTS_INTERVAL_MS));
+            } catch (NumberFormatException e) {
+                writeUpstreamError(output, connection, 400, "Bad Request");
+                return;
             }
-            while (this.screenSubClients.contains(clientSocket)) {
-                SystemClock.sleep(500);
+        }
+        screenEvents.subscribe(connection, interval);
+    }
+
+    private void handleScreenMjpeg(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        String qualityParam = request.getQueryParameter("q");
+        String scaleParam = request.getQueryParameter("s");
+        String fpsParam = request.getQueryParameter("fps");
+        int quality;
+        float scale;
+        int fps;
+        try {
+            quality = qualityParam != null ? Integer.parseInt(qualityParam.trim()) : 80;
+            scale = scaleParam != null ? Float.parseFloat(scaleParam.trim()) : 0.5f;
+            fps = fpsParam != null ? Integer.parseInt(fpsParam.trim()) : DEFAULT_MJPEG_FPS;
+        } catch (NumberFormatException e) {
+            writeUpstreamError(output, connection, 400, "Bad Request");
+            return;
+        }
+        if (quality < 0 || quality > 100 || !(scale > 0 && scale <= 1)) {
+            writeUpstreamError(output, connection, 400, "Bad Request");
+            return;
+        }
+        fps = Math.max(1, Math.min(fps, MAX_MJPEG_FPS));
+        mjpeg.subscribe(connection, quality, scale, fps);
+    }
+
+    private MjpegStreamer.Frame getLatestMjpegFrame(int quality, float scale) {
+        FrameSnapshot img = snapshots.acquire();
+        if (img == null) {
+            return null;
+        }
+        try {
+            byte[] jpeg = encodeImage(img, FrameEncodeCache.Format.JPEG, quality, scale);
+            return new MjpegStreamer.Frame(img.getSequence(), jpeg);
+        } catch (Exception e) {
+            Ln.e("Could not encode the MJPEG frame: " + e.getMessage());
+            return null;
+        } finally {
+            img.release();
+        }
+    }
+
+    private void handleScreenImage(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        String qualityParam = request.getQueryParameter("q");
+        String scaleParam = request.getQueryParameter("s");
+        String afterParam = request.getQueryParameter("after");
+        String timeoutParam = request.getQueryParameter("timeout");
+        int quality;
+        float scale;
+        long after;
+        long timeout;
+        try {
+            quality = qualityParam != null ? Integer.parseInt(qualityParam.trim()) : 80;
+            scale = scaleParam != null ? Float.parseFloat(scaleParam.trim()) : 0.5f;
+            after = afterParam != null ? Long.parseLong(afterParam.trim()) : 0;
+            timeout = timeoutParam != null ? Long.parseLong(timeoutParam.trim()) : DEFAULT_SCREEN_POLL_TIMEOUT_MS;
+        } catch (NumberFormatException e) {
+            writeUpstreamError(output, connection, 400, "Bad Request");
+            return;
+        }
+        if (quality < 0 || quality > 100 || !(scale > 0 && scale <= 1)) {
+            writeUpstreamError(output, connection, 400, "Bad Request");
+            return;
+        }
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (afterParam != null) {
+            timeout = Math.max(0, Math.min(timeout, MAX_SCREEN_POLL_TIMEOUT_MS));
+            screenImages.poll(connection, output, quality, scale, after, timeout, ifNoneMatch);
+        } else {
+            screenImages.respond(connection, output, quality, scale, ifNoneMatch);
+        }
+    }
+
+    private byte[] encodeImage(FrameSnapshot img, int quality, float scale) {
+        try {
+            if (img == null) {
+                return new byte[0];
             }
-        }else if (url.startsWith("/screenImg.jpeg")) {
-            Uri uri = Uri.parse(url);
-            String qualityParam = uri.getQueryParameter("q");
-            String scaleParam = uri.getQueryParameter("s");
-            int quality = qualityParam != null ? Integer.parseInt(qualityParam) : 80;
-            float scale = scaleParam != null ? Float.parseFloat(scaleParam) : 0.5f;
-            synchronized (imageLock) {
-                ImageBuffer img =  this.currentImage;
-                try {
-                    int bufferSizeCapacity = img.buffer.capacity();
-                    //Ln.i("screenImg size: " + bufferSizeCapacity);
-                    if(bufferSizeCapacity > 0){
-                        byte[] b = processImage(img,quality,scale);
-                        output.write(buildResponseOk(b.length,"image/jpeg"));
-                        output.write(b);
-                    }else{
-                        output.write(buildResponseOk(0,"image/jpeg"));
-                    }
-                } catch (Exception e) {
-                    //Ln.e("get screenImg.jpg error: ",e);
-                    output.write(buildResponseOk(0,"image/jpeg"));
+            return encodeImage(img, FrameEncodeCache.Format.FRAMED, quality, scale);
+        } catch (Exception e) {
+            //Ln.e("get screenImg.jpg error: ",e);
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Encode an image, unless another consumer already encoded it with the same format, quality and scale.
+     * <p>
+     * May be called from any thread, without holding imageLock, by a caller owning a reference to the snapshot.
+     */
+    private byte[] encodeImage(FrameSnapshot img, FrameEncodeCache.Format format, int quality, float scale) throws IOException {
+        long sequence = img.getSequence();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        // If the other format of the same tier is already encoded, derive it instead of compressing again
+        if (format == FrameEncodeCache.Format.JPEG) {
+            return encodeCache.get(sequence, format, quality, scale, () -> {
+                byte[] framed = encodeCache.peek(sequence, FrameEncodeCache.Format.FRAMED, quality, scale);
+                if (framed != null) {
+                    return JpegEncoder.unframe(framed);
                 }
-                output.flush();
+                return jpegEncoder.encode(img.getPixels(), width, height, quality, scale);
+            });
+        }
+        return encodeCache.get(sequence, format, quality, scale, () -> {
+            byte[] jpeg = encodeCache.peek(sequence, FrameEncodeCache.Format.JPEG, quality, scale);
+            if (jpeg != null) {
+                return JpegEncoder.frame(jpeg, width, height, quality, scale, img.getTimestamp());
             }
+            return jpegEncoder.encodeFramed(img.getPixels(), width, height, quality, scale, img.getTimestamp());
+        });
+    }
 
+    private void handleVideoStream(HttpRequest request, OutputStream output, Connection connection) throws IOException {
+        String response = "HTTP/1.1 200 OK\r\n" +
+                "Connection: keep-alive\r\n" +
+                "Access-Control-Allow-Origin: *\r\n" +
+                "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n" +
+                "Access-Control-Allow-Headers: Content-Type\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "Content-Type: video/avc\r\n\r\n";
+
+        // The H.264 stream cannot be decoded if a frame is missing: never drop, disconnect a client which does not keep up instead (the
+        // encoder thread is shared by all the clients, it must never wait for one of them)
+        connection.getSendQueue().setPolicy(SendQueue.Policy.CLOSE);
+        connection.setLabel("stream.avc");
+        connection.setStreaming();
+        output.write(response.getBytes());
+        output.write(streamerVideo.getVideoHeader(surfaceEncoder.getSize()).array());
+        output.flush();
+
+        synchronized (screenStreamClients) {
+            screenStreamClients.add(connection);
+            if (screenStreamClients.size() == 1) {
+                // First client - start encoding
+                surfaceVideoEncoder.setHasClients(true);
+            }
         }
-        else if (url.startsWith("/stream.avc")) {
-            String response = "HTTP/1.1 200 OK\r\n" +
-                    "Connection: keep-alive\r\n" +
-                    "Access-Control-Allow-Origin: *\r\n" +
-                    "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n" +
-                    "Access-Control-Allow-Headers: Content-Type\n" +
-                    "Transfer-Encoding: chunked\r\n" +
-                    "Content-Type: video/avc\r\n\r\n";
+        connection.addCloseListener(() -> removeVideoStreamClient(connection));
+    }
 
-            output.write(response.getBytes());
-            output.write(streamerVideo.getVideoHeader(surfaceEncoder.getSize()).array());
-            output.flush();
+    private void removeVideoStreamClient(Connection connection) {
+        synchronized (screenStreamClients) {
+            if (screenStreamClients.remove(connection) && screenStreamClients.isEmpty()) {
+                // Last client disconnected
+                surfaceVideoEncoder.setHasClients(false);
+            }
+        }
+    }
 
-            synchronized (screenStreamClients) {
-                screenStreamClients.add(clientSocket);
-                if (screenStreamClients.size() == 1) {
-                    // First client - start encoding
-                    surfaceVideoEncoder.setHasClients(true);
-                }
+    private String buildPoolStats() {
+        StringBuilder json = new StringBuilder("{\"pools\":[");
+        boolean first = true;
+        for (WorkerPool pool : getRouter().getPools()) {
+            if (!first) {
+                json.append(',');
             }
-            while (screenStreamClients.contains(clientSocket) && !clientSocket.isClosed()) {
-                SystemClock.sleep(100);
+            first = false;
+            json.append("{\"name\":\"").append(pool.getName())
+                    .append("\",\"maxThreads\":").append(pool.getMaxThreads())
+                    .append(",\"threads\":").append(pool.getThreads())
+                    .append(",\"active\":").append(pool.getActive())
+                    .append(",\"queueCapacity\":").append(pool.getQueueCapacity())
+                    .append(",\"queued\":").append(pool.getQueued())
+                    .append(",\"completed\":").append(pool.getCompleted())
+                    .append(",\"rejected\":").append(pool.getRejected())
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private UpstreamClient createUpstream(String name, int port) {
+        UpstreamClient upstream = new UpstreamClient(name, "127.0.0.1", port, UPSTREAM_MAX_CONNECTIONS, UPSTREAM_CONNECT_TIMEOUT_MS,
+                UPSTREAM_READ_TIMEOUT_MS);
+        upstreams.add(upstream);
+        return upstream;
+    }
+
+    private String buildUpstreamStats() {
+        StringBuilder json = new StringBuilder("{\"upstreams\":[");
+        boolean first = true;
+        for (UpstreamClient upstream : upstreams) {
+            if (!first) {
+                json.append(',');
             }
+            first = false;
+            json.append("{\"name\":\"").append(upstream.getName())
+                    .append("\",\"address\":\"").append(upstream.getAddress())
+                    .append("\",\"maxConnections\":").append(upstream.getMaxConnections())
+                    .append(",\"open\":").append(upstream.getOpen())
+                    .append(",\"active\":").append(upstream.getActive())
+                    .append(",\"idle\":").append(upstream.getIdle())
+                    .append(",\"hits\":").append(upstream.getHits())
+                    .append(",\"misses\":").append(upstream.getMisses())
+                    .append(",\"exhausted\":").append(upstream.getExhausted())
+                    .append(",\"staleRetries\":").append(upstream.getStaleRetries())
+                    .append(",\"errors\":").append(upstream.getErrors())
+                    .append(",\"upgrades\":").append(upstream.getUpgrades())
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
 
-            synchronized (screenStreamClients) {
-                screenStreamClients.remove(clientSocket);
-                if (screenStreamClients.isEmpty()) {
-                    // Last client disconnected
-                    surfaceVideoEncoder.setHasClients(false);
-                }
+    private String buildJsonRpcStats() {
+        JsonRpcMux mux = jsonRpcMux;
+        if (mux == null) {
+            return "{}";
+        }
+        return "{\"clients\":" + mux.getClients()
+                + ",\"inFlight\":" + mux.getInFlight()
+                + ",\"calls\":" + mux.getCalls()
+                + ",\"batches\":" + mux.getBatches()
+                + ",\"errors\":" + mux.getErrors() + "}";
+    }
+
+    private String buildScreenStats() {
+        BitmapPool bitmaps = jpegEncoder.getBitmapPool();
+        long sequence;
+        synchronized (imageLock) {
+            sequence = frameSequence;
+        }
+        return "{\"frameSequence\":" + sequence
+                + ",\"lastFrameAt\":" + lastTimestamp
+                + ",\"pollWaiters\":" + screenImages.getWaiters()
+                + ",\"events\":{\"subscribers\":" + screenEvents.getSubscribers()
+                + ",\"sent\":" + screenEvents.getSent()
+                + ",\"coalesced\":" + screenEvents.getCoalesced()
+                + ",\"dropped\":" + screenEvents.getDropped() + "}"
+                + ",\"mjpeg\":{\"subscribers\":" + mjpeg.getSubscribers()
+                + ",\"sent\":" + mjpeg.getSent()
+                + ",\"skipped\":" + mjpeg.getSkipped() + "}"
+                + ",\"encodeCache\":{\"tiers\":" + encodeCache.getTiers()
+                + ",\"hits\":" + encodeCache.getHits()
+                + ",\"misses\":" + encodeCache.getMisses()
+                + ",\"uncached\":" + encodeCache.getUncached()
+                + ",\"hitRate\":" + String.format(Locale.US, "%.3f", encodeCache.getHitRate()) + "}"
+                + ",\"snapshots\":{\"captured\":" + snapshots.getCaptured()
+                + ",\"repacked\":" + snapshots.getRepacked()
+                + ",\"allocated\":" + snapshots.getAllocated()
+                + ",\"reused\":" + snapshots.getReused() + "}"
+                + ",\"bitmaps\":{\"created\":" + bitmaps.getCreated()
+                + ",\"reused\":" + bitmaps.getReused()
+                + ",\"recycled\":" + bitmaps.getRecycled()
+                + ",\"idle\":" + bitmaps.getIdle() + "}"
+                + ",\"pipeline\":{\"capture\":{\"frames\":" + framePipeline.getCaptured()
+                + ",\"superseded\":" + framePipeline.getSuperseded() + "}"
+                + ",\"publish\":{\"frames\":" + framePipeline.getPublished() + "}"
+                + ",\"encode\":{\"threads\":" + screenEncodePool.getMaxThreads()
+                + ",\"tiers\":" + framePipeline.getEncoded()
+                + ",\"meanMs\":" + String.format(Locale.US, "%.3f", framePipeline.getEncodeMeanMillis())
+                + ",\"skipped\":" + framePipeline.getEncodeSkipped()
+                + ",\"rejected\":" + framePipeline.getEncodeRejected()
+                + ",\"failed\":" + framePipeline.getEncodeFailed() + "}"
+                + ",\"send\":{\"subscribers\":" + framePipeline.getSubscribers()
+                + ",\"pending\":" + framePipeline.getSendPending()
+                + ",\"sent\":" + framePipeline.getSent()
+                + ",\"dropped\":" + framePipeline.getDropped() + "}}}";
+    }
+
+    private String buildShellStats() {
+        ShellPool pool = shells;
+        return "{\"maxShells\":" + pool.getMaxShells()
+                + ",\"active\":" + pool.getActive()
+                + ",\"open\":" + pool.getOpen()
+                + ",\"started\":" + pool.getStarted()
+                + ",\"commands\":" + pool.getCommands()
+                + ",\"timeouts\":" + pool.getTimeouts()
+                + ",\"replaced\":" + pool.getReplaced()
+                + ",\"streams\":{\"running\":" + shellStream.getRunning()
+                + ",\"max\":" + shellStream.getMaxStreams()
+                + ",\"started\":" + shellStream.getStarted()
+                + ",\"cancelled\":" + shellStream.getCancelled() + "}}";
+    }
+
+    private String buildTunnelStats() {
+        StringBuilder json = new StringBuilder("{\"tunnels\":[");
+        long now = System.currentTimeMillis();
+        boolean first = true;
+        for (Map.Entry<Connection, Tunnel> entry : tunnels.entrySet()) {
+            Tunnel tunnel = entry.getValue();
+            if (!first) {
+                json.append(',');
             }
+            first = false;
+            json.append("{\"name\":\"").append(tunnel.getName())
+                    .append("\",\"client\":").append(entry.getKey().getId())
+                    .append(",\"remote\":\"").append(entry.getKey().getRemoteAddress())
+                    .append("\",\"upstream\":\"").append(tunnel.getUpstreamAddress())
+                    .append("\",\"bytesUp\":").append(tunnel.getBytesUp())
+                    .append(",\"bytesDown\":").append(tunnel.getBytesDown())
+                    .append(",\"idleMs\":").append(tunnel.getIdleMillis())
+                    .append(",\"ageMs\":").append(now - tunnel.getCreatedAt())
+                    .append('}');
         }
-        else if (url.startsWith("/controller") && this.controller != null) {
-            this.controller.processHttpCmd(body, output);
-        } else {
-            output.write(buildResponseOk(5,"text/plain"));
-            output.write(BuildConfig.VERSION_NAME.getBytes());
-            output.flush();
+        return json.append("]}").toString();
+    }
+
+    private String buildRouteStats() {
+        StringBuilder json = new StringBuilder("{\"buckets\":[");
+        long[] bounds = RouteMetrics.getBucketBoundsMillis();
+        for (int i = 0; i < bounds.length; ++i) {
+            json.append(i == 0 ? "" : ",").append(bounds[i]);
+        }
+        json.append("],\"routes\":[");
+        boolean first = true;
+        for (Router.Route route : getRouter().getRoutes()) {
+            RouteMetrics metrics = route.getMetrics();
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"path\":\"").append(route.getPath())
+                    .append("\",\"prefix\":").append(route.isPrefix())
+                    .append(",\"dispatch\":\"").append(route.getDispatch().name().toLowerCase(Locale.US))
+                    .append("\",\"maxConcurrency\":").append(route.getMaxConcurrency())
+                    .append(",\"timeout\":").append(route.getTimeout())
+                    .append(",\"headTimeout\":").append(route.isHeadTimeout())
+                    .append(",\"pool\":").append(route.getPool() != null ? "\"" + route.getPool().getName() + "\"" : "null")
+                    .append(",\"requests\":").append(metrics.getRequests())
+                    .append(",\"errors\":").append(metrics.getErrors())
+                    .append(",\"rejected\":").append(metrics.getRejected())
+                    .append(",\"timeouts\":").append(metrics.getTimeouts())
+                    .append(",\"inFlight\":").append(metrics.getInFlight())
+                    .append(",\"meanMs\":").append(String.format(Locale.US, "%.3f", metrics.getMeanMillis()))
+                    .append(",\"maxMs\":").append(String.format(Locale.US, "%.3f", metrics.getMaxMillis()))
+                    .append(",\"p50Ms\":").append(metrics.getPercentileMillis(50))
+                    .append(",\"p99Ms\":").append(metrics.getPercentileMillis(99))
+                    .append(",\"histogram\":[");
+            long[] histogram = metrics.getHistogram();
+            for (int i = 0; i < histogram.length; ++i) {
+                json.append(i == 0 ? "" : ",").append(histogram[i]);
+            }
+            json.append("]}");
         }
+        return json.append("]}").toString();
+    }
+
+    private String buildClientStats() {
+        StringBuilder json = new StringBuilder("{\"clients\":[");
+        boolean first = true;
+        for (Connection connection : getConnections()) {
+            SendQueue queue = connection.getSendQueue();
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"id\":").append(connection.getId())
+                    .append(",\"remote\":\"").append(connection.getRemoteAddress())
+                    .append("\",\"label\":\"").append(connection.getLabel())
+                    .append("\",\"policy\":\"").append(queue.getPolicy().getName())
+                    .append("\",\"capacity\":").append(queue.getCapacity())
+                    .append(",\"queued\":").append(queue.size())
+                    .append(",\"queuedBytes\":").append(queue.getQueuedBytes())
+                    .append(",\"sent\":").append(queue.getSentMessages())
+                    .append(",\"dropped\":").append(queue.getDroppedMessages());
+            PerMessageDeflate deflate = connection.getDeflate();
+            if (deflate != null) {
+                json.append(",\"deflate\":{\"rawBytesOut\":").append(deflate.getRawBytesOut())
+                        .append(",\"compressedBytesOut\":").append(deflate.getCompressedBytesOut())
+                        .append(",\"ratio\":").append(String.format(Locale.US, "%.3f", deflate.getCompressionRatio()))
+                        .append(",\"bypassed\":").append(deflate.getBypassedMessages())
+                        .append(",\"rawBytesIn\":").append(deflate.getRawBytesIn())
+                        .append(",\"compressedBytesIn\":").append(deflate.getCompressedBytesIn())
+                        .append(",\"deflateMs\":").append(deflate.getDeflateNanos() / 1000000)
+                        .append(",\"inflateMs\":").append(deflate.getInflateNanos() / 1000000)
+                        .append('}');
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
     }
 
     public byte[] buildResponseKeepLive(String contentType){
@@ -336,8 +936,8 @@ public class RecordingServer extends BaseWsServer {
                 "Access-Control-Allow-Headers: Content-Type\r\n\r\n";
         return res.getBytes();
     }
-    public byte[] buildResponseOk(int contentLen, String contentType){
-        return buildResponseHeader(200,"OK",contentLen,contentType,"close");
+    public byte[] buildResponseOk(Connection connection, int contentLen, String contentType){
+        return buildResponseHeader(200,"OK",contentLen,contentType,connection.getConnectionHeader());
     }
 
     public byte[] buildResponseHeader(int statusCode, String responseMessage, int contentLen, String contentType, String connection){
@@ -351,6 +951,36 @@ public class RecordingServer extends BaseWsServer {
         return res.getBytes();
     }
 
+    /**
+     * Set the max number of concurrent upstream calls of the JSON-RPC WebSocket (see {@link JsonRpcMux}).
+     */
+    public void setJsonRpcParallelism(int parallelism) {
+        this.jsonRpcParallelism = parallelism;
+    }
+
+    /**
+     * Set the age after which the dynamic fields of {@code /deviceInfo} (battery, IP addresses, foreground app...) are collected again.
+     */
+    public void setDeviceInfoTtl(long ttlMillis) {
+        deviceInfo.setTtl(ttlMillis);
+    }
+
+    /**
+     * Set the number of threads encoding the screen images (the tiers of the {@code /screen.jpeg} streams encoded in parallel).
+     */
+    public void setScreenEncodeThreads(int threads) {
+        screenEncodePool.setMaxThreads(threads);
+    }
+
+    /**
+     * Set the max number of shells executing {@code /shell/*} commands concurrently.
+     */
+    public void setShellPoolSize(int size) {
+        shells.close();
+        shells = new ShellPool(size);
+        shellPool.setMaxThreads(size);
+    }
+
     public void setController(ControllerFrame controller) {
         this.controller = controller;
     }
@@ -368,171 +998,100 @@ public class RecordingServer extends BaseWsServer {
     }
 
     public void writeVideoScreen(byte[] imageBytes) {
-        Ln.d("writeVideoScreen: " + screenSubClients.size());
-        synchronized (screenStreamClients) {
-            for (Socket client : screenStreamClients) {
-                try {
-                    OutputStream output = client.getOutputStream();
-                    output.write(imageBytes);
-                    output.flush();
-                } catch (Exception e) {
-                    Ln.e("Error writeVideoScreen: " + e.getMessage());
-                    screenStreamClients.remove(client);
-                }
+        Ln.d("writeVideoScreen: " + framePipeline.getSubscribers());
+        OutboundMessage frame = OutboundMessage.wrap(ByteBuffer.wrap(imageBytes));
+        for (Connection client : screenStreamClients) {
+            try {
+                client.sendFrame(frame);
+            } catch (IOException e) {
+                Ln.e("Error writeVideoScreen: " + e.getMessage());
+                removeVideoStreamClient(client);
             }
         }
     }
 
+    /**
+     * Take a snapshot of a captured image, and submit it to the frame pipeline.
+     * <p>
+     * Called on the capture thread, which keeps the ownership of the image: only the copy of its pixels is done on this thread.
+     */
     public void writeScreenImage(Image image) {
-        synchronized (imageLock) {
-            try {
-                Image.Plane plane = image.getPlanes()[0];
-                ByteBuffer buffer = plane.getBuffer();
-                int width = image.getWidth();
-                int height = image.getHeight();
-                int bufferSizeCapacity = buffer.capacity();
-                if(bufferSizeCapacity > 0){
-                    this.currentImage = new ImageBuffer(buffer,width,height);
-                    lastTimestamp = System.currentTimeMillis();
-                    synchronized (screenSubClients) {
-                        for (ScreenClient client : screenSubClients) {
-                            try {
-                                OutputStream output = client.socket.getOutputStream();
-                                byte[] imageBytes = processImage(this.currentImage,client.quality,client.scale);
-                                output.write(imageBytes);
-                                output.flush();
-                            } catch (Exception e) {
-                                Ln.e("Error writeScreen: " + e.getMessage());
-                                screenSubClients.remove(client);
-                            }
-                        }
-                    }
-                }
-
-
-            }finally {
-                image.close();
-            }
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        if (buffer.capacity() == 0) {
+            return;
         }
-        //Ln.d("writeScreen: " + screenSubClients.size());
+        // The buffer of the image is reused by the ImageReader once the image is closed: copy it
+        FrameSnapshot snapshot = snapshots.capture(buffer, image.getWidth(), image.getHeight(), plane.getPixelStride(), plane.getRowStride(),
+                captureSequence.incrementAndGet(), System.currentTimeMillis());
+        framePipeline.submit(snapshot);
+    }
 
+    /**
+     * Make a snapshot the current image, and notify the consumers (called on the publish stage of the frame pipeline).
+     */
+    private void publishScreenImage(FrameSnapshot frame) {
+        synchronized (imageLock) {
+            snapshots.publish(frame);
+            lastTimestamp = frame.getTimestamp();
+            long sequence = frame.getSequence();
+            frameSequence = sequence;
+            screenEvents.onFrame(sequence, lastTimestamp, frame.getWidth(), frame.getHeight(), frame.getPixels());
+            mjpeg.onFrame(sequence);
+            screenImages.onFrame(sequence);
+        }
     }
 
     public void clearCurrentImage() {
         synchronized (imageLock) {
-            this.currentImage = null;
+            snapshots.clear();
+            encodeCache.clear();
         }
     }
+    @Override
+    public void onStartServer() {
+        // The calls multiplexed on the WebSocket do not compete with the /jsonrpc requests for the upstream connections
+        UpstreamClient upstream = new UpstreamClient("jsonrpc-ws", "127.0.0.1", JSONRPC_PORT, jsonRpcParallelism, UPSTREAM_CONNECT_TIMEOUT_MS,
+                UPSTREAM_READ_TIMEOUT_MS);
+        upstreams.add(upstream);
+        WorkerPool pool = getRouter().createPool("jsonrpc-ws", jsonRpcParallelism, JSONRPC_QUEUE_CAPACITY);
+        jsonRpcMux = new JsonRpcMux(upstream, pool);
+        addWsEndpoint(JSONRPC_WS_PATH, jsonRpcMux);
+    }
+
     @Override
     public void onStopServer(){
         clearCurrentImage();
+        for (UpstreamClient upstream : upstreams) {
+            upstream.close();
+        }
+        shells.close();
+        framePipeline.close();
+        jpegEncoder.release();
+        screenEvents.close();
+        screenPollTimer.shutdownNow();
     }
 
-    private byte[] processImage(ImageBuffer image,int quality,float scale) throws IOException {
-        ByteBuffer buffer = image.buffer;
-        buffer.position(0);
-        int width = image.width;
-        int height = image.height;
-        Bitmap finalBitmap = Bitmap.createBitmap(
-                width, height, Bitmap.Config.ARGB_8888);
-
-        finalBitmap.copyPixelsFromBuffer(buffer);
-
-        if (scale != 1.0) {
-            Bitmap scaled = Bitmap.createScaledBitmap(
-                    finalBitmap,
-                    (int)(width * scale),
-                    (int)(height * scale),
-                    true);
-            finalBitmap.recycle();
-            finalBitmap = scaled;
-        }
-
-        ByteArrayOutputStream jpegStream = new ByteArrayOutputStream();
-        finalBitmap.compress(Bitmap.CompressFormat.JPEG, quality, jpegStream);
-        byte[] jpegData = jpegStream.toByteArray();
-        long currentTs = System.currentTimeMillis();
-
-        int seconds = (int) (currentTs / 1000);
-        int millis = (int) (currentTs % 1000);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
-        try (DataOutputStream dos = new DataOutputStream(outputStream)) {
-            dos.writeInt(jpegData.length);
-            dos.write(jpegData);
-            dos.writeInt(width);
-            dos.writeInt(height);
-            dos.writeInt(quality);
-            dos.writeInt((int)(scale * 100));
-            dos.writeInt(seconds);
-            dos.writeInt(millis);
-        }
-        return outputStream.toByteArray();
-    }
-
-    public String getDeviceInfo() throws IOException {
-        ProcessBuilder pb =
-                new ProcessBuilder("sh","/data/local/tmp/device.sh", "deviceInfo");
-        Process p = pb.start();
-        InputStream input = p.getInputStream();
-        StringBuilder res = new StringBuilder();
-        int b;
-        while ((b = input.read()) != -1) {
-            char line = (char) b;
-            res.append(line);
-        }
-        return res.toString().trim();
-    }
-    public String shellCmd(String cmd) {
-        ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-        pb.redirectErrorStream(true);
-        Process p = null;
-        Ln.i("1");
+    /**
+     * Execute a command in a pooled shell.
+     *
+     * @return the output of the command, or an error message
+     */
+    public String shellCmd(String cmd, long timeoutMillis) {
         try {
-            p = pb.start();
-            try (InputStream input = p.getInputStream();
-                 BufferedReader reader = new BufferedReader(new InputStreamReader(input))) {
-                Ln.i("2");
-                StringBuilder res = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    res.append(line).append("\n");
-                }
-                Ln.i(res.toString());
-                // Wait for the process to complete
-                int exitCode = p.waitFor();
-                Ln.i(String.valueOf(exitCode));
-                if (exitCode != 0) {
-                    return "Command failed with exit code: " + exitCode;
-                }
-                return res.toString().trim();
+            ShellPool.Result result = shells.exec(cmd, timeoutMillis);
+            if (result.getExitCode() != 0) {
+                return "Command failed with exit code: " + result.getExitCode();
             }
-        } catch (InterruptedException e) {
+            return result.getOutput().trim();
+        } catch (ShellTimeoutException e) {
+            return "Command timed out after " + timeoutMillis + " ms: " + e.getMessage();
+        } catch (InterruptedIOException e) {
             Thread.currentThread().interrupt();
-            // Clean up the process if it was interrupted
-            p.destroy();
             return "Command execution was interrupted";
         } catch (IOException e) {
             return "IO error executing command: " + e.getMessage();
-        } finally {
-            if (p != null) {
-                p.destroy(); // Ensure process is cleaned up
-            }
-        }
-    }
-    public String shellExec(String cmd) throws IOException {
-        String[] cmdParts = cmd.split("\\s+");
-        ProcessBuilder pb =
-                new ProcessBuilder(cmdParts);
-        Process p = pb.start();
-        InputStream input = p.getInputStream();
-        StringBuilder res = new StringBuilder();
-        int b;
-        while ((b = input.read()) != -1) {
-            char line = (char) b;
-            res.append(line);
         }
-        return res.toString().trim();
     }
 }
 
@@ -0,0 +1,242 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.OutboundMessage;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-Sent Events channel notifying the clients of the captured frames, so that they only fetch the frames they need (with
+ * {@code /screenImg.jpeg}) instead of polling or receiving every frame.
+ * <p>
+ * Each event is tiny: sequence number, capture time, size, and whether the content changed since the previous event. Events are
+ * rate-limited per subscriber: frames captured within the min interval are coalesced into a single event, sent at the end of the interval
+ * (so the last frame is always notified).
+ */
+public final class ScreenEventChannel {
+
+    private static final long HEARTBEAT_INTERVAL_MS = 15000;
+    // Reconnection delay suggested to the clients
+    private static final int RETRY_MS = 2000;
+    // Pixels sampled to detect a change of content
+    private static final int HASH_SAMPLES = 4096;
+
+    private static final class Event {
+        private final long sequence;
+        private final long timestamp;
+        private final int width;
+        private final int height;
+
+        Event(long sequence, long timestamp, int width, int height) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final class Subscriber {
+        private final Connection connection;
+        private final long minInterval;
+        // Guarded by this
+        private long lastSentAt;
+        private Event pending;
+        private boolean pendingChanged;
+        private ScheduledFuture<?> flush;
+
+        Subscriber(Connection connection, long minInterval) {
+            this.connection = connection;
+            this.minInterval = minInterval;
+        }
+
+        synchronized void onFrame(Event event, boolean changed) {
+            pendingChanged |= changed;
+            pending = event;
+            if (flush != null) {
+                // Coalesced into the scheduled event
+                coalesced.incrementAndGet();
+                return;
+            }
+            long delay = lastSentAt + minInterval - System.currentTimeMillis();
+            if (delay <= 0) {
+                sendPending();
+            } else {
+                flush = timer.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void flush() {
+            flush = null;
+            if (pending != null) {
+                sendPending();
+            }
+        }
+
+        synchronized void cancel() {
+            if (flush != null) {
+                flush.cancel(false);
+                flush = null;
+            }
+        }
+
+        // Called with the lock held
+        private void sendPending() {
+            byte[] data = formatEvent(pending.sequence, pending.timestamp, pending.width, pending.height, pendingChanged);
+            pending = null;
+            pendingChanged = false;
+            lastSentAt = System.currentTimeMillis();
+            send(this, data);
+        }
+    }
+
+    private final ScheduledExecutorService timer;
+    private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+    private final ScheduledFuture<?> heartbeat;
+    private volatile Event last;
+    private long lastHash;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param timer the executor running the delayed (coalesced) events and the heartbeats
+     */
+    public ScreenEventChannel(ScheduledExecutorService timer) {
+        this.timer = timer;
+        heartbeat = timer.scheduleAtFixedRate(this::sendHeartbeats, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start the event stream on a connection (the response head is sent by this method).
+     *
+     * @param minIntervalMillis the min delay between two events sent to this subscriber
+     */
+    public void subscribe(Connection connection, long minIntervalMillis) throws IOException {
+        String head = "HTTP/1.1 200 OK\r\n" +
+                "Connection: keep-alive\r\n" +
+                "Content-Type: text/event-stream\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "X-Accel-Buffering: no\r\n" +
+                "Access-Control-Allow-Origin: *\r\n\r\n" +
+                "retry: " + RETRY_MS + "\n\n";
+        connection.setLabel("screen/events");
+        connection.setStreaming();
+        connection.send(ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)));
+
+        Subscriber subscriber = new Subscriber(connection, minIntervalMillis);
+        subscribers.add(subscriber);
+        connection.addCloseListener(() -> {
+            subscribers.remove(subscriber);
+            subscriber.cancel();
+        });
+
+        Event current = last;
+        if (current != null) {
+            // The current state, so that the client does not wait for the next frame
+            subscriber.onFrame(current, true);
+        }
+    }
+
+    /**
+     * Notify a captured frame (called on the capture thread, for every frame).
+     *
+     * @param pixels the RGBA pixels of the frame (its position is not modified)
+     */
+    public void onFrame(long sequence, long timestamp, int width, int height, ByteBuffer pixels) {
+        Event event = new Event(sequence, timestamp, width, height);
+        Event previous = last;
+        last = event;
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        long hash = sampleHash(pixels);
+        boolean changed = previous == null || previous.width != width || previous.height != height || hash != lastHash;
+        lastHash = hash;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onFrame(event, changed);
+        }
+    }
+
+    private void send(Subscriber subscriber, byte[] data) {
+        try {
+            // An event may be dropped (according to the policy of the connection) if the client does not keep up
+            if (subscriber.connection.sendFrame(OutboundMessage.wrap(ByteBuffer.wrap(data)))) {
+                sent.incrementAndGet();
+            } else {
+                dropped.incrementAndGet();
+            }
+        } catch (IOException e) {
+            Ln.d("screen events: " + e.getMessage());
+            subscribers.remove(subscriber);
+        }
+    }
+
+    private void sendHeartbeats() {
+        // A comment, ignored by the clients, so that idle proxies do not close the stream
+        byte[] data = ": ping\n\n".getBytes(StandardCharsets.US_ASCII);
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.connection.sendFrame(OutboundMessage.wrap(ByteBuffer.wrap(data)));
+            } catch (IOException e) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    public void close() {
+        heartbeat.cancel(false);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.cancel();
+        }
+    }
+
+    public int getSubscribers() {
+        return subscribers.size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Return the number of frames not notified individually, because of the rate limit of a subscriber.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    static byte[] formatEvent(long sequence, long timestamp, int width, int height, boolean changed) {
+        String event = "id: " + sequence + "\n" +
+                "event: frame\n" +
+                "data: {\"seq\":" + sequence + ",\"timestamp\":" + timestamp + ",\"width\":" + width + ",\"height\":" + height
+                + ",\"changed\":" + changed + "}\n\n";
+        return event.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Hash a sample of the pixels, to detect a change of content without reading the whole frame.
+     */
+    static long sampleHash(ByteBuffer pixels) {
+        int pixelCount = pixels.capacity() / 4;
+        int step = Math.max(1, pixelCount / HASH_SAMPLES);
+        long hash = 1125899906842597L;
+        for (int i = 0; i < pixelCount; i += step) {
+            hash = 31 * hash + pixels.getInt(i * 4);
+        }
+        return hash;
+    }
+}
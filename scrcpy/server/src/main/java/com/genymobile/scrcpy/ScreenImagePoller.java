@@ -0,0 +1,229 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.WorkerPool;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single images of the screen ({@code /screenImg.jpeg}), with conditional requests and long polling.
+ * <p>
+ * Every response carries the entity tag of the frame: a request whose {@code If-None-Match} matches the current frame is answered with
+ * {@code 304 Not Modified}. A long polling request ({@code ?after=<seq>}) is parked until a frame with a greater sequence number is
+ * captured, or until its timeout ({@code 304 Not Modified}). Parked requests hold no thread, only a timer; their frame is encoded on the
+ * encode pool, neither on the capture thread nor on the timer thread.
+ */
+public final class ScreenImagePoller {
+
+    /**
+     * Encodes a frame (never on the capture thread).
+     */
+    public interface Encoder {
+        /**
+         * @return the encoded frame (empty if it could not be encoded)
+         */
+        byte[] encode(FrameSnapshot frame, int quality, float scale);
+    }
+
+    private static final class Waiter {
+        private final Connection connection;
+        private final int quality;
+        private final float scale;
+        // The response is sent once a frame with a greater sequence number is captured
+        private final long after;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+        private volatile Runnable closeListener;
+
+        Waiter(Connection connection, int quality, float scale, long after) {
+            this.connection = connection;
+            this.quality = quality;
+            this.scale = scale;
+            this.after = after;
+        }
+    }
+
+    private final FrameSnapshotStore snapshots;
+    private final Encoder encoder;
+    private final WorkerPool encodePool;
+    private final ScheduledExecutorService timer;
+
+    // Distinguishes the entity tags of different server runs
+    private final String etagPrefix = Long.toHexString(System.currentTimeMillis());
+    private final Set<Waiter> waiters = new CopyOnWriteArraySet<>();
+    // Guards the sequence, so that a request cannot be parked after the frame it waits for has been notified
+    private final Object lock = new Object();
+    // Sequence number of the current frame (guarded by lock)
+    private long sequence;
+
+    /**
+     * @param snapshots  the store publishing the current frame
+     * @param encodePool the pool encoding the frames of the parked requests
+     * @param timer      the timer of the parked requests
+     */
+    public ScreenImagePoller(FrameSnapshotStore snapshots, Encoder encoder, WorkerPool encodePool, ScheduledExecutorService timer) {
+        this.snapshots = snapshots;
+        this.encoder = encoder;
+        this.encodePool = encodePool;
+        this.timer = timer;
+    }
+
+    /**
+     * Answer with the current frame, or {@code 304 Not Modified} if the client already has it.
+     *
+     * @param ifNoneMatch the value of the {@code If-None-Match} request header (may be {@code null})
+     */
+    public void respond(Connection connection, OutputStream output, int quality, float scale, String ifNoneMatch) throws IOException {
+        FrameSnapshot img = snapshots.acquire();
+        try {
+            long seq = img != null ? img.getSequence() : getSequence();
+            if (img != null && ifNoneMatch != null && ifNoneMatch.contains(buildEtag(seq))) {
+                output.write(buildHeader(304, "Not Modified", 0, seq, connection));
+            } else {
+                byte[] b = img != null ? encoder.encode(img, quality, scale) : new byte[0];
+                output.write(buildHeader(200, "OK", b.length, seq, connection));
+                output.write(b);
+            }
+            output.flush();
+        } finally {
+            if (img != null) {
+                img.release();
+            }
+        }
+    }
+
+    /**
+     * Answer with the first frame whose sequence number is greater than {@code after}, waiting for it up to {@code timeoutMillis}.
+     * <p>
+     * If there is no such frame yet, the response is deferred (see {@link Connection#deferResponse()}) and this method returns at once.
+     *
+     * @param timeoutMillis the max time to wait, or 0 to answer at once
+     */
+    public void poll(Connection connection, OutputStream output, int quality, float scale, long after, long timeoutMillis, String ifNoneMatch)
+            throws IOException {
+        synchronized (lock) {
+            if ((snapshots.isEmpty() || sequence <= after) && timeoutMillis > 0) {
+                // Registered under the lock, so that a frame captured meanwhile cannot be missed
+                park(new Waiter(connection, quality, scale, after), timeoutMillis);
+                return;
+            }
+        }
+        respond(connection, output, quality, scale, ifNoneMatch);
+    }
+
+    /**
+     * Notify a new frame, once published in the store: the parked requests waiting for it are answered.
+     */
+    public void onFrame(long frameSequence) {
+        synchronized (lock) {
+            sequence = frameSequence;
+            for (Waiter waiter : waiters) {
+                if (frameSequence > waiter.after) {
+                    complete(waiter);
+                }
+            }
+        }
+    }
+
+    private long getSequence() {
+        synchronized (lock) {
+            return sequence;
+        }
+    }
+
+    // Called with the lock held
+    private void park(Waiter waiter, long timeoutMillis) {
+        Connection connection = waiter.connection;
+        connection.deferResponse();
+        waiters.add(waiter);
+        waiter.timeout = timer.schedule(() -> complete(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+        waiter.closeListener = () -> {
+            if (waiter.done.compareAndSet(false, true)) {
+                waiters.remove(waiter);
+                waiter.timeout.cancel(false);
+            }
+        };
+        connection.addCloseListener(waiter.closeListener);
+    }
+
+    /**
+     * Send the response to a parked request: the new frame, or 304 if none has been captured before the timeout.
+     */
+    private void complete(Waiter waiter) {
+        if (!waiter.done.compareAndSet(false, true)) {
+            return;
+        }
+        waiters.remove(waiter);
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+        }
+        Connection connection = waiter.connection;
+        if (waiter.closeListener != null) {
+            connection.removeCloseListener(waiter.closeListener);
+        }
+        // Encoding may be expensive: neither on the capture thread nor on the timer thread
+        boolean accepted = encodePool.tryExecute(() -> {
+            FrameSnapshot img = snapshots.acquire();
+            try {
+                long seq = img != null ? img.getSequence() : getSequence();
+                byte[] head;
+                byte[] body;
+                if (img != null && seq > waiter.after) {
+                    body = encoder.encode(img, waiter.quality, waiter.scale);
+                    head = buildHeader(200, "OK", body.length, seq, connection);
+                } else {
+                    body = new byte[0];
+                    head = buildHeader(304, "Not Modified", 0, seq, connection);
+                }
+                connection.send(ByteBuffer.wrap(head), ByteBuffer.wrap(body));
+                connection.finishDeferredRequest();
+            } catch (IOException e) {
+                // The connection is closed
+                Ln.d("screenImg poll: " + e.getMessage());
+            } finally {
+                if (img != null) {
+                    img.release();
+                }
+            }
+        });
+        if (!accepted) {
+            connection.close();
+        }
+    }
+
+    private String buildEtag(long seq) {
+        return "\"" + etagPrefix + "-" + seq + "\"";
+    }
+
+    private byte[] buildHeader(int statusCode, String responseMessage, int contentLen, long seq, Connection connection) {
+        String res = "HTTP/1.1 " + statusCode + " " + responseMessage + "\r\n" +
+                "Content-Length: " + contentLen + "\r\n" +
+                "Connection: " + connection.getConnectionHeader() + "\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "ETag: " + buildEtag(seq) + "\r\n" +
+                "X-Frame-Sequence: " + seq + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Access-Control-Allow-Origin: *\r\n" +
+                "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n" +
+                "Access-Control-Allow-Headers: Content-Type, If-None-Match\r\n" +
+                "Access-Control-Expose-Headers: ETag, X-Frame-Sequence\r\n\r\n";
+        return res.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Return the number of parked requests.
+     */
+    public int getWaiters() {
+        return waiters.size();
+    }
+}
@@ -14,6 +14,7 @@ import com.genymobile.scrcpy.audio.AudioSource;
 import com.genymobile.scrcpy.control.ControlChannel;
 import com.genymobile.scrcpy.control.Controller;
 import com.genymobile.scrcpy.control.ControllerFrame;
+import com.genymobile.scrcpy.device.AppIndex;
 import com.genymobile.scrcpy.device.ConfigurationException;
 import com.genymobile.scrcpy.device.DesktopConnection;
 import com.genymobile.scrcpy.device.Device;
@@ -226,11 +227,23 @@ public final class Server {
         }
 
         Workarounds.apply();
+        // Listing the apps takes seconds on some devices: index them before the first request
+        AppIndex.get().warmUp();
             List<AsyncProcessor> asyncProcessors = new ArrayList<>();
         try {
             ControllerFrame controller = new ControllerFrame(cleanUp, options);
             ScreenFrameCapture surfaceCapture = new ScreenFrameCapture(controller, options);
             RecordingServer recordingServer = new RecordingServer(options.getPort());
+            recordingServer.setIoThreads(options.getIoThreads());
+            recordingServer.setSendQueue(options.getSendQueueSize(), options.getSendQueuePolicy());
+            recordingServer.setMaxMessageSize(options.getWsMaxMessageSize());
+            recordingServer.setDeflate(options.getWsDeflate(), options.getWsDeflateContextTakeover());
+            recordingServer.setKeepAlive(options.getHttpKeepAliveTimeout(), options.getHttpMaxRequests());
+            recordingServer.setHeartbeat(options.getWsPingInterval(), options.getWsPongTimeout());
+            recordingServer.setJsonRpcParallelism(options.getJsonRpcParallelism());
+            recordingServer.setDeviceInfoTtl(options.getDeviceInfoTtl());
+            recordingServer.setShellPoolSize(options.getShellPoolSize());
+            recordingServer.setScreenEncodeThreads(options.getScreenEncodeThreads());
             recordingServer.setController(controller);
             controller.setSurfaceCapture(surfaceCapture);
             controller.setRecordingServer(recordingServer);
@@ -0,0 +1,380 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.OutboundMessage;
+import com.genymobile.scrcpy.net.WebSocketDecoder;
+import com.genymobile.scrcpy.net.WorkerPool;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shell commands whose output is streamed while they run ({@code logcat}, {@code top}...), over HTTP (chunked response) or a WebSocket.
+ * <p>
+ * The output is read through a small buffer and written to the client as soon as it is available. Writes block while the send queue of
+ * the client is full, so a slow client throttles the command (which blocks on its full pipe) instead of consuming memory. However, a
+ * client which reads nothing for 30 seconds (the write timeout of the connection) is disconnected. The process is killed when the client
+ * disconnects or cancels.
+ * <p>
+ * WebSocket protocol: the client sends the command as a text message. The output is sent as binary messages whose first byte is the
+ * channel ({@link #CHANNEL_STDOUT} or {@link #CHANNEL_STDERR}), followed by a text message {@code {"exit":<code>}} once the command
+ * terminates. While a command is running, the text message {@code cancel} kills it; another command may be sent afterwards. The process
+ * is started from the pool, never on the I/O thread (starting a process takes tens of milliseconds).
+ */
+public final class ShellStreamEndpoint implements BaseWsServer.WsEndpoint {
+
+    public static final int CHANNEL_STDOUT = 1;
+    public static final int CHANNEL_STDERR = 2;
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final String CANCEL = "cancel";
+    // Polling delays while a running command produces no output
+    private static final long MIN_POLL_DELAY_MS = 1;
+    private static final long MAX_POLL_DELAY_MS = 32;
+
+    private final WorkerPool pool;
+    private final int maxStreams;
+    private final Map<Connection, Session> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * @param pool       the pool starting the commands of the WebSocket sessions and running their readers (two threads per command)
+     * @param maxStreams the max number of commands running at once (HTTP and WebSocket)
+     */
+    public ShellStreamEndpoint(WorkerPool pool, int maxStreams) {
+        this.pool = pool;
+        this.maxStreams = maxStreams;
+    }
+
+    private static final class Session {
+        private Command command;
+        // Set while the command is being started in the pool
+        private boolean starting;
+        private boolean cancelRequested;
+
+        boolean isBusy() {
+            return command != null || starting;
+        }
+    }
+
+    private final class Command {
+        private final Process process;
+        private volatile boolean killed;
+
+        Command(Process process) {
+            this.process = process;
+        }
+
+        /**
+         * Kill the command (may be called from any thread, several times).
+         */
+        void kill() {
+            if (killed) {
+                return;
+            }
+            killed = true;
+            cancelled.incrementAndGet();
+            process.destroy();
+            try {
+                process.getOutputStream().close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        /**
+         * Read some output, without blocking indefinitely once the command has been killed.
+         * <p>
+         * While the shell is running, the output is polled: a blocking read could not be interrupted if a child of the killed shell kept
+         * the pipe open. Once killed, the pipe is closed on the reader side, so that the children still writing to it terminate (SIGPIPE).
+         *
+         * @return the number of bytes read, or -1 at the end of the output (or once killed)
+         */
+        int read(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+            long delay = MIN_POLL_DELAY_MS;
+            while (!killed) {
+                int available = in.available();
+                if (available > 0) {
+                    return in.read(buffer, offset, Math.min(available, length));
+                }
+                if (!isAlive()) {
+                    // Only the remaining output (or the end of stream) is expected
+                    return in.read(buffer, offset, length);
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for the output");
+                }
+                delay = Math.min(delay * 2, MAX_POLL_DELAY_MS);
+            }
+            closeQuietly(in);
+            return -1;
+        }
+
+        private boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Wait for the termination of the process (called once per command).
+         */
+        int waitFor() {
+            running.decrementAndGet();
+            try {
+                return process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Start a command, unless too many are running.
+     *
+     * @return the command, or {@code null} if the limit is reached
+     */
+    private Command start(String cmd, boolean redirectErrorStream) throws IOException {
+        if (running.incrementAndGet() > maxStreams) {
+            running.decrementAndGet();
+            return null;
+        }
+        try {
+            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
+            pb.redirectErrorStream(redirectErrorStream);
+            Process process = pb.start();
+            started.incrementAndGet();
+            return new Command(process);
+        } catch (IOException e) {
+            running.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Run a command and write its output (stdout and stderr interleaved) to {@code out}, until the command terminates or the client
+     * disconnects.
+     * <p>
+     * Called on the thread handling the request, which is held while the command runs.
+     *
+     * @param onStart called once the process is started, before any output is written (to write the response head)
+     * @return the exit code of the command, or {@code null} if too many commands are running (nothing has been written)
+     */
+    public Integer stream(String cmd, Connection connection, OutputStream out, Runnable onStart) throws IOException {
+        Command command = start(cmd, true);
+        if (command == null) {
+            return null;
+        }
+        Runnable killOnClose = command::kill;
+        connection.addCloseListener(killOnClose);
+        try {
+            onStart.run();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            InputStream in = command.process.getInputStream();
+            int r;
+            while ((r = command.read(in, buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, r);
+                out.flush();
+            }
+        } catch (IOException e) {
+            command.kill();
+            command.waitFor();
+            if (!connection.isClosed()) {
+                throw e;
+            }
+            return -1;
+        } finally {
+            connection.removeCloseListener(killOnClose);
+        }
+        return command.waitFor();
+    }
+
+    @Override
+    public void onMessage(Connection connection, ByteBuffer payload) {
+        String message = StandardCharsets.UTF_8.decode(payload).toString().trim();
+        Session session = sessions.get(connection);
+        if (session == null) {
+            session = new Session();
+            sessions.put(connection, session);
+        }
+
+        synchronized (session) {
+            if (session.isBusy()) {
+                if (!CANCEL.equals(message)) {
+                    sendText(connection, "{\"error\":\"A command is already running\"}");
+                } else if (session.command != null) {
+                    session.command.kill();
+                } else {
+                    session.cancelRequested = true;
+                }
+                return;
+            }
+            if (message.isEmpty() || CANCEL.equals(message)) {
+                sendText(connection, "{\"error\":\"No command\"}");
+                return;
+            }
+            session.starting = true;
+        }
+
+        // Starting a process (fork/exec) would stall all the connections of the I/O thread
+        Session s = session;
+        if (!pool.tryExecute(() -> runCommand(connection, s, message))) {
+            endStarting(session);
+            sendText(connection, "{\"error\":\"Too many commands running\"}");
+        }
+    }
+
+    /**
+     * Start a command of a WebSocket session, then pump its stdout (called on a thread of the pool, held while the command runs).
+     */
+    private void runCommand(Connection connection, Session session, String cmd) {
+        Command command = startSessionCommand(connection, session, cmd);
+        if (command == null) {
+            return;
+        }
+
+        synchronized (session) {
+            session.starting = false;
+            session.command = command;
+            // Cancelled or disconnected while starting (once closed, the session is not visible to onClose() anymore)
+            if (session.cancelRequested || connection.isClosed()) {
+                command.kill();
+            }
+            session.cancelRequested = false;
+        }
+
+        // The last reader to complete reports the exit code
+        AtomicInteger readers = new AtomicInteger(2);
+        Runnable onReaderEnd = () -> {
+            if (readers.decrementAndGet() == 0) {
+                int exitCode = command.waitFor();
+                synchronized (session) {
+                    session.command = null;
+                }
+                sendText(connection, "{\"exit\":" + exitCode + (command.killed ? ",\"cancelled\":true" : "") + "}");
+            }
+        };
+        Runnable stderr = () -> pump(connection, command, command.process.getErrorStream(), CHANNEL_STDERR, onReaderEnd);
+        if (!pool.tryExecute(stderr)) {
+            // The stdout reader reports the termination
+            command.kill();
+            onReaderEnd.run();
+        }
+        pump(connection, command, command.process.getInputStream(), CHANNEL_STDOUT, onReaderEnd);
+    }
+
+    /**
+     * Start a command of a WebSocket session, or report the error to the client.
+     *
+     * @return the command, or {@code null} if it could not be started
+     */
+    private Command startSessionCommand(Connection connection, Session session, String cmd) {
+        try {
+            Command command = start(cmd, false);
+            if (command == null) {
+                endStarting(session);
+                sendText(connection, "{\"error\":\"Too many commands running\"}");
+            }
+            return command;
+        } catch (IOException e) {
+            Ln.w("shell stream: " + e.getMessage());
+            endStarting(session);
+            sendText(connection, "{\"error\":\"Could not start the command\"}");
+            return null;
+        }
+    }
+
+    private static void endStarting(Session session) {
+        synchronized (session) {
+            session.starting = false;
+            session.cancelRequested = false;
+        }
+    }
+
+    private static void pump(Connection connection, Command command, InputStream in, int channel, Runnable onEnd) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int r;
+            while ((r = command.read(in, buffer, 1, buffer.length - 1)) != -1) {
+                // The frame payload is shared with the send queue: copy the data out of the reusable buffer
+                byte[] data = new byte[r + 1];
+                data[0] = (byte) channel;
+                System.arraycopy(buffer, 1, data, 1, r);
+                // Blocks while the send queue is full (the client is disconnected if it does not drain it in time)
+                connection.send(OutboundMessage.binaryFrame(data));
+            }
+        } catch (IOException e) {
+            if (!connection.isClosed()) {
+                Ln.d("shell stream: " + e.getMessage());
+            }
+            command.kill();
+        } finally {
+            onEnd.run();
+        }
+    }
+
+    private static void sendText(Connection connection, String text) {
+        try {
+            connection.send(OutboundMessage.dataFrame(WebSocketDecoder.OPCODE_TEXT, text.getBytes(StandardCharsets.UTF_8), false));
+        } catch (IOException e) {
+            Ln.d("shell stream: could not send message: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onClose(Connection connection) {
+        Session session = sessions.remove(connection);
+        if (session != null) {
+            synchronized (session) {
+                if (session.command != null) {
+                    session.command.kill();
+                }
+            }
+        }
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * Return the number of commands killed before their termination (client disconnected or cancel message).
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+}
@@ -20,6 +20,12 @@ import com.genymobile.scrcpy.device.DisplayInfo;
 import com.genymobile.scrcpy.device.Point;
 import com.genymobile.scrcpy.device.Position;
 import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.EventLoop;
+import com.genymobile.scrcpy.net.HttpRequest;
+import com.genymobile.scrcpy.net.OutboundMessage;
+import com.genymobile.scrcpy.net.WebSocketDecoder;
+import com.genymobile.scrcpy.net.WorkerPool;
 import com.genymobile.scrcpy.util.Ln;
 import com.genymobile.scrcpy.util.LogUtils;
 import com.genymobile.scrcpy.video.SurfaceCapture;
@@ -30,10 +36,8 @@ import com.genymobile.scrcpy.wrappers.InputManager;
 import com.genymobile.scrcpy.wrappers.ServiceManager;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
@@ -46,9 +50,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 
-public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener {
+public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener, EventLoop.Handler {
     private SurfaceFrameEncoder surfaceEncoder;
-    private final Set<Socket> wsClients = new CopyOnWriteArraySet<>();
+    private final Set<Connection> wsClients = new CopyOnWriteArraySet<>();
 
     /*
      * For event injection, there are two display ids:
@@ -83,6 +87,10 @@ public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener {
     private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor();
     private ExecutorService startAppExecutor;
 
+    // WebSocket commands are executed by a single thread, so that input events are injected in the order they are received
+    private static final int COMMAND_QUEUE_CAPACITY = 256;
+    private WorkerPool commandPool;
+
     private Thread thread;
 
     private UhidManager uhidManager;
@@ -148,6 +156,7 @@ public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener {
     }
     public void setRecordingServer(BaseWsServer recordingServer){
         this.recordingServer = recordingServer;
+        this.commandPool = recordingServer.getRouter().createPool("ws-command", 1, COMMAND_QUEUE_CAPACITY);
     }
     @Override
     public void onNewVirtualDisplay(int virtualDisplayId, PositionMapper positionMapper) {
@@ -227,72 +236,60 @@ public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener {
             SystemClock.sleep(500);
         }
 
-        ServerSocket serverSocket = new ServerSocket(recordingServer.getPort());
         Ln.i("Recording Server run at : " + recordingServer.getPort());
-
-        boolean alive = true;
-        while (!Thread.currentThread().isInterrupted() && alive) {
-            Socket clientSocket = serverSocket.accept();
-            new Thread(() -> handleClient(clientSocket)).start();
-            //alive = handleEvent();
-        }
+        recordingServer.serve(this);
     }
 
-    private void handleClient(Socket clientSocket) {
-        try {
-            InputStream input = clientSocket.getInputStream();
-            OutputStream output = clientSocket.getOutputStream();
-            String request = recordingServer.getRequestString(input);
-            boolean isWs = recordingServer.checkIsWs(request);
-
-            if(!isWs){
-                recordingServer.handleHttp(request,input,output,clientSocket);
-            }else{
-                Ln.i("handleClient isWs: "+isWs);
-
-                synchronized (wsClients) {
-                    wsClients.add(clientSocket);
-                    Ln.i("screenSubClients connected. Total: " + wsClients.size());
-                }
+    @Override
+    public void onRequest(Connection connection, HttpRequest request) throws IOException {
+        if (recordingServer.acceptWsEndpoint(request, connection)) {
+            return;
+        }
+        boolean isWs = recordingServer.checkIsWs(request);
+        if (!isWs) {
+            recordingServer.dispatchHttp(request, connection);
+            return;
+        }
 
-                if (recordingServer.performRequestHandshake(request, output)) {
-                    while (true) {
-                        byte[] command = recordingServer.readFrame(input);
-                        if (command == null){
-                            break;
-                        }
+        Ln.i("handleClient isWs: " + isWs);
+        if (recordingServer.performRequestHandshake(request, connection)) {
+            wsClients.add(connection);
+            Ln.i("wsClients connected. Total: " + wsClients.size());
+        } else {
+            connection.closeAfterFlush();
+        }
+    }
 
-                        StringBuilder command1 = new StringBuilder();
-                        for (byte b : command) {
-                            command1.append((char) b);
-                        }
-                        if(command1.length() > 2){
-                            //Ln.i("command1:"+command1);
-                            new Thread(() -> processCommand(command1.toString(),clientSocket)).start();
-                        }
-                    }
-                }
-            }
-        } catch (IOException e) {
-            Ln.e("Client error: " ,e);
-        } finally {
-            synchronized (wsClients) {
-                wsClients.remove(clientSocket);
-            }
-            //Ln.d("Client closed ");
+    @Override
+    public void onMessage(Connection connection, ByteBuffer payload) {
+        if (recordingServer.dispatchWsMessage(connection, payload)) {
+            return;
+        }
+        StringBuilder command = new StringBuilder(payload.remaining());
+        while (payload.hasRemaining()) {
+            command.append((char) payload.get());
+        }
+        if (command.length() > 2 && !commandPool.tryExecute(() -> processCommand(command.toString(), connection))) {
+            Ln.w("Too many pending commands, command dropped");
         }
     }
 
+    @Override
+    public void onClose(Connection connection) {
+        wsClients.remove(connection);
+        recordingServer.onClose(connection);
+    }
+
     public void sendToClient(byte[] data){
-        synchronized (wsClients) {
-            for (Socket client : wsClients) {
-                try {
-                    OutputStream output = client.getOutputStream();
-                    this.recordingServer.sendBinary(output, data);
-                } catch (Exception e) {
-                    Ln.e("Error writeScreen: " + e.getMessage());
-                    wsClients.remove(client);
-                }
+        // Control messages are never dropped (the send blocks if the client queue is full)
+        // JSON/XML control traffic: compressed for the clients which negotiated permessage-deflate
+        OutboundMessage frame = OutboundMessage.dataFrame(WebSocketDecoder.OPCODE_BINARY, data, true);
+        for (Connection client : wsClients) {
+            try {
+                client.send(frame);
+            } catch (Exception e) {
+                Ln.e("Error writeScreen: " + e.getMessage());
+                client.close();
             }
         }
     }
@@ -332,11 +329,11 @@ public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener {
         //sender.join();
     }
 
-    public void processHttpCmd(String body,OutputStream output) throws IOException {
+    public void processHttpCmd(String body,OutputStream output, Connection connection) throws IOException {
         if(body.isEmpty()){
             String response = "HTTP/1.1 500 Internal Error\r\n" +
                     "Content-Length: 0\r\n" +
-                    "Connection: close\r\n" +
+                    "Connection: " + connection.getConnectionHeader() + "\r\n" +
                     "Content-Type: text/plain\r\n" +
                     "Access-Control-Allow-Origin: *\r\n" +
                     "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n" +
@@ -347,7 +344,7 @@ public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener {
             processCommand(body,null);
             String response = "HTTP/1.1 200 OK\r\n" +
                     "Content-Length: 0\r\n" +
-                    "Connection: close\r\n" +
+                    "Connection: " + connection.getConnectionHeader() + "\r\n" +
                     "Content-Type: text/plain\r\n" +
                     "Access-Control-Allow-Origin: *\r\n" +
                     "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n" +
@@ -357,7 +354,7 @@ public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener {
         }
 
     }
-    public void processCommand(String command,Socket clientSocket) {
+    public void processCommand(String command, Connection connection) {
         try{
             Ln.i("command: " + command);
             ControlMessage msg = new ControlMessageReaderOut(command.trim()).read();
@@ -411,8 +408,8 @@ public class ControllerFrame implements AsyncProcessor, VirtualDisplayListener {
                  case ControlMessage.TYPE_ROTATE_DEVICE:
                      Device.rotateDevice(getActionDisplayId());
                      resetVideo();
-                     if(clientSocket != null){
-                         clientSocket.close();
+                     if (connection != null) {
+                         connection.close();
                      }
 
                      break;
@@ -0,0 +1,254 @@
+package com.genymobile.scrcpy.device;
+
+import android.annotation.SuppressLint;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.genymobile.scrcpy.AndroidVersions;
+import com.genymobile.scrcpy.FakeContext;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the installed apps, to list and find apps without querying the package manager (and loading the label of every app) on each
+ * request.
+ * <p>
+ * The index is rebuilt lazily once a package has been installed, updated or removed. On Android >= 8, the sequence number of the package
+ * manager ({@link PackageManager#getChangedPackages(int)}) is used as a version counter; on older versions, the index expires after a
+ * delay.
+ */
+public final class AppIndex {
+
+    private static final long EXPIRATION_MS = 60000;
+
+    private static final AppIndex INSTANCE = new AppIndex();
+
+    private volatile Snapshot snapshot;
+    private int version;
+
+    private AppIndex() {
+        // singleton
+    }
+
+    public static AppIndex get() {
+        return INSTANCE;
+    }
+
+    private static final class Snapshot {
+        private final int version;
+        // Package manager sequence number when the snapshot was built, or -1 if not supported
+        private final int sequenceNumber;
+        private final long builtAt;
+        private final Map<String, ApplicationInfo> installed;
+        private final Map<String, DeviceApp> launchableByPackage;
+        // Sorted by name
+        private final List<DeviceApp> launchable;
+        private final PrefixTrie<DeviceApp> names;
+
+        Snapshot(int version, int sequenceNumber, Map<String, ApplicationInfo> installed, List<DeviceApp> launchable) {
+            this.version = version;
+            this.sequenceNumber = sequenceNumber;
+            this.builtAt = SystemClock.uptimeMillis();
+            this.installed = installed;
+            this.launchable = launchable;
+            launchableByPackage = new HashMap<>();
+            names = new PrefixTrie<>();
+            for (DeviceApp app : launchable) {
+                launchableByPackage.put(app.getPackageName(), app);
+                names.add(app.getName().toLowerCase(Locale.getDefault()), app);
+            }
+        }
+    }
+
+    /**
+     * Build the index in the background, so that the first request does not wait for it.
+     */
+    public void warmUp() {
+        Thread thread = new Thread(() -> {
+            try {
+                getSnapshot();
+            } catch (RuntimeException e) {
+                Ln.w("Could not index apps: " + e.getMessage());
+            }
+        }, "app-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Force the index to be rebuilt on the next request.
+     */
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    /**
+     * Return the enabled apps which can be launched, sorted by name.
+     */
+    public List<DeviceApp> listLaunchableApps() {
+        return new ArrayList<>(getSnapshot().launchable);
+    }
+
+    /**
+     * Return the launchable apps whose name starts with {@code prefix} (case-insensitive).
+     */
+    public List<DeviceApp> findByName(String prefix) {
+        return new ArrayList<>(getSnapshot().names.find(prefix.toLowerCase(Locale.getDefault())));
+    }
+
+    /**
+     * Return the installed app (launchable or not), or {@code null} if the package is not installed.
+     */
+    public DeviceApp findByPackageName(String packageName) {
+        Snapshot s = getSnapshot();
+        DeviceApp app = s.launchableByPackage.get(packageName);
+        if (app == null) {
+            // The label of the other apps is only loaded on demand
+            ApplicationInfo appInfo = s.installed.get(packageName);
+            if (appInfo != null) {
+                app = Device.toApp(FakeContext.get().getPackageManager(), appInfo);
+            }
+        }
+        return app;
+    }
+
+    /**
+     * Return the version of the index, incremented each time it is rebuilt.
+     */
+    public int getVersion() {
+        return getSnapshot().version;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot s = snapshot;
+        if (s != null && !isStale(s)) {
+            return s;
+        }
+        synchronized (this) {
+            s = snapshot;
+            if (s == null || isStale(s)) {
+                s = build();
+                snapshot = s;
+            }
+            return s;
+        }
+    }
+
+    private static boolean isStale(Snapshot s) {
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_26_ANDROID_8_0 && s.sequenceNumber != -1) {
+            try {
+                // null if no package changed since then
+                return FakeContext.get().getPackageManager().getChangedPackages(s.sequenceNumber) != null;
+            } catch (RuntimeException e) {
+                Ln.w("Could not get changed packages: " + e.getMessage());
+            }
+        }
+        return SystemClock.uptimeMillis() - s.builtAt >= EXPIRATION_MS;
+    }
+
+    private static int getSequenceNumber(PackageManager pm) {
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_26_ANDROID_8_0) {
+            try {
+                ChangedPackages changed = pm.getChangedPackages(0);
+                // null if no package changed since boot
+                return changed != null ? changed.getSequenceNumber() : 0;
+            } catch (RuntimeException e) {
+                Ln.w("Could not get changed packages: " + e.getMessage());
+            }
+        }
+        return -1;
+    }
+
+    @SuppressLint("QueryPermissionsNeeded")
+    private Snapshot build() {
+        long start = SystemClock.uptimeMillis();
+        PackageManager pm = FakeContext.get().getPackageManager();
+        // Read before listing the packages: a change during the listing invalidates the index
+        int sequenceNumber = getSequenceNumber(pm);
+
+        // A few queries for all the launchable packages, instead of resolving a launch intent per package
+        Set<String> launchablePackages = new HashSet<>();
+        addActivityPackages(pm, Intent.CATEGORY_INFO, launchablePackages);
+        addActivityPackages(pm, Intent.CATEGORY_LAUNCHER, launchablePackages);
+        addActivityPackages(pm, Intent.CATEGORY_LEANBACK_LAUNCHER, launchablePackages);
+
+        Map<String, ApplicationInfo> installed = new HashMap<>();
+        List<DeviceApp> launchable = new ArrayList<>();
+        for (ApplicationInfo appInfo : pm.getInstalledApplications(0)) {
+            installed.put(appInfo.packageName, appInfo);
+            if (appInfo.enabled && launchablePackages.contains(appInfo.packageName)) {
+                launchable.add(Device.toApp(pm, appInfo));
+            }
+        }
+        Collections.sort(launchable, (a, b) -> {
+            int cmp = a.getName().compareTo(b.getName());
+            return cmp != 0 ? cmp : a.getPackageName().compareTo(b.getPackageName());
+        });
+
+        // Called with the lock held
+        int v = ++version;
+        Ln.i("Indexed " + launchable.size() + "/" + installed.size() + " apps in " + (SystemClock.uptimeMillis() - start) + " ms (version "
+                + v + ")");
+        return new Snapshot(v, sequenceNumber, installed, launchable);
+    }
+
+    @SuppressLint("QueryPermissionsNeeded")
+    private static void addActivityPackages(PackageManager pm, String category, Set<String> packages) {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(category);
+        for (ResolveInfo info : pm.queryIntentActivities(intent, 0)) {
+            packages.add(info.activityInfo.packageName);
+        }
+    }
+
+    /**
+     * Trie of lowercase names, each node holding all the values whose key starts with its prefix.
+     */
+    static final class PrefixTrie<T> {
+        private final Node<T> root = new Node<>();
+
+        private static final class Node<T> {
+            private final Map<Character, Node<T>> children = new HashMap<>();
+            private final List<T> values = new ArrayList<>();
+        }
+
+        void add(String key, T value) {
+            Node<T> node = root;
+            node.values.add(value);
+            for (int i = 0; i < key.length(); ++i) {
+                Character c = key.charAt(i);
+                Node<T> child = node.children.get(c);
+                if (child == null) {
+                    child = new Node<>();
+                    node.children.put(c, child);
+                }
+                node = child;
+                node.values.add(value);
+            }
+        }
+
+        /**
+         * Return the values whose key starts with {@code prefix}, in insertion order (the list must not be modified).
+         */
+        List<T> find(String prefix) {
+            Node<T> node = root;
+            for (int i = 0; i < prefix.length() && node != null; ++i) {
+                node = node.children.get(prefix.charAt(i));
+            }
+            return node == null ? Collections.<T>emptyList() : node.values;
+        }
+    }
+}
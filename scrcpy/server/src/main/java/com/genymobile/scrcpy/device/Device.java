@@ -1,6 +1,5 @@
 package com.genymobile.scrcpy.device;
 
-import android.annotation.SuppressLint;
 import android.app.ActivityOptions;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
@@ -25,9 +24,7 @@ import com.genymobile.scrcpy.wrappers.ServiceManager;
 import com.genymobile.scrcpy.wrappers.SurfaceControl;
 import com.genymobile.scrcpy.wrappers.WindowManager;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 
 public final class Device {
 
@@ -227,25 +224,7 @@ public final class Device {
     }
 
     public static List<DeviceApp> listApps() {
-        List<DeviceApp> apps = new ArrayList<>();
-        PackageManager pm = FakeContext.get().getPackageManager();
-        for (ApplicationInfo appInfo : getLaunchableApps(pm)) {
-            apps.add(toApp(pm, appInfo));
-        }
-
-        return apps;
-    }
-
-    @SuppressLint("QueryPermissionsNeeded")
-    private static List<ApplicationInfo> getLaunchableApps(PackageManager pm) {
-        List<ApplicationInfo> result = new ArrayList<>();
-        for (ApplicationInfo appInfo : pm.getInstalledApplications(PackageManager.GET_META_DATA)) {
-            if (appInfo.enabled && getLaunchIntent(pm, appInfo.packageName) != null) {
-                result.add(appInfo);
-            }
-        }
-
-        return result;
+        return AppIndex.get().listLaunchableApps();
     }
 
     public static Intent getLaunchIntent(PackageManager pm, String packageName) {
@@ -257,40 +236,19 @@ public final class Device {
         return pm.getLeanbackLaunchIntentForPackage(packageName);
     }
 
-    private static DeviceApp toApp(PackageManager pm, ApplicationInfo appInfo) {
+    static DeviceApp toApp(PackageManager pm, ApplicationInfo appInfo) {
         String name = pm.getApplicationLabel(appInfo).toString();
         boolean system = (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
         return new DeviceApp(appInfo.packageName, name, system);
     }
 
-    @SuppressLint("QueryPermissionsNeeded")
     public static DeviceApp findByPackageName(String packageName) {
-        PackageManager pm = FakeContext.get().getPackageManager();
         // No need to filter by "launchable" apps, an error will be reported on start if the app is not launchable
-        for (ApplicationInfo appInfo : pm.getInstalledApplications(PackageManager.GET_META_DATA)) {
-            if (packageName.equals(appInfo.packageName)) {
-                return toApp(pm, appInfo);
-            }
-        }
-
-        return null;
+        return AppIndex.get().findByPackageName(packageName);
     }
 
-    @SuppressLint("QueryPermissionsNeeded")
     public static List<DeviceApp> findByName(String searchName) {
-        List<DeviceApp> result = new ArrayList<>();
-        searchName = searchName.toLowerCase(Locale.getDefault());
-
-        PackageManager pm = FakeContext.get().getPackageManager();
-        for (ApplicationInfo appInfo : getLaunchableApps(pm)) {
-            String name = pm.getApplicationLabel(appInfo).toString();
-            if (name.toLowerCase(Locale.getDefault()).startsWith(searchName)) {
-                boolean system = (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
-                result.add(new DeviceApp(appInfo.packageName, name, system));
-            }
-        }
-
-        return result;
+        return AppIndex.get().findByName(searchName);
     }
 
     public static void startApp(String packageName, int displayId, boolean forceStop) {
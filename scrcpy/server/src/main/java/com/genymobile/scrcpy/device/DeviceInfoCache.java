@@ -0,0 +1,241 @@
+package com.genymobile.scrcpy.device;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.genymobile.scrcpy.FakeContext;
+import com.genymobile.scrcpy.util.Ln;
+import com.genymobile.scrcpy.util.StringUtils;
+import com.genymobile.scrcpy.wrappers.ServiceManager;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Device information served as JSON, collected in-process (no shell command).
+ * <p>
+ * The static fields (build properties, display) are collected once. The dynamic fields (battery, IP addresses, foreground app, screen
+ * state) are refreshed when they are older than the TTL, with stale-while-revalidate semantics: the stale info is returned immediately
+ * while a background thread collects the fresh one, so only the very first request waits for a collection.
+ */
+public final class DeviceInfoCache {
+
+    /**
+     * An immutable version of the info.
+     */
+    public static final class Snapshot {
+        private final String json;
+        private final String etag;
+        private final long collectedAt;
+
+        Snapshot(String json, String etag, long collectedAt) {
+            this.json = json;
+            this.etag = etag;
+            this.collectedAt = collectedAt;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        /**
+         * Return the entity tag (quoted), which changes only when the content changes.
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Return the time (in the {@link SystemClock#uptimeMillis()} time base) the dynamic fields were collected.
+         */
+        public long getCollectedAt() {
+            return collectedAt;
+        }
+    }
+
+    private final String etagPrefix = Long.toHexString(System.currentTimeMillis());
+    private volatile long ttl;
+    private String staticFields;
+    private volatile Snapshot snapshot;
+    private int version;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    // Runs the background refreshes (at most one at a time); its thread exits when idle
+    private final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "device-info");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param ttlMillis the age after which the dynamic fields are refreshed
+     */
+    public DeviceInfoCache(long ttlMillis) {
+        this.ttl = ttlMillis;
+        refreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setTtl(long ttlMillis) {
+        this.ttl = ttlMillis;
+    }
+
+    /**
+     * Return the current info, and trigger a background refresh if it is stale.
+     * <p>
+     * Only the first call blocks, until the info is collected.
+     */
+    public Snapshot get() {
+        Snapshot s = snapshot;
+        if (s == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    refresh();
+                }
+                return snapshot;
+            }
+        }
+        if (SystemClock.uptimeMillis() - s.collectedAt >= ttl && refreshing.compareAndSet(false, true)) {
+            refreshExecutor.execute(() -> {
+                try {
+                    synchronized (this) {
+                        refresh();
+                    }
+                } catch (RuntimeException e) {
+                    Ln.w("Could not collect device info: " + e.getMessage());
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+        return s;
+    }
+
+    // Called with the lock held
+    private void refresh() {
+        if (staticFields == null) {
+            staticFields = collectStaticFields();
+        }
+        StringBuilder json = new StringBuilder(staticFields);
+        appendDynamicFields(json);
+        json.append('}');
+        String content = json.toString();
+
+        Snapshot old = snapshot;
+        long now = SystemClock.uptimeMillis();
+        if (old != null && old.json.equals(content)) {
+            // Unchanged: keep the entity tag
+            snapshot = new Snapshot(content, old.etag, now);
+        } else {
+            snapshot = new Snapshot(content, "\"" + etagPrefix + "-" + ++version + "\"", now);
+        }
+    }
+
+    private static String collectStaticFields() {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"model\":");
+        StringUtils.appendJsonString(json, Build.MODEL).append(",\"brand\":");
+        StringUtils.appendJsonString(json, Build.BRAND).append(",\"manufacturer\":");
+        StringUtils.appendJsonString(json, Build.MANUFACTURER).append(",\"device\":");
+        StringUtils.appendJsonString(json, Build.DEVICE).append(",\"product\":");
+        StringUtils.appendJsonString(json, Build.PRODUCT).append(",\"hardware\":");
+        StringUtils.appendJsonString(json, Build.HARDWARE).append(",\"fingerprint\":");
+        StringUtils.appendJsonString(json, Build.FINGERPRINT).append(",\"release\":");
+        StringUtils.appendJsonString(json, Build.VERSION.RELEASE).append(",\"sdk\":").append(Build.VERSION.SDK_INT);
+        json.append(",\"abis\":[");
+        for (int i = 0; i < Build.SUPPORTED_ABIS.length; ++i) {
+            if (i > 0) {
+                json.append(',');
+            }
+            StringUtils.appendJsonString(json, Build.SUPPORTED_ABIS[i]);
+        }
+        json.append(']');
+
+        DisplayInfo displayInfo = ServiceManager.getDisplayManager().getDisplayInfo(0);
+        if (displayInfo != null) {
+            // Natural orientation, independent of the current rotation
+            Size size = displayInfo.getSize();
+            boolean rotated = (displayInfo.getRotation() & 1) != 0;
+            json.append(",\"display\":{\"width\":").append(rotated ? size.getHeight() : size.getWidth())
+                    .append(",\"height\":").append(rotated ? size.getWidth() : size.getHeight())
+                    .append(",\"dpi\":").append(displayInfo.getDpi()).append('}');
+        }
+        return json.toString();
+    }
+
+    private static void appendDynamicFields(StringBuilder json) {
+        DisplayInfo displayInfo = ServiceManager.getDisplayManager().getDisplayInfo(0);
+        if (displayInfo != null) {
+            json.append(",\"rotation\":").append(displayInfo.getRotation());
+        }
+        json.append(",\"screenOn\":").append(Device.isScreenOn(0));
+
+        String foreground = ServiceManager.getActivityManager().getTopPackageName();
+        json.append(",\"foreground\":");
+        if (foreground != null) {
+            StringUtils.appendJsonString(json, foreground);
+        } else {
+            json.append("null");
+        }
+
+        appendBattery(json);
+        appendAddresses(json);
+    }
+
+    private static void appendBattery(StringBuilder json) {
+        Intent battery;
+        try {
+            // Sticky broadcast: no receiver is actually registered
+            battery = FakeContext.get().registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        } catch (RuntimeException e) {
+            Ln.d("Could not get battery status: " + e.getMessage());
+            battery = null;
+        }
+        if (battery == null) {
+            json.append(",\"battery\":null");
+            return;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, BatteryManager.BATTERY_STATUS_UNKNOWN);
+        json.append(",\"battery\":{\"level\":").append(level >= 0 && scale > 0 ? level * 100 / scale : -1)
+                .append(",\"charging\":").append(status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL)
+                .append(",\"plugged\":").append(battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0))
+                .append(",\"temperature\":").append(battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) / 10f)
+                .append('}');
+    }
+
+    private static void appendAddresses(StringBuilder json) {
+        json.append(",\"ip\":[");
+        boolean first = true;
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (address instanceof Inet4Address) {
+                        if (!first) {
+                            json.append(',');
+                        }
+                        first = false;
+                        json.append("{\"interface\":");
+                        StringUtils.appendJsonString(json, networkInterface.getName()).append(",\"address\":");
+                        StringUtils.appendJsonString(json, address.getHostAddress()).append('}');
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            Ln.d("Could not list network interfaces: " + e.getMessage());
+        }
+        json.append(']');
+    }
+}
@@ -0,0 +1,60 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stream writing a body with the HTTP/1.1 chunked transfer coding, for responses whose length is not known in advance.
+ * <p>
+ * Each write is sent immediately as a single chunk (size line, data and CRLF written at once), so that data is forwarded as soon as it is
+ * available. {@link #close()} writes the last chunk, but does not close the underlying stream.
+ */
+public final class ChunkedOutputStream extends OutputStream {
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private boolean closed;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            // An empty chunk would mark the end of the body
+            return;
+        }
+        byte[] sizeLine = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] chunk = new byte[sizeLine.length + len + 2];
+        System.arraycopy(sizeLine, 0, chunk, 0, sizeLine.length);
+        System.arraycopy(b, off, chunk, sizeLine.length, len);
+        chunk[chunk.length - 2] = '\r';
+        chunk[chunk.length - 1] = '\n';
+        out.write(chunk);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+    }
+}
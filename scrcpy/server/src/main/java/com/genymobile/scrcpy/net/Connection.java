@@ -0,0 +1,914 @@
+package com.genymobile.scrcpy.net;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client connection served by an {@link EventLoop}.
+ * <p>
+ * Reads and request parsing happen on the owning {@link IoThread}. Writes may be requested from any thread: they are queued in a bounded
+ * {@link SendQueue} and flushed by the I/O thread whenever the socket is writable, so that each client is drained independently.
+ * <p>
+ * Its timeouts (idle HTTP connection, WebSocket heartbeat, stalled writes) share a single timer of the {@link TimerWheel} of its I/O
+ * thread, re-armed lazily: activity only updates the deadlines, and the timer re-evaluates them when it fires.
+ */
+public final class Connection {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    // Larger bodies are not buffered, they are streamed to the handler
+    private static final int MAX_BUFFERED_BODY_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = MAX_HEADER_SIZE + MAX_BUFFERED_BODY_SIZE;
+    private static final int BODY_STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Maximum time pending writes may make no progress before the client is considered dead (this also bounds the wait of a sender
+    // blocked on a full send queue, since closing the connection wakes it up)
+    private static final long WRITE_TIMEOUT_MS = 30000;
+
+    private static final OutboundMessage PING_FRAME = OutboundMessage.controlFrame(WebSocketDecoder.OPCODE_PING, ByteBuffer.allocate(0));
+
+    private static final AtomicInteger ID_SEQUENCE = new AtomicInteger();
+
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final int id = ID_SEQUENCE.incrementAndGet();
+    private final SocketChannel channel;
+    private final IoThread ioThread;
+    private final EventLoop eventLoop;
+    private final EventLoop.Handler handler;
+    private final SendQueue sendQueue;
+    private final String remoteAddress;
+    private final OutputStream outputStream = new ConnectionOutputStream();
+    private volatile String label = "http";
+
+    private SelectionKey key;
+
+    // Only accessed from the I/O thread
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final HttpRequest request = new HttpRequest();
+    private int headerScanPosition;
+    private int headerLength = -1;
+    // Number of bytes of the current request (head and buffered body) to remove from the read buffer once it is finished
+    private int requestLength;
+    private volatile RequestBodyStream requestBody;
+    private boolean inRequest;
+    private int requestCount;
+    private boolean readPaused;
+    private boolean writePending;
+    // Time (in ms, see IoThread#now()) after which an idle HTTP connection is closed, or 0
+    private long idleDeadline;
+    private TimerWheel.Timer timer;
+    // Deadline for which the timer is scheduled, or 0
+    private long timerDeadline;
+    // Time of the last write progress, while writes are pending
+    private long lastWriteProgress;
+    // WebSocket heartbeat: time of the last data received, and of the ping not answered yet (or 0)
+    private long lastReceived;
+    private long pingSentAt;
+    private boolean webSocket;
+    private WebSocketDecoder decoder;
+    private volatile PerMessageDeflate deflate;
+    private volatile Tunnel tunnel;
+    // The message being written, as encoded for this connection (compressed or not)
+    private OutboundMessage encoded;
+
+    // Number of bytes of the message at the head of the send queue already written (only accessed from the I/O thread)
+    private long writeOffset;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closeAfterFlush;
+
+    private volatile boolean keepAlive;
+    private volatile boolean streaming;
+    private volatile boolean deferred;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final List<Runnable> closeListeners = new ArrayList<>();
+
+    Connection(SocketChannel channel, IoThread ioThread, EventLoop eventLoop, SendQueue sendQueue) {
+        this.channel = channel;
+        this.ioThread = ioThread;
+        this.eventLoop = eventLoop;
+        this.handler = eventLoop.getHandler();
+        this.sendQueue = sendQueue;
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, new ChannelHandler());
+        timer = ioThread.getTimerWheel().newTimer(this::onTimer);
+        touch();
+    }
+
+    private void touch() {
+        idleDeadline = IoThread.now() + eventLoop.getKeepAliveTimeout();
+        updateTimer();
+    }
+
+    /**
+     * Return the earliest deadline to watch, or 0.
+     */
+    private long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        if (idleDeadline != 0) {
+            deadline = idleDeadline;
+        }
+        if (writePending) {
+            deadline = Math.min(deadline, lastWriteProgress + WRITE_TIMEOUT_MS);
+        }
+        Tunnel t = tunnel;
+        if (t != null) {
+            deadline = Math.min(deadline, t.getIdleDeadline());
+        }
+        int pingInterval = eventLoop.getPingInterval();
+        if (webSocket && pingInterval > 0) {
+            deadline = Math.min(deadline, pingSentAt != 0 ? pingSentAt + eventLoop.getPongTimeout() : lastReceived + pingInterval);
+        }
+        return deadline == Long.MAX_VALUE ? 0 : deadline;
+    }
+
+    /**
+     * Make sure the timer fires no later than the next deadline.
+     * <p>
+     * A later deadline does not reschedule the timer: it will be re-armed when it fires.
+     */
+    private void updateTimer() {
+        if (timer == null || closed.get()) {
+            return;
+        }
+        long deadline = nextDeadline();
+        if (deadline != 0 && (timerDeadline == 0 || deadline < timerDeadline)) {
+            timerDeadline = deadline;
+            ioThread.getTimerWheel().schedule(timer, deadline);
+        }
+    }
+
+    private void onTimer() {
+        timerDeadline = 0;
+        if (closed.get()) {
+            return;
+        }
+
+        long now = IoThread.now();
+        if (idleDeadline != 0 && now >= idleDeadline) {
+            Ln.d("Closing idle connection " + id);
+            close();
+            return;
+        }
+        if (writePending && now - lastWriteProgress >= WRITE_TIMEOUT_MS) {
+            Ln.d("Closing connection " + id + ": no write progress for " + WRITE_TIMEOUT_MS + " ms");
+            close();
+            return;
+        }
+        Tunnel t = tunnel;
+        if (t != null && now >= t.getIdleDeadline()) {
+            Ln.d("Closing idle tunnel " + t.getName() + " of connection " + id);
+            close();
+            return;
+        }
+        int pingInterval = eventLoop.getPingInterval();
+        if (webSocket && pingInterval > 0) {
+            if (pingSentAt != 0) {
+                if (now - pingSentAt >= eventLoop.getPongTimeout()) {
+                    Ln.d("Closing WebSocket connection " + id + ": no pong received");
+                    close();
+                    return;
+                }
+            } else if (now - lastReceived >= pingInterval) {
+                try {
+                    send(PING_FRAME);
+                } catch (IOException e) {
+                    // Already closed
+                    return;
+                }
+                pingSentAt = now;
+            }
+        }
+        updateTimer();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Return a short description of what this connection is used for (for logs and statistics).
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Run {@code listener} once the connection is closed (immediately if it is already closed), so that the resources bound to this
+     * connection (subscriptions...) are released as soon as the client disappears.
+     * <p>
+     * Listeners are called after {@link EventLoop.Handler#onClose(Connection)}, on the thread closing the connection: they must not block.
+     */
+    public void addCloseListener(Runnable listener) {
+        synchronized (closeListeners) {
+            if (!closed.get()) {
+                closeListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Remove a listener added by {@link #addCloseListener(Runnable)}, once the resources it releases are gone (so that a keep-alive
+     * connection does not accumulate listeners).
+     */
+    public void removeCloseListener(Runnable listener) {
+        synchronized (closeListeners) {
+            closeListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Return the value of the {@code Connection} header to send in the response to the current request.
+     * <p>
+     * The connection is kept alive unless the client asked otherwise, or the max number of requests per connection has been reached.
+     */
+    public String getConnectionHeader() {
+        return keepAlive ? "keep-alive" : "close";
+    }
+
+    /**
+     * Mark the response to the current request as a never-ending stream: no further request will be read from this connection (which is
+     * closed once the stream ends), and it is never considered idle.
+     */
+    public void setStreaming() {
+        streaming = true;
+    }
+
+    /**
+     * Mark the response to the current request as deferred: it will be sent later, from any thread, without holding a thread meanwhile
+     * (long polling). The request is then only finished by {@link #finishDeferredRequest()}.
+     */
+    public void deferResponse() {
+        deferred = true;
+    }
+
+    /**
+     * Signal that a deferred response has been entirely queued (see {@link #deferResponse()}).
+     */
+    public void finishDeferredRequest() {
+        deferred = false;
+        finishRequest();
+    }
+
+    /**
+     * Signal that the response to the current request has been entirely queued.
+     * <p>
+     * The next (possibly pipelined) request is then handled, or the connection is closed once the response is written if it must not be
+     * kept alive. The {@link HttpRequest} must not be used anymore. May be called from any thread.
+     */
+    public void finishRequest() {
+        if (!ioThread.isCurrentThread()) {
+            ioThread.execute(this::finishRequest);
+            return;
+        }
+
+        if (!inRequest || streaming || deferred || closed.get() || closeAfterFlush) {
+            return;
+        }
+        inRequest = false;
+        if (!keepAlive) {
+            closeAfterFlush();
+            return;
+        }
+
+        consumeRequest();
+        if (requestBody != null && !requestBody.isReceived()) {
+            // The rest of the body must be received (and dropped) before the next request
+            requestBody.discard();
+        }
+        touch();
+        if (readPaused) {
+            readPaused = false;
+            updateInterest();
+        }
+        try {
+            // Handle the requests already received (pipelining)
+            parseRequests();
+        } catch (IOException e) {
+            Ln.d("Read error: " + e.getMessage());
+            close();
+        } catch (RuntimeException e) {
+            Ln.e("Connection handler error", e);
+            close();
+        }
+    }
+
+    /**
+     * Switch this connection to the WebSocket protocol: subsequent input is parsed as WebSocket frames.
+     * <p>
+     * Must be called from {@link EventLoop.Handler#onRequest(Connection, HttpRequest)}, once the handshake response has been sent.
+     *
+     * @param deflate the permessage-deflate extension accepted in the handshake response, or {@code null}
+     */
+    public void upgrade(PerMessageDeflate deflate) {
+        assert ioThread.isCurrentThread();
+        webSocket = true;
+        inRequest = false;
+        consumeRequest();
+        idleDeadline = 0;
+        label = "ws";
+        this.deflate = deflate;
+        decoder = new WebSocketDecoder(eventLoop.getMaxMessageSize(), new DecoderListener(), deflate);
+        lastReceived = IoThread.now();
+        updateTimer();
+    }
+
+    /**
+     * Splice this connection to an upstream connection which accepted an upgrade request: from now on, the bytes received are forwarded as
+     * is to the upstream, and the bytes received from the upstream are written to this connection.
+     * <p>
+     * Must be called once the response to the upgrade request has been queued (it is written before any tunneled data). The request is then
+     * finished: the connection is not parsed as HTTP anymore. May be called from any thread.
+     */
+    public void startTunnel(Tunnel tunnel) {
+        if (!ioThread.isCurrentThread()) {
+            ioThread.execute(() -> startTunnel(tunnel));
+            return;
+        }
+
+        if (closed.get()) {
+            tunnel.close();
+            return;
+        }
+        this.tunnel = tunnel;
+        inRequest = false;
+        idleDeadline = 0;
+        readPaused = false;
+        label = "tunnel";
+        consumeRequest();
+        readBuffer.flip();
+        try {
+            // The data already received after the upgrade request belongs to the tunnel
+            tunnel.start(this, key.selector(), readBuffer);
+        } catch (IOException e) {
+            Ln.d("Could not start tunnel: " + e.getMessage());
+            close();
+            return;
+        }
+        // Not used anymore
+        readBuffer = ByteBuffer.allocate(0);
+        updateTimer();
+    }
+
+    public Tunnel getTunnel() {
+        return tunnel;
+    }
+
+    boolean isSendQueueEmpty() {
+        return sendQueue.peek() == null;
+    }
+
+    void writeRaw(ByteBuffer buffer) throws IOException {
+        channel.write(buffer);
+    }
+
+    void updateTunnelInterest() {
+        updateInterest();
+    }
+
+    /**
+     * Return the permessage-deflate extension negotiated for this connection, or {@code null}.
+     */
+    public PerMessageDeflate getDeflate() {
+        return deflate;
+    }
+
+    /**
+     * Start the WebSocket closing handshake: send a close frame, then close the connection once it has been written.
+     */
+    public void closeWebSocket(int code, String reason) {
+        try {
+            send(OutboundMessage.closeFrame(code, reason));
+        } catch (IOException e) {
+            // Already closed
+            return;
+        }
+        closeAfterFlush();
+    }
+
+    /**
+     * Return a stream writing to this connection.
+     * <p>
+     * Every write is queued (the stream never blocks), {@link OutputStream#flush()} does nothing, and {@link OutputStream#close()} closes the
+     * connection once all the queued data has been written.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Queue the remaining bytes of {@code buffers}, which must not be lost.
+     * <p>
+     * The buffers are owned by the connection until they are written: the caller must not modify them.
+     *
+     * @see #send(OutboundMessage)
+     */
+    public void send(ByteBuffer... buffers) throws IOException {
+        send(OutboundMessage.wrap(buffers));
+    }
+
+    /**
+     * Queue a message which must not be lost.
+     * <p>
+     * If the send queue is full, the caller blocks until the client drains it (except on the I/O thread, which never blocks). A client
+     * which keeps reading, however slowly, is never disconnected; one whose pending writes make no progress for {@link #WRITE_TIMEOUT_MS}
+     * is closed, which fails the blocked sender.
+     *
+     * @throws IOException if the connection is closed
+     */
+    public void send(OutboundMessage message) throws IOException {
+        checkWritable();
+        try {
+            sendQueue.offer(message, !ioThread.isCurrentThread());
+        } catch (IOException e) {
+            // Closed, or interrupted while waiting (a response may be partially queued)
+            close();
+            throw e;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Queue a frame, which may be dropped according to the {@link SendQueue.Policy} of this connection if the client is too slow.
+     * <p>
+     * Never blocks, so that a producer shared by many connections is never stalled by a slow client.
+     *
+     * @return {@code true} if the frame has been queued, {@code false} if it has been dropped
+     * @throws IOException if the connection is closed, or if its queue is full with the {@link SendQueue.Policy#CLOSE} policy (the
+     *                     connection is then closed)
+     */
+    public boolean sendFrame(OutboundMessage message) throws IOException {
+        checkWritable();
+        boolean queued;
+        try {
+            queued = sendQueue.offerFrame(message);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        if (queued) {
+            scheduleFlush();
+        }
+        return queued;
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed.get() || closeAfterFlush) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    public void closeAfterFlush() {
+        closeAfterFlush = true;
+        scheduleFlush();
+    }
+
+    public void close() {
+        if (closed.getAndSet(true)) {
+            return;
+        }
+
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Ln.w("Could not close connection: " + e.getMessage());
+        }
+        sendQueue.close();
+        Tunnel t = tunnel;
+        if (t != null) {
+            t.close();
+        }
+        RequestBodyStream body = requestBody;
+        if (body != null) {
+            body.abort();
+        }
+        // The deflater and the timer wheel may only be used from the I/O thread
+        if (ioThread.isCurrentThread()) {
+            releaseIoResources();
+        } else {
+            ioThread.execute(this::releaseIoResources);
+        }
+
+        eventLoop.unregister(this);
+        try {
+            handler.onClose(this);
+        } catch (RuntimeException e) {
+            Ln.e("Close handler error", e);
+        }
+
+        Runnable[] listeners;
+        synchronized (closeListeners) {
+            listeners = closeListeners.toArray(new Runnable[0]);
+            closeListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                Ln.e("Close listener error", e);
+            }
+        }
+    }
+
+    private void releaseIoResources() {
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (deflate != null) {
+            deflate.release();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (ioThread.isCurrentThread()) {
+            flush();
+            return;
+        }
+
+        if (!flushScheduled.getAndSet(true)) {
+            ioThread.execute(this::flush);
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    private void flush() {
+        if (closed.get()) {
+            return;
+        }
+
+        flushScheduled.set(false);
+        try {
+            long written = 0;
+            OutboundMessage message;
+            while ((message = sendQueue.peek()) != null) {
+                if (encoded == null) {
+                    // Compress only once the message is about to be written, so that the frames dropped from the queue are not part of
+                    // the compression context
+                    encoded = deflate != null ? message.deflate(deflate) : message;
+                }
+                long w = encoded.writeTo(channel, writeOffset);
+                writeOffset += w;
+                written += w;
+                if (writeOffset < encoded.getLength()) {
+                    // The socket buffer is full, wait until it is writable again
+                    if (written > 0 || !writePending) {
+                        lastWriteProgress = IoThread.now();
+                    }
+                    writePending = true;
+                    updateInterest();
+                    updateTimer();
+                    return;
+                }
+                writeOffset = 0;
+                encoded = null;
+                sendQueue.pop();
+            }
+            writePending = false;
+            updateInterest();
+            if (tunnel != null) {
+                tunnel.onClientWritable();
+            }
+        } catch (IOException e) {
+            Ln.d("Write error: " + e.getMessage());
+            close();
+            return;
+        }
+
+        if (closeAfterFlush) {
+            close();
+        }
+    }
+
+    private void updateInterest() {
+        int ops;
+        Tunnel t = tunnel;
+        if (t != null) {
+            ops = (t.isClientReadable() ? SelectionKey.OP_READ : 0) | (writePending || t.hasDataForClient() ? SelectionKey.OP_WRITE : 0);
+        } else {
+            ops = (readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0);
+        }
+        if (key != null && key.isValid() && key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    void onReadable() {
+        try {
+            if (tunnel != null) {
+                tunnel.onClientReadable(channel);
+                return;
+            }
+            if (!readBuffer.hasRemaining()) {
+                if (inRequest && !webSocket) {
+                    // Pipelined requests are waiting for the current response: stop reading until it is complete
+                    readPaused = true;
+                    updateInterest();
+                    return;
+                }
+                growReadBuffer(readBuffer.capacity() * 2);
+            }
+            int r = channel.read(readBuffer);
+            if (r == -1) {
+                close();
+                return;
+            }
+
+            if (!webSocket) {
+                if (inRequest && requestBody != null) {
+                    feedBody();
+                }
+                if (!inRequest) {
+                    touch();
+                }
+                parseRequests();
+            }
+            if (webSocket) {
+                // Any data proves that the client is alive, not only a pong
+                lastReceived = IoThread.now();
+                pingSentAt = 0;
+                decodeFrames();
+            }
+        } catch (WebSocketProtocolException e) {
+            Ln.w("WebSocket protocol error: " + e.getMessage());
+            closeWebSocket(e.getCloseCode(), e.getMessage());
+        } catch (IOException e) {
+            Ln.d("Read error: " + e.getMessage());
+            close();
+        } catch (RuntimeException e) {
+            Ln.e("Connection handler error", e);
+            close();
+        }
+    }
+
+    private void growReadBuffer(int capacity) throws IOException {
+        if (capacity > MAX_BUFFER_SIZE) {
+            throw new IOException("Request too large");
+        }
+        ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+        readBuffer.flip();
+        newBuffer.put(readBuffer);
+        readBuffer = newBuffer;
+    }
+
+    private void consume(int length) {
+        readBuffer.flip();
+        readBuffer.position(length);
+        readBuffer.compact();
+    }
+
+    private void consumeRequest() {
+        if (requestLength > 0) {
+            consume(requestLength);
+            requestLength = 0;
+        }
+    }
+
+    /**
+     * Transfer the received part of a streamed body from the read buffer to the body stream.
+     */
+    private void feedBody() {
+        RequestBodyStream body = requestBody;
+        readBuffer.flip();
+        body.feed(readBuffer);
+        readBuffer.compact();
+    }
+
+    /**
+     * Called (from the handler thread) when the handler has read some bytes of a streamed body which did not fit in the body stream.
+     */
+    private void onBodySpaceAvailable() {
+        ioThread.execute(() -> {
+            if (closed.get() || requestBody == null) {
+                return;
+            }
+            feedBody();
+            if (readPaused && readBuffer.hasRemaining()) {
+                readPaused = false;
+                updateInterest();
+            }
+        });
+    }
+
+    private void parseRequests() throws IOException {
+        // Requests are handled one at a time, so that the responses are sent in order
+        while (!inRequest && !webSocket && !closed.get()) {
+            if (requestBody != null) {
+                feedBody();
+                if (!requestBody.isReceived()) {
+                    // Still receiving the unread part of the previous body
+                    return;
+                }
+                requestBody = null;
+            }
+            if (!nextRequest()) {
+                return;
+            }
+
+            inRequest = true;
+            idleDeadline = 0;
+            ++requestCount;
+            keepAlive = request.isKeepAliveRequested() && requestCount < eventLoop.getMaxRequests();
+            handler.onRequest(this, request);
+        }
+    }
+
+    /**
+     * Parse the next request from the read buffer.
+     * <p>
+     * Its head must have been entirely received. A small body must also have been entirely received: it is exposed as a slice of the read
+     * buffer, which is only consumed once the request is finished. A large body is streamed: the request is ready as soon as its head has
+     * been received.
+     *
+     * @return {@code true} if the request is ready to be handled
+     */
+    private boolean nextRequest() throws IOException {
+        if (headerLength == -1) {
+            int end = indexOf(readBuffer.array(), headerScanPosition, readBuffer.position(), HEADER_END);
+            if (end == -1) {
+                if (readBuffer.position() > MAX_HEADER_SIZE) {
+                    throw new IOException("Request header too large");
+                }
+                // Next time, only scan the new bytes (and the last 3, the delimiter may be split)
+                headerScanPosition = Math.max(0, readBuffer.position() - HEADER_END.length + 1);
+                return false;
+            }
+            headerLength = end + HEADER_END.length;
+            request.parseHead(readBuffer.array(), 0, headerLength);
+
+            String transferEncoding = request.getHeader("Transfer-Encoding");
+            if (transferEncoding != null) {
+                // Request bodies are only delimited by Content-Length: a chunked body would be parsed as the next requests (request
+                // smuggling), and would never reach the handler
+                boolean chunked = HttpRequest.containsToken(transferEncoding, "chunked");
+                reject(chunked ? "411 Length Required" : "501 Not Implemented");
+                return false;
+            }
+
+            long contentLength = request.getContentLength();
+            if (contentLength > 0 && readBuffer.position() - headerLength < contentLength && request.isContinueExpected()) {
+                send(ByteBuffer.wrap(CONTINUE_RESPONSE));
+            }
+        }
+
+        long contentLength = request.getContentLength();
+        if (contentLength > MAX_BUFFERED_BODY_SIZE) {
+            consume(headerLength);
+            requestBody = new RequestBodyStream(contentLength, BODY_STREAM_BUFFER_SIZE, this::onBodySpaceAvailable);
+            request.setBodyStream(requestBody);
+            feedBody();
+        } else {
+            int length = headerLength + (int) contentLength;
+            if (readBuffer.position() < length) {
+                if (readBuffer.capacity() < length) {
+                    growReadBuffer(length);
+                }
+                return false;
+            }
+            ByteBuffer body = readBuffer.duplicate();
+            body.limit(length).position(headerLength);
+            request.setBody(body.slice().asReadOnlyBuffer());
+            requestLength = length;
+        }
+
+        headerLength = -1;
+        headerScanPosition = 0;
+        return true;
+    }
+
+    /**
+     * Answer the request being parsed with an error, without handling it, and close the connection (the rest of the input cannot be
+     * parsed).
+     */
+    private void reject(String status) throws IOException {
+        Ln.d("Rejecting request " + request.getMethod() + " " + request.getTarget() + ": " + status);
+        readPaused = true;
+        updateInterest();
+        send(ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "Access-Control-Allow-Origin: *\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+        closeAfterFlush();
+    }
+
+    private void decodeFrames() throws IOException {
+        readBuffer.flip();
+        try {
+            decoder.decode(readBuffer);
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        int last = to - pattern.length;
+        for (int i = from; i <= last; ++i) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                ++j;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final class DecoderListener implements WebSocketDecoder.Listener {
+        @Override
+        public void onMessage(int opcode, ByteBuffer payload) {
+            handler.onMessage(Connection.this, payload);
+        }
+
+        @Override
+        public void onPing(ByteBuffer payload) throws IOException {
+            send(OutboundMessage.controlFrame(WebSocketDecoder.OPCODE_PONG, payload));
+        }
+
+        @Override
+        public void onPong(ByteBuffer payload) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onClose(int code, String reason) {
+            // Echo the status code to complete the closing handshake
+            closeWebSocket(code == WebSocketDecoder.CLOSE_NO_STATUS ? WebSocketDecoder.CLOSE_NORMAL : code, "");
+        }
+    }
+
+    private final class ChannelHandler implements IoThread.Selectable {
+        @Override
+        public void onReadable() {
+            Connection.this.onReadable();
+        }
+
+        @Override
+        public void onWritable() {
+            Connection.this.onWritable();
+        }
+
+        @Override
+        public void close() {
+            Connection.this.close();
+        }
+    }
+
+    private final class ConnectionOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            send(ByteBuffer.wrap(new byte[] {(byte) b}));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            send(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+        }
+
+        @Override
+        public void close() {
+            closeAfterFlush();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.genymobile.scrcpy.net;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Non-blocking HTTP/WebSocket server.
+ * <p>
+ * The thread calling {@link #run()} accepts the connections, and hands each of them over to one of a small fixed set of I/O threads, each
+ * running its own {@link java.nio.channels.Selector}. No thread is dedicated to a single client.
+ */
+public final class EventLoop {
+
+    public interface Handler {
+        /**
+         * Called on the I/O thread once an HTTP request has been received (see {@link HttpRequest} for how its body is received).
+         * <p>
+         * It must not block: long-running work must be dispatched to another thread. Once the response has been entirely queued,
+         * {@link Connection#finishRequest()} must be called (from any thread) so that the next request of the connection is handled.
+         */
+        void onRequest(Connection connection, HttpRequest request) throws IOException;
+
+        /**
+         * Called on the I/O thread for every text or binary message received on a connection upgraded to WebSocket.
+         * <p>
+         * The payload buffer is reused by the connection: it is only valid during the call.
+         */
+        void onMessage(Connection connection, ByteBuffer payload);
+
+        /**
+         * Called exactly once, when the connection is closed (by either side).
+         */
+        void onClose(Connection connection);
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final IoThread[] ioThreads;
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private volatile int sendQueueCapacity = 8;
+    private volatile SendQueue.Policy sendQueuePolicy = SendQueue.Policy.DROP_OLDEST;
+    private volatile int maxMessageSize = 16 * 1024 * 1024;
+    private volatile int keepAliveTimeout = 15000;
+    private volatile int maxRequests = 100;
+    private volatile int pingInterval = 30000;
+    private volatile int pongTimeout = 10000;
+
+    private ServerSocketChannel serverChannel;
+    private int nextIoThread;
+
+    public EventLoop(int port, int ioThreadCount, Handler handler) {
+        if (ioThreadCount < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is required");
+        }
+        this.port = port;
+        this.handler = handler;
+        this.ioThreads = new IoThread[ioThreadCount];
+    }
+
+    /**
+     * Set the capacity and the policy of the send queue of the connections accepted from now on.
+     */
+    public void setSendQueueDefaults(int capacity, SendQueue.Policy policy) {
+        this.sendQueueCapacity = capacity;
+        this.sendQueuePolicy = policy;
+    }
+
+    /**
+     * Set the maximum size of a (reassembled) WebSocket message; clients exceeding it are disconnected with status 1009.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Configure HTTP persistent connections.
+     *
+     * @param timeoutMillis the time after which an idle connection (waiting for its next request) is closed
+     * @param maxRequests   the max number of requests served on a single connection (1 disables keep-alive)
+     */
+    public void setKeepAlive(int timeoutMillis, int maxRequests) {
+        this.keepAliveTimeout = timeoutMillis;
+        this.maxRequests = maxRequests;
+    }
+
+    int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Configure the heartbeat of the WebSocket connections, to detect the clients which disappeared without closing their connection.
+     *
+     * @param pingIntervalMillis the time without receiving anything after which a ping is sent (0 disables the heartbeat)
+     * @param pongTimeoutMillis  the time to wait for any data (the pong) after a ping before closing the connection
+     */
+    public void setHeartbeat(int pingIntervalMillis, int pongTimeoutMillis) {
+        this.pingInterval = pingIntervalMillis;
+        this.pongTimeout = pongTimeoutMillis;
+    }
+
+    int getPingInterval() {
+        return pingInterval;
+    }
+
+    int getPongTimeout() {
+        return pongTimeout;
+    }
+
+    Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Return the currently open connections.
+     */
+    public Set<Connection> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    void unregister(Connection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Accept connections until {@link #stop()} is called or the calling thread is interrupted.
+     */
+    public void run() throws IOException {
+        synchronized (this) {
+            serverChannel = ServerSocketChannel.open();
+        }
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+
+            for (int i = 0; i < ioThreads.length; ++i) {
+                ioThreads[i] = new IoThread("io-" + i);
+                ioThreads[i].start();
+            }
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    // Typically the client already reset the connection: only this channel is affected
+                    Ln.d("Could not configure accepted connection: " + e.getMessage());
+                    closeQuietly(channel);
+                    continue;
+                }
+
+                IoThread ioThread = ioThreads[nextIoThread];
+                nextIoThread = (nextIoThread + 1) % ioThreads.length;
+                Connection connection = new Connection(channel, ioThread, this, new SendQueue(sendQueueCapacity, sendQueuePolicy));
+                connections.add(connection);
+                ioThread.register(connection);
+            }
+        } catch (ClosedChannelException e) {
+            // stop() has been called, or the accepting thread has been interrupted
+            Ln.d("Event loop on port " + port + " stopped");
+        } finally {
+            serverChannel.close();
+            for (IoThread ioThread : ioThreads) {
+                if (ioThread != null) {
+                    ioThread.shutdown();
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public synchronized void stop() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Ln.e("Could not close server channel: " + e.getMessage());
+            }
+        }
+    }
+}
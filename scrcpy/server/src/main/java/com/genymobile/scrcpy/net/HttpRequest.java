@@ -0,0 +1,392 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An HTTP request received by a {@link Connection}.
+ * <p>
+ * The request head is parsed once, directly from the bytes of the read buffer. The instance is reused for all the requests of the
+ * connection: it is only valid until {@link Connection#finishRequest()} is called.
+ * <p>
+ * Small bodies are received entirely before the request is handled, and exposed as a {@link ByteBuffer}. Larger bodies are streamed: the
+ * request is handled as soon as its head has been received, and the body must be read from {@link #getBodyStream()} (the client is throttled
+ * if the handler reads slower than it sends).
+ */
+public final class HttpRequest {
+
+    private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private String method;
+    private String target;
+    private String path;
+    private String queryString;
+    private String version;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, String> queryParameters = new HashMap<>();
+    private boolean queryParsed;
+    private long contentLength;
+
+    private ByteBuffer body;
+    private InputStream bodyStream;
+
+    HttpRequest() {
+        // Created by the connection
+    }
+
+    /**
+     * Create a request with a buffered body, not received from a client (to be sent by an {@link UpstreamClient}).
+     */
+    static HttpRequest create(String method, String target, String contentType, byte[] body) {
+        HttpRequest request = new HttpRequest();
+        request.method = method;
+        request.target = target;
+        request.path = target;
+        request.version = "HTTP/1.1";
+        request.headers.put("Content-Type", contentType);
+        request.contentLength = body.length;
+        request.body = ByteBuffer.wrap(body).asReadOnlyBuffer();
+        return request;
+    }
+
+    /**
+     * Parse the request head (request line and headers, including the terminating empty line).
+     *
+     * @throws IOException if the request is malformed
+     */
+    void parseHead(byte[] data, int offset, int length) throws IOException {
+        headers.clear();
+        queryParameters.clear();
+        queryParsed = false;
+        body = EMPTY_BODY;
+        bodyStream = null;
+
+        int end = offset + length;
+        int eol = indexOfCrlf(data, offset, end);
+        if (eol == -1) {
+            throw new IOException("Invalid request");
+        }
+        parseRequestLine(data, offset, eol);
+
+        int pos = eol + 2;
+        while ((eol = indexOfCrlf(data, pos, end)) > pos) {
+            parseHeaderLine(data, pos, eol);
+            pos = eol + 2;
+        }
+
+        contentLength = parseContentLength(headers.get("Content-Length"));
+    }
+
+    private void parseRequestLine(byte[] data, int start, int end) throws IOException {
+        int sp1 = indexOf(data, start, end, (byte) ' ');
+        int sp2 = sp1 == -1 ? -1 : indexOf(data, sp1 + 1, end, (byte) ' ');
+        if (sp2 == -1) {
+            throw new IOException("Invalid request line");
+        }
+        method = ascii(data, start, sp1);
+        target = ascii(data, sp1 + 1, sp2);
+        version = ascii(data, sp2 + 1, end);
+
+        int pathStart = 0;
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            // Absolute form (sent to proxies): only keep the path
+            int slash = target.indexOf('/', target.indexOf("//") + 2);
+            pathStart = slash == -1 ? target.length() : slash;
+        }
+        int q = target.indexOf('?', pathStart);
+        path = q == -1 ? target.substring(pathStart) : target.substring(pathStart, q);
+        if (path.isEmpty()) {
+            path = "/";
+        }
+        queryString = q == -1 ? null : target.substring(q + 1);
+    }
+
+    private void parseHeaderLine(byte[] data, int start, int end) throws IOException {
+        int colon = indexOf(data, start, end, (byte) ':');
+        if (colon <= start) {
+            throw new IOException("Invalid header line");
+        }
+        String name = ascii(data, start, colon).trim();
+        String value = ascii(data, colon + 1, end).trim();
+        String previous = headers.get(name);
+        // Repeated headers are equivalent to a single comma-separated list (RFC 9110 section 5.3)
+        headers.put(name, previous == null ? value : previous + ", " + value);
+    }
+
+    private static long parseContentLength(String value) throws IOException {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            long length = Long.parseLong(value);
+            if (length >= 0) {
+                return length;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IOException("Invalid Content-Length: " + value);
+    }
+
+    void setBody(ByteBuffer body) {
+        this.body = body;
+    }
+
+    void setBodyStream(InputStream bodyStream) {
+        this.body = null;
+        this.bodyStream = bodyStream;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Return the request target, as sent by the client (including the query string).
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Return the path of the request target, without the query string (not decoded).
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Return the query string (not decoded), or {@code null} if there is none.
+     */
+    public String getQueryString() {
+        return queryString;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Return the value of a header (the name is case-insensitive), or {@code null} if it is absent.
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Return the decoded value of the first query parameter named {@code name}, or {@code null} if it is absent.
+     * <p>
+     * The query string is only parsed on the first call.
+     */
+    public String getQueryParameter(String name) {
+        if (!queryParsed) {
+            parseQuery();
+            queryParsed = true;
+        }
+        return queryParameters.get(name);
+    }
+
+    private void parseQuery() {
+        if (queryString == null || queryString.isEmpty()) {
+            return;
+        }
+        int start = 0;
+        while (start <= queryString.length()) {
+            int amp = queryString.indexOf('&', start);
+            int end = amp == -1 ? queryString.length() : amp;
+            if (end > start) {
+                int eq = queryString.indexOf('=', start);
+                String name;
+                String value;
+                if (eq == -1 || eq > end) {
+                    name = decode(queryString.substring(start, end));
+                    value = "";
+                } else {
+                    name = decode(queryString.substring(start, eq));
+                    value = decode(queryString.substring(eq + 1, end));
+                }
+                if (!queryParameters.containsKey(name)) {
+                    queryParameters.put(name, value);
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    private static String decode(String s) {
+        if (s.indexOf('%') == -1 && s.indexOf('+') == -1) {
+            return s;
+        }
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // Malformed escape sequence, keep the raw value
+            return s;
+        }
+    }
+
+    /**
+     * Return the value of the {@code Content-Length} header, or 0 if it is absent.
+     * <p>
+     * Requests with a {@code Transfer-Encoding} are rejected by the connection, so this is always the length of the body.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Indicate whether the body has been entirely received before the request was handled (see {@link #getBody()}).
+     */
+    public boolean isBodyBuffered() {
+        return body != null;
+    }
+
+    /**
+     * Return the body, if it is buffered.
+     * <p>
+     * The buffer is read-only and shares the memory of the connection read buffer: it must not be used after the request is finished.
+     *
+     * @return the body, or {@code null} if it is streamed (see {@link #getBodyStream()})
+     */
+    public ByteBuffer getBody() {
+        return body == null ? null : body.duplicate();
+    }
+
+    /**
+     * Return a stream reading the body, whether it is buffered or not.
+     * <p>
+     * For a streamed body, reads block until the client sends more data. The part of the body not read by the handler is discarded.
+     */
+    public InputStream getBodyStream() {
+        if (bodyStream == null) {
+            bodyStream = new ByteBufferInputStream(body.duplicate());
+        }
+        return bodyStream;
+    }
+
+    /**
+     * Read the whole body as an UTF-8 string.
+     * <p>
+     * Only intended for small bodies (commands, JSON...): large uploads should be read from {@link #getBodyStream()}.
+     */
+    public String readBodyAsString() throws IOException {
+        if (body != null) {
+            return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int r;
+        InputStream in = getBodyStream();
+        while ((r = in.read(buffer)) != -1) {
+            out.write(buffer, 0, r);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Indicate whether the client asked to keep the connection open after the response.
+     */
+    boolean isKeepAliveRequested() {
+        String connection = headers.get("Connection");
+        if ("HTTP/1.0".equals(version)) {
+            // HTTP/1.0 connections are only persistent on request
+            return connection != null && containsToken(connection, "keep-alive");
+        }
+        return connection == null || !containsToken(connection, "close");
+    }
+
+    /**
+     * Indicate whether the client asked to switch to another protocol (WebSocket...) on this connection.
+     */
+    public boolean isUpgradeRequested() {
+        String connection = headers.get("Connection");
+        return headers.get("Upgrade") != null && connection != null && containsToken(connection, "upgrade");
+    }
+
+    /**
+     * Indicate whether the client waits for a {@code 100 Continue} interim response before sending the body.
+     */
+    boolean isContinueExpected() {
+        String expect = headers.get("Expect");
+        return expect != null && expect.equalsIgnoreCase("100-continue") && !"HTTP/1.0".equals(version);
+    }
+
+    static boolean containsToken(String value, String token) {
+        for (int start = 0; start < value.length(); ) {
+            int comma = value.indexOf(',', start);
+            int end = comma == -1 ? value.length() : comma;
+            if (value.substring(start, end).trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static String ascii(byte[] data, int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; ++i) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfCrlf(byte[] data, int from, int to) {
+        for (int i = from; i < to - 1; ++i) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
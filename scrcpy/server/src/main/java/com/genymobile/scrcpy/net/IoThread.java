@@ -0,0 +1,139 @@
+package com.genymobile.scrcpy.net;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread owning a {@link Selector}, on which all the I/O of its registered connections is performed.
+ * <p>
+ * Other threads interact with it only by posting tasks via {@link #execute(Runnable)}. The timeouts of its connections (idle, heartbeat,
+ * stalled writes) are driven by a {@link TimerWheel}: the selector only wakes up when a tick is due, instead of periodically scanning all
+ * the connections.
+ */
+final class IoThread extends Thread {
+
+    /**
+     * Attachment of a channel registered on the selector.
+     */
+    interface Selectable {
+        void onReadable();
+
+        void onWritable();
+
+        void close();
+    }
+
+    private static final long TICK_MS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final TimerWheel timerWheel = new TimerWheel(TICK_MS, WHEEL_SIZE, now());
+
+    private volatile boolean running = true;
+
+    IoThread(String name) throws IOException {
+        super(name);
+        selector = Selector.open();
+    }
+
+    /**
+     * Return a monotonic time in milliseconds.
+     */
+    static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    boolean isCurrentThread() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * Return the timer wheel of this thread (only usable from this thread).
+     */
+    TimerWheel getTimerWheel() {
+        assert isCurrentThread();
+        return timerWheel;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(Connection connection) {
+        execute(() -> {
+            try {
+                connection.register(selector);
+            } catch (IOException e) {
+                Ln.e("Could not register connection: " + e.getMessage());
+                connection.close();
+            }
+        });
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                // 0 blocks until a task is posted or a channel is ready, when no timer is scheduled
+                selector.select(timerWheel.getDelayToNextTick(now()));
+                runTasks();
+                timerWheel.advance(now());
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    Selectable selectable = (Selectable) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            selectable.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            selectable.onWritable();
+                        }
+                    } catch (RuntimeException e) {
+                        // A handler bug must not kill the thread, and with it all the other connections it serves
+                        Ln.e("Connection I/O error", e);
+                        selectable.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Ln.e("I/O thread error", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Selectable) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Ln.e("I/O thread task error", e);
+            }
+        }
+    }
+}
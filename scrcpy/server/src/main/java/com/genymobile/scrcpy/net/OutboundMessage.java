@@ -0,0 +1,172 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable outbound message, which may be queued to several connections at once.
+ * <p>
+ * The message is encoded once: each connection only keeps its own write offset, so sending the same message to N clients neither copies
+ * the payload nor allocates anything per client.
+ */
+public final class OutboundMessage {
+
+    private static final byte FIN = (byte) 0x80;
+
+    private final ByteBuffer[] buffers;
+    private final long length;
+
+    // For WebSocket data frames which may be compressed by permessage-deflate (null otherwise)
+    private final byte[] compressiblePayload;
+    private final int opcode;
+
+    private OutboundMessage(ByteBuffer[] buffers) {
+        this(buffers, null, -1);
+    }
+
+    private OutboundMessage(ByteBuffer[] buffers, byte[] compressiblePayload, int opcode) {
+        this.buffers = buffers;
+        this.compressiblePayload = compressiblePayload;
+        this.opcode = opcode;
+        long len = 0;
+        for (ByteBuffer buffer : buffers) {
+            len += buffer.remaining();
+        }
+        this.length = len;
+    }
+
+    /**
+     * Create a message from the remaining bytes of {@code buffers}.
+     * <p>
+     * The buffers are owned by the message: the caller must not modify them afterwards.
+     */
+    public static OutboundMessage wrap(ByteBuffer... buffers) {
+        ByteBuffer[] slices = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; ++i) {
+            slices[i] = buffers[i].slice();
+        }
+        return new OutboundMessage(slices);
+    }
+
+    /**
+     * Create an unmasked WebSocket binary frame, sharing {@code payload} (which must not be modified afterwards).
+     * <p>
+     * The frame is never compressed: use it for payloads which are already compressed (JPEG, H.264...).
+     */
+    public static OutboundMessage binaryFrame(byte[] payload) {
+        return dataFrame(WebSocketDecoder.OPCODE_BINARY, payload, false);
+    }
+
+    /**
+     * Create an unmasked WebSocket data frame, sharing {@code payload} (which must not be modified afterwards).
+     *
+     * @param compressible {@code true} if the payload may be compressed for the connections which negotiated permessage-deflate (each
+     *                     connection then compresses it with its own context when writing it)
+     */
+    public static OutboundMessage dataFrame(int opcode, byte[] payload, boolean compressible) {
+        ByteBuffer header = encodeHeader(opcode, payload.length);
+        ByteBuffer[] buffers = {header, ByteBuffer.wrap(payload).asReadOnlyBuffer()};
+        return new OutboundMessage(buffers, compressible ? payload : null, opcode);
+    }
+
+    /**
+     * Return whether this message is a WebSocket data frame (compressed or not by permessage-deflate).
+     */
+    private boolean isDataFrame() {
+        return opcode != -1;
+    }
+
+    /**
+     * Return the frame compressed with {@code deflate}, or this message unchanged if it must not be compressed.
+     * <p>
+     * The result is only valid until the next call (the compressed payload is stored in a buffer reused by {@code deflate}).
+     */
+    OutboundMessage deflate(PerMessageDeflate deflate) {
+        if (compressiblePayload == null) {
+            if (isDataFrame()) {
+                deflate.onBypassed(length);
+            }
+            return this;
+        }
+        ByteBuffer compressed = deflate.compress(compressiblePayload);
+        ByteBuffer header = encodeHeader(opcode | WebSocketDecoder.RSV1, compressed.remaining());
+        return new OutboundMessage(new ByteBuffer[] {header, compressed.slice()});
+    }
+
+    /**
+     * Create a WebSocket control frame, copying the remaining bytes of {@code payload} (at most 125 bytes).
+     */
+    public static OutboundMessage controlFrame(int opcode, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + payload.remaining());
+        frame.put(encodeHeader(opcode, payload.remaining()));
+        frame.put(payload);
+        frame.flip();
+        return new OutboundMessage(new ByteBuffer[] {frame});
+    }
+
+    /**
+     * Create a WebSocket close frame.
+     */
+    public static OutboundMessage closeFrame(int code, String reason) {
+        byte[] utf8 = reason.getBytes(StandardCharsets.UTF_8);
+        // The control frame payload must not exceed 125 bytes
+        int reasonLength = Math.min(utf8.length, 123);
+        ByteBuffer payload = ByteBuffer.allocate(2 + reasonLength);
+        payload.putShort((short) code);
+        payload.put(utf8, 0, reasonLength);
+        payload.flip();
+        return controlFrame(WebSocketDecoder.OPCODE_CLOSE, payload);
+    }
+
+    /**
+     * Encode the header of an unmasked, final WebSocket frame.
+     */
+    public static ByteBuffer encodeHeader(int opcode, long payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(10);
+        header.put((byte) (FIN | opcode));
+        if (payloadLength <= 125) {
+            header.put((byte) payloadLength);
+        } else if (payloadLength <= 65535) {
+            header.put((byte) 126);
+            header.putShort((short) payloadLength);
+        } else {
+            header.put((byte) 127);
+            header.putLong(payloadLength);
+        }
+        header.flip();
+        return header;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Write the message to {@code channel}, starting at {@code offset}.
+     * <p>
+     * Several connections may write the same message concurrently: the shared buffer positions are only touched under the message lock.
+     *
+     * @return the number of bytes written
+     */
+    synchronized long writeTo(GatheringByteChannel channel, long offset) throws IOException {
+        long start = 0;
+        for (ByteBuffer buffer : buffers) {
+            int size = buffer.limit();
+            buffer.position((int) Math.max(0, Math.min(size, offset - start)));
+            start += size;
+        }
+        return channel.write(buffers);
+    }
+
+    /**
+     * Copy the whole message into {@code target} (mostly for tests and blocking streams).
+     */
+    public synchronized void copyTo(ByteBuffer target) {
+        for (ByteBuffer buffer : buffers) {
+            buffer.position(0);
+            target.put(buffer);
+        }
+    }
+}
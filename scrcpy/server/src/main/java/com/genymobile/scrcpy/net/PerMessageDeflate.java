@@ -0,0 +1,282 @@
+package com.genymobile.scrcpy.net;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate WebSocket extension (RFC 7692) negotiated for a single connection.
+ * <p>
+ * The {@link Deflater} and the {@link Inflater} are reused for all the messages of the connection. Both are only used from its I/O thread:
+ * messages are compressed when they are written (not when they are queued), so that frames dropped from the send queue never break the
+ * compression context.
+ */
+public final class PerMessageDeflate {
+
+    public static final String EXTENSION_NAME = "permessage-deflate";
+
+    // Every compressed message ends with this empty stored block (RFC 7692 section 7.2.1), which is not transmitted
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    private final boolean serverContextTakeover;
+    private final boolean clientContextTakeover;
+    // Whether the client offered server_max_window_bits, which must then be present in the response (RFC 7692 section 7.1.2.1)
+    private final boolean serverMaxWindowBits;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] deflateBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] inflateBuffer = new byte[INITIAL_BUFFER_SIZE];
+    // Receives the output beyond the max message size, if any
+    private final byte[] overflowProbe = new byte[1];
+
+    // Statistics, written only from the I/O thread
+    private volatile long rawBytesOut;
+    private volatile long compressedBytesOut;
+    private volatile long bypassedMessages;
+    private volatile long compressedBytesIn;
+    private volatile long rawBytesIn;
+    private volatile long deflateNanos;
+    private volatile long inflateNanos;
+
+    private PerMessageDeflate(boolean serverContextTakeover, boolean clientContextTakeover, boolean serverMaxWindowBits) {
+        this.serverContextTakeover = serverContextTakeover;
+        this.clientContextTakeover = clientContextTakeover;
+        this.serverMaxWindowBits = serverMaxWindowBits;
+    }
+
+    /**
+     * Accept the first acceptable permessage-deflate offer of the client.
+     *
+     * @param extensions     the value of the {@code Sec-WebSocket-Extensions} request header (may be {@code null})
+     * @param contextTakeover {@code false} to reset the compression context after every message (less memory, lower compression ratio)
+     * @return the negotiated extension, or {@code null} if the client did not offer it (or no offer is acceptable)
+     */
+    public static PerMessageDeflate negotiate(String extensions, boolean contextTakeover) {
+        if (extensions == null) {
+            return null;
+        }
+
+        for (String offer : extensions.split(",")) {
+            String[] params = offer.split(";");
+            if (!EXTENSION_NAME.equalsIgnoreCase(params[0].trim())) {
+                continue;
+            }
+
+            boolean serverContextTakeover = contextTakeover;
+            boolean clientContextTakeover = true;
+            boolean serverMaxWindowBits = false;
+            boolean acceptable = true;
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim();
+                String name = param;
+                String value = null;
+                int eq = param.indexOf('=');
+                if (eq != -1) {
+                    name = param.substring(0, eq).trim();
+                    value = param.substring(eq + 1).trim().replace("\"", "");
+                }
+
+                switch (name) {
+                    case "server_no_context_takeover":
+                        serverContextTakeover = false;
+                        break;
+                    case "client_no_context_takeover":
+                        clientContextTakeover = false;
+                        break;
+                    case "server_max_window_bits":
+                        // Deflater always uses a 32K window
+                        acceptable = "15".equals(value);
+                        serverMaxWindowBits = true;
+                        break;
+                    case "client_max_window_bits":
+                        // Inflater accepts any window size
+                        break;
+                    default:
+                        acceptable = false;
+                        break;
+                }
+            }
+
+            if (acceptable) {
+                return new PerMessageDeflate(serverContextTakeover, clientContextTakeover, serverMaxWindowBits);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the value of the {@code Sec-WebSocket-Extensions} response header.
+     */
+    public String getResponseHeader() {
+        StringBuilder header = new StringBuilder(EXTENSION_NAME);
+        if (!serverContextTakeover) {
+            header.append("; server_no_context_takeover");
+        }
+        if (!clientContextTakeover) {
+            header.append("; client_no_context_takeover");
+        }
+        if (serverMaxWindowBits) {
+            header.append("; server_max_window_bits=15");
+        }
+        return header.toString();
+    }
+
+    /**
+     * Compress a message payload.
+     *
+     * @return the compressed payload, valid until the next call
+     */
+    ByteBuffer compress(byte[] payload) {
+        long start = System.nanoTime();
+
+        deflater.setInput(payload);
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length, Deflater.SYNC_FLUSH);
+            if (length < deflateBuffer.length) {
+                break;
+            }
+            deflateBuffer = grow(deflateBuffer, deflateBuffer.length * 2);
+        }
+        if (endsWithTail(deflateBuffer, length)) {
+            length -= TAIL.length;
+        }
+        if (!serverContextTakeover) {
+            deflater.reset();
+        }
+
+        // Deflating is purely CPU-bound, the elapsed time is the CPU time
+        deflateNanos += System.nanoTime() - start;
+        rawBytesOut += payload.length;
+        compressedBytesOut += length;
+        return ByteBuffer.wrap(deflateBuffer, 0, length);
+    }
+
+    void onBypassed(long length) {
+        ++bypassedMessages;
+        rawBytesOut += length;
+        compressedBytesOut += length;
+    }
+
+    /**
+     * Decompress a message payload.
+     *
+     * @return the decompressed payload, valid until the next call
+     * @throws WebSocketProtocolException if the payload is invalid or if the decompressed message exceeds {@code maxMessageSize}
+     */
+    ByteBuffer decompress(ByteBuffer payload, int maxMessageSize) throws WebSocketProtocolException {
+        long start = System.nanoTime();
+
+        int compressedLength = payload.remaining();
+        inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), compressedLength);
+        boolean tailFed = false;
+        int length = 0;
+        try {
+            while (true) {
+                if (length == inflateBuffer.length && length < maxMessageSize) {
+                    inflateBuffer = grow(inflateBuffer, Math.min(maxMessageSize, length * 2));
+                }
+                int n;
+                if (length == inflateBuffer.length) {
+                    // The buffer is full at the max size: the message is too large only if there is more output
+                    n = inflater.inflate(overflowProbe);
+                    if (n > 0) {
+                        throw new WebSocketProtocolException(WebSocketDecoder.CLOSE_TOO_BIG, "Decompressed message too large");
+                    }
+                } else {
+                    n = inflater.inflate(inflateBuffer, length, inflateBuffer.length - length);
+                    length += n;
+                }
+                if (inflater.finished()) {
+                    // The client closed the deflate stream (BFINAL), the next message starts a new one
+                    inflater.reset();
+                    break;
+                }
+                if (n == 0 && inflater.needsInput()) {
+                    if (tailFed) {
+                        break;
+                    }
+                    inflater.setInput(TAIL);
+                    tailFed = true;
+                } else if (n == 0 && inflater.needsDictionary()) {
+                    throw new WebSocketProtocolException(WebSocketDecoder.CLOSE_PROTOCOL_ERROR, "Unexpected deflate dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new WebSocketProtocolException(WebSocketDecoder.CLOSE_PROTOCOL_ERROR, "Invalid compressed data: " + e.getMessage());
+        }
+        if (length > maxMessageSize) {
+            throw new WebSocketProtocolException(WebSocketDecoder.CLOSE_TOO_BIG, "Decompressed message too large");
+        }
+        if (!clientContextTakeover) {
+            inflater.reset();
+        }
+
+        inflateNanos += System.nanoTime() - start;
+        compressedBytesIn += compressedLength;
+        rawBytesIn += length;
+        return ByteBuffer.wrap(inflateBuffer, 0, length);
+    }
+
+    private static byte[] grow(byte[] buffer, int capacity) {
+        byte[] newBuffer = new byte[capacity];
+        System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+        return newBuffer;
+    }
+
+    private static boolean endsWithTail(byte[] data, int length) {
+        if (length < TAIL.length) {
+            return false;
+        }
+        for (int i = 0; i < TAIL.length; ++i) {
+            if (data[length - TAIL.length + i] != TAIL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void release() {
+        deflater.end();
+        inflater.end();
+    }
+
+    public long getRawBytesOut() {
+        return rawBytesOut;
+    }
+
+    public long getCompressedBytesOut() {
+        return compressedBytesOut;
+    }
+
+    public long getBypassedMessages() {
+        return bypassedMessages;
+    }
+
+    public long getRawBytesIn() {
+        return rawBytesIn;
+    }
+
+    public long getCompressedBytesIn() {
+        return compressedBytesIn;
+    }
+
+    /**
+     * Return the ratio of the bytes actually sent to the raw bytes (lower is better), or 1 if nothing has been sent.
+     */
+    public double getCompressionRatio() {
+        long raw = rawBytesOut;
+        return raw == 0 ? 1 : (double) compressedBytesOut / raw;
+    }
+
+    public long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    public long getInflateNanos() {
+        return inflateNanos;
+    }
+}
@@ -0,0 +1,135 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a request too large to be buffered, fed by the I/O thread as it is received and read by the request handler.
+ * <p>
+ * The bytes are transferred through a fixed-size ring buffer. When it is full, the I/O thread leaves the remaining input in the connection
+ * read buffer, which stops reading from the socket once it is full too: the client is throttled by TCP flow control until the handler
+ * consumes the body. The {@code onSpaceAvailable} callback is then called (on the reading thread) so that the I/O thread resumes feeding.
+ */
+final class RequestBodyStream extends InputStream {
+
+    private final byte[] buffer;
+    private final Runnable onSpaceAvailable;
+
+    private int head;
+    private int count;
+    // Number of bytes of the body not received yet
+    private long remaining;
+    private boolean starving;
+    private boolean discarding;
+    private IOException error;
+
+    RequestBodyStream(long length, int bufferSize, Runnable onSpaceAvailable) {
+        this.remaining = length;
+        this.buffer = new byte[(int) Math.min(bufferSize, Math.max(length, 1))];
+        this.onSpaceAvailable = onSpaceAvailable;
+    }
+
+    /**
+     * Transfer as many body bytes as possible from {@code input} (called by the I/O thread).
+     * <p>
+     * The bytes following the body are left in {@code input}.
+     */
+    synchronized void feed(ByteBuffer input) {
+        int n = (int) Math.min(remaining, input.remaining());
+        if (discarding) {
+            input.position(input.position() + n);
+            remaining -= n;
+            return;
+        }
+
+        n = Math.min(n, buffer.length - count);
+        int tail = (head + count) % buffer.length;
+        int first = Math.min(n, buffer.length - tail);
+        input.get(buffer, tail, first);
+        input.get(buffer, 0, n - first);
+        count += n;
+        remaining -= n;
+        // The I/O thread must be notified once space is available if some body bytes could not be transferred
+        starving = remaining > 0 && input.hasRemaining();
+        notifyAll();
+    }
+
+    /**
+     * Indicate whether the whole body has been received (it may not have been read yet).
+     */
+    synchronized boolean isReceived() {
+        return remaining == 0;
+    }
+
+    /**
+     * Drop the unread part of the body, including the bytes not received yet (called by the I/O thread once the request is finished).
+     */
+    synchronized void discard() {
+        discarding = true;
+        head = 0;
+        count = 0;
+        notifyAll();
+    }
+
+    /**
+     * Make pending and future reads fail (the connection has been closed).
+     */
+    synchronized void abort() {
+        if (remaining > 0 && error == null) {
+            error = new IOException("Connection closed before the end of the body");
+        }
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        boolean notify;
+        int n;
+        synchronized (this) {
+            while (count == 0) {
+                if (discarding || remaining == 0) {
+                    return -1;
+                }
+                if (error != null) {
+                    throw error;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notify = starving;
+            starving = false;
+        }
+        if (notify) {
+            onSpaceAvailable.run();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return count;
+    }
+}
@@ -0,0 +1,139 @@
+package com.genymobile.scrcpy.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request counters and latency histogram of a {@link Router.Route}, updated lock-free by the threads running its handler.
+ */
+public final class RouteMetrics {
+
+    // Upper bounds (inclusive, in ms) of the latency histogram buckets; the last bucket has no upper bound
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+
+    void onStart() {
+        inFlight.incrementAndGet();
+    }
+
+    void onEnd(long nanos, boolean error) {
+        inFlight.decrementAndGet();
+        requests.incrementAndGet();
+        if (error) {
+            errors.incrementAndGet();
+        }
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+        buckets.incrementAndGet(bucketIndex(nanos / 1000000));
+    }
+
+    void onRejected() {
+        rejected.incrementAndGet();
+    }
+
+    void onTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    private static int bucketIndex(long millis) {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; ++i) {
+            if (millis <= BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    /**
+     * Return the number of completed requests (including errors and timeouts).
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Return the number of requests rejected because the route was running at its max concurrency.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public double getMeanMillis() {
+        long count = requests.get();
+        return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * Return an upper bound of the given latency percentile (the bound of the histogram bucket containing it), in ms.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound, or -1 if the percentile falls in the last (unbounded) bucket, or 0 if there is no request yet
+     */
+    public long getPercentileMillis(double percentile) {
+        long total = 0;
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        long cumulated = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; ++i) {
+            cumulated += counts[i];
+            if (cumulated >= rank) {
+                return BUCKET_BOUNDS_MS[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the upper bounds (in ms) of the histogram buckets, the last bucket (unbounded) excluded.
+     */
+    public static long[] getBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MS.clone();
+    }
+
+    /**
+     * Return the number of requests in each histogram bucket (see {@link #getBucketBoundsMillis()}).
+     */
+    public long[] getHistogram() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,537 @@
+package com.genymobile.scrcpy.net;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route table of the HTTP requests.
+ * <p>
+ * Routes are matched on the request path, either exactly or by prefix (the longest prefix wins), using a character trie built when the
+ * routes are registered: a lookup costs one step per character of the path, whatever the number of routes.
+ * <p>
+ * Each route declares where its handler runs ({@link Dispatch}, or a dedicated {@link WorkerPool}), how many requests it may handle
+ * concurrently, and how long a request may take. Requests exceeding the max concurrency of the route, or finding its pool saturated, are
+ * rejected at once with {@code 503 Service Unavailable} and a {@code Retry-After} header. Requests exceeding the timeout are interrupted
+ * and answered with {@code 504 Gateway Timeout} (or closed if the response has already started, unless the timeout only bounds the time
+ * to the response head).
+ * <p>
+ * Routes must be registered before the server starts.
+ */
+public final class Router {
+
+    public enum Dispatch {
+        /**
+         * Run on the I/O thread. Only for handlers which never block and complete in a few microseconds (no I/O, no binder call, no
+         * streamed body).
+         */
+        INLINE,
+        /**
+         * Run on a bounded pool with one thread per CPU, for CPU-bound work (image encoding...).
+         */
+        CPU,
+        /**
+         * Run on a bounded pool shared by the handlers blocking on I/O (unless the route has its own pool).
+         */
+        BLOCKING
+    }
+
+    public interface Handler {
+        /**
+         * Write the response to the request.
+         * <p>
+         * The request is considered complete when this method returns (unless it is a stream, see {@link Connection#setStreaming()}).
+         */
+        void handle(HttpRequest request, OutputStream output, Connection connection) throws IOException;
+    }
+
+    public static final class Route {
+        private final String path;
+        private final boolean prefix;
+        private final Dispatch dispatch;
+        private final Handler handler;
+        private final RouteMetrics metrics = new RouteMetrics();
+        private int maxConcurrency;
+        private Semaphore permits;
+        private long timeoutMillis;
+        private boolean headTimeout;
+        private WorkerPool pool;
+
+        private Route(String path, boolean prefix, Dispatch dispatch, Handler handler) {
+            this.path = path;
+            this.prefix = prefix;
+            this.dispatch = dispatch;
+            this.handler = handler;
+        }
+
+        /**
+         * Limit the number of requests handled concurrently (0 for no limit, the default).
+         */
+        public Route maxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+            return this;
+        }
+
+        /**
+         * Limit the time a request may take (0 for no limit, the default). Ignored for {@link Dispatch#INLINE} routes.
+         */
+        public Route timeout(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            this.headTimeout = false;
+            return this;
+        }
+
+        /**
+         * Limit the time until the handler starts its response (0 for no limit). Once started, the response may last any time, so that a
+         * streamed body is never cut. Ignored for {@link Dispatch#INLINE} routes.
+         */
+        public Route headTimeout(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            this.headTimeout = true;
+            return this;
+        }
+
+        /**
+         * Run the handler on a dedicated pool (so that a burst of requests to this route cannot starve the others), instead of the pool
+         * of its {@link Dispatch}. Ignored for {@link Dispatch#INLINE} routes.
+         */
+        public Route pool(WorkerPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isPrefix() {
+            return prefix;
+        }
+
+        public Dispatch getDispatch() {
+            return dispatch;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        public long getTimeout() {
+            return timeoutMillis;
+        }
+
+        /**
+         * Indicate whether the timeout only applies until the response starts (see {@link #headTimeout(long)}).
+         */
+        public boolean isHeadTimeout() {
+            return headTimeout;
+        }
+
+        public RouteMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Return the pool running the handler, or {@code null} for an {@link Dispatch#INLINE} route.
+         */
+        public WorkerPool getPool() {
+            return pool;
+        }
+
+        private boolean tryAcquire() {
+            return permits == null || permits.tryAcquire();
+        }
+
+        private void release() {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Route exact;
+        private Route prefix;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrCreateChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                int n = keys.length;
+                char[] newKeys = new char[n + 1];
+                Node[] newChildren = new Node[n + 1];
+                System.arraycopy(keys, 0, newKeys, 0, n);
+                System.arraycopy(children, 0, newChildren, 0, n);
+                newKeys[n] = c;
+                newChildren[n] = child;
+                keys = newKeys;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+
+    private static final int CPU_QUEUE_CAPACITY = 32;
+    private static final int IO_THREADS = 16;
+    private static final int IO_QUEUE_CAPACITY = 64;
+    // Suggested delay (in seconds) before retrying a request rejected because of an overload
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    private final Node root = new Node();
+    private final List<Route> routes = new ArrayList<>();
+    private Route defaultRoute;
+
+    private final List<WorkerPool> pools = new CopyOnWriteArrayList<>();
+    private final WorkerPool cpuPool;
+    private final WorkerPool ioPool;
+    private final ScheduledExecutorService timeoutExecutor;
+
+    public Router() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        cpuPool = createPool("http-cpu", cpus, CPU_QUEUE_CAPACITY);
+        ioPool = createPool("http-io", IO_THREADS, IO_QUEUE_CAPACITY);
+        timeoutExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "http-timeout"));
+    }
+
+    /**
+     * Create a pool, shut down with the router and listed by {@link #getPools()}.
+     */
+    public WorkerPool createPool(String name, int maxThreads, int queueCapacity) {
+        WorkerPool pool = new WorkerPool(name, maxThreads, queueCapacity);
+        pools.add(pool);
+        return pool;
+    }
+
+    public List<WorkerPool> getPools() {
+        return Collections.unmodifiableList(pools);
+    }
+
+    /**
+     * Register a route matching only the given path.
+     */
+    public Route exact(String path, Dispatch dispatch, Handler handler) {
+        Route route = createRoute(path, false, dispatch, handler);
+        Node node = insert(path);
+        if (node.exact != null) {
+            throw new IllegalArgumentException("Duplicate route: " + path);
+        }
+        node.exact = route;
+        routes.add(route);
+        return route;
+    }
+
+    /**
+     * Register a route matching all the paths starting with {@code prefix} (unless a longer prefix or an exact route matches).
+     */
+    public Route prefix(String prefix, Dispatch dispatch, Handler handler) {
+        Route route = createRoute(prefix, true, dispatch, handler);
+        Node node = insert(prefix);
+        if (node.prefix != null) {
+            throw new IllegalArgumentException("Duplicate route: " + prefix + "*");
+        }
+        node.prefix = route;
+        routes.add(route);
+        return route;
+    }
+
+    /**
+     * Set the route of the requests matching no other route.
+     */
+    public Route fallback(Dispatch dispatch, Handler handler) {
+        if (defaultRoute != null) {
+            routes.remove(defaultRoute);
+        }
+        defaultRoute = createRoute("*", true, dispatch, handler);
+        routes.add(defaultRoute);
+        return defaultRoute;
+    }
+
+    private Route createRoute(String path, boolean prefix, Dispatch dispatch, Handler handler) {
+        Route route = new Route(path, prefix, dispatch, handler);
+        if (dispatch == Dispatch.CPU) {
+            route.pool = cpuPool;
+        } else if (dispatch == Dispatch.BLOCKING) {
+            route.pool = ioPool;
+        }
+        return route;
+    }
+
+    private Node insert(String path) {
+        Node node = root;
+        for (int i = 0; i < path.length(); ++i) {
+            node = node.getOrCreateChild(path.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Return the route matching the path, or the fallback route (possibly {@code null}).
+     */
+    public Route find(String path) {
+        Route match = root.prefix;
+        Node node = root;
+        for (int i = 0; i < path.length(); ++i) {
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.prefix != null) {
+                match = node.prefix;
+            }
+        }
+        if (node != null && node.exact != null) {
+            return node.exact;
+        }
+        return match != null ? match : defaultRoute;
+    }
+
+    public List<Route> getRoutes() {
+        return Collections.unmodifiableList(routes);
+    }
+
+    /**
+     * Handle a request according to its route.
+     * <p>
+     * Must be called from {@link EventLoop.Handler#onRequest(Connection, HttpRequest)}.
+     */
+    public void dispatch(HttpRequest request, Connection connection) {
+        Route route = find(request.getPath());
+        if (route == null) {
+            sendError(connection, 404, "Not Found", false);
+            return;
+        }
+
+        if (!route.tryAcquire()) {
+            route.metrics.onRejected();
+            sendOverloaded(connection);
+            return;
+        }
+
+        if (route.dispatch == Dispatch.INLINE) {
+            run(route, request, connection);
+            return;
+        }
+
+        if (!route.pool.tryExecute(() -> run(route, request, connection))) {
+            route.release();
+            if (route.pool.isShutdown()) {
+                // The server is stopping
+                connection.close();
+            } else {
+                route.metrics.onRejected();
+                sendOverloaded(connection);
+            }
+        }
+    }
+
+    private void run(Route route, HttpRequest request, Connection connection) {
+        route.metrics.onStart();
+        long start = System.nanoTime();
+        ResponseOutput output = new ResponseOutput(connection.getOutputStream());
+        ScheduledFuture<?> timeout = null;
+        if (route.timeoutMillis > 0 && route.dispatch != Dispatch.INLINE) {
+            Thread thread = Thread.currentThread();
+            timeout = timeoutExecutor.schedule(() -> onTimeout(route, output, connection, thread), route.timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        boolean error = true;
+        try {
+            route.handler.handle(request, output, connection);
+            error = false;
+        } catch (IOException e) {
+            // Once expired, the connection is handled by onTimeout()
+            if (!output.isExpired()) {
+                Ln.e("Client error: ", e);
+                connection.close();
+            }
+        } catch (RuntimeException e) {
+            Ln.e("Route " + route.path + " failed", e);
+            if (output.isExpired()) {
+                // Handled by onTimeout()
+                Ln.d("Request already timed out");
+            } else if (output.isStarted()) {
+                connection.close();
+            } else {
+                sendError(connection, 500, "Internal Server Error", false);
+            }
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            boolean completed = output.finish();
+            if (route.dispatch != Dispatch.INLINE) {
+                // Clear a possible interruption from the timeout, the thread is reused
+                Thread.interrupted();
+            }
+            route.release();
+            route.metrics.onEnd(System.nanoTime() - start, error || !completed);
+            if (!error && completed) {
+                connection.finishRequest();
+            }
+        }
+    }
+
+    private void onTimeout(Route route, ResponseOutput output, Connection connection, Thread thread) {
+        synchronized (output) {
+            if (!output.expire(route.headTimeout)) {
+                // Completed (or started, for a head timeout) meanwhile
+                return;
+            }
+            thread.interrupt();
+        }
+        route.metrics.onTimeout();
+        Ln.w("Request to " + route.path + " timed out after " + route.timeoutMillis + " ms");
+        if (output.isStarted()) {
+            // The response is incomplete, the client can only detect the failure by the connection being closed
+            connection.close();
+        } else {
+            // The handler may still be running: do not handle the next request
+            sendError(connection, 504, "Gateway Timeout", true);
+        }
+    }
+
+    /**
+     * Build the response to a request rejected because the server is overloaded.
+     */
+    public static String buildOverloadedResponse(Connection connection) {
+        return "HTTP/1.1 503 Service Unavailable\r\n" +
+                "Content-Length: 0\r\n" +
+                "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n" +
+                "Connection: " + connection.getConnectionHeader() + "\r\n" +
+                "Access-Control-Allow-Origin: *\r\n\r\n";
+    }
+
+    private static void sendOverloaded(Connection connection) {
+        sendResponse(connection, buildOverloadedResponse(connection), false);
+    }
+
+    private static void sendError(Connection connection, int status, String reason, boolean close) {
+        sendResponse(connection, "HTTP/1.1 " + status + " " + reason + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: " + (close ? "close" : connection.getConnectionHeader()) + "\r\n" +
+                "Access-Control-Allow-Origin: *\r\n\r\n", close);
+    }
+
+    private static void sendResponse(Connection connection, String response, boolean close) {
+        try {
+            connection.send(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException e) {
+            // Already closed
+            return;
+        }
+        if (close) {
+            connection.closeAfterFlush();
+        } else {
+            connection.finishRequest();
+        }
+    }
+
+    public void shutdown() {
+        for (WorkerPool pool : pools) {
+            pool.shutdown();
+        }
+        timeoutExecutor.shutdownNow();
+    }
+
+    /**
+     * The output stream given to a handler, which fails once the request has timed out (so that a late response is never mixed with the
+     * timeout response or the next one).
+     */
+    private static final class ResponseOutput extends OutputStream {
+        private final OutputStream out;
+        private boolean started;
+        private boolean finished;
+        private boolean expired;
+
+        ResponseOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        private synchronized void checkWritable() throws IOException {
+            if (expired) {
+                throw new IOException("Request timed out");
+            }
+            started = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkWritable();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkWritable();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!isExpired()) {
+                out.close();
+            }
+        }
+
+        synchronized boolean isStarted() {
+            return started;
+        }
+
+        synchronized boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Mark the response as complete.
+         *
+         * @return {@code false} if it has expired before
+         */
+        synchronized boolean finish() {
+            finished = true;
+            return !expired;
+        }
+
+        /**
+         * Mark the response as expired.
+         *
+         * @param unlessStarted whether a response already started must not expire
+         * @return {@code false} if it is already complete (or started, if {@code unlessStarted})
+         */
+        synchronized boolean expire(boolean unlessStarted) {
+            if (finished || (unlessStarted && started)) {
+                return false;
+            }
+            expired = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+/**
+ * Bounded outbound queue of a single connection.
+ * <p>
+ * Each entry is a whole message (possibly split into several buffers), so that dropping a message never corrupts the stream. Control messages
+ * are never dropped; frames are handled according to the queue {@link Policy} when the client does not drain the queue fast enough.
+ * <p>
+ * The message at the head of the queue, once the writer has started to send it, is never dropped.
+ */
+public final class SendQueue {
+
+    public enum Policy {
+        /** When the queue is full, drop the oldest queued frame. */
+        DROP_OLDEST("drop_oldest"),
+        /** Keep only the most recent frame: queuing a frame drops all the frames not sent yet. */
+        LATEST_ONLY("latest_only"),
+        /**
+         * Never drop a frame: when the queue is full, close the connection. The producer never waits, since it is typically shared by all
+         * the clients of a stream (a client which cannot keep up must not stall the others).
+         */
+        CLOSE("close");
+
+        private final String name;
+
+        Policy(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Policy findByName(String name) {
+            for (Policy policy : values()) {
+                if (policy.name.equals(name)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Ring buffer of the queued messages: an entry does not allocate anything, so that a message shared by many clients costs nothing per
+    // client
+    private OutboundMessage[] messages;
+    private boolean[] droppable;
+    private int head;
+    private int count;
+    private boolean headStarted;
+
+    private final int capacity;
+    private Policy policy;
+    private boolean closed;
+
+    private long queuedBytes;
+    private long sentMessages;
+    private long droppedMessages;
+
+    public SendQueue(int capacity, Policy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid send queue capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        messages = new OutboundMessage[capacity];
+        droppable = new boolean[capacity];
+    }
+
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Queue a message which must not be lost (an HTTP response, a control message...).
+     *
+     * @param wait if the queue is full, whether to wait for the writer to make room (until the queue is closed); otherwise the message is
+     *             queued immediately, even beyond the capacity
+     * @throws IOException if the queue is closed
+     */
+    public synchronized void offer(OutboundMessage message, boolean wait) throws IOException {
+        checkNotClosed();
+        if (wait) {
+            awaitRoom();
+        }
+        add(message, false);
+    }
+
+    /**
+     * Queue a frame, which may be dropped according to the policy if the client is too slow. Never blocks.
+     *
+     * @return {@code true} if the frame has been queued, {@code false} if it has been dropped
+     * @throws IOException if the queue is closed, or if it is full with the {@link Policy#CLOSE} policy
+     */
+    public synchronized boolean offerFrame(OutboundMessage message) throws IOException {
+        switch (policy) {
+            case CLOSE:
+                checkNotClosed();
+                if (count >= capacity) {
+                    throw new IOException("Send queue full");
+                }
+                break;
+            case LATEST_ONLY:
+                checkNotClosed();
+                dropPendingFrames(Integer.MAX_VALUE);
+                break;
+            default:
+                checkNotClosed();
+                if (count >= capacity && dropPendingFrames(1) == 0) {
+                    // Only control messages or a frame being sent, drop the new frame
+                    ++droppedMessages;
+                    return false;
+                }
+                break;
+        }
+        add(message, true);
+        return true;
+    }
+
+    private void add(OutboundMessage message, boolean isDroppable) {
+        if (count == messages.length) {
+            // Only possible for messages queued without waiting
+            grow();
+        }
+        int index = (head + count) % messages.length;
+        messages[index] = message;
+        droppable[index] = isDroppable;
+        ++count;
+        queuedBytes += message.getLength();
+    }
+
+    private void grow() {
+        int newLength = messages.length * 2;
+        OutboundMessage[] newMessages = new OutboundMessage[newLength];
+        boolean[] newDroppable = new boolean[newLength];
+        for (int i = 0; i < count; ++i) {
+            int index = (head + i) % messages.length;
+            newMessages[i] = messages[index];
+            newDroppable[i] = droppable[index];
+        }
+        messages = newMessages;
+        droppable = newDroppable;
+        head = 0;
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Send queue closed");
+        }
+    }
+
+    private void awaitRoom() throws IOException {
+        try {
+            while (count >= capacity) {
+                wait();
+                checkNotClosed();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private int dropPendingFrames(int max) {
+        int dropped = 0;
+        int kept = 0;
+        // Compact the ring in place, skipping the dropped entries
+        for (int i = 0; i < count; ++i) {
+            int index = (head + i) % messages.length;
+            OutboundMessage message = messages[index];
+            boolean isDroppable = droppable[index];
+            boolean started = i == 0 && headStarted;
+            if (dropped < max && isDroppable && !started) {
+                queuedBytes -= message.getLength();
+                ++dropped;
+            } else {
+                int target = (head + kept) % messages.length;
+                messages[target] = message;
+                droppable[target] = isDroppable;
+                ++kept;
+            }
+        }
+        for (int i = kept; i < count; ++i) {
+            messages[(head + i) % messages.length] = null;
+        }
+        count = kept;
+        droppedMessages += dropped;
+        return dropped;
+    }
+
+    /**
+     * Return the message at the head of the queue (to be written by the writer), or {@code null} if the queue is empty.
+     * <p>
+     * From then on, this message will not be dropped.
+     */
+    synchronized OutboundMessage peek() {
+        if (count == 0) {
+            return null;
+        }
+        headStarted = true;
+        return messages[head];
+    }
+
+    /**
+     * Remove the message at the head of the queue, once it has been fully written.
+     */
+    synchronized void pop() {
+        if (count == 0) {
+            return;
+        }
+        queuedBytes -= messages[head].getLength();
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        --count;
+        headStarted = false;
+        ++sentMessages;
+        notifyAll();
+    }
+
+    synchronized void close() {
+        closed = true;
+        Arrays.fill(messages, null);
+        count = 0;
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long getSentMessages() {
+        return sentMessages;
+    }
+
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+}
@@ -0,0 +1,178 @@
+package com.genymobile.scrcpy.net;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel, driving the timeouts of all the connections of an {@link IoThread}.
+ * <p>
+ * Timers are hashed into a fixed number of buckets by their expiration tick: scheduling and cancelling are O(1), and advancing the wheel
+ * only visits the timers of the elapsed buckets, however many connections are open. The resolution is one tick.
+ * <p>
+ * Not thread-safe: it must only be used from its owning thread.
+ */
+final class TimerWheel {
+
+    static final class Timer {
+        private final Runnable task;
+        private TimerWheel wheel;
+        private long rounds;
+        private int bucket;
+        private Timer prev;
+        private Timer next;
+        // Expired, but its task has not run yet
+        private boolean expiring;
+
+        private Timer(Runnable task) {
+            this.task = task;
+        }
+
+        boolean isScheduled() {
+            return wheel != null;
+        }
+
+        void cancel() {
+            expiring = false;
+            if (wheel != null) {
+                wheel.unlink(this);
+            }
+        }
+    }
+
+    private final long tickMillis;
+    private final long startTime;
+    private final Timer[] buckets;
+    private final int mask;
+    private final List<Timer> expired = new ArrayList<>();
+
+    // Number of ticks already processed since startTime
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis the duration of a tick, in ms
+     * @param wheelSize  the number of buckets (a power of 2)
+     * @param now        the current time, in ms
+     */
+    TimerWheel(long tickMillis, int wheelSize, long now) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of 2");
+        }
+        this.tickMillis = tickMillis;
+        this.startTime = now;
+        this.buckets = new Timer[wheelSize];
+        this.mask = wheelSize - 1;
+    }
+
+    /**
+     * Create a timer running the given task when it expires. It is not scheduled yet.
+     */
+    Timer newTimer(Runnable task) {
+        return new Timer(task);
+    }
+
+    /**
+     * Schedule (or reschedule) a timer.
+     *
+     * @param deadline the time (in ms) after which the timer expires; a deadline in the past expires on the next tick
+     */
+    void schedule(Timer timer, long deadline) {
+        timer.expiring = false;
+        if (timer.wheel != null) {
+            unlink(timer);
+        }
+        // Round up, so that a timer never expires before its deadline
+        long tick = Math.max(currentTick + 1, (deadline - startTime + tickMillis - 1) / tickMillis);
+        timer.rounds = (tick - currentTick - 1) / buckets.length;
+        timer.bucket = (int) (tick & mask);
+        timer.wheel = this;
+        timer.prev = null;
+        timer.next = buckets[timer.bucket];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        buckets[timer.bucket] = timer;
+        ++size;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.wheel = null;
+        --size;
+    }
+
+    /**
+     * Return the number of scheduled timers.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the delay (in ms, at least 1) until the next tick, or 0 if no timer is scheduled.
+     */
+    long getDelayToNextTick(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        long nextTickTime = startTime + (currentTick + 1) * tickMillis;
+        return Math.max(1, nextTickTime - now);
+    }
+
+    /**
+     * Process all the ticks elapsed until {@code now}, and run the tasks of the expired timers.
+     * <p>
+     * A task may schedule or cancel any timer (including its own).
+     */
+    void advance(long now) {
+        long targetTick = (now - startTime) / tickMillis;
+        while (currentTick < targetTick) {
+            ++currentTick;
+            if (size == 0) {
+                // Nothing to visit, jump directly to the target
+                currentTick = targetTick;
+                break;
+            }
+
+            int index = (int) (currentTick & mask);
+            Timer timer = buckets[index];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.rounds == 0) {
+                    unlink(timer);
+                    timer.expiring = true;
+                    expired.add(timer);
+                } else {
+                    --timer.rounds;
+                }
+                timer = next;
+            }
+
+            // Run the tasks once the bucket has been visited, so that they may modify the wheel
+            for (Timer t : expired) {
+                // Skip the timers cancelled or rescheduled by a previous task
+                if (t.expiring) {
+                    t.expiring = false;
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        // Like the other tasks of the I/O thread, a failing timer must not prevent the next ones from running
+                        Ln.e("Timer task error", e);
+                    }
+                }
+            }
+            expired.clear();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.genymobile.scrcpy.net;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bidirectional byte pump between a client {@link Connection} and an upstream socket, once an upgrade request (WebSocket...) has been
+ * accepted by the upstream service.
+ * <p>
+ * Both channels are non-blocking and served by the I/O thread of the client connection. Each direction has its own direct buffer: a side
+ * is not read while the buffer towards the other side is full, so a slow reader throttles the writer instead of consuming memory.
+ * <p>
+ * Once a side has reached EOF, it is not read anymore, and the tunnel is closed only once the data it sent has been written to the other
+ * side (for example, the WebSocket close frame sent by the upstream just before closing its socket).
+ */
+public final class Tunnel {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final String name;
+    private final SocketChannel upstream;
+    private final String upstreamAddress;
+    private final long idleTimeout;
+    private final long createdAt = System.currentTimeMillis();
+
+    private volatile Connection client;
+
+    // Only accessed from the I/O thread
+    private SelectionKey upstreamKey;
+    private ByteBuffer toUpstream = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer toClient;
+    private boolean clientEof;
+    private boolean upstreamEof;
+
+    private volatile long lastActivity = IoThread.now();
+    private volatile long bytesUp;
+    private volatile long bytesDown;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param upstream      the connected upstream channel (switched to non-blocking mode by the tunnel)
+     * @param received      data already received from the upstream after its response head, to forward to the client first
+     * @param idleTimeoutMs the time without any data in either direction after which the tunnel is closed
+     */
+    Tunnel(String name, SocketChannel upstream, byte[] received, long idleTimeoutMs) {
+        this.name = name;
+        this.upstream = upstream;
+        this.upstreamAddress = String.valueOf(upstream.socket().getRemoteSocketAddress());
+        this.idleTimeout = idleTimeoutMs;
+        // The upstream may have sent more than a buffer before the tunnel is started
+        toClient = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, received.length + BUFFER_SIZE));
+        toClient.put(received);
+        bytesDown = received.length;
+    }
+
+    /**
+     * Start pumping (called on the I/O thread of the client connection).
+     *
+     * @param pending data received from the client after its upgrade request, to forward to the upstream first
+     */
+    void start(Connection client, Selector selector, ByteBuffer pending) throws IOException {
+        this.client = client;
+        if (pending.remaining() > toUpstream.remaining()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(pending.remaining() + BUFFER_SIZE);
+            toUpstream.flip();
+            buffer.put(toUpstream);
+            toUpstream = buffer;
+        }
+        bytesUp += pending.remaining();
+        toUpstream.put(pending);
+        upstream.configureBlocking(false);
+        upstreamKey = upstream.register(selector, 0, new UpstreamHandler());
+        writeToUpstream();
+        writeToClient();
+        updateInterest();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUpstreamAddress() {
+        return upstreamAddress;
+    }
+
+    /**
+     * Return the number of bytes forwarded from the client to the upstream.
+     */
+    public long getBytesUp() {
+        return bytesUp;
+    }
+
+    /**
+     * Return the number of bytes forwarded from the upstream to the client.
+     */
+    public long getBytesDown() {
+        return bytesDown;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getIdleMillis() {
+        return IoThread.now() - lastActivity;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    long getIdleDeadline() {
+        return lastActivity + idleTimeout;
+    }
+
+    /**
+     * Return whether the client may be read: there is room left towards the upstream.
+     */
+    boolean isClientReadable() {
+        return !clientEof && toUpstream.hasRemaining();
+    }
+
+    /**
+     * Return whether some data is waiting to be written to the client.
+     */
+    boolean hasDataForClient() {
+        return toClient.position() > 0;
+    }
+
+    /**
+     * Called when the client channel is readable.
+     */
+    void onClientReadable(SocketChannel clientChannel) throws IOException {
+        int r = clientChannel.read(toUpstream);
+        if (r == -1) {
+            Ln.d("Tunnel " + name + ": client closed");
+            // Forward what has already been received before closing
+            clientEof = true;
+            updateInterest();
+            return;
+        }
+        if (r > 0) {
+            bytesUp += r;
+            lastActivity = IoThread.now();
+            writeToUpstream();
+            updateInterest();
+        }
+    }
+
+    /**
+     * Called when the client channel is writable, and all the messages queued by the connection have been written.
+     */
+    void onClientWritable() throws IOException {
+        writeToClient();
+        updateInterest();
+    }
+
+    private void onUpstreamReadable() {
+        try {
+            int r = upstream.read(toClient);
+            if (r == -1) {
+                Ln.d("Tunnel " + name + ": upstream closed");
+                // Forward what has already been received before closing
+                upstreamEof = true;
+                updateInterest();
+                return;
+            }
+            if (r > 0) {
+                bytesDown += r;
+                lastActivity = IoThread.now();
+                writeToClient();
+                updateInterest();
+            }
+        } catch (IOException e) {
+            Ln.d("Tunnel " + name + " read error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void onUpstreamWritable() {
+        try {
+            writeToUpstream();
+            updateInterest();
+        } catch (IOException e) {
+            Ln.d("Tunnel " + name + " write error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void writeToUpstream() throws IOException {
+        toUpstream.flip();
+        try {
+            upstream.write(toUpstream);
+        } finally {
+            toUpstream.compact();
+        }
+    }
+
+    private void writeToClient() throws IOException {
+        if (!client.isSendQueueEmpty()) {
+            // The connection writes its queued messages (the response head) first, then calls onClientWritable()
+            return;
+        }
+        toClient.flip();
+        try {
+            client.writeRaw(toClient);
+        } finally {
+            toClient.compact();
+        }
+    }
+
+    private void updateInterest() {
+        if (closed.get()) {
+            return;
+        }
+        boolean upstreamDrained = upstreamEof && toClient.position() == 0 && client.isSendQueueEmpty();
+        if (upstreamDrained || (clientEof && toUpstream.position() == 0)) {
+            // A side has closed, and everything it sent has been forwarded
+            close();
+            return;
+        }
+        // Read a side only if there is room towards the other side, and write a side only if there is something to write
+        boolean upstreamReadable = !upstreamEof && toClient.hasRemaining();
+        int ops = (upstreamReadable ? SelectionKey.OP_READ : 0) | (toUpstream.position() > 0 ? SelectionKey.OP_WRITE : 0);
+        if (upstreamKey.isValid() && upstreamKey.interestOps() != ops) {
+            upstreamKey.interestOps(ops);
+        }
+        client.updateTunnelInterest();
+    }
+
+    /**
+     * Close both sides (may be called from any thread).
+     */
+    public void close() {
+        if (closed.getAndSet(true)) {
+            return;
+        }
+        if (upstreamKey != null) {
+            upstreamKey.cancel();
+        }
+        try {
+            upstream.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        Connection c = client;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    private final class UpstreamHandler implements IoThread.Selectable {
+        @Override
+        public void onReadable() {
+            onUpstreamReadable();
+        }
+
+        @Override
+        public void onWritable() {
+            onUpstreamWritable();
+        }
+
+        @Override
+        public void close() {
+            Tunnel.this.close();
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package com.genymobile.scrcpy.net;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP/1.1 client for a local upstream service, reusing persistent connections.
+ * <p>
+ * At most {@code maxConnections} requests are in flight at once; further callers wait (up to the connect timeout) for a connection to be
+ * released. Released connections are kept idle for the next request, unless the upstream service asked to close them.
+ */
+public final class UpstreamClient {
+
+    private static final int BUFFER_SIZE = 8192;
+    // Idle connections unused for longer may have been closed by the upstream service
+    private static final long IDLE_TIMEOUT_MS = 30000;
+
+    // Hop-by-hop headers, which must not be forwarded (RFC 7230 section 6.1)
+    private static final String[] HOP_BY_HOP_HEADERS = {"Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization", "TE",
+            "Trailer", "Transfer-Encoding", "Upgrade"};
+    // Request headers set by the client itself
+    private static final String[] REQUEST_HEADERS = {"Host", "Content-Length", "Expect"};
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    private final Semaphore permits;
+    // Most recently used last, so that the connections least likely to have been closed by the upstream are reused first
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private boolean closed;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong staleRetries = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong upgrades = new AtomicLong();
+
+    /**
+     * @param connectTimeoutMillis the max time to get a connection (waiting for the pool, then connecting)
+     * @param readTimeoutMillis    the max time to wait for the response head from the upstream service (the body may be streamed for any
+     *                             time, with pauses of any length)
+     */
+    public UpstreamClient(String name, String host, int port, int maxConnections, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.connectTimeout = connectTimeoutMillis;
+        this.readTimeout = readTimeoutMillis;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Forward a request (its end-to-end headers and its body) to the upstream service.
+     * <p>
+     * The connection is only released once the response body has been read entirely, or the response has been closed: the caller must
+     * close it in all cases.
+     *
+     * @param method the method to use
+     * @param target the request target (path and query) on the upstream service
+     * @throws UpstreamUnavailableException if all the connections of the pool are in use
+     */
+    public UpstreamResponse execute(String method, String target, HttpRequest request) throws IOException {
+        try {
+            if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                exhausted.incrementAndGet();
+                throw new UpstreamUnavailableException("No connection available to " + name);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + name);
+        }
+
+        boolean released = false;
+        try {
+            // A buffered body may be sent again if a reused connection turns out to be closed, not a streamed body
+            boolean replayable = request.isBodyBuffered() || request.getContentLength() == 0;
+            PooledConnection connection = pollIdle();
+            if (connection != null) {
+                hits.incrementAndGet();
+                try {
+                    UpstreamResponse response = exchange(connection, method, target, request);
+                    released = true;
+                    return response;
+                } catch (StaleConnectionException e) {
+                    closeConnection(connection);
+                    if (!replayable) {
+                        throw e;
+                    }
+                    // The upstream service closed the idle connection in the meantime
+                    Ln.d("Stale connection to " + name + ", retrying: " + e.getMessage());
+                    staleRetries.incrementAndGet();
+                } catch (IOException e) {
+                    closeConnection(connection);
+                    throw e;
+                }
+            } else {
+                misses.incrementAndGet();
+            }
+
+            connection = connect();
+            try {
+                UpstreamResponse response = exchange(connection, method, target, request);
+                released = true;
+                return response;
+            } catch (IOException e) {
+                closeConnection(connection);
+                throw e;
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            throw e;
+        } finally {
+            if (!released) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Send a request originating from the server itself, with a buffered body.
+     *
+     * @see #execute(String, String, HttpRequest)
+     */
+    public UpstreamResponse execute(String method, String target, String contentType, byte[] body) throws IOException {
+        return execute(method, target, HttpRequest.create(method, target, contentType, body));
+    }
+
+    private PooledConnection pollIdle() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            PooledConnection connection;
+            synchronized (idle) {
+                connection = idle.pollLast();
+            }
+            if (connection == null) {
+                return null;
+            }
+            if (now - connection.lastUsed < IDLE_TIMEOUT_MS) {
+                return connection;
+            }
+            closeConnection(connection);
+        }
+    }
+
+    private PooledConnection connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+            PooledConnection connection = new PooledConnection(socket);
+            open.incrementAndGet();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private UpstreamResponse exchange(PooledConnection connection, String method, String target, HttpRequest request) throws IOException {
+        long contentLength = request.getContentLength();
+
+        StringBuilder head = buildHead(method, target, request);
+        if (contentLength > 0) {
+            if (request.getHeader("Content-Type") == null) {
+                head.append("Content-Type: application/json\r\n");
+            }
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        head.append("\r\n");
+
+        OutputStream out = connection.out;
+        InputStream in = connection.in;
+        try {
+            // The previous response body was read without timeout
+            connection.socket.setSoTimeout(readTimeout);
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (contentLength > 0) {
+                ByteBuffer body = request.getBody();
+                if (body != null) {
+                    // A fresh (read-only) view on each call, so that the body can be sent again
+                    byte[] buffer = new byte[Math.min(body.remaining(), BUFFER_SIZE)];
+                    while (body.hasRemaining()) {
+                        int len = Math.min(body.remaining(), buffer.length);
+                        body.get(buffer, 0, len);
+                        out.write(buffer, 0, len);
+                    }
+                } else {
+                    copy(request.getBodyStream(), out);
+                }
+            }
+            out.flush();
+
+            // Wait for the first byte of the response: if the connection was closed by the upstream before, it fails here
+            in.mark(1);
+            if (in.read() == -1) {
+                throw new StaleConnectionException("Connection closed by " + name);
+            }
+            in.reset();
+        } catch (SocketTimeoutException e) {
+            // The upstream is slow, the request may have been processed: it must not be sent again
+            throw e;
+        } catch (StaleConnectionException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new StaleConnectionException(e.getMessage());
+        }
+
+        UpstreamResponse response = UpstreamResponse.read(in, "HEAD".equals(method), reusable -> release(connection, reusable));
+        connection.socket.setSoTimeout(0);
+        return response;
+    }
+
+    /**
+     * Forward an upgrade request (WebSocket...) to the upstream service, on a dedicated connection outside the pool.
+     * <p>
+     * If the upstream service switches protocols (status 101), the connection is handed over to a {@link Tunnel} by
+     * {@link UpstreamResponse#openTunnel(String, long)}. Otherwise, the response is read like any other, and the connection is closed once
+     * the response is released.
+     *
+     * @param target the request target (path and query) on the upstream service
+     */
+    public UpstreamResponse upgrade(String target, HttpRequest request) throws IOException {
+        StringBuilder head = buildHead("GET", target, request);
+        // The hop-by-hop headers requesting the upgrade are forwarded on purpose
+        head.append("Connection: Upgrade\r\n");
+        head.append("Upgrade: ").append(request.getHeader("Upgrade")).append("\r\n");
+        head.append("\r\n");
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            // Once switched, the bytes read ahead by the buffered stream belong to the tunnel
+            InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            UpstreamResponse response = UpstreamResponse.read(in, false, reusable -> closeQuietly(channel));
+            socket.setSoTimeout(0);
+            if (response.getStatus() == 101) {
+                upgrades.incrementAndGet();
+                response.setUpgradedChannel(channel, in);
+            }
+            return response;
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private StringBuilder buildHead(String method, String target, HttpRequest request) {
+        StringBuilder head = new StringBuilder(256);
+        head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (!isHopByHopHeader(header.getKey()) && !contains(REQUEST_HEADERS, header.getKey())) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        return head;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Indicate whether a header only concerns a single connection, so it must not be forwarded by a proxy.
+     */
+    public static boolean isHopByHopHeader(String name) {
+        return contains(HOP_BY_HOP_HEADERS, name);
+    }
+
+    private static boolean contains(String[] headers, String name) {
+        for (String header : headers) {
+            if (header.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int r;
+        while ((r = in.read(buffer)) != -1) {
+            out.write(buffer, 0, r);
+        }
+    }
+
+    private void release(PooledConnection connection, boolean reusable) {
+        try {
+            if (reusable) {
+                connection.lastUsed = System.currentTimeMillis();
+                synchronized (idle) {
+                    if (!closed) {
+                        idle.addLast(connection);
+                        return;
+                    }
+                }
+            }
+            closeConnection(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void closeConnection(PooledConnection connection) {
+        open.decrementAndGet();
+        try {
+            connection.socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Close the idle connections; the connections in use are closed once released.
+     */
+    public void close() {
+        PooledConnection[] connections;
+        synchronized (idle) {
+            closed = true;
+            connections = idle.toArray(new PooledConnection[0]);
+            idle.clear();
+        }
+        for (PooledConnection connection : connections) {
+            closeConnection(connection);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Return the number of connections currently executing a request.
+     */
+    public int getActive() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * Return the number of open connections (active or idle).
+     */
+    public int getOpen() {
+        return open.get();
+    }
+
+    public int getIdle() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Return the number of requests sent on a reused connection.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of requests which required a new connection.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of requests rejected because all the connections were in use.
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * Return the number of requests sent again because the reused connection had been closed by the upstream service.
+     */
+    public long getStaleRetries() {
+        return staleRetries.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Return the number of upgrade requests accepted by the upstream service.
+     */
+    public long getUpgrades() {
+        return upgrades.get();
+    }
+
+    private static final class PooledConnection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+
+        PooledConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Failure before any byte of the response has been received.
+     */
+    private static final class StaleConnectionException extends IOException {
+        StaleConnectionException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response received by an {@link UpstreamClient}.
+ * <p>
+ * Only the head is read when the response is returned; the body is read on demand from {@link #getBody()}. The underlying connection is
+ * returned to the pool once the body has been read entirely, or closed if the response is closed before.
+ */
+public final class UpstreamResponse implements Closeable {
+
+    interface ReleaseListener {
+        /**
+         * Called exactly once, when the connection is not used by the response anymore.
+         *
+         * @param reusable whether another request may be sent on the connection
+         */
+        void onRelease(boolean reusable);
+    }
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADER_COUNT = 100;
+
+    private final String version;
+    private final int status;
+    private final String reason;
+    private final List<Map.Entry<String, String>> headers;
+    private final long contentLength;
+    private final boolean chunked;
+    private final BodyStream body;
+
+    // Set for a 101 response to an upgrade request, until the connection is handed over to a tunnel
+    private SocketChannel upgradedChannel;
+    private InputStream upgradedInput;
+    private boolean tunneled;
+
+    private UpstreamResponse(String version, int status, String reason, List<Map.Entry<String, String>> headers, long contentLength,
+            boolean chunked, BodyStream body) {
+        this.version = version;
+        this.status = status;
+        this.reason = reason;
+        this.headers = headers;
+        this.contentLength = contentLength;
+        this.chunked = chunked;
+        this.body = body;
+    }
+
+    /**
+     * Read the head of a response (skipping the interim responses).
+     *
+     * @param headRequest whether the request method was {@code HEAD} (the response then has no body)
+     */
+    static UpstreamResponse read(InputStream in, boolean headRequest, ReleaseListener listener) throws IOException {
+        while (true) {
+            String statusLine = readLine(in);
+            // HTTP-version SP status-code SP reason-phrase
+            int sp1 = statusLine.indexOf(' ');
+            if (sp1 == -1 || !statusLine.startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            int sp2 = statusLine.indexOf(' ', sp1 + 1);
+            String version = statusLine.substring(0, sp1);
+            int status;
+            try {
+                status = Integer.parseInt(statusLine.substring(sp1 + 1, sp2 == -1 ? statusLine.length() : sp2));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            String reason = sp2 == -1 ? "" : statusLine.substring(sp2 + 1);
+
+            List<Map.Entry<String, String>> headers = new ArrayList<>();
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (headers.size() == MAX_HEADER_COUNT) {
+                    throw new IOException("Too many headers");
+                }
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new IOException("Invalid header: " + line);
+                }
+                headers.add(new AbstractMap.SimpleImmutableEntry<>(line.substring(0, colon).trim(), line.substring(colon + 1).trim()));
+            }
+
+            if (status >= 100 && status < 200 && status != 101) {
+                // Interim response (100 Continue...), the final response follows
+                continue;
+            }
+
+            String connection = find(headers, "Connection");
+            boolean keepAlive;
+            if ("HTTP/1.0".equals(version)) {
+                keepAlive = connection != null && HttpRequest.containsToken(connection, "keep-alive");
+            } else {
+                keepAlive = connection == null || !HttpRequest.containsToken(connection, "close");
+            }
+
+            String transferEncoding = find(headers, "Transfer-Encoding");
+            String contentLengthValue = find(headers, "Content-Length");
+            long contentLength = -1;
+            boolean chunked = false;
+            BodyStream body;
+            if (headRequest || status == 101 || status == 204 || status == 304) {
+                contentLength = 0;
+                // After a protocol switch, the connection does not carry HTTP anymore
+                body = new FixedLengthBody(in, 0, keepAlive && status != 101, listener);
+            } else if (transferEncoding != null && HttpRequest.containsToken(transferEncoding, "chunked")) {
+                chunked = true;
+                body = new ChunkedBody(in, keepAlive, listener);
+            } else if (contentLengthValue != null) {
+                try {
+                    contentLength = Long.parseLong(contentLengthValue);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length: " + contentLengthValue);
+                }
+                if (contentLength < 0) {
+                    throw new IOException("Invalid Content-Length: " + contentLengthValue);
+                }
+                body = new FixedLengthBody(in, contentLength, keepAlive, listener);
+            } else {
+                // Delimited by the end of the connection, which cannot be reused
+                body = new UntilCloseBody(in, listener);
+            }
+
+            return new UpstreamResponse(version, status, reason, Collections.unmodifiableList(headers), contentLength, chunked, body);
+        }
+    }
+
+    private static String find(List<Map.Entry<String, String>> headers, String name) {
+        for (Map.Entry<String, String> header : headers) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read a line terminated by CRLF (or LF), without its terminator.
+     */
+    static String readLine(InputStream in) throws IOException {
+        byte[] line = new byte[128];
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Unexpected end of stream");
+            }
+            if (length == line.length) {
+                if (length == MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                byte[] newLine = new byte[Math.min(length * 2, MAX_LINE_LENGTH)];
+                System.arraycopy(line, 0, newLine, 0, length);
+                line = newLine;
+            }
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            --length;
+        }
+        return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Return the value of the first header named {@code name} (case-insensitive), or {@code null} if it is absent.
+     */
+    public String getHeader(String name) {
+        return find(headers, name);
+    }
+
+    /**
+     * Return all the headers, in the order they were received (repeated headers are not merged).
+     */
+    public List<Map.Entry<String, String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Return the length of the body, or -1 if it is unknown (chunked, or delimited by the end of the connection).
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * Return the (decoded) body.
+     * <p>
+     * Closing the stream before its end closes the underlying connection.
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    void setUpgradedChannel(SocketChannel channel, InputStream in) {
+        upgradedChannel = channel;
+        upgradedInput = in;
+    }
+
+    /**
+     * Hand the connection over to a new tunnel, after the upstream service switched protocols.
+     * <p>
+     * The response must not be used anymore (closing it does not close the connection).
+     *
+     * @param idleTimeoutMs the time without any data in either direction after which the tunnel is closed
+     * @throws IllegalStateException if the response is not a protocol switch in response to {@link UpstreamClient#upgrade(String,
+     *                               HttpRequest)}
+     */
+    public synchronized Tunnel openTunnel(String name, long idleTimeoutMs) throws IOException {
+        if (upgradedChannel == null || tunneled) {
+            throw new IllegalStateException("Not an upgraded connection");
+        }
+        tunneled = true;
+        // The upstream may have sent data right after its response head
+        byte[] received = new byte[upgradedInput.available()];
+        int length = 0;
+        while (length < received.length) {
+            length += upgradedInput.read(received, length, received.length - length);
+        }
+        return new Tunnel(name, upgradedChannel, received, idleTimeoutMs);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!tunneled) {
+            body.close();
+        }
+    }
+
+    private abstract static class BodyStream extends InputStream {
+        final InputStream in;
+        private final boolean reusable;
+        private final ReleaseListener listener;
+        private boolean released;
+        boolean eof;
+
+        BodyStream(InputStream in, boolean reusable, ReleaseListener listener) {
+            this.in = in;
+            this.reusable = reusable;
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int r = read(b, 0, 1);
+            return r == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof || released) {
+                // An empty body is released on the first read
+                release(eof && reusable);
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                int r = readBody(b, off, len);
+                if (eof) {
+                    // Release the connection as soon as the body has been entirely received
+                    release(reusable);
+                }
+                return r;
+            } catch (IOException e) {
+                release(false);
+                throw e;
+            }
+        }
+
+        /**
+         * Read some bytes of the body, and set {@link #eof} once the end has been reached.
+         *
+         * @return the number of bytes read, or -1 at the end of the body
+         */
+        abstract int readBody(byte[] b, int off, int len) throws IOException;
+
+        private synchronized void release(boolean reuse) {
+            if (!released) {
+                released = true;
+                listener.onRelease(reuse);
+            }
+        }
+
+        @Override
+        public void close() {
+            // If the body has not been entirely read, the connection cannot be reused
+            release(eof && reusable);
+        }
+    }
+
+    private static final class FixedLengthBody extends BodyStream {
+        private long remaining;
+
+        FixedLengthBody(InputStream in, long length, boolean reusable, ReleaseListener listener) {
+            super(in, reusable, listener);
+            this.remaining = length;
+            eof = length == 0;
+        }
+
+        @Override
+        int readBody(byte[] b, int off, int len) throws IOException {
+            int r = in.read(b, off, (int) Math.min(len, remaining));
+            if (r == -1) {
+                throw new IOException("Unexpected end of body");
+            }
+            remaining -= r;
+            eof = remaining == 0;
+            return r;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    private static final class ChunkedBody extends BodyStream {
+        // Remaining bytes of the current chunk, or -1 before the first chunk
+        private long chunkRemaining = -1;
+
+        ChunkedBody(InputStream in, boolean reusable, ReleaseListener listener) {
+            super(in, reusable, listener);
+        }
+
+        @Override
+        int readBody(byte[] b, int off, int len) throws IOException {
+            if (chunkRemaining <= 0) {
+                if (chunkRemaining == 0) {
+                    // CRLF terminating the previous chunk
+                    readLine(in);
+                }
+                String sizeLine = readLine(in);
+                int semicolon = sizeLine.indexOf(';');
+                String size = (semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim();
+                try {
+                    chunkRemaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                if (chunkRemaining < 0) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                if (chunkRemaining == 0) {
+                    // Last chunk: skip the trailers
+                    while (!readLine(in).isEmpty()) {
+                        // ignore
+                    }
+                    eof = true;
+                    return -1;
+                }
+            }
+            int r = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (r == -1) {
+                throw new IOException("Unexpected end of chunk");
+            }
+            chunkRemaining -= r;
+            return r;
+        }
+    }
+
+    private static final class UntilCloseBody extends BodyStream {
+        UntilCloseBody(InputStream in, ReleaseListener listener) {
+            super(in, false, listener);
+        }
+
+        @Override
+        int readBody(byte[] b, int off, int len) throws IOException {
+            int r = in.read(b, off, len);
+            if (r == -1) {
+                eof = true;
+            }
+            return r;
+        }
+    }
+}
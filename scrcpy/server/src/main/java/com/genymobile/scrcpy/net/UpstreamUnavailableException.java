@@ -0,0 +1,13 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.IOException;
+
+/**
+ * Thrown when no connection to an upstream service could be obtained in time: all the connections allowed by the pool are in use.
+ */
+public class UpstreamUnavailableException extends IOException {
+
+    public UpstreamUnavailableException(String message) {
+        super(message);
+    }
+}
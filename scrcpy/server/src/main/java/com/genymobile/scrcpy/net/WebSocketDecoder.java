@@ -0,0 +1,308 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental decoder of the WebSocket frames sent by a client (RFC 6455).
+ * <p>
+ * Input may be split anywhere (even inside a frame header): {@link #decode(ByteBuffer)} consumes all the available bytes and keeps its state
+ * until the next call. Fragmented messages are reassembled, and control frames (which may be interleaved with fragments) are reported
+ * separately.
+ * <p>
+ * Payloads are unmasked into a buffer reused for all the messages of the connection: the buffers passed to the {@link Listener} are only
+ * valid during the call.
+ */
+public final class WebSocketDecoder {
+
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    // First header byte flag set on the first frame of a message compressed by permessage-deflate
+    public static final int RSV1 = 0x40;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_NO_STATUS = 1005;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int INITIAL_MESSAGE_CAPACITY = 4 * 1024;
+
+    public interface Listener {
+        /**
+         * Called when a complete (possibly reassembled) text or binary message has been received.
+         */
+        void onMessage(int opcode, ByteBuffer payload) throws IOException;
+
+        void onPing(ByteBuffer payload) throws IOException;
+
+        void onPong(ByteBuffer payload) throws IOException;
+
+        /**
+         * Called when a close frame has been received. No more frames will be decoded.
+         *
+         * @param code the status code, or {@link #CLOSE_NO_STATUS} if the frame has no payload
+         */
+        void onClose(int code, String reason) throws IOException;
+    }
+
+    private enum State {
+        HEADER, PAYLOAD, CLOSED
+    }
+
+    private final int maxMessageSize;
+    private final Listener listener;
+    private final PerMessageDeflate deflate;
+
+    private State state = State.HEADER;
+
+    // Current frame header (at most 2 + 8 + 4 bytes)
+    private final byte[] header = new byte[14];
+    private int headerRead;
+    private boolean fin;
+    private int opcode;
+    private long payloadRemaining;
+    private final byte[] mask = new byte[4];
+    private int maskIndex;
+
+    // Opcode of the fragmented message being reassembled, or -1
+    private int messageOpcode = -1;
+    private boolean messageCompressed;
+    private ByteBuffer message = ByteBuffer.allocate(INITIAL_MESSAGE_CAPACITY);
+    private final ByteBuffer control = ByteBuffer.allocate(MAX_CONTROL_PAYLOAD);
+
+    public WebSocketDecoder(int maxMessageSize, Listener listener) {
+        this(maxMessageSize, listener, null);
+    }
+
+    /**
+     * @param deflate the negotiated permessage-deflate extension, or {@code null}
+     */
+    public WebSocketDecoder(int maxMessageSize, Listener listener, PerMessageDeflate deflate) {
+        this.maxMessageSize = maxMessageSize;
+        this.listener = listener;
+        this.deflate = deflate;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Decode all the remaining bytes of {@code input}.
+     *
+     * @throws WebSocketProtocolException if the client violates the protocol or exceeds the max message size
+     */
+    public void decode(ByteBuffer input) throws IOException {
+        while (input.hasRemaining()) {
+            switch (state) {
+                case HEADER:
+                    if (readHeader(input)) {
+                        startPayload();
+                    }
+                    break;
+                case PAYLOAD:
+                    readPayload(input);
+                    break;
+                default:
+                    // Nothing is expected after a close frame
+                    input.position(input.limit());
+                    return;
+            }
+        }
+        if (state == State.PAYLOAD && payloadRemaining == 0) {
+            // Empty payload, the frame is complete without any further input
+            endFrame();
+        }
+    }
+
+    private int headerLength() {
+        if (headerRead < 2) {
+            return 2;
+        }
+        int length = 2;
+        if ((header[1] & 0x80) != 0) {
+            length += 4;
+        }
+        int len7 = header[1] & 0x7F;
+        if (len7 == 126) {
+            length += 2;
+        } else if (len7 == 127) {
+            length += 8;
+        }
+        return length;
+    }
+
+    private boolean readHeader(ByteBuffer input) {
+        int length;
+        while (headerRead < (length = headerLength())) {
+            if (!input.hasRemaining()) {
+                return false;
+            }
+            int n = Math.min(length - headerRead, input.remaining());
+            input.get(header, headerRead, n);
+            headerRead += n;
+        }
+        return true;
+    }
+
+    private void startPayload() throws IOException {
+        int b0 = header[0] & 0xFF;
+        int b1 = header[1] & 0xFF;
+        fin = (b0 & 0x80) != 0;
+        opcode = b0 & 0x0F;
+        int rsv = b0 & 0x70;
+        // RSV1 is only allowed on the first frame of a data message, if permessage-deflate has been negotiated
+        boolean compressed = deflate != null && rsv == RSV1 && (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY);
+        if (rsv != 0 && !compressed) {
+            throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Unexpected RSV bits");
+        }
+        if ((b1 & 0x80) == 0) {
+            throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+        }
+
+        int len7 = b1 & 0x7F;
+        int pos = 2;
+        long length;
+        if (len7 == 126) {
+            length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            pos += 2;
+        } else if (len7 == 127) {
+            length = 0;
+            for (int i = 0; i < 8; ++i) {
+                length = (length << 8) | (header[pos + i] & 0xFF);
+            }
+            if (length < 0) {
+                throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Invalid payload length");
+            }
+            pos += 8;
+        } else {
+            length = len7;
+        }
+        System.arraycopy(header, pos, mask, 0, 4);
+        maskIndex = 0;
+        payloadRemaining = length;
+
+        if (opcode >= OPCODE_CLOSE) {
+            if (opcode > OPCODE_PONG) {
+                throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Unknown opcode: " + opcode);
+            }
+            if (!fin || length > MAX_CONTROL_PAYLOAD) {
+                throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+            }
+            control.clear();
+        } else {
+            if (opcode == OPCODE_CONTINUATION) {
+                if (messageOpcode == -1) {
+                    throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame");
+                }
+            } else if (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) {
+                if (messageOpcode != -1) {
+                    throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Expected continuation frame");
+                }
+                messageOpcode = opcode;
+                messageCompressed = compressed;
+                message.clear();
+            } else {
+                throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Unknown opcode: " + opcode);
+            }
+            long total = message.position() + length;
+            if (total > maxMessageSize) {
+                throw new WebSocketProtocolException(CLOSE_TOO_BIG, "Message too large: " + total + " bytes");
+            }
+            ensureMessageCapacity((int) total);
+        }
+
+        state = State.PAYLOAD;
+    }
+
+    private void ensureMessageCapacity(int capacity) {
+        if (capacity > message.capacity()) {
+            int newCapacity = Math.min(maxMessageSize, Math.max(capacity, message.capacity() * 2));
+            ByteBuffer newMessage = ByteBuffer.allocate(newCapacity);
+            message.flip();
+            newMessage.put(message);
+            message = newMessage;
+        }
+    }
+
+    private void readPayload(ByteBuffer input) throws IOException {
+        int n = (int) Math.min(payloadRemaining, input.remaining());
+        ByteBuffer target = opcode >= OPCODE_CLOSE ? control : message;
+        unmask(input, target, n);
+        payloadRemaining -= n;
+        if (payloadRemaining == 0) {
+            endFrame();
+        }
+    }
+
+    private void unmask(ByteBuffer input, ByteBuffer target, int length) {
+        int n = length;
+        if (n >= 8) {
+            // 8 bytes at a time: the mask phase is unchanged after 8 bytes
+            long mask64 = 0;
+            for (int i = 0; i < 8; ++i) {
+                mask64 = (mask64 << 8) | (mask[(maskIndex + i) & 3] & 0xFF);
+            }
+            while (n >= 8) {
+                target.putLong(input.getLong() ^ mask64);
+                n -= 8;
+            }
+        }
+        while (n > 0) {
+            target.put((byte) (input.get() ^ mask[maskIndex]));
+            maskIndex = (maskIndex + 1) & 3;
+            --n;
+        }
+    }
+
+    private void endFrame() throws IOException {
+        state = State.HEADER;
+        headerRead = 0;
+
+        switch (opcode) {
+            case OPCODE_CLOSE:
+                handleClose();
+                break;
+            case OPCODE_PING:
+                control.flip();
+                listener.onPing(control);
+                break;
+            case OPCODE_PONG:
+                control.flip();
+                listener.onPong(control);
+                break;
+            default:
+                if (fin) {
+                    int completeOpcode = messageOpcode;
+                    messageOpcode = -1;
+                    message.flip();
+                    ByteBuffer payload = messageCompressed ? deflate.decompress(message, maxMessageSize) : message;
+                    listener.onMessage(completeOpcode, payload);
+                    message.clear();
+                }
+                break;
+        }
+    }
+
+    private void handleClose() throws IOException {
+        state = State.CLOSED;
+        control.flip();
+        int code = CLOSE_NO_STATUS;
+        String reason = "";
+        if (control.remaining() == 1) {
+            throw new WebSocketProtocolException(CLOSE_PROTOCOL_ERROR, "Invalid close frame");
+        }
+        if (control.remaining() >= 2) {
+            code = control.getShort() & 0xFFFF;
+            reason = StandardCharsets.UTF_8.decode(control).toString();
+        }
+        listener.onClose(code, reason);
+    }
+}
@@ -0,0 +1,20 @@
+package com.genymobile.scrcpy.net;
+
+import java.io.IOException;
+
+public class WebSocketProtocolException extends IOException {
+
+    private final int closeCode;
+
+    public WebSocketProtocolException(int closeCode, String message) {
+        super(message);
+        this.closeCode = closeCode;
+    }
+
+    /**
+     * Return the status code to send in the close frame (RFC 6455 section 7.4).
+     */
+    public int getCloseCode() {
+        return closeCode;
+    }
+}
@@ -0,0 +1,125 @@
+package com.genymobile.scrcpy.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named pool with a bounded number of threads and a bounded queue.
+ * <p>
+ * When all the threads are busy and the queue is full, tasks are rejected immediately instead of creating more threads (which would only
+ * make things worse on a saturated low-end device): the caller is expected to report the overload to its client.
+ * <p>
+ * Idle threads are stopped after a while, so an unused pool costs nothing.
+ */
+public final class WorkerPool {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String name;
+    private volatile int maxThreads;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param queueCapacity the max number of tasks waiting for a thread (0 to never queue: tasks are rejected if all the threads are busy)
+     */
+    public WorkerPool(String name, int maxThreads, int queueCapacity) {
+        this.name = name;
+        this.maxThreads = maxThreads;
+        this.queueCapacity = queueCapacity;
+
+        BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                r -> new Thread(r, name + "-" + threadCount.incrementAndGet()), (r, e) -> {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException("Pool " + name + " saturated");
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a task, unless the pool is saturated or shut down.
+     *
+     * @return {@code false} if the task has been rejected
+     */
+    public boolean tryExecute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Change the max number of threads (the tasks already running are not affected).
+     */
+    public void setMaxThreads(int maxThreads) {
+        // The core size must never exceed the max size
+        if (maxThreads > this.maxThreads) {
+            executor.setMaximumPoolSize(maxThreads);
+            executor.setCorePoolSize(maxThreads);
+        } else {
+            executor.setCorePoolSize(maxThreads);
+            executor.setMaximumPoolSize(maxThreads);
+        }
+        this.maxThreads = maxThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Return the number of threads currently alive (busy or idle).
+     */
+    public int getThreads() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Return the approximate number of threads currently running a task.
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Return the number of tasks rejected because the pool was saturated (or shut down).
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+}
@@ -0,0 +1,167 @@
+package com.genymobile.scrcpy.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of mutable bitmaps, keyed by size and config, to avoid allocating a bitmap (and collecting it) for every encoded frame.
+ * <p>
+ * Only a few sizes are expected (the capture size and its scaled sizes), so the sizes are scanned linearly. When more sizes are used, the
+ * least recently used one is evicted.
+ */
+public final class BitmapPool {
+
+    private static final class Slot {
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+        private final ArrayDeque<Bitmap> idle = new ArrayDeque<>();
+        private long lastUsed;
+
+        Slot(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        boolean matches(int width, int height, Bitmap.Config config) {
+            return this.width == width && this.height == height && this.config == config;
+        }
+    }
+
+    private final int maxSizes;
+    private final int maxIdlePerSize;
+    // Guarded by itself
+    private final List<Slot> slots = new ArrayList<>();
+    private long clock;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+
+    /**
+     * @param maxSizes       the max number of distinct sizes kept
+     * @param maxIdlePerSize the max number of idle bitmaps kept per size (the bitmaps released beyond are recycled)
+     */
+    public BitmapPool(int maxSizes, int maxIdlePerSize) {
+        this.maxSizes = maxSizes;
+        this.maxIdlePerSize = maxIdlePerSize;
+    }
+
+    /**
+     * Return a bitmap of the requested size and config, whose content is undefined.
+     */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+        synchronized (slots) {
+            Slot slot = findSlot(width, height, config);
+            if (slot != null) {
+                slot.lastUsed = ++clock;
+                Bitmap bitmap = slot.idle.pollLast();
+                if (bitmap != null) {
+                    reused.incrementAndGet();
+                    return bitmap;
+                }
+            }
+        }
+        created.incrementAndGet();
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Return a bitmap acquired from this pool (it must not be used anymore by the caller).
+     */
+    public void release(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        Bitmap.Config config = bitmap.getConfig();
+        List<Bitmap> evicted = null;
+        synchronized (slots) {
+            Slot slot = findSlot(width, height, config);
+            if (slot == null) {
+                if (slots.size() >= maxSizes) {
+                    Slot lru = slots.get(0);
+                    for (Slot s : slots) {
+                        if (s.lastUsed < lru.lastUsed) {
+                            lru = s;
+                        }
+                    }
+                    slots.remove(lru);
+                    evicted = new ArrayList<>(lru.idle);
+                }
+                slot = new Slot(width, height, config);
+                slot.lastUsed = ++clock;
+                slots.add(slot);
+            }
+            if (slot.idle.size() < maxIdlePerSize) {
+                slot.idle.addLast(bitmap);
+                bitmap = null;
+            }
+        }
+        if (bitmap != null) {
+            recycle(bitmap);
+        }
+        if (evicted != null) {
+            for (Bitmap b : evicted) {
+                recycle(b);
+            }
+        }
+    }
+
+    /**
+     * Recycle all the idle bitmaps.
+     */
+    public void clear() {
+        List<Bitmap> bitmaps = new ArrayList<>();
+        synchronized (slots) {
+            for (Slot slot : slots) {
+                bitmaps.addAll(slot.idle);
+            }
+            slots.clear();
+        }
+        for (Bitmap bitmap : bitmaps) {
+            recycle(bitmap);
+        }
+    }
+
+    // Called with the lock held
+    private Slot findSlot(int width, int height, Bitmap.Config config) {
+        for (int i = 0; i < slots.size(); ++i) {
+            Slot slot = slots.get(i);
+            if (slot.matches(width, height, config)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private void recycle(Bitmap bitmap) {
+        bitmap.recycle();
+        recycled.incrementAndGet();
+    }
+
+    public int getIdle() {
+        synchronized (slots) {
+            int idle = 0;
+            for (Slot slot : slots) {
+                idle += slot.idle.size();
+            }
+            return idle;
+        }
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public long getRecycled() {
+        return recycled.get();
+    }
+}
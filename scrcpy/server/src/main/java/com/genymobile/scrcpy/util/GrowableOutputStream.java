@@ -0,0 +1,90 @@
+package com.genymobile.scrcpy.util;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * In-memory output stream whose buffer is kept across uses, so that writing data of a similar size again does not allocate.
+ * <p>
+ * Unlike {@link java.io.ByteArrayOutputStream}, it is not synchronized, and bytes may be reserved at the start of the buffer to be written
+ * in place once the data is known (a length prefix, for example).
+ */
+public final class GrowableOutputStream extends OutputStream {
+
+    private byte[] buffer;
+    private int count;
+
+    public GrowableOutputStream(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Discard the content, keeping the buffer.
+     *
+     * @param reserved the number of bytes to reserve at the start (their content is undefined until written with {@link #putInt(int, int)})
+     */
+    public void reset(int reserved) {
+        ensureCapacity(reserved);
+        count = reserved;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Append a big-endian int.
+     */
+    public void writeInt(int value) {
+        ensureCapacity(count + 4);
+        putInt(count, value);
+        count += 4;
+    }
+
+    /**
+     * Write a big-endian int at a given position (typically in the reserved bytes), without changing the size.
+     */
+    public void putInt(int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Return a copy of a range of the content.
+     */
+    public byte[] toByteArray(int from, int to) {
+        return Arrays.copyOfRange(buffer, from, to);
+    }
+
+    public byte[] toByteArray() {
+        return toByteArray(0, count);
+    }
+
+    /**
+     * Return the current capacity of the buffer.
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.genymobile.scrcpy.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of long-lived {@code sh} processes executing shell commands, to avoid a fork/exec per command.
+ * <p>
+ * Each command is run in a subshell (so that {@code cd}, {@code exit} or variables do not leak to the next command) with its stdin
+ * redirected from {@code /dev/null}, and is followed by a sentinel line, unique per command, carrying its exit code: the output is read
+ * until the sentinel.
+ * <p>
+ * The output is polled rather than read with a blocking call, so that a command which does not complete is abandoned at its deadline even
+ * if one of its children keeps the pipe open. A shell whose command timed out (or which failed in any way) is destroyed, and replaced by a
+ * new one on demand.
+ */
+public final class ShellPool {
+
+    private static final int BUFFER_SIZE = 8192;
+    // The output is kept in memory
+    private static final int MAX_OUTPUT_SIZE = 16 * 1024 * 1024;
+    // Polling delays while a command produces no output
+    private static final long MIN_POLL_DELAY_MS = 1;
+    private static final long MAX_POLL_DELAY_MS = 16;
+
+    /**
+     * The result of a command.
+     */
+    public static final class Result {
+        private final int exitCode;
+        private final String output;
+
+        Result(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * Return the output of the command (stdout and stderr interleaved).
+         */
+        public String getOutput() {
+            return output;
+        }
+    }
+
+    private final int maxShells;
+    private final Semaphore permits;
+    private final Deque<Shell> idle = new ArrayDeque<>();
+    private final Random random = new Random();
+    private boolean closed;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+
+    /**
+     * @param maxShells the max number of shells (and of commands running concurrently)
+     */
+    public ShellPool(int maxShells) {
+        this.maxShells = maxShells;
+        this.permits = new Semaphore(maxShells, true);
+    }
+
+    private final class Shell {
+        private final Process process;
+        private final InputStream in;
+        private final OutputStream out;
+        private final String sentinelPrefix;
+        private int sequence;
+
+        Shell() throws IOException {
+            ProcessBuilder pb = new ProcessBuilder("sh");
+            pb.redirectErrorStream(true);
+            process = pb.start();
+            in = process.getInputStream();
+            out = process.getOutputStream();
+            synchronized (random) {
+                sentinelPrefix = "__SHELL_" + Long.toHexString(random.nextLong() & Long.MAX_VALUE) + "_";
+            }
+        }
+
+        Result run(String command, long deadline) throws IOException {
+            // Discard any late output of a previous command (from a background job)
+            int stale = in.available();
+            while (stale > 0) {
+                stale -= (int) in.skip(stale);
+            }
+
+            String sentinel = sentinelPrefix + ++sequence + "__";
+            // The leading newline guarantees the sentinel starts a line, even if the output does not end with a newline
+            String script = "(eval " + quote(command) + ") </dev/null 2>&1; printf '\\n%s %d\\n' " + sentinel + " $?\n";
+            out.write(script.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            byte[] marker = ("\n" + sentinel + " ").getBytes(StandardCharsets.US_ASCII);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length = 0;
+            int markerIndex = -1;
+            long delay = MIN_POLL_DELAY_MS;
+            while (true) {
+                // Also checked while data is received, for a command which never stops writing
+                long remaining = deadline - now();
+                if (remaining <= 0) {
+                    throw new ShellTimeoutException("Command timed out");
+                }
+                int available = in.available();
+                if (available > 0) {
+                    if (length + available > buffer.length) {
+                        if (length + available > MAX_OUTPUT_SIZE) {
+                            throw new IOException("Command output too large");
+                        }
+                        byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + available)];
+                        System.arraycopy(buffer, 0, newBuffer, 0, length);
+                        buffer = newBuffer;
+                    }
+                    int r = in.read(buffer, length, Math.min(available, buffer.length - length));
+                    if (r == -1) {
+                        throw new IOException("Shell terminated");
+                    }
+                    int searchFrom = Math.max(0, length - marker.length);
+                    length += r;
+                    if (markerIndex == -1) {
+                        markerIndex = indexOf(buffer, length, marker, searchFrom);
+                    }
+                    if (markerIndex != -1) {
+                        int codeStart = markerIndex + marker.length;
+                        int end = indexOf(buffer, length, new byte[] {'\n'}, codeStart);
+                        if (end != -1) {
+                            String exitCode = new String(buffer, codeStart, end - codeStart, StandardCharsets.US_ASCII).trim();
+                            String output = new String(buffer, 0, markerIndex, StandardCharsets.UTF_8);
+                            try {
+                                return new Result(Integer.parseInt(exitCode), output);
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Invalid exit code: " + exitCode);
+                            }
+                        }
+                    }
+                    delay = MIN_POLL_DELAY_MS;
+                    continue;
+                }
+
+                if (!isAlive()) {
+                    throw new IOException("Shell terminated");
+                }
+                try {
+                    Thread.sleep(Math.min(delay, remaining));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for the command");
+                }
+                delay = Math.min(delay * 2, MAX_POLL_DELAY_MS);
+            }
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        void destroy() {
+            process.destroy();
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Execute a command in one of the shells.
+     *
+     * @param timeoutMillis the max time to wait for a shell and for the command to complete
+     * @throws ShellTimeoutException if no shell became available, or the command did not complete, in time
+     */
+    public Result exec(String command, long timeoutMillis) throws IOException {
+        long deadline = now() + timeoutMillis;
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new ShellTimeoutException("No shell available");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a shell");
+        }
+
+        try {
+            Shell shell = pollIdle();
+            if (shell == null) {
+                shell = new Shell();
+                open.incrementAndGet();
+                started.incrementAndGet();
+            }
+            commands.incrementAndGet();
+            try {
+                Result result = shell.run(command, deadline);
+                release(shell);
+                return result;
+            } catch (IOException e) {
+                if (e instanceof ShellTimeoutException) {
+                    timeouts.incrementAndGet();
+                }
+                // The state of the shell is unknown (a command may still be running): replace it
+                Ln.w("Replacing shell: " + e.getMessage());
+                replaced.incrementAndGet();
+                destroy(shell);
+                throw e;
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Shell pollIdle() {
+        while (true) {
+            Shell shell;
+            synchronized (idle) {
+                shell = idle.pollLast();
+            }
+            if (shell == null || shell.isAlive()) {
+                return shell;
+            }
+            replaced.incrementAndGet();
+            destroy(shell);
+        }
+    }
+
+    private void release(Shell shell) {
+        synchronized (idle) {
+            if (!closed) {
+                idle.addLast(shell);
+                return;
+            }
+        }
+        destroy(shell);
+    }
+
+    private void destroy(Shell shell) {
+        shell.destroy();
+        open.decrementAndGet();
+    }
+
+    /**
+     * Destroy the idle shells; the shells in use are destroyed once their command completes.
+     */
+    public void close() {
+        Shell[] shells;
+        synchronized (idle) {
+            closed = true;
+            shells = idle.toArray(new Shell[0]);
+            idle.clear();
+        }
+        for (Shell shell : shells) {
+            destroy(shell);
+        }
+    }
+
+    public int getMaxShells() {
+        return maxShells;
+    }
+
+    /**
+     * Return the number of shells running a command.
+     */
+    public int getActive() {
+        return maxShells - permits.availablePermits();
+    }
+
+    /**
+     * Return the number of live shells (running a command or idle).
+     */
+    public int getOpen() {
+        return open.get();
+    }
+
+    /**
+     * Return the number of shells started since the creation of the pool.
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * Return the number of commands which timed out (waiting for a shell or running).
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Return the number of shells destroyed because they failed or were wedged.
+     */
+    public long getReplaced() {
+        return replaced.get();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Quote a string as a single shell word.
+     */
+    static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern, int from) {
+        for (int i = from; i <= length - pattern.length; ++i) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                ++j;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,13 @@
+package com.genymobile.scrcpy.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a shell command did not complete in time, or no shell of the pool became available in time.
+ */
+public class ShellTimeoutException extends IOException {
+
+    public ShellTimeoutException(String message) {
+        super(message);
+    }
+}
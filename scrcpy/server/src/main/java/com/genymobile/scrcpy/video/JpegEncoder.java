@@ -0,0 +1,156 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.util.BitmapPool;
+import com.genymobile.scrcpy.util.GrowableOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encoder of RGBA frames to JPEG, optionally framed with the metadata sent on {@code /screen.jpeg} and {@code /screenImg.jpeg}.
+ * <p>
+ * The bitmaps are pooled and each thread reuses its own output buffer, so that in steady state, the only allocation per encoding is the
+ * returned array. The framing is written in place around the JPEG data.
+ * <p>
+ * Framed format (big-endian): JPEG length (int), JPEG data, then width, height, quality, scale &times; 100, seconds and milliseconds of
+ * the timestamp (int each).
+ */
+public final class JpegEncoder {
+
+    public static final int FRAME_HEADER_SIZE = 4;
+    public static final int FRAME_TRAILER_SIZE = 6 * 4;
+
+    // The full-size bitmap and one scaled size per tier
+    private static final int MAX_BITMAP_SIZES = 8;
+    // Enough for the encoder threads working on the same size concurrently
+    private static final int MAX_IDLE_BITMAPS_PER_SIZE = 2;
+    private static final int INITIAL_BUFFER_SIZE = 256 * 1024;
+
+    private static final class Context {
+        private final GrowableOutputStream out = new GrowableOutputStream(INITIAL_BUFFER_SIZE);
+        private final Canvas canvas = new Canvas();
+        private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final Rect target = new Rect();
+
+        Context() {
+            // The pooled bitmap is overwritten, not blended with its previous content
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        }
+    }
+
+    private final BitmapPool bitmaps = new BitmapPool(MAX_BITMAP_SIZES, MAX_IDLE_BITMAPS_PER_SIZE);
+    private final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    /**
+     * Encode a frame to JPEG.
+     *
+     * @param pixels the RGBA pixels (its position is not modified)
+     */
+    public byte[] encode(ByteBuffer pixels, int width, int height, int quality, float scale) {
+        Context context = contexts.get();
+        compress(context, pixels, width, height, quality, scale, 0);
+        return context.out.toByteArray();
+    }
+
+    /**
+     * Encode a frame to JPEG, framed with its metadata.
+     *
+     * @param pixels the RGBA pixels (its position is not modified)
+     */
+    public byte[] encodeFramed(ByteBuffer pixels, int width, int height, int quality, float scale, long timestamp) {
+        Context context = contexts.get();
+        GrowableOutputStream out = context.out;
+        int length = compress(context, pixels, width, height, quality, scale, FRAME_HEADER_SIZE);
+        out.putInt(0, length);
+        writeTrailer(out, width, height, quality, scale, timestamp);
+        return out.toByteArray();
+    }
+
+    /**
+     * Frame an already encoded JPEG image with its metadata.
+     */
+    public static byte[] frame(byte[] jpeg, int width, int height, int quality, float scale, long timestamp) {
+        byte[] framed = new byte[FRAME_HEADER_SIZE + jpeg.length + FRAME_TRAILER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(framed);
+        buffer.putInt(jpeg.length);
+        buffer.put(jpeg);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(quality);
+        buffer.putInt((int) (scale * 100));
+        buffer.putInt((int) (timestamp / 1000));
+        buffer.putInt((int) (timestamp % 1000));
+        return framed;
+    }
+
+    /**
+     * Extract the JPEG image from a framed image.
+     */
+    public static byte[] unframe(byte[] framed) {
+        return Arrays.copyOfRange(framed, FRAME_HEADER_SIZE, framed.length - FRAME_TRAILER_SIZE);
+    }
+
+    private int compress(Context context, ByteBuffer pixels, int width, int height, int quality, float scale, int offset) {
+        Bitmap bitmap = bitmaps.acquire(width, height, Bitmap.Config.ARGB_8888);
+        Bitmap scaled = null;
+        try {
+            ByteBuffer buffer = pixels.duplicate();
+            buffer.rewind();
+            bitmap.copyPixelsFromBuffer(buffer);
+
+            Bitmap source = bitmap;
+            if (scale != 1.0f) {
+                int scaledWidth = Math.max(1, (int) (width * scale));
+                int scaledHeight = Math.max(1, (int) (height * scale));
+                scaled = bitmaps.acquire(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
+                context.target.set(0, 0, scaledWidth, scaledHeight);
+                context.canvas.setBitmap(scaled);
+                context.canvas.drawBitmap(bitmap, null, context.target, context.paint);
+                context.canvas.setBitmap(null);
+                source = scaled;
+            }
+
+            GrowableOutputStream out = context.out;
+            out.reset(offset);
+            source.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            return out.size() - offset;
+        } finally {
+            bitmaps.release(bitmap);
+            if (scaled != null) {
+                bitmaps.release(scaled);
+            }
+        }
+    }
+
+    private static void writeTrailer(GrowableOutputStream out, int width, int height, int quality, float scale, long timestamp) {
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(quality);
+        out.writeInt((int) (scale * 100));
+        out.writeInt((int) (timestamp / 1000));
+        out.writeInt((int) (timestamp % 1000));
+    }
+
+    /**
+     * Recycle the idle bitmaps.
+     */
+    public void release() {
+        bitmaps.clear();
+    }
+
+    public BitmapPool getBitmapPool() {
+        return bitmaps;
+    }
+}
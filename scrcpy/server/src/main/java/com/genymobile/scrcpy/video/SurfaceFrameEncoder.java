@@ -5,6 +5,7 @@ import android.graphics.PixelFormat;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.view.Surface;
 
@@ -34,6 +35,9 @@ public class SurfaceFrameEncoder implements AsyncProcessor {
 
     private ImageReader imageReader;
     private Surface surface;
+    // Runs the ImageReader callbacks, which only snapshot the images: not the main looper
+    private HandlerThread captureThread;
+    private Handler captureHandler;
 
     public SurfaceFrameEncoder(SurfaceCapture capture) {
         this.capture = capture;
@@ -63,6 +67,11 @@ public class SurfaceFrameEncoder implements AsyncProcessor {
         return capture.getSize();
     }
     private synchronized void createImageReaderSurface() throws IOException {
+        if (captureThread == null) {
+            captureThread = new HandlerThread("frame-capture");
+            captureThread.start();
+            captureHandler = new Handler(captureThread.getLooper());
+        }
 
         Size size = capture.getSize();
         Ln.i("size width: "+size.getWidth());
@@ -84,7 +93,7 @@ public class SurfaceFrameEncoder implements AsyncProcessor {
             } catch (Exception e) {
                 Ln.e("Unexpected error processing image", e);
             }
-        }, new Handler(Looper.getMainLooper()));
+        }, captureHandler);
 
         surface = imageReader.getSurface();
         capture.start(surface);
@@ -98,6 +107,15 @@ public class SurfaceFrameEncoder implements AsyncProcessor {
             Looper.loop();
         } finally {
             cleanupResources();
+            quitCaptureThread();
+        }
+    }
+
+    private synchronized void quitCaptureThread() {
+        if (captureThread != null) {
+            captureThread.quit();
+            captureThread = null;
+            captureHandler = null;
         }
     }
 
@@ -143,6 +161,7 @@ public class SurfaceFrameEncoder implements AsyncProcessor {
 
         if (thread != null) {
             cleanupResources();
+            quitCaptureThread();
             thread.interrupt();
         }
     }
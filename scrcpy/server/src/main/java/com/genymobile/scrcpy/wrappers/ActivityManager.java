@@ -2,6 +2,7 @@ package com.genymobile.scrcpy.wrappers;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.content.ComponentName;
 import android.content.IContentProvider;
 import android.content.Intent;
 import android.os.Binder;
@@ -14,7 +15,9 @@ import com.genymobile.scrcpy.FakeContext;
 import com.genymobile.scrcpy.util.Ln;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.List;
 
 @SuppressLint("PrivateApi,DiscouragedPrivateApi")
 public final class ActivityManager {
@@ -25,6 +28,10 @@ public final class ActivityManager {
     private Method removeContentProviderExternalMethod;
     private Method startActivityAsUserMethod;
     private Method forceStopPackageMethod;
+    private Method getTasksMethod;
+    private boolean getTasksMethodWithFlags;
+    // Set once getTasks() failed (missing or restricted): it is polled periodically, so it is not retried
+    private volatile boolean getTasksUnavailable;
 
     static ActivityManager create() {
         try {
@@ -162,4 +169,40 @@ public final class ActivityManager {
             Ln.e("Could not invoke method", e);
         }
     }
+
+    private Method getGetTasksMethod() throws NoSuchMethodException {
+        if (getTasksMethod == null) {
+            try {
+                getTasksMethod = manager.getClass().getMethod("getTasks", int.class);
+            } catch (NoSuchMethodException e) {
+                // old version
+                getTasksMethod = manager.getClass().getMethod("getTasks", int.class, int.class);
+                getTasksMethodWithFlags = true;
+            }
+        }
+        return getTasksMethod;
+    }
+
+    /**
+     * Return the package name of the top activity of the foreground task, or {@code null} if it is unknown.
+     */
+    public String getTopPackageName() {
+        if (getTasksUnavailable) {
+            return null;
+        }
+        try {
+            Method method = getGetTasksMethod();
+            List<?> tasks = (List<?>) (getTasksMethodWithFlags ? method.invoke(manager, 1, 0) : method.invoke(manager, 1));
+            if (tasks == null || tasks.isEmpty()) {
+                return null;
+            }
+            ComponentName topActivity = ((android.app.ActivityManager.RunningTaskInfo) tasks.get(0)).topActivity;
+            return topActivity != null ? topActivity.getPackageName() : null;
+        } catch (Throwable e) {
+            getTasksUnavailable = true;
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+            Ln.w("Top package name unavailable: " + cause);
+            return null;
+        }
+    }
 }
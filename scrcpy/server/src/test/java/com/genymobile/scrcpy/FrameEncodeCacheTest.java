@@ -0,0 +1,82 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FrameEncodeCacheTest {
+
+    @Test
+    public void testEncodeOncePerTier() throws Exception {
+        FrameEncodeCache cache = new FrameEncodeCache();
+        AtomicInteger encodings = new AtomicInteger();
+        FrameEncodeCache.Encoder encoder = () -> new byte[] {(byte) encodings.incrementAndGet()};
+
+        byte[] a = cache.get(1, FrameEncodeCache.Format.JPEG, 80, 0.5f, encoder);
+        byte[] b = cache.get(1, FrameEncodeCache.Format.JPEG, 80, 0.5f, encoder);
+        Assert.assertSame(a, b);
+        Assert.assertEquals(1, encodings.get());
+
+        // Another tier
+        cache.get(1, FrameEncodeCache.Format.JPEG, 80, 1f, encoder);
+        cache.get(1, FrameEncodeCache.Format.FRAMED, 80, 0.5f, encoder);
+        Assert.assertEquals(3, encodings.get());
+        Assert.assertEquals(3, cache.getTiers());
+
+        // A new frame invalidates the previous encodings
+        byte[] c = cache.get(2, FrameEncodeCache.Format.JPEG, 80, 0.5f, encoder);
+        Assert.assertEquals(4, c[0]);
+        Assert.assertEquals(1, cache.getTiers());
+
+        // An older frame is not cached
+        cache.get(1, FrameEncodeCache.Format.JPEG, 80, 0.5f, encoder);
+        Assert.assertEquals(5, encodings.get());
+
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(4, cache.getMisses());
+        Assert.assertEquals(1, cache.getUncached());
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        FrameEncodeCache cache = new FrameEncodeCache();
+        AtomicInteger encodings = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        FrameEncodeCache.Encoder encoder = () -> {
+            encodings.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            return new byte[1];
+        };
+
+        Thread[] threads = new Thread[8];
+        byte[][] results = new byte[threads.length][];
+        for (int i = 0; i < threads.length; ++i) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    results[index] = cache.get(1, FrameEncodeCache.Format.JPEG, 80, 0.5f, encoder);
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(1, encodings.get());
+        for (byte[] result : results) {
+            Assert.assertSame(results[0], result);
+        }
+        Assert.assertEquals(7, cache.getHits());
+    }
+}
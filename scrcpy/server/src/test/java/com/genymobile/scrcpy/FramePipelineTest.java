@@ -0,0 +1,118 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.WorkerPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FramePipelineTest {
+
+    private static FrameSnapshot createFrame(FrameSnapshotStore store, long sequence) {
+        return store.capture(ByteBuffer.allocateDirect(16), 2, 2, 4, 8, sequence, 0);
+    }
+
+    @Test
+    public void testLatestFrameWins() throws Exception {
+        CountDownLatch firstPublished = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch lastPublished = new CountDownLatch(1);
+        List<Long> published = new CopyOnWriteArrayList<>();
+        FrameSnapshotStore store = new FrameSnapshotStore(4);
+
+        WorkerPool pool = new WorkerPool("test-encode", 1, 0);
+        FramePipeline pipeline = new FramePipeline(new FramePipeline.Stages() {
+            @Override
+            public void publish(FrameSnapshot frame) {
+                long sequence = frame.getSequence();
+                published.add(sequence);
+                if (sequence == 1) {
+                    firstPublished.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                } else if (sequence == 5) {
+                    lastPublished.countDown();
+                }
+            }
+
+            @Override
+            public byte[] encode(FrameSnapshot frame, int quality, float scale) {
+                return new byte[0];
+            }
+        }, pool);
+        pipeline.start();
+        try {
+            pipeline.submit(createFrame(store, 1));
+            Assert.assertTrue(firstPublished.await(5, TimeUnit.SECONDS));
+
+            // Captured while the publish stage is busy: only the latest one is published
+            List<FrameSnapshot> frames = new ArrayList<>();
+            for (int i = 2; i <= 5; ++i) {
+                FrameSnapshot frame = createFrame(store, i);
+                frames.add(frame);
+                pipeline.submit(frame);
+            }
+            // The superseded frames are released by the pipeline
+            for (int i = 0; i < 3; ++i) {
+                Assert.assertFalse(frames.get(i).tryRetain());
+            }
+            release.countDown();
+            Assert.assertTrue(lastPublished.await(5, TimeUnit.SECONDS));
+
+            Assert.assertEquals(2, published.size());
+            Assert.assertEquals(5, (long) published.get(1));
+            Assert.assertEquals(5, pipeline.getCaptured());
+            Assert.assertEquals(3, pipeline.getSuperseded());
+        } finally {
+            pipeline.close();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testEncodeOncePerTier() throws Exception {
+        FrameSnapshotStore store = new FrameSnapshotStore(4);
+        AtomicInteger encodes = new AtomicInteger();
+        WorkerPool pool = new WorkerPool("test-encode", 2, 0);
+        FramePipeline pipeline = new FramePipeline(new FramePipeline.Stages() {
+            @Override
+            public void publish(FrameSnapshot frame) {
+                // nothing to do
+            }
+
+            @Override
+            public byte[] encode(FrameSnapshot frame, int quality, float scale) {
+                encodes.incrementAndGet();
+                return ("frame" + frame.getSequence()).getBytes(StandardCharsets.US_ASCII);
+            }
+        }, pool);
+        try (LoopbackConnections connections = new LoopbackConnections()) {
+            LoopbackConnections.Client first = connections.open();
+            LoopbackConnections.Client second = connections.open();
+            pipeline.subscribe(first.getConnection(), 80, 0.5f);
+            pipeline.subscribe(second.getConnection(), 80, 0.5f);
+            pipeline.start();
+
+            pipeline.submit(createFrame(store, 1));
+            LoopbackConnections.waitUntil(() -> pipeline.getSent() == 2);
+            // Encoded once, the same message is queued to both subscribers
+            Assert.assertEquals(1, encodes.get());
+            Assert.assertEquals(1, pipeline.getEncoded());
+            LoopbackConnections.waitUntil(() -> first.getReceived().equals("frame1") && second.getReceived().equals("frame1"));
+        } finally {
+            pipeline.close();
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class FrameSnapshotStoreTest {
+
+    private static ByteBuffer createImage(int width, int height, int pixelStride, int rowStride) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * height);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                buffer.putInt(y * rowStride + x * pixelStride, y * 100 + x);
+            }
+        }
+        return buffer;
+    }
+
+    private static void assertPacked(FrameSnapshot snapshot, int width, int height) {
+        ByteBuffer pixels = snapshot.getPixels();
+        Assert.assertEquals(width * height * 4, pixels.remaining());
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                Assert.assertEquals(y * 100 + x, pixels.getInt());
+            }
+        }
+    }
+
+    @Test
+    public void testCapturePacked() {
+        FrameSnapshotStore store = new FrameSnapshotStore(2);
+        FrameSnapshot snapshot = store.capture(createImage(3, 2, 4, 12), 3, 2, 4, 12, 1, 0);
+        assertPacked(snapshot, 3, 2);
+        Assert.assertEquals(0, store.getRepacked());
+    }
+
+    @Test
+    public void testCapturePaddedRows() {
+        FrameSnapshotStore store = new FrameSnapshotStore(2);
+        ByteBuffer source = createImage(3, 4, 4, 16);
+        FrameSnapshot snapshot = store.capture(source, 3, 4, 4, 16, 1, 0);
+        assertPacked(snapshot, 3, 4);
+        Assert.assertEquals(1, store.getRepacked());
+        // The source is not modified
+        Assert.assertEquals(0, source.position());
+    }
+
+    @Test
+    public void testCapturePixelStride() {
+        FrameSnapshotStore store = new FrameSnapshotStore(2);
+        FrameSnapshot snapshot = store.capture(createImage(3, 2, 8, 28), 3, 2, 8, 28, 1, 0);
+        assertPacked(snapshot, 3, 2);
+        Assert.assertEquals(1, store.getRepacked());
+    }
+
+    @Test
+    public void testBufferReusedOnceReleased() {
+        FrameSnapshotStore store = new FrameSnapshotStore(2);
+        ByteBuffer source = createImage(2, 2, 4, 8);
+
+        FrameSnapshot first = store.capture(source, 2, 2, 4, 8, 1, 0);
+        first.retain();
+        first.release();
+        // Still referenced
+        store.capture(source, 2, 2, 4, 8, 2, 0);
+        Assert.assertEquals(2, store.getAllocated());
+
+        first.release();
+        store.capture(source, 2, 2, 4, 8, 3, 0);
+        Assert.assertEquals(2, store.getAllocated());
+        Assert.assertEquals(1, store.getReused());
+
+        // The buffers of another size are not reused
+        store.capture(createImage(3, 2, 4, 12), 3, 2, 4, 12, 4, 0);
+        Assert.assertEquals(3, store.getAllocated());
+    }
+
+    @Test
+    public void testPublishAndAcquire() {
+        FrameSnapshotStore store = new FrameSnapshotStore(2);
+        Assert.assertTrue(store.isEmpty());
+        Assert.assertNull(store.acquire());
+
+        ByteBuffer source = createImage(2, 2, 4, 8);
+        FrameSnapshot first = store.capture(source, 2, 2, 4, 8, 1, 0);
+        store.publish(first);
+        first.release();
+
+        FrameSnapshot reader = store.acquire();
+        Assert.assertSame(first, reader);
+
+        FrameSnapshot second = store.capture(source, 2, 2, 4, 8, 2, 0);
+        store.publish(second);
+        second.release();
+
+        // The reader keeps its snapshot after a newer one is published
+        assertPacked(reader, 2, 2);
+        Assert.assertEquals(1, reader.getSequence());
+        reader.release();
+        Assert.assertFalse(first.tryRetain());
+
+        FrameSnapshot current = store.acquire();
+        Assert.assertEquals(2, current.getSequence());
+        current.release();
+
+        store.clear();
+        Assert.assertTrue(store.isEmpty());
+        Assert.assertFalse(second.tryRetain());
+    }
+}
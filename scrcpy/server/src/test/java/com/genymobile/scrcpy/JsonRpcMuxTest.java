@@ -0,0 +1,55 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class JsonRpcMuxTest {
+
+    @Test
+    public void testSplitArray() {
+        List<String> elements = JsonRpcMux.splitArray(" [{\"id\":1,\"params\":[1,{\"a\":\"]}\"}]} , {\"id\":\"x\\\"y\"},3,null ] ");
+        Assert.assertNotNull(elements);
+        Assert.assertEquals(4, elements.size());
+        Assert.assertEquals("{\"id\":1,\"params\":[1,{\"a\":\"]}\"}]}", elements.get(0));
+        Assert.assertEquals("{\"id\":\"x\\\"y\"}", elements.get(1));
+        Assert.assertEquals("3", elements.get(2));
+        Assert.assertEquals("null", elements.get(3));
+
+        Assert.assertTrue(JsonRpcMux.splitArray("[ ]").isEmpty());
+    }
+
+    @Test
+    public void testSplitMalformedArray() {
+        Assert.assertNull(JsonRpcMux.splitArray("[{\"id\":1}"));
+        Assert.assertNull(JsonRpcMux.splitArray("[{\"id\":1} {\"id\":2}]"));
+        Assert.assertNull(JsonRpcMux.splitArray("[{\"id\":\"1}]"));
+        Assert.assertNull(JsonRpcMux.splitArray("[1,]"));
+        Assert.assertNull(JsonRpcMux.splitArray("[1] x"));
+        Assert.assertNull(JsonRpcMux.splitArray("{\"id\":1}"));
+    }
+
+    @Test
+    public void testFindMember() {
+        String request = "{\"jsonrpc\":\"2.0\", \"params\":{\"id\":7}, \"id\" : \"abc\" ,\"method\":\"dumpWindowHierarchy\"}";
+        Assert.assertEquals("\"abc\"", JsonRpcMux.findMember(request, "id"));
+        Assert.assertEquals("{\"id\":7}", JsonRpcMux.findMember(request, "params"));
+        Assert.assertEquals("\"dumpWindowHierarchy\"", JsonRpcMux.findMember(request, "method"));
+        Assert.assertEquals("null", JsonRpcMux.findMember("{\"id\":null}", "id"));
+
+        // A nested member is not a top-level member
+        Assert.assertNull(JsonRpcMux.findMember("{\"params\":{\"id\":7}}", "id"));
+        Assert.assertNull(JsonRpcMux.findMember("{}", "id"));
+        Assert.assertNull(JsonRpcMux.findMember("[{\"id\":1}]", "id"));
+    }
+
+    @Test
+    public void testSkipValue() {
+        Assert.assertEquals(3, JsonRpcMux.skipValue("\"a\",", 0));
+        Assert.assertEquals(6, JsonRpcMux.skipValue("-1.5e3]", 0));
+        Assert.assertEquals(11, JsonRpcMux.skipValue("{\"a\":[\"}\"]} ", 0));
+        Assert.assertEquals(-1, JsonRpcMux.skipValue("{\"a\":[1}", 0));
+        Assert.assertEquals(-1, JsonRpcMux.skipValue(",", 0));
+    }
+}
@@ -0,0 +1,179 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.EventLoop;
+import com.genymobile.scrcpy.net.HttpRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Server connections backed by loopback sockets, to test the stream producers against real {@link Connection}s.
+ */
+final class LoopbackConnections implements Closeable {
+
+    static final class Client {
+        private final Socket socket;
+        private final Connection connection;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        Client(Socket socket, Connection connection) {
+            this.socket = socket;
+            this.connection = connection;
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Return everything received by the client so far.
+         */
+        String getReceived() {
+            synchronized (received) {
+                return new String(received.toByteArray(), StandardCharsets.US_ASCII);
+            }
+        }
+
+        /**
+         * Return the raw bytes received by the client so far.
+         */
+        byte[] getReceivedBytes() {
+            synchronized (received) {
+                return received.toByteArray();
+            }
+        }
+
+        /**
+         * Close the client side of the connection.
+         */
+        void disconnect() throws IOException {
+            socket.close();
+        }
+
+        private void readAll() {
+            byte[] buffer = new byte[4096];
+            try {
+                InputStream in = socket.getInputStream();
+                int r;
+                while ((r = in.read(buffer)) != -1) {
+                    synchronized (received) {
+                        received.write(buffer, 0, r);
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private final int port;
+    private final EventLoop eventLoop;
+    private final Thread thread;
+    private final BlockingQueue<Connection> accepted = new LinkedBlockingQueue<>();
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+
+    LoopbackConnections() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        eventLoop = new EventLoop(port, 1, new EventLoop.Handler() {
+            @Override
+            public void onRequest(Connection connection, HttpRequest request) {
+                // The request is never finished: the connection is handed over to the test as a stream
+                accepted.add(connection);
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer payload) {
+                // not used
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+                // not used
+            }
+        });
+        thread = new Thread(() -> {
+            try {
+                eventLoop.run();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Connect a new client, which reads everything it receives.
+     */
+    Client open() throws IOException, InterruptedException {
+        Socket socket = connect();
+        socket.getOutputStream().write("GET /stream HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        Connection connection = accepted.poll(5, TimeUnit.SECONDS);
+        if (connection == null) {
+            socket.close();
+            throw new IOException("Connection not accepted");
+        }
+        Client client = new Client(socket, connection);
+        clients.add(client);
+        new Thread(client::readAll).start();
+        return client;
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        // The event loop binds asynchronously
+        for (int i = 0; ; ++i) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                if (i == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Wait until a condition, updated by other threads, is met.
+     */
+    static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Condition not met in time");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Client client : clients) {
+            client.socket.close();
+        }
+        eventLoop.stop();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.genymobile.scrcpy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer whose one-shot tasks only run when the test calls {@link #runPending()}, recording their requested delays.
+ * <p>
+ * Periodic tasks are scheduled normally.
+ */
+final class ManualTimer extends ScheduledThreadPoolExecutor {
+
+    private final List<Runnable> pending = new ArrayList<>();
+    private final List<Long> delays = new ArrayList<>();
+
+    ManualTimer() {
+        super(1);
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        pending.add(command);
+        delays.add(unit.toMillis(delay));
+        // A future for the caller to cancel, which never runs by itself
+        return super.schedule(() -> { }, 1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Return the delays of all the one-shot tasks scheduled so far, in milliseconds.
+     */
+    synchronized List<Long> getDelays() {
+        return new ArrayList<>(delays);
+    }
+
+    /**
+     * Run the one-shot tasks scheduled so far (on the calling thread).
+     */
+    void runPending() {
+        List<Runnable> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.WorkerPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MjpegStreamerTest {
+
+    /**
+     * Provides the latest notified frame, encoded through a shared cache (as the server does).
+     */
+    private static final class FakeSource implements MjpegStreamer.FrameSource {
+        private final FrameEncodeCache cache = new FrameEncodeCache();
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger encodes = new AtomicInteger();
+        private volatile long latest;
+        private volatile CountDownLatch gate;
+
+        @Override
+        public MjpegStreamer.Frame getLatestFrame(int quality, float scale) throws IOException {
+            calls.incrementAndGet();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            long sequence = latest;
+            byte[] jpeg = cache.get(sequence, FrameEncodeCache.Format.JPEG, quality, scale, () -> {
+                encodes.incrementAndGet();
+                return ("jpeg" + sequence).getBytes(StandardCharsets.US_ASCII);
+            });
+            return new MjpegStreamer.Frame(sequence, jpeg);
+        }
+    }
+
+    private LoopbackConnections connections;
+    private WorkerPool pool;
+    private ManualTimer timer;
+    private FakeSource source;
+    private MjpegStreamer mjpeg;
+
+    @Before
+    public void setUp() throws IOException {
+        connections = new LoopbackConnections();
+        pool = new WorkerPool("test-mjpeg", 4, 0);
+        timer = new ManualTimer();
+        source = new FakeSource();
+        mjpeg = new MjpegStreamer(source, pool, timer);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connections.close();
+        pool.shutdown();
+        timer.shutdownNow();
+    }
+
+    private void notifyFrame(long sequence) {
+        source.latest = sequence;
+        mjpeg.onFrame(sequence);
+    }
+
+    @Test
+    public void testFormatPartHeader() {
+        byte[] header = MjpegStreamer.formatPartHeader(42, 12345);
+        String expected = "--mjpegframe\r\nContent-Type: image/jpeg\r\nContent-Length: 12345\r\nX-Frame-Sequence: 42\r\n\r\n";
+        Assert.assertEquals(expected, new String(header, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testPacing() throws Exception {
+        LoopbackConnections.Client client = connections.open();
+        mjpeg.subscribe(client.getConnection(), 80, 1f, 10);
+
+        // The first frame is sent immediately
+        notifyFrame(1);
+        LoopbackConnections.waitUntil(() -> pool.getCompleted() == 1);
+        Assert.assertEquals(1, mjpeg.getSent());
+        Assert.assertTrue(timer.getDelays().isEmpty());
+
+        // The next ones wait for the next slot (100 ms at 10 fps): only the latest one is sent
+        notifyFrame(2);
+        notifyFrame(3);
+        notifyFrame(4);
+        List<Long> delays = timer.getDelays();
+        Assert.assertEquals(1, delays.size());
+        Assert.assertTrue(delays.get(0) > 0 && delays.get(0) <= 100);
+        Assert.assertEquals(2, mjpeg.getSkipped());
+        Assert.assertEquals(1, source.calls.get());
+
+        timer.runPending();
+        LoopbackConnections.waitUntil(() -> pool.getCompleted() == 2);
+        Assert.assertEquals(2, mjpeg.getSent());
+        Assert.assertEquals(2, source.calls.get());
+
+        LoopbackConnections.waitUntil(() -> client.getReceived().contains("X-Frame-Sequence: 4\r\n"));
+        String received = client.getReceived();
+        Assert.assertTrue(received.contains("X-Frame-Sequence: 1\r\n"));
+        Assert.assertFalse(received.contains("X-Frame-Sequence: 2\r\n"));
+        Assert.assertFalse(received.contains("X-Frame-Sequence: 3\r\n"));
+    }
+
+    @Test
+    public void testSkipWhileBusy() throws Exception {
+        LoopbackConnections.Client client = connections.open();
+        mjpeg.subscribe(client.getConnection(), 80, 1f, 60);
+
+        CountDownLatch gate = new CountDownLatch(1);
+        source.gate = gate;
+        notifyFrame(1);
+        LoopbackConnections.waitUntil(() -> source.calls.get() == 1);
+
+        // Captured while the previous frame is being encoded: neither queued nor scheduled
+        for (int i = 2; i <= 5; ++i) {
+            notifyFrame(i);
+        }
+        Assert.assertTrue(timer.getDelays().isEmpty());
+        Assert.assertEquals(0, pool.getQueued());
+
+        source.gate = null;
+        gate.countDown();
+        LoopbackConnections.waitUntil(() -> pool.getCompleted() == 1);
+        // The encoding in progress picked the latest frame
+        Assert.assertEquals(1, mjpeg.getSent());
+        Assert.assertEquals(4, mjpeg.getSkipped());
+        Assert.assertEquals(1, source.calls.get());
+        Assert.assertTrue(timer.getDelays().isEmpty());
+        LoopbackConnections.waitUntil(() -> client.getReceived().contains("X-Frame-Sequence: 5\r\n"));
+    }
+
+    @Test
+    public void testEncodeSharedBySubscribers() throws Exception {
+        LoopbackConnections.Client first = connections.open();
+        LoopbackConnections.Client second = connections.open();
+        mjpeg.subscribe(first.getConnection(), 80, 0.5f, 10);
+        mjpeg.subscribe(second.getConnection(), 80, 0.5f, 10);
+        Assert.assertEquals(2, mjpeg.getSubscribers());
+
+        notifyFrame(1);
+        LoopbackConnections.waitUntil(() -> pool.getCompleted() == 2);
+        Assert.assertEquals(2, mjpeg.getSent());
+        Assert.assertEquals(2, source.calls.get());
+        Assert.assertEquals(1, source.encodes.get());
+
+        LoopbackConnections.waitUntil(() -> first.getReceived().contains("jpeg1") && second.getReceived().contains("jpeg1"));
+    }
+}
@@ -0,0 +1,117 @@
+package com.genymobile.scrcpy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class ScreenEventChannelTest {
+
+    private LoopbackConnections connections;
+    private ManualTimer timer;
+    private ScreenEventChannel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        connections = new LoopbackConnections();
+        timer = new ManualTimer();
+        channel = new ScreenEventChannel(timer);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        channel.close();
+        connections.close();
+        timer.shutdownNow();
+    }
+
+    private static ByteBuffer createPixels(int value) {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(16 * 16 * 4);
+        for (int i = 0; i < 16 * 16; ++i) {
+            pixels.putInt(i * 4, value);
+        }
+        return pixels;
+    }
+
+    @Test
+    public void testFormatEvent() {
+        byte[] event = ScreenEventChannel.formatEvent(42, 1700000000123L, 1080, 2400, true);
+        String expected = "id: 42\nevent: frame\ndata: {\"seq\":42,\"timestamp\":1700000000123,\"width\":1080,\"height\":2400,\"changed\":true}\n\n";
+        Assert.assertEquals(expected, new String(event, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testSampleHash() {
+        ByteBuffer a = ByteBuffer.allocateDirect(1080 * 2400 * 4);
+        ByteBuffer b = ByteBuffer.allocateDirect(1080 * 2400 * 4);
+        Assert.assertEquals(ScreenEventChannel.sampleHash(a), ScreenEventChannel.sampleHash(b));
+
+        // A change on a sampled pixel is detected
+        b.putInt(0, 0xff00ff00);
+        Assert.assertNotEquals(ScreenEventChannel.sampleHash(a), ScreenEventChannel.sampleHash(b));
+
+        // The position is not modified
+        Assert.assertEquals(0, b.position());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        LoopbackConnections.Client client = connections.open();
+        channel.subscribe(client.getConnection(), 100);
+
+        // The first frame is notified immediately
+        channel.onFrame(1, 1000, 16, 16, createPixels(0));
+        Assert.assertEquals(1, channel.getSent());
+
+        // The next ones, within the interval, are coalesced into a single event
+        channel.onFrame(2, 1010, 16, 16, createPixels(1));
+        channel.onFrame(3, 1020, 16, 16, createPixels(1));
+        channel.onFrame(4, 1030, 16, 16, createPixels(1));
+        Assert.assertEquals(1, channel.getSent());
+        Assert.assertEquals(2, channel.getCoalesced());
+        List<Long> delays = timer.getDelays();
+        Assert.assertEquals(1, delays.size());
+        Assert.assertTrue(delays.get(0) > 0 && delays.get(0) <= 100);
+
+        // Sent at the end of the interval: the last frame, changed since the previous event (by frame 2)
+        timer.runPending();
+        Assert.assertEquals(2, channel.getSent());
+        String expected = new String(ScreenEventChannel.formatEvent(4, 1030, 16, 16, true), StandardCharsets.US_ASCII);
+        LoopbackConnections.waitUntil(() -> client.getReceived().contains(expected));
+        String received = client.getReceived();
+        Assert.assertTrue(received.contains("id: 1\n"));
+        Assert.assertFalse(received.contains("id: 2\n"));
+        Assert.assertFalse(received.contains("id: 3\n"));
+    }
+
+    @Test
+    public void testUnchangedFrame() throws Exception {
+        LoopbackConnections.Client client = connections.open();
+        channel.subscribe(client.getConnection(), 0);
+
+        channel.onFrame(1, 1000, 16, 16, createPixels(7));
+        channel.onFrame(2, 1010, 16, 16, createPixels(7));
+        Assert.assertEquals(2, channel.getSent());
+        Assert.assertEquals(0, channel.getCoalesced());
+        Assert.assertTrue(timer.getDelays().isEmpty());
+
+        String expected = new String(ScreenEventChannel.formatEvent(2, 1010, 16, 16, false), StandardCharsets.US_ASCII);
+        LoopbackConnections.waitUntil(() -> client.getReceived().contains(expected));
+    }
+
+    @Test
+    public void testCurrentFrameOnSubscribe() throws Exception {
+        channel.onFrame(5, 1000, 16, 16, createPixels(0));
+
+        LoopbackConnections.Client client = connections.open();
+        channel.subscribe(client.getConnection(), 100);
+        Assert.assertEquals(1, channel.getSent());
+        String expected = new String(ScreenEventChannel.formatEvent(5, 1000, 16, 16, true), StandardCharsets.US_ASCII);
+        LoopbackConnections.waitUntil(() -> client.getReceived().contains(expected));
+    }
+}
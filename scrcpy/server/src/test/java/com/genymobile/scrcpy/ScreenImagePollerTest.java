@@ -0,0 +1,142 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.WorkerPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+public class ScreenImagePollerTest {
+
+    private LoopbackConnections connections;
+    private WorkerPool pool;
+    private ManualTimer timer;
+    private FrameSnapshotStore snapshots;
+    private ScreenImagePoller poller;
+
+    @Before
+    public void setUp() throws IOException {
+        connections = new LoopbackConnections();
+        pool = new WorkerPool("test-screen-image", 2, 0);
+        timer = new ManualTimer();
+        snapshots = new FrameSnapshotStore(2);
+        poller = new ScreenImagePoller(snapshots, (frame, quality, scale) -> ("jpeg" + frame.getSequence()).getBytes(StandardCharsets.US_ASCII),
+                pool, timer);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        snapshots.clear();
+        connections.close();
+        pool.shutdown();
+        timer.shutdownNow();
+    }
+
+    private void publish(long sequence) {
+        FrameSnapshot snapshot = snapshots.capture(ByteBuffer.allocateDirect(16 * 16 * 4), 16, 16, 4, 16 * 4, sequence, 1000 + sequence);
+        snapshots.publish(snapshot);
+        snapshot.release();
+        poller.onFrame(sequence);
+    }
+
+    private static String header(String response, String name) {
+        int start = response.indexOf("\r\n" + name + ": ");
+        if (start == -1) {
+            return null;
+        }
+        start += name.length() + 4;
+        return response.substring(start, response.indexOf("\r\n", start));
+    }
+
+    private static void waitForResponse(LoopbackConnections.Client client) throws InterruptedException {
+        LoopbackConnections.waitUntil(() -> {
+            String received = client.getReceived();
+            int end = received.indexOf("\r\n\r\n");
+            return end != -1 && received.length() == end + 4 + Integer.parseInt(header(received, "Content-Length"));
+        });
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        publish(1);
+        LoopbackConnections.Client first = connections.open();
+        poller.respond(first.getConnection(), first.getConnection().getOutputStream(), 80, 0.5f, null);
+        waitForResponse(first);
+        String response = first.getReceived();
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(response.endsWith("\r\n\r\njpeg1"));
+        String etag = header(response, "ETag");
+        Assert.assertNotNull(etag);
+
+        // The client already has the current frame
+        LoopbackConnections.Client second = connections.open();
+        poller.respond(second.getConnection(), second.getConnection().getOutputStream(), 80, 0.5f, etag);
+        waitForResponse(second);
+        response = second.getReceived();
+        Assert.assertTrue(response.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        Assert.assertEquals(etag, header(response, "ETag"));
+
+        // A newer frame does not match the old entity tag
+        publish(2);
+        LoopbackConnections.Client third = connections.open();
+        poller.respond(third.getConnection(), third.getConnection().getOutputStream(), 80, 0.5f, etag);
+        waitForResponse(third);
+        response = third.getReceived();
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertEquals("2", header(response, "X-Frame-Sequence"));
+        Assert.assertNotEquals(etag, header(response, "ETag"));
+    }
+
+    @Test
+    public void testPollWokenByNewerFrame() throws Exception {
+        publish(1);
+        LoopbackConnections.Client client = connections.open();
+        poller.poll(client.getConnection(), client.getConnection().getOutputStream(), 80, 0.5f, 1, 10000, null);
+        // Parked: nothing is sent until a newer frame is captured
+        Assert.assertEquals(1, poller.getWaiters());
+        Assert.assertEquals(Collections.singletonList(10000L), timer.getDelays());
+        Thread.sleep(50);
+        Assert.assertEquals("", client.getReceived());
+
+        publish(2);
+        waitForResponse(client);
+        String response = client.getReceived();
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertEquals("2", header(response, "X-Frame-Sequence"));
+        Assert.assertTrue(response.endsWith("\r\n\r\njpeg2"));
+        Assert.assertEquals(0, poller.getWaiters());
+
+        // A frame newer than the requested one is returned at once
+        LoopbackConnections.Client other = connections.open();
+        poller.poll(other.getConnection(), other.getConnection().getOutputStream(), 80, 0.5f, 1, 10000, null);
+        waitForResponse(other);
+        Assert.assertEquals("2", header(other.getReceived(), "X-Frame-Sequence"));
+        Assert.assertEquals(0, poller.getWaiters());
+    }
+
+    @Test
+    public void testPollTimeout() throws Exception {
+        publish(1);
+        LoopbackConnections.Client client = connections.open();
+        poller.poll(client.getConnection(), client.getConnection().getOutputStream(), 80, 0.5f, 1, 500, null);
+        Assert.assertEquals(1, poller.getWaiters());
+
+        timer.runPending();
+        waitForResponse(client);
+        String response = client.getReceived();
+        Assert.assertTrue(response.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        Assert.assertEquals("1", header(response, "X-Frame-Sequence"));
+        Assert.assertEquals(0, poller.getWaiters());
+
+        // A frame captured after the timeout is not sent again
+        publish(2);
+        Thread.sleep(50);
+        Assert.assertEquals(response, client.getReceived());
+    }
+}
@@ -0,0 +1,140 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.net.Connection;
+import com.genymobile.scrcpy.net.WorkerPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ShellStreamEndpointTest {
+
+    private LoopbackConnections connections;
+    private WorkerPool pool;
+    private ShellStreamEndpoint endpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        connections = new LoopbackConnections();
+        pool = new WorkerPool("shell-stream", 4, 4);
+        endpoint = new ShellStreamEndpoint(pool, 2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connections.close();
+        pool.shutdown();
+    }
+
+    /**
+     * Open a client whose connection is handed over to the endpoint once closed, like {@link BaseWsServer} does.
+     */
+    private LoopbackConnections.Client open() throws IOException, InterruptedException {
+        LoopbackConnections.Client client = connections.open();
+        Connection connection = client.getConnection();
+        connection.addCloseListener(() -> endpoint.onClose(connection));
+        return client;
+    }
+
+    private void send(LoopbackConnections.Client client, String message) {
+        endpoint.onMessage(client.getConnection(), ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Decode the (unmasked) WebSocket frames received by the client: the text messages as is, the binary messages as
+     * {@code <channel>:<data>}.
+     */
+    private static List<String> messages(LoopbackConnections.Client client) {
+        byte[] data = client.getReceivedBytes();
+        List<String> messages = new ArrayList<>();
+        int pos = 0;
+        while (pos + 2 <= data.length) {
+            int opcode = data[pos] & 0x0F;
+            int length = data[pos + 1] & 0x7F;
+            int header = 2;
+            if (length == 126) {
+                if (pos + 4 > data.length) {
+                    break;
+                }
+                length = (data[pos + 2] & 0xFF) << 8 | data[pos + 3] & 0xFF;
+                header = 4;
+            }
+            if (pos + header + length > data.length) {
+                // Partially received
+                break;
+            }
+            int start = pos + header;
+            if (opcode == 1) {
+                messages.add(new String(data, start, length, StandardCharsets.UTF_8));
+            } else {
+                messages.add(data[start] + ":" + new String(data, start + 1, length - 1, StandardCharsets.UTF_8));
+            }
+            pos = start + length;
+        }
+        return messages;
+    }
+
+    private static void waitForMessage(LoopbackConnections.Client client, String message) throws InterruptedException {
+        LoopbackConnections.waitUntil(() -> messages(client).contains(message));
+    }
+
+    @Test
+    public void testExitCode() throws Exception {
+        LoopbackConnections.Client client = open();
+        send(client, "echo out; echo err >&2; exit 3");
+        waitForMessage(client, "{\"exit\":3}");
+
+        List<String> messages = messages(client);
+        Assert.assertTrue(messages.contains("1:out\n"));
+        Assert.assertTrue(messages.contains("2:err\n"));
+        // The exit code is reported after all the output
+        Assert.assertEquals("{\"exit\":3}", messages.get(messages.size() - 1));
+        Assert.assertEquals(0, endpoint.getRunning());
+        Assert.assertEquals(0, endpoint.getCancelled());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        LoopbackConnections.Client client = open();
+        send(client, "echo started; sleep 10");
+        waitForMessage(client, "1:started\n");
+
+        // Only one command at a time per session
+        send(client, "echo other");
+        waitForMessage(client, "{\"error\":\"A command is already running\"}");
+
+        send(client, "cancel");
+        LoopbackConnections.waitUntil(() -> {
+            List<String> messages = messages(client);
+            String last = messages.get(messages.size() - 1);
+            return last.startsWith("{\"exit\":") && last.endsWith(",\"cancelled\":true}");
+        });
+        Assert.assertEquals(1, endpoint.getCancelled());
+        Assert.assertEquals(0, endpoint.getRunning());
+
+        // Another command may be sent afterwards
+        send(client, "echo again");
+        waitForMessage(client, "{\"exit\":0}");
+        Assert.assertTrue(messages(client).contains("1:again\n"));
+        Assert.assertEquals(2, endpoint.getStarted());
+    }
+
+    @Test
+    public void testKillOnDisconnect() throws Exception {
+        LoopbackConnections.Client client = open();
+        // No output: only the close of the connection can stop it
+        send(client, "sleep 10");
+        LoopbackConnections.waitUntil(() -> endpoint.getStarted() == 1);
+
+        client.disconnect();
+        LoopbackConnections.waitUntil(() -> endpoint.getRunning() == 0);
+        Assert.assertEquals(1, endpoint.getCancelled());
+    }
+}
@@ -0,0 +1,35 @@
+package com.genymobile.scrcpy.device;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class AppIndexTest {
+
+    @Test
+    public void testPrefixTrie() {
+        AppIndex.PrefixTrie<String> trie = new AppIndex.PrefixTrie<>();
+        trie.add("chrome", "com.android.chrome");
+        trie.add("calculator", "com.android.calculator2");
+        trie.add("calendar", "com.android.calendar");
+        trie.add("camera", "com.android.camera");
+
+        Assert.assertEquals(Arrays.asList("com.android.calculator2", "com.android.calendar", "com.android.camera"), trie.find("ca"));
+        Assert.assertEquals(Arrays.asList("com.android.calculator2", "com.android.calendar"), trie.find("cal"));
+        Assert.assertEquals(Collections.singletonList("com.android.calendar"), trie.find("calendar"));
+        Assert.assertEquals(Collections.emptyList(), trie.find("calendars"));
+        Assert.assertEquals(Collections.emptyList(), trie.find("x"));
+        // The empty prefix matches everything
+        Assert.assertEquals(4, trie.find("").size());
+    }
+
+    @Test
+    public void testPrefixTrieSameKey() {
+        AppIndex.PrefixTrie<String> trie = new AppIndex.PrefixTrie<>();
+        trie.add("files", "com.android.documentsui");
+        trie.add("files", "com.google.android.apps.nbu.files");
+        Assert.assertEquals(2, trie.find("file").size());
+    }
+}
@@ -0,0 +1,65 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ChunkedOutputStreamTest {
+
+    @Test
+    public void testEncode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+        chunked.write("hello".getBytes(StandardCharsets.US_ASCII));
+        // Empty writes must not end the body
+        chunked.write(new byte[0]);
+        byte[] data = new byte[300];
+        chunked.write(data, 10, 26);
+        chunked.close();
+        chunked.close();
+
+        byte[] expected = ("5\r\nhello\r\n1a\r\n" + new String(new byte[26], StandardCharsets.US_ASCII) + "\r\n0\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        Assert.assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        for (int i = 0; i < data.length; i += 7000) {
+            chunked.write(data, i, Math.min(7000, data.length - i));
+        }
+        chunked.close();
+
+        String head = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n";
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(head.getBytes(StandardCharsets.US_ASCII));
+        response.write(out.toByteArray());
+
+        boolean[] released = new boolean[2];
+        UpstreamResponse upstreamResponse = UpstreamResponse.read(new ByteArrayInputStream(response.toByteArray()), false, reusable -> {
+            released[0] = true;
+            released[1] = reusable;
+        });
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        InputStream in = upstreamResponse.getBody();
+        byte[] buffer = new byte[4096];
+        int r;
+        while ((r = in.read(buffer)) != -1) {
+            decoded.write(buffer, 0, r);
+        }
+        Assert.assertArrayEquals(data, decoded.toByteArray());
+        Assert.assertTrue(released[0]);
+        Assert.assertTrue(released[1]);
+    }
+}
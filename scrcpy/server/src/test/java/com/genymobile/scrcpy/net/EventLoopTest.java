@@ -0,0 +1,359 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class EventLoopTest {
+
+    private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok".getBytes(StandardCharsets.US_ASCII);
+
+    static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static Thread startEventLoop(EventLoop eventLoop) {
+        Thread thread = new Thread(() -> {
+            try {
+                eventLoop.run();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int r;
+        while ((r = in.read(buffer)) != -1) {
+            out.write(buffer, 0, r);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param receiveBufferSize the size of the socket receive buffer, or 0 for the default
+     */
+    static Socket connect(int port, int receiveBufferSize) throws IOException, InterruptedException {
+        // The event loop binds asynchronously
+        for (int i = 0; ; ++i) {
+            Socket socket = new Socket();
+            try {
+                if (receiveBufferSize > 0) {
+                    socket.setReceiveBufferSize(receiveBufferSize);
+                }
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                if (i == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static String request(int port, String path) throws IOException, InterruptedException {
+        try (Socket socket = connect(port, 0)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            return new String(readAll(socket.getInputStream()), StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Return a handler which answers every request with its path as the body, and records the paths.
+     */
+    private static EventLoop.Handler echoHandler(List<String> paths) {
+        return new EventLoop.Handler() {
+            @Override
+            public void onRequest(Connection connection, HttpRequest request) throws IOException {
+                paths.add(request.getPath());
+                byte[] body = request.getPath().getBytes(StandardCharsets.US_ASCII);
+                String head = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n"
+                        + "Connection: " + connection.getConnectionHeader() + "\r\n\r\n";
+                connection.send(ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)), ByteBuffer.wrap(body));
+                connection.finishRequest();
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer payload) {
+                // not used
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+                // not used
+            }
+        };
+    }
+
+    /**
+     * Read a single response, delimited by its Content-Length.
+     *
+     * @return the status line, the Connection header and the body, separated by spaces
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        String status = UpstreamResponse.readLine(in);
+        String connection = null;
+        int contentLength = 0;
+        String line;
+        while (!(line = UpstreamResponse.readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1).trim();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = Integer.parseInt(value);
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                connection = value;
+            }
+        }
+        byte[] body = new byte[contentLength];
+        for (int n = 0; n < contentLength; ) {
+            int r = in.read(body, n, contentLength - n);
+            if (r == -1) {
+                throw new EOFException();
+            }
+            n += r;
+        }
+        return status + " " + connection + " " + new String(body, StandardCharsets.US_ASCII);
+    }
+
+    private static void write(Socket socket, String data) throws IOException {
+        socket.getOutputStream().write(data.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        int port = findFreePort();
+        EventLoop eventLoop = new EventLoop(port, 1, echoHandler(new CopyOnWriteArrayList<>()));
+        Thread thread = startEventLoop(eventLoop);
+        try (Socket socket = connect(port, 0)) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            write(socket, "GET /a HTTP/1.1\r\n\r\n");
+            Assert.assertEquals("HTTP/1.1 200 OK keep-alive /a", readResponse(in));
+            write(socket, "GET /b HTTP/1.1\r\n\r\n");
+            Assert.assertEquals("HTTP/1.1 200 OK keep-alive /b", readResponse(in));
+            write(socket, "GET /c HTTP/1.1\r\nConnection: close\r\n\r\n");
+            Assert.assertEquals("HTTP/1.1 200 OK close /c", readResponse(in));
+            Assert.assertEquals(-1, in.read());
+        } finally {
+            eventLoop.stop();
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        int port = findFreePort();
+        EventLoop eventLoop = new EventLoop(port, 1, echoHandler(new CopyOnWriteArrayList<>()));
+        Thread thread = startEventLoop(eventLoop);
+        try (Socket socket = connect(port, 0)) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            // All the requests in a single write, the second one with a body
+            write(socket, "GET /a HTTP/1.1\r\n\r\nPOST /b HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET /c HTTP/1.1\r\n\r\n");
+            Assert.assertEquals("HTTP/1.1 200 OK keep-alive /a", readResponse(in));
+            Assert.assertEquals("HTTP/1.1 200 OK keep-alive /b", readResponse(in));
+            Assert.assertEquals("HTTP/1.1 200 OK keep-alive /c", readResponse(in));
+        } finally {
+            eventLoop.stop();
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    public void testMaxRequests() throws Exception {
+        int port = findFreePort();
+        List<String> paths = new CopyOnWriteArrayList<>();
+        EventLoop eventLoop = new EventLoop(port, 1, echoHandler(paths));
+        eventLoop.setKeepAlive(10000, 2);
+        Thread thread = startEventLoop(eventLoop);
+        try (Socket socket = connect(port, 0)) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            write(socket, "GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\nGET /c HTTP/1.1\r\n\r\n");
+            Assert.assertEquals("HTTP/1.1 200 OK keep-alive /a", readResponse(in));
+            // The last request served on this connection
+            Assert.assertEquals("HTTP/1.1 200 OK close /b", readResponse(in));
+            Assert.assertEquals(-1, in.read());
+            Assert.assertEquals(Arrays.asList("/a", "/b"), paths);
+        } finally {
+            eventLoop.stop();
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    public void testIdleClose() throws Exception {
+        int port = findFreePort();
+        EventLoop eventLoop = new EventLoop(port, 1, echoHandler(new CopyOnWriteArrayList<>()));
+        eventLoop.setKeepAlive(200, 100);
+        Thread thread = startEventLoop(eventLoop);
+        try (Socket socket = connect(port, 0)) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            write(socket, "GET /a HTTP/1.1\r\n\r\n");
+            Assert.assertEquals("HTTP/1.1 200 OK keep-alive /a", readResponse(in));
+            long start = System.nanoTime();
+            Assert.assertEquals(-1, in.read());
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            Assert.assertTrue("Closed after " + elapsedMs + " ms", elapsedMs < 4000);
+        } finally {
+            eventLoop.stop();
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    public void testChunkedRequestRejected() throws Exception {
+        int port = findFreePort();
+        List<String> paths = new CopyOnWriteArrayList<>();
+        EventLoop eventLoop = new EventLoop(port, 1, echoHandler(paths));
+        Thread thread = startEventLoop(eventLoop);
+        try (Socket socket = connect(port, 0)) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            // The chunked body contains another request, which must never be handled
+            String smuggled = "GET /smuggled HTTP/1.1\r\n\r\n";
+            write(socket, "POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + Integer.toHexString(smuggled.length()) + "\r\n" + smuggled
+                    + "\r\n0\r\n\r\n");
+            Assert.assertEquals("HTTP/1.1 411 Length Required close ", readResponse(in));
+            Assert.assertEquals(-1, in.read());
+            Assert.assertTrue(paths.isEmpty());
+        } finally {
+            eventLoop.stop();
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    public void testSurvivesFailingHandler() throws Exception {
+        int port = findFreePort();
+        // A single I/O thread: all the connections share it
+        EventLoop eventLoop = new EventLoop(port, 1, new EventLoop.Handler() {
+            @Override
+            public void onRequest(Connection connection, HttpRequest request) throws IOException {
+                if ("/fail".equals(request.getPath())) {
+                    throw new IllegalStateException("test");
+                }
+                connection.send(ByteBuffer.wrap(RESPONSE));
+                connection.finishRequest();
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer payload) {
+                // not used
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+                // not used
+            }
+        });
+        Thread thread = startEventLoop(eventLoop);
+        try {
+            // Only the failing connection is closed
+            Assert.assertEquals("", request(port, "/fail"));
+            Assert.assertTrue(request(port, "/ok").endsWith("\r\n\r\nok"));
+            Assert.assertTrue(request(port, "/ok").endsWith("\r\n\r\nok"));
+        } finally {
+            eventLoop.stop();
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    public void testTunnelForwardsDataBeforeClose() throws Exception {
+        // More than the default max socket send buffer (4 MB): some data is still buffered by the tunnel when the upstream closes
+        byte[] payload = new byte[8 * 1024 * 1024];
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = (byte) i;
+        }
+        ServerSocket upstreamSocket = new ServerSocket(0);
+        Thread upstream = new Thread(() -> {
+            try (Socket socket = upstreamSocket.accept()) {
+                InputStream in = socket.getInputStream();
+                while (!UpstreamResponse.readLine(in).isEmpty()) {
+                    // skip the request head
+                }
+                OutputStream out = socket.getOutputStream();
+                out.write("HTTP/1.1 101 Switching Protocols\r\nUpgrade: test\r\nConnection: Upgrade\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.write(payload);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        upstream.start();
+
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstreamSocket.getLocalPort(), 1, 1000, 5000);
+        int port = findFreePort();
+        EventLoop eventLoop = new EventLoop(port, 1, new EventLoop.Handler() {
+            @Override
+            public void onRequest(Connection connection, HttpRequest request) {
+                // Connecting to the upstream blocks: not on the I/O thread
+                new Thread(() -> {
+                    try {
+                        UpstreamResponse response = client.upgrade("/", request);
+                        Tunnel tunnel = response.openTunnel("test", 30000);
+                        connection.send(ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: test\r\nConnection: Upgrade\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII)));
+                        connection.startTunnel(tunnel);
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }).start();
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer payload) {
+                // not used
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+                // not used
+            }
+        });
+        Thread thread = startEventLoop(eventLoop);
+        // A small receive buffer and a late reader, so that the upstream closes while the tunnel still buffers data for the client
+        try (Socket socket = connect(port, 4096)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nConnection: Upgrade\r\nUpgrade: test\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            while (!UpstreamResponse.readLine(in).isEmpty()) {
+                // skip the response head
+            }
+            // Only start reading once the upstream has sent everything and closed, or is blocked because all the buffers are full
+            upstream.join(1000);
+            Thread.sleep(200);
+            Assert.assertArrayEquals(payload, readAll(in));
+        } finally {
+            eventLoop.stop();
+            thread.join(5000);
+            upstream.join(5000);
+            upstreamSocket.close();
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class HttpRequestTest {
+
+    private static HttpRequest parse(String head) throws IOException {
+        byte[] data = ("xx" + head).getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequest request = new HttpRequest();
+        request.parseHead(data, 2, data.length - 2);
+        return request;
+    }
+
+    @Test
+    public void testRequestLine() throws IOException {
+        HttpRequest request = parse("GET /screen.jpeg?q=50&s=0.25 HTTP/1.1\r\nHost: device\r\n\r\n");
+        Assert.assertEquals("GET", request.getMethod());
+        Assert.assertEquals("/screen.jpeg?q=50&s=0.25", request.getTarget());
+        Assert.assertEquals("/screen.jpeg", request.getPath());
+        Assert.assertEquals("q=50&s=0.25", request.getQueryString());
+        Assert.assertEquals("HTTP/1.1", request.getVersion());
+        Assert.assertEquals(0, request.getContentLength());
+
+        request = parse("GET http://device:8080/apps/list HTTP/1.1\r\n\r\n");
+        Assert.assertEquals("/apps/list", request.getPath());
+        Assert.assertNull(request.getQueryString());
+    }
+
+    @Test
+    public void testHeaders() throws IOException {
+        HttpRequest request = parse("POST /shell/exec HTTP/1.1\r\ncontent-LENGTH:  12 \r\nX-Tag: a\r\nx-tag: b\r\n\r\n");
+        Assert.assertEquals(12, request.getContentLength());
+        Assert.assertEquals("12", request.getHeader("Content-Length"));
+        Assert.assertEquals("a, b", request.getHeader("X-TAG"));
+        Assert.assertNull(request.getHeader("Host"));
+    }
+
+    @Test
+    public void testQueryParameters() throws IOException {
+        HttpRequest request = parse("GET /x?a=1&b=hello%20world&c&a=2&d=x+y HTTP/1.1\r\n\r\n");
+        Assert.assertEquals("1", request.getQueryParameter("a"));
+        Assert.assertEquals("hello world", request.getQueryParameter("b"));
+        Assert.assertEquals("", request.getQueryParameter("c"));
+        Assert.assertEquals("x y", request.getQueryParameter("d"));
+        Assert.assertNull(request.getQueryParameter("e"));
+
+        // The instance is reused, the previous parameters must not leak
+        request.parseHead("GET /y HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), 0, 19);
+        Assert.assertNull(request.getQueryParameter("a"));
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        Assert.assertTrue(parse("GET / HTTP/1.1\r\n\r\n").isKeepAliveRequested());
+        Assert.assertFalse(parse("GET / HTTP/1.1\r\nConnection: Close\r\n\r\n").isKeepAliveRequested());
+        Assert.assertFalse(parse("GET / HTTP/1.0\r\n\r\n").isKeepAliveRequested());
+        Assert.assertTrue(parse("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n").isKeepAliveRequested());
+        Assert.assertTrue(parse("GET / HTTP/1.1\r\nConnection: keep-alive, Upgrade\r\n\r\n").isKeepAliveRequested());
+    }
+
+    @Test
+    public void testBufferedBody() throws IOException {
+        HttpRequest request = parse("POST /controller HTTP/1.1\r\nContent-Length: 10\r\n\r\n");
+        request.setBody(ByteBuffer.wrap("a\r\n\r\nb c d".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer());
+        Assert.assertTrue(request.isBodyBuffered());
+        Assert.assertEquals("a\r\n\r\nb c d", request.readBodyAsString());
+        // Reading the body does not consume it
+        Assert.assertEquals(10, request.getBody().remaining());
+
+        InputStream in = request.getBodyStream();
+        Assert.assertEquals('a', in.read());
+        Assert.assertEquals(9, in.read(new byte[20]));
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidContentLength() throws IOException {
+        parse("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidRequestLine() throws IOException {
+        parse("GARBAGE\r\n\r\n");
+    }
+}
@@ -0,0 +1,28 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class IoThreadTest {
+
+    @Test
+    public void testSurvivesFailingTask() throws IOException, InterruptedException {
+        IoThread ioThread = new IoThread("test-io");
+        ioThread.start();
+        try {
+            CountDownLatch done = new CountDownLatch(1);
+            ioThread.execute(() -> {
+                throw new IllegalStateException("test");
+            });
+            ioThread.execute(done::countDown);
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(ioThread.isAlive());
+        } finally {
+            ioThread.shutdown();
+        }
+    }
+}
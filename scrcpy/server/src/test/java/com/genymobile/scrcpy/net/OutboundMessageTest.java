@@ -0,0 +1,131 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+public class OutboundMessageTest {
+
+    /**
+     * Channel accepting at most {@code chunk} bytes per write, to simulate a full socket buffer.
+     */
+    private static final class ChunkedChannel implements GatheringByteChannel {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final int chunk;
+
+        ChunkedChannel(int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            int written = 0;
+            for (int i = offset; i < offset + length && written < chunk; ++i) {
+                while (srcs[i].hasRemaining() && written < chunk) {
+                    out.write(srcs[i].get());
+                    ++written;
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] {src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // do nothing
+        }
+    }
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static byte[] writeFully(OutboundMessage message, ChunkedChannel channel) throws Exception {
+        long offset = 0;
+        while (offset < message.getLength()) {
+            offset += message.writeTo(channel, offset);
+        }
+        return channel.out.toByteArray();
+    }
+
+    @Test
+    public void testBinaryFrameHeader() {
+        ByteBuffer header = OutboundMessage.encodeHeader(WebSocketDecoder.OPCODE_BINARY, 5);
+        Assert.assertArrayEquals(new byte[] {(byte) 0x82, 5}, new byte[] {header.get(), header.get()});
+        Assert.assertFalse(header.hasRemaining());
+
+        header = OutboundMessage.encodeHeader(WebSocketDecoder.OPCODE_BINARY, 300);
+        Assert.assertEquals(4, header.remaining());
+        Assert.assertEquals(126, header.get(1));
+        Assert.assertEquals(300, header.getShort(2));
+
+        header = OutboundMessage.encodeHeader(WebSocketDecoder.OPCODE_BINARY, 70000);
+        Assert.assertEquals(10, header.remaining());
+        Assert.assertEquals(127, header.get(1));
+        Assert.assertEquals(70000, header.getLong(2));
+    }
+
+    @Test
+    public void testSharedByInterleavedWriters() throws Exception {
+        byte[] data = payload(1000);
+        OutboundMessage message = OutboundMessage.binaryFrame(data);
+        Assert.assertEquals(4 + 1000, message.getLength());
+
+        // Two clients draining the same message at different speeds, interleaved
+        ChunkedChannel slow = new ChunkedChannel(7);
+        ChunkedChannel fast = new ChunkedChannel(300);
+        long slowOffset = 0;
+        long fastOffset = 0;
+        while (slowOffset < message.getLength() || fastOffset < message.getLength()) {
+            if (slowOffset < message.getLength()) {
+                slowOffset += message.writeTo(slow, slowOffset);
+            }
+            if (fastOffset < message.getLength()) {
+                fastOffset += message.writeTo(fast, fastOffset);
+            }
+        }
+
+        byte[] expected = new byte[4 + 1000];
+        expected[0] = (byte) 0x82;
+        expected[1] = 126;
+        expected[2] = (byte) (1000 >> 8);
+        expected[3] = (byte) 1000;
+        System.arraycopy(data, 0, expected, 4, 1000);
+        Assert.assertArrayEquals(expected, slow.out.toByteArray());
+        Assert.assertArrayEquals(expected, fast.out.toByteArray());
+
+        // The payload is shared, not copied
+        data[0] = 42;
+        Assert.assertEquals(42, writeFully(message, new ChunkedChannel(Integer.MAX_VALUE))[4]);
+    }
+
+    @Test
+    public void testWrapSlicesRemaining() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(payload(10));
+        buffer.position(4);
+        OutboundMessage message = OutboundMessage.wrap(buffer, ByteBuffer.wrap(new byte[] {99}));
+        Assert.assertEquals(7, message.getLength());
+        Assert.assertArrayEquals(new byte[] {4, 5, 6, 7, 8, 9, 99}, writeFully(message, new ChunkedChannel(3)));
+    }
+}
@@ -0,0 +1,126 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+public class PerMessageDeflateTest {
+
+    private static final String JSON = "{\"action\":\"dumpWindowHierarchy\",\"result\":\"<node index=\\\"0\\\" text=\\\"\\\" "
+            + "class=\\\"android.widget.FrameLayout\\\"/><node index=\\\"1\\\" text=\\\"\\\" class=\\\"android.widget.FrameLayout\\\"/>\"}";
+
+    private static String toString(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    @Test
+    public void testNegotiate() {
+        Assert.assertNull(PerMessageDeflate.negotiate(null, true));
+        Assert.assertNull(PerMessageDeflate.negotiate("x-webkit-deflate-frame", true));
+
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate; client_max_window_bits", true);
+        Assert.assertEquals("permessage-deflate", deflate.getResponseHeader());
+
+        deflate = PerMessageDeflate.negotiate("permessage-deflate; client_max_window_bits", false);
+        Assert.assertEquals("permessage-deflate; server_no_context_takeover", deflate.getResponseHeader());
+
+        deflate = PerMessageDeflate.negotiate("permessage-deflate; client_no_context_takeover", true);
+        Assert.assertEquals("permessage-deflate; client_no_context_takeover", deflate.getResponseHeader());
+
+        // A smaller server window cannot be honored, the next offer is accepted
+        deflate = PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10, permessage-deflate", true);
+        Assert.assertEquals("permessage-deflate", deflate.getResponseHeader());
+
+        // An accepted server_max_window_bits must be echoed
+        deflate = PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=15", true);
+        Assert.assertEquals("permessage-deflate; server_max_window_bits=15", deflate.getResponseHeader());
+    }
+
+    @Test
+    public void testRoundTripWithContextTakeover() throws Exception {
+        PerMessageDeflate server = PerMessageDeflate.negotiate("permessage-deflate", true);
+        // Use a second instance as the peer: its inflater follows the deflater context
+        PerMessageDeflate peer = PerMessageDeflate.negotiate("permessage-deflate", true);
+
+        ByteBuffer first = copy(server.compress(JSON.getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer second = copy(server.compress(JSON.getBytes(StandardCharsets.UTF_8)));
+        // Thanks to the shared context, the repeated message is much smaller
+        Assert.assertTrue(second.remaining() < first.remaining() / 2);
+
+        Assert.assertEquals(JSON, toString(peer.decompress(first, 1024)));
+        Assert.assertEquals(JSON, toString(peer.decompress(second, 1024)));
+
+        Assert.assertEquals(2L * JSON.length(), server.getRawBytesOut());
+        Assert.assertEquals(first.remaining() + second.remaining(), server.getCompressedBytesOut());
+        Assert.assertTrue(server.getCompressionRatio() < 0.5);
+        Assert.assertEquals(2L * JSON.length(), peer.getRawBytesIn());
+    }
+
+    @Test
+    public void testNoContextTakeover() throws Exception {
+        PerMessageDeflate server = PerMessageDeflate.negotiate("permessage-deflate", false);
+        ByteBuffer first = copy(server.compress(JSON.getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer second = copy(server.compress(JSON.getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(first, second);
+
+        // Each message can be decompressed independently
+        PerMessageDeflate peer = PerMessageDeflate.negotiate("permessage-deflate; client_no_context_takeover", true);
+        Assert.assertEquals(JSON, toString(peer.decompress(second, 1024)));
+        Assert.assertEquals(JSON, toString(peer.decompress(first, 1024)));
+    }
+
+    private static ByteBuffer compressZeros(int size) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(new byte[size]);
+        byte[] compressed = new byte[1024];
+        int length = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        // Strip the tail, as a client does
+        return ByteBuffer.wrap(compressed, 0, length - 4).slice();
+    }
+
+    @Test
+    public void testDecompressMaxSize() throws Exception {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate", true);
+        Assert.assertEquals(10000, deflate.decompress(compressZeros(10000), 10000).remaining());
+        // Exactly fills the grown buffer
+        Assert.assertEquals(16384, deflate.decompress(compressZeros(16384), 16384).remaining());
+    }
+
+    @Test
+    public void testDecompressTooLarge() {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate", true);
+        try {
+            deflate.decompress(compressZeros(100000), 10000);
+            Assert.fail();
+        } catch (WebSocketProtocolException e) {
+            Assert.assertEquals(WebSocketDecoder.CLOSE_TOO_BIG, e.getCloseCode());
+        }
+    }
+
+    @Test
+    public void testBypass() {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate", true);
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+        OutboundMessage frame = OutboundMessage.binaryFrame(jpeg);
+        Assert.assertSame(frame, frame.deflate(deflate));
+        Assert.assertEquals(1, deflate.getBypassedMessages());
+
+        OutboundMessage text = OutboundMessage.dataFrame(WebSocketDecoder.OPCODE_TEXT, JSON.getBytes(StandardCharsets.UTF_8), true);
+        OutboundMessage compressed = text.deflate(deflate);
+        ByteBuffer bytes = ByteBuffer.allocate((int) compressed.getLength());
+        compressed.copyTo(bytes);
+        Assert.assertEquals(0x80 | WebSocketDecoder.RSV1 | WebSocketDecoder.OPCODE_TEXT, bytes.get(0) & 0xFF);
+        Assert.assertTrue(compressed.getLength() < text.getLength());
+    }
+}
@@ -0,0 +1,79 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestBodyStreamTest {
+
+    private static ByteBuffer bytes(int from, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        for (int i = 0; i < count; ++i) {
+            buffer.put((byte) (from + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void testBackpressure() throws IOException {
+        AtomicInteger notifications = new AtomicInteger();
+        RequestBodyStream stream = new RequestBodyStream(20, 8, notifications::incrementAndGet);
+
+        ByteBuffer input = bytes(0, 12);
+        stream.feed(input);
+        // Only 8 bytes fit, the rest stays in the input
+        Assert.assertEquals(4, input.remaining());
+        Assert.assertEquals(8, stream.available());
+
+        byte[] b = new byte[5];
+        Assert.assertEquals(5, stream.read(b, 0, 5));
+        Assert.assertEquals(4, b[4]);
+        Assert.assertEquals(1, notifications.get());
+
+        // Wraps around the ring buffer
+        stream.feed(input);
+        Assert.assertFalse(input.hasRemaining());
+        byte[] all = new byte[20];
+        Assert.assertEquals(7, stream.read(all, 0, 20));
+        Assert.assertEquals(5, all[0]);
+        Assert.assertEquals(11, all[6]);
+        // Nothing was left in the input, no need to notify again
+        Assert.assertEquals(1, notifications.get());
+
+        // The bytes following the body are not consumed
+        input = bytes(12, 10);
+        stream.feed(input);
+        Assert.assertEquals(2, input.remaining());
+        Assert.assertTrue(stream.isReceived());
+        Assert.assertEquals(8, stream.read(all, 0, 20));
+        Assert.assertEquals(19, all[7]);
+        Assert.assertEquals(-1, stream.read());
+    }
+
+    @Test
+    public void testDiscard() throws IOException {
+        RequestBodyStream stream = new RequestBodyStream(100, 8, () -> { });
+        stream.feed(bytes(0, 10));
+        stream.discard();
+        Assert.assertEquals(-1, stream.read());
+
+        ByteBuffer input = bytes(10, 95);
+        stream.feed(input);
+        Assert.assertTrue(stream.isReceived());
+        Assert.assertEquals(3, input.remaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void testAbort() throws IOException {
+        RequestBodyStream stream = new RequestBodyStream(100, 8, () -> { });
+        stream.feed(bytes(0, 10));
+        stream.abort();
+        byte[] b = new byte[100];
+        Assert.assertEquals(8, stream.read(b, 0, 100));
+        stream.read();
+    }
+}
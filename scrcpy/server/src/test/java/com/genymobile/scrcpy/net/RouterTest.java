@@ -0,0 +1,141 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class RouterTest {
+
+    private static final Router.Handler NOOP = (request, output, connection) -> { };
+
+    @Test
+    public void testFind() {
+        Router router = new Router();
+        try {
+            Router.Route root = router.exact("/", Router.Dispatch.INLINE, NOOP);
+            Router.Route screen = router.prefix("/screen", Router.Dispatch.BLOCKING, NOOP);
+            Router.Route screenJpeg = router.prefix("/screen.jpeg", Router.Dispatch.BLOCKING, NOOP);
+            Router.Route screenSize = router.exact("/screen/size", Router.Dispatch.INLINE, NOOP);
+            Router.Route shell = router.prefix("/shell/", Router.Dispatch.BLOCKING, NOOP);
+
+            Assert.assertNull(router.find("/unknown"));
+            Router.Route fallback = router.fallback(Router.Dispatch.INLINE, NOOP);
+
+            Assert.assertSame(root, router.find("/"));
+            Assert.assertSame(screen, router.find("/screen"));
+            Assert.assertSame(screen, router.find("/screenImg.jpeg"));
+            Assert.assertSame(screenJpeg, router.find("/screen.jpeg"));
+            Assert.assertSame(screenSize, router.find("/screen/size"));
+            // Exact routes only match the exact path, the longest prefix is used otherwise
+            Assert.assertSame(screen, router.find("/screen/size/more"));
+            Assert.assertSame(shell, router.find("/shell/exec"));
+            Assert.assertSame(fallback, router.find("/shell"));
+            Assert.assertSame(fallback, router.find("/unknown"));
+            Assert.assertSame(fallback, router.find(""));
+
+            Assert.assertEquals(6, router.getRoutes().size());
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateRoute() {
+        Router router = new Router();
+        try {
+            router.prefix("/a", Router.Dispatch.INLINE, NOOP);
+            router.prefix("/a", Router.Dispatch.CPU, NOOP);
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetrics() {
+        RouteMetrics metrics = new RouteMetrics();
+        Assert.assertEquals(0, metrics.getPercentileMillis(50));
+
+        for (int i = 0; i < 98; ++i) {
+            metrics.onStart();
+            metrics.onEnd(3000000, false); // 3 ms
+        }
+        metrics.onStart();
+        metrics.onEnd(150000000, true); // 150 ms
+        metrics.onStart();
+        Assert.assertEquals(1, metrics.getInFlight());
+        metrics.onEnd(60000000000L, false); // 60 s
+
+        Assert.assertEquals(100, metrics.getRequests());
+        Assert.assertEquals(1, metrics.getErrors());
+        Assert.assertEquals(0, metrics.getInFlight());
+        Assert.assertEquals(5, metrics.getPercentileMillis(50));
+        Assert.assertEquals(200, metrics.getPercentileMillis(99));
+        Assert.assertEquals(-1, metrics.getPercentileMillis(100));
+        Assert.assertEquals(60000, metrics.getMaxMillis(), 0.001);
+    }
+
+    private static String request(int port, String path) throws IOException, InterruptedException {
+        try (Socket socket = EventLoopTest.connect(port, 0)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            return new String(EventLoopTest.readAll(socket.getInputStream()), StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Test
+    public void testHeadTimeout() throws Exception {
+        Router router = new Router();
+        // The response starts in time, then its body is streamed for longer than the timeout
+        router.exact("/stream", Router.Dispatch.BLOCKING, (request, output, connection) -> {
+            output.write("HTTP/1.1 200 OK\r\nContent-Length: 10\r\nConnection: close\r\n\r\nhello".getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                throw new AssertionError("Interrupted by the timeout");
+            }
+            output.write("world".getBytes(StandardCharsets.US_ASCII));
+        }).headTimeout(200);
+        // The response does not start in time
+        router.exact("/slow", Router.Dispatch.BLOCKING, (request, output, connection) -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                // Interrupted by the timeout
+            }
+        }).headTimeout(200);
+
+        int port = EventLoopTest.findFreePort();
+        EventLoop eventLoop = new EventLoop(port, 1, new EventLoop.Handler() {
+            @Override
+            public void onRequest(Connection connection, HttpRequest request) {
+                router.dispatch(request, connection);
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer payload) {
+                // not used
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+                // not used
+            }
+        });
+        Thread thread = EventLoopTest.startEventLoop(eventLoop);
+        try {
+            Assert.assertTrue(request(port, "/stream").endsWith("\r\n\r\nhelloworld"));
+            Assert.assertTrue(request(port, "/slow").startsWith("HTTP/1.1 504 "));
+            Assert.assertEquals(1, router.find("/slow").getMetrics().getTimeouts());
+            Assert.assertEquals(0, router.find("/stream").getMetrics().getTimeouts());
+        } finally {
+            eventLoop.stop();
+            thread.join(5000);
+            router.shutdown();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SendQueueTest {
+
+    private static OutboundMessage message(int value) {
+        return OutboundMessage.wrap(ByteBuffer.wrap(new byte[] {(byte) value}));
+    }
+
+    private static int valueOf(OutboundMessage message) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) message.getLength());
+        message.copyTo(buffer);
+        return buffer.get(0);
+    }
+
+    @Test
+    public void testDropOldest() throws IOException {
+        SendQueue queue = new SendQueue(2, SendQueue.Policy.DROP_OLDEST);
+        Assert.assertTrue(queue.offerFrame(message(1)));
+        Assert.assertTrue(queue.offerFrame(message(2)));
+        Assert.assertTrue(queue.offerFrame(message(3)));
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(2, queue.getQueuedBytes());
+        Assert.assertEquals(1, queue.getDroppedMessages());
+        Assert.assertEquals(2, valueOf(queue.peek()));
+        queue.pop();
+        Assert.assertEquals(3, valueOf(queue.peek()));
+        queue.pop();
+        Assert.assertNull(queue.peek());
+        Assert.assertEquals(2, queue.getSentMessages());
+    }
+
+    @Test
+    public void testStartedFrameIsNeverDropped() throws IOException {
+        SendQueue queue = new SendQueue(1, SendQueue.Policy.DROP_OLDEST);
+        Assert.assertTrue(queue.offerFrame(message(1)));
+        Assert.assertEquals(1, valueOf(queue.peek()));
+
+        // The only queued frame is being written, so the new one is dropped
+        Assert.assertFalse(queue.offerFrame(message(2)));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(1, queue.getDroppedMessages());
+        Assert.assertEquals(1, valueOf(queue.peek()));
+    }
+
+    @Test
+    public void testLatestOnly() throws IOException {
+        SendQueue queue = new SendQueue(8, SendQueue.Policy.LATEST_ONLY);
+        queue.offer(message(1), false);
+        queue.offerFrame(message(2));
+        queue.offerFrame(message(3));
+        queue.offerFrame(message(4));
+
+        // Control messages are kept, only the latest frame remains
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(2, queue.getDroppedMessages());
+        Assert.assertEquals(1, valueOf(queue.peek()));
+        queue.pop();
+        Assert.assertEquals(4, valueOf(queue.peek()));
+    }
+
+    @Test
+    public void testControlMessagesAreNeverDropped() throws IOException {
+        SendQueue queue = new SendQueue(1, SendQueue.Policy.DROP_OLDEST);
+        queue.offer(message(1), false);
+        queue.offer(message(2), false);
+        Assert.assertFalse(queue.offerFrame(message(3)));
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(1, valueOf(queue.peek()));
+        queue.pop();
+        Assert.assertEquals(2, valueOf(queue.peek()));
+    }
+
+    @Test
+    public void testCloseNeverDrops() throws IOException {
+        SendQueue queue = new SendQueue(2, SendQueue.Policy.CLOSE);
+        Assert.assertTrue(queue.offerFrame(message(1)));
+        Assert.assertTrue(queue.offerFrame(message(2)));
+        Assert.assertEquals(0, queue.getDroppedMessages());
+        Assert.assertEquals(1, valueOf(queue.peek()));
+        queue.pop();
+        Assert.assertTrue(queue.offerFrame(message(3)));
+        Assert.assertEquals(2, queue.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCloseOnOverflow() throws IOException {
+        SendQueue queue = new SendQueue(1, SendQueue.Policy.CLOSE);
+        queue.offerFrame(message(1));
+        // Must fail immediately, never wait for the writer
+        queue.offerFrame(message(2));
+    }
+
+    @Test
+    public void testQueueGrowsForControlMessages() throws IOException {
+        SendQueue queue = new SendQueue(2, SendQueue.Policy.DROP_OLDEST);
+        queue.offerFrame(message(1));
+        for (int i = 2; i <= 5; ++i) {
+            queue.offer(message(i), false);
+        }
+        // The queue is full, the pending frame is dropped to make room for the new one
+        Assert.assertTrue(queue.offerFrame(message(6)));
+        Assert.assertEquals(1, queue.getDroppedMessages());
+        Assert.assertEquals(5, queue.size());
+
+        for (int i = 2; i <= 5; ++i) {
+            Assert.assertEquals(i, valueOf(queue.peek()));
+            queue.pop();
+        }
+        Assert.assertEquals(6, valueOf(queue.peek()));
+    }
+
+    @Test
+    public void testOfferWaitsForRoom() throws Exception {
+        SendQueue queue = new SendQueue(1, SendQueue.Policy.DROP_OLDEST);
+        queue.offer(message(1), false);
+
+        Thread sender = new Thread(() -> {
+            try {
+                queue.offer(message(2), true);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        sender.start();
+        sender.join(100);
+        // No timeout: the sender waits as long as the writer makes no room
+        Assert.assertTrue(sender.isAlive());
+
+        queue.peek();
+        queue.pop();
+        sender.join(5000);
+        Assert.assertFalse(sender.isAlive());
+        Assert.assertEquals(2, valueOf(queue.peek()));
+    }
+
+    @Test
+    public void testCloseWakesWaitingSender() throws Exception {
+        SendQueue queue = new SendQueue(1, SendQueue.Policy.DROP_OLDEST);
+        queue.offer(message(1), false);
+
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread sender = new Thread(() -> {
+            try {
+                queue.offer(message(2), true);
+            } catch (IOException e) {
+                error.set(e);
+            }
+        });
+        sender.start();
+        sender.join(100);
+        Assert.assertTrue(sender.isAlive());
+
+        queue.close();
+        sender.join(5000);
+        Assert.assertFalse(sender.isAlive());
+        Assert.assertNotNull(error.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testClosed() throws IOException {
+        SendQueue queue = new SendQueue(1, SendQueue.Policy.DROP_OLDEST);
+        queue.close();
+        queue.offerFrame(message(1));
+    }
+}
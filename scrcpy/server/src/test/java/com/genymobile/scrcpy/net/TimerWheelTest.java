@@ -0,0 +1,141 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testExpiration() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimerWheel.Timer a = wheel.newTimer(() -> fired.add("a"));
+        TimerWheel.Timer b = wheel.newTimer(() -> fired.add("b"));
+        wheel.schedule(a, 250);
+        wheel.schedule(b, 300);
+        Assert.assertEquals(2, wheel.size());
+        Assert.assertEquals(100, wheel.getDelayToNextTick(0));
+
+        wheel.advance(200);
+        Assert.assertTrue(fired.isEmpty());
+
+        // Never expires before its deadline (rounded up to the next tick)
+        wheel.advance(299);
+        Assert.assertTrue(fired.isEmpty());
+
+        wheel.advance(300);
+        Assert.assertEquals(2, fired.size());
+        Assert.assertFalse(a.isScheduled());
+        Assert.assertEquals(0, wheel.size());
+        Assert.assertEquals(0, wheel.getDelayToNextTick(300));
+    }
+
+    @Test
+    public void testSeveralRounds() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        int[] fired = new int[1];
+        TimerWheel.Timer timer = wheel.newTimer(() -> ++fired[0]);
+        // 25 ticks, more than 3 rotations of the wheel
+        wheel.schedule(timer, 2500);
+
+        for (long now = 0; now < 2500; now += 100) {
+            wheel.advance(now);
+        }
+        Assert.assertEquals(0, fired[0]);
+        wheel.advance(2500);
+        Assert.assertEquals(1, fired[0]);
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimerWheel.Timer a = wheel.newTimer(() -> fired.add("a"));
+        TimerWheel.Timer b = wheel.newTimer(() -> fired.add("b"));
+        wheel.schedule(a, 100);
+        wheel.schedule(b, 100);
+        a.cancel();
+        Assert.assertEquals(1, wheel.size());
+
+        // Rescheduling moves the timer
+        wheel.schedule(b, 500);
+        Assert.assertEquals(1, wheel.size());
+        wheel.advance(400);
+        Assert.assertTrue(fired.isEmpty());
+        wheel.advance(500);
+        Assert.assertEquals(1, fired.size());
+        Assert.assertEquals("b", fired.get(0));
+    }
+
+    @Test
+    public void testTaskModifiesWheel() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimerWheel.Timer[] timers = new TimerWheel.Timer[2];
+        // The first task to run cancels the other one, expiring on the same tick
+        timers[0] = wheel.newTimer(() -> {
+            fired.add("0");
+            timers[1].cancel();
+        });
+        timers[1] = wheel.newTimer(() -> {
+            fired.add("1");
+            timers[0].cancel();
+        });
+        wheel.schedule(timers[0], 100);
+        wheel.schedule(timers[1], 100);
+
+        wheel.advance(100);
+        Assert.assertEquals(1, fired.size());
+
+        // A task may reschedule its own timer
+        int[] count = new int[1];
+        TimerWheel.Timer[] repeating = new TimerWheel.Timer[1];
+        repeating[0] = wheel.newTimer(() -> {
+            if (++count[0] < 3) {
+                // A deadline in the past expires on the next tick
+                wheel.schedule(repeating[0], 0);
+            }
+        });
+        wheel.schedule(repeating[0], 200);
+        wheel.advance(200);
+        Assert.assertEquals(1, count[0]);
+        Assert.assertTrue(repeating[0].isScheduled());
+        wheel.advance(400);
+        Assert.assertEquals(3, count[0]);
+        Assert.assertFalse(repeating[0].isScheduled());
+    }
+
+    @Test
+    public void testFailingTask() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimerWheel.Timer failing = wheel.newTimer(() -> {
+            fired.add("failing");
+            throw new IllegalStateException("test");
+        });
+        TimerWheel.Timer a = wheel.newTimer(() -> fired.add("a"));
+        TimerWheel.Timer b = wheel.newTimer(() -> fired.add("b"));
+        wheel.schedule(failing, 100);
+        wheel.schedule(a, 100);
+        wheel.schedule(b, 200);
+
+        // The other timers of the same bucket still run
+        wheel.advance(100);
+        Assert.assertEquals(2, fired.size());
+        Assert.assertTrue(fired.contains("a"));
+
+        // The failing timer is not run again on the next tick
+        wheel.advance(200);
+        Assert.assertEquals(3, fired.size());
+        Assert.assertEquals("b", fired.get(2));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new TimerWheel(100, 10, 0);
+    }
+}
@@ -0,0 +1,365 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UpstreamClientTest {
+
+    /**
+     * Minimal upstream service: answers each request with the response returned by {@link #respond(String, int)}.
+     */
+    private static class FakeUpstream extends Thread {
+        private final ServerSocket serverSocket;
+        private final AtomicInteger accepted = new AtomicInteger();
+        // Close the connection (without notice) after this number of responses
+        private volatile int closeAfter = Integer.MAX_VALUE;
+
+        FakeUpstream() throws IOException {
+            serverSocket = new ServerSocket(0);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    accepted.incrementAndGet();
+                    new Thread(() -> serve(socket)).start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                for (int count = 1; ; ++count) {
+                    String requestLine = UpstreamResponse.readLine(in);
+                    int contentLength = 0;
+                    String line;
+                    while (!(line = UpstreamResponse.readLine(in)).isEmpty()) {
+                        if (line.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring(15).trim());
+                        }
+                    }
+                    byte[] body = new byte[contentLength];
+                    for (int r = 0; r < contentLength; ) {
+                        r += in.read(body, r, contentLength - r);
+                    }
+                    writeResponse(out, respond(requestLine + " " + new String(body, StandardCharsets.UTF_8), count));
+                    if (count >= closeAfter) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // disconnected
+            }
+        }
+
+        void writeResponse(OutputStream out, String response) throws IOException {
+            out.write(response.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        String respond(String request, int count) {
+            String body = "echo " + request;
+            return "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private FakeUpstream upstream;
+
+    @After
+    public void tearDown() throws IOException {
+        if (upstream != null) {
+            upstream.close();
+        }
+    }
+
+    private void start(FakeUpstream fakeUpstream) {
+        upstream = fakeUpstream;
+        upstream.start();
+    }
+
+    private static HttpRequest request(String head, String body) throws IOException {
+        byte[] data = head.getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequest request = new HttpRequest();
+        request.parseHead(data, 0, data.length);
+        request.setBody(ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer());
+        return request;
+    }
+
+    private static String readBody(UpstreamResponse response) throws IOException {
+        try (UpstreamResponse r = response) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16];
+            int n;
+            InputStream in = r.getBody();
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        start(new FakeUpstream());
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 2, 1000, 5000);
+        try {
+            HttpRequest request = request("POST /jsonrpc HTTP/1.1\r\nContent-Length: 4\r\nConnection: close\r\n\r\n", "ping");
+            UpstreamResponse response = client.execute("POST", "/jsonrpc/0", request);
+            Assert.assertEquals(200, response.getStatus());
+            Assert.assertEquals("OK", response.getReason());
+            Assert.assertEquals("text/plain", response.getHeader("content-type"));
+            Assert.assertEquals("echo POST /jsonrpc/0 HTTP/1.1 ping", readBody(response));
+
+            request = request("GET /agent/info HTTP/1.1\r\n\r\n", "");
+            Assert.assertEquals("echo GET /agent/info HTTP/1.1 ", readBody(client.execute("GET", "/agent/info", request)));
+
+            // The client Connection header is not forwarded: the same upstream connection is reused
+            Assert.assertEquals(1, upstream.accepted.get());
+            Assert.assertEquals(1, client.getMisses());
+            Assert.assertEquals(1, client.getHits());
+            Assert.assertEquals(1, client.getOpen());
+            Assert.assertEquals(1, client.getIdle());
+            Assert.assertEquals(0, client.getActive());
+        } finally {
+            client.close();
+        }
+        Assert.assertEquals(0, client.getOpen());
+    }
+
+    @Test
+    public void testChunked() throws IOException {
+        start(new FakeUpstream() {
+            @Override
+            void writeResponse(OutputStream out, String response) throws IOException {
+            out.write(response.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        String respond(String request, int count) {
+                return "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: t\r\n\r\n";
+            }
+        });
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 1, 1000, 5000);
+        try {
+            HttpRequest request = request("GET / HTTP/1.1\r\n\r\n", "");
+            UpstreamResponse response = client.execute("GET", "/", request);
+            Assert.assertTrue(response.isChunked());
+            Assert.assertEquals(-1, response.getContentLength());
+            Assert.assertEquals("hello world", readBody(response));
+            Assert.assertEquals("hello world", readBody(client.execute("GET", "/", request)));
+            Assert.assertEquals(1, upstream.accepted.get());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testBodyNotBoundedByReadTimeout() throws IOException {
+        start(new FakeUpstream() {
+            @Override
+            void writeResponse(OutputStream out, String response) throws IOException {
+                // The head and the start of the body, then a pause longer than the read timeout
+                out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                pause(500);
+                out.write("6\r\n world\r\n0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        });
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 1, 1000, 200);
+        try {
+            HttpRequest request = request("GET / HTTP/1.1\r\n\r\n", "");
+            Assert.assertEquals("hello world", readBody(client.execute("GET", "/", request)));
+            // The reused connection is bounded again while waiting for the next head
+            Assert.assertEquals("hello world", readBody(client.execute("GET", "/", request)));
+            Assert.assertEquals(1, upstream.accepted.get());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testHeadReadTimeout() throws IOException {
+        start(new FakeUpstream() {
+            @Override
+            void writeResponse(OutputStream out, String response) throws IOException {
+                pause(500);
+                super.writeResponse(out, response);
+            }
+        });
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 1, 1000, 200);
+        try {
+            client.execute("GET", "/", request("GET / HTTP/1.1\r\n\r\n", ""));
+            Assert.fail();
+        } catch (SocketTimeoutException e) {
+            // expected
+        } finally {
+            client.close();
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testConnectionClose() throws IOException {
+        start(new FakeUpstream() {
+            @Override
+            void writeResponse(OutputStream out, String response) throws IOException {
+            out.write(response.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        String respond(String request, int count) {
+                return "HTTP/1.1 404 Not Found\r\nConnection: close\r\nContent-Length: 2\r\n\r\nno";
+            }
+        });
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 1, 1000, 5000);
+        try {
+            HttpRequest request = request("GET / HTTP/1.1\r\n\r\n", "");
+            UpstreamResponse response = client.execute("GET", "/", request);
+            Assert.assertEquals(404, response.getStatus());
+            Assert.assertEquals("no", readBody(response));
+            Assert.assertEquals(0, client.getIdle());
+            Assert.assertEquals(0, client.getOpen());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testStaleConnection() throws IOException {
+        FakeUpstream fakeUpstream = new FakeUpstream();
+        // The upstream closes its connections silently after each response
+        fakeUpstream.closeAfter = 1;
+        start(fakeUpstream);
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 1, 1000, 5000);
+        try {
+            HttpRequest request = request("POST / HTTP/1.1\r\nContent-Length: 1\r\n\r\n", "a");
+            Assert.assertEquals("echo POST / HTTP/1.1 a", readBody(client.execute("POST", "/", request)));
+            // The buffered body is sent again on a new connection
+            Assert.assertEquals("echo POST / HTTP/1.1 a", readBody(client.execute("POST", "/", request)));
+            Assert.assertEquals(1, client.getStaleRetries());
+            Assert.assertEquals(2, upstream.accepted.get());
+            Assert.assertEquals(0, client.getErrors());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testUpgrade() throws IOException {
+        start(new FakeUpstream() {
+            @Override
+            void writeResponse(OutputStream out, String response) throws IOException {
+            out.write(response.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        String respond(String request, int count) {
+                // Data may follow the head immediately
+                return "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\nhello";
+            }
+        });
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 1, 1000, 5000);
+        try {
+            HttpRequest request = request("GET /ws HTTP/1.1\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n\r\n", "");
+            Assert.assertTrue(request.isUpgradeRequested());
+            UpstreamResponse response = client.upgrade("/ws", request);
+            Assert.assertEquals(101, response.getStatus());
+            Assert.assertEquals("websocket", response.getHeader("Upgrade"));
+            Tunnel tunnel = response.openTunnel("ws", 1000);
+            try {
+                Assert.assertEquals(5, tunnel.getBytesDown());
+                // The upgraded connection is not part of the pool
+                Assert.assertEquals(0, client.getOpen());
+                Assert.assertEquals(1, client.getUpgrades());
+            } finally {
+                tunnel.close();
+            }
+            Assert.assertTrue(tunnel.isClosed());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testUpgradeRefused() throws IOException {
+        start(new FakeUpstream());
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 1, 1000, 5000);
+        try {
+            HttpRequest request = request("GET /ws HTTP/1.1\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n\r\n", "");
+            UpstreamResponse response = client.upgrade("/ws", request);
+            Assert.assertEquals(200, response.getStatus());
+            Assert.assertEquals("echo GET /ws HTTP/1.1 ", readBody(response));
+            try {
+                response.openTunnel("ws", 1000);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            Assert.assertEquals(0, client.getUpgrades());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testExhausted() throws IOException {
+        start(new FakeUpstream());
+        UpstreamClient client = new UpstreamClient("test", "127.0.0.1", upstream.getPort(), 1, 100, 5000);
+        try {
+            HttpRequest request = request("GET / HTTP/1.1\r\n\r\n", "");
+            UpstreamResponse response = client.execute("GET", "/", request);
+            Assert.assertEquals(1, client.getActive());
+            try {
+                // The only connection is still used by the unread response
+                client.execute("GET", "/", request);
+                Assert.fail();
+            } catch (UpstreamUnavailableException e) {
+                // expected
+            }
+            Assert.assertEquals(1, client.getExhausted());
+
+            // Closing the response before its end releases the connection, which cannot be reused
+            response.close();
+            Assert.assertEquals(0, client.getActive());
+            Assert.assertEquals(0, client.getOpen());
+            readBody(client.execute("GET", "/", request));
+            Assert.assertEquals(2, client.getMisses());
+        } finally {
+            client.close();
+        }
+    }
+}
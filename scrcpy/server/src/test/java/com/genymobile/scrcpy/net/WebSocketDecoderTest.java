@@ -0,0 +1,185 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WebSocketDecoderTest {
+
+    private static final byte[] MASK = {0x12, 0x34, 0x56, 0x78};
+
+    private static final class Recorder implements WebSocketDecoder.Listener {
+        private final List<String> events = new ArrayList<>();
+
+        private static String toString(ByteBuffer payload) {
+            return StandardCharsets.UTF_8.decode(payload).toString();
+        }
+
+        @Override
+        public void onMessage(int opcode, ByteBuffer payload) {
+            events.add((opcode == WebSocketDecoder.OPCODE_TEXT ? "text:" : "binary:") + toString(payload));
+        }
+
+        @Override
+        public void onPing(ByteBuffer payload) {
+            events.add("ping:" + toString(payload));
+        }
+
+        @Override
+        public void onPong(ByteBuffer payload) {
+            events.add("pong:" + toString(payload));
+        }
+
+        @Override
+        public void onClose(int code, String reason) {
+            events.add("close:" + code + ":" + reason);
+        }
+    }
+
+    private static byte[] frame(boolean fin, int opcode, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((fin ? 0x80 : 0) | opcode);
+        if (payload.length <= 125) {
+            out.write(0x80 | payload.length);
+        } else if (payload.length <= 65535) {
+            out.write(0x80 | 126);
+            out.write(payload.length >> 8);
+            out.write(payload.length);
+        } else {
+            out.write(0x80 | 127);
+            for (int i = 7; i >= 0; --i) {
+                out.write((int) ((long) payload.length >> (8 * i)));
+            }
+        }
+        out.write(MASK, 0, 4);
+        for (int i = 0; i < payload.length; ++i) {
+            out.write(payload[i] ^ MASK[i & 3]);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] frame(boolean fin, int opcode, String payload) {
+        return frame(fin, opcode, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testByteByByte() throws IOException {
+        Recorder recorder = new Recorder();
+        WebSocketDecoder decoder = new WebSocketDecoder(1024, recorder);
+        byte[] data = concat(frame(true, WebSocketDecoder.OPCODE_TEXT, "hello, world!"), frame(true, WebSocketDecoder.OPCODE_BINARY, ""));
+        for (byte b : data) {
+            decoder.decode(ByteBuffer.wrap(new byte[] {b}));
+        }
+        Assert.assertEquals(2, recorder.events.size());
+        Assert.assertEquals("text:hello, world!", recorder.events.get(0));
+        Assert.assertEquals("binary:", recorder.events.get(1));
+    }
+
+    @Test
+    public void testExtendedLengths() throws IOException {
+        Recorder recorder = new Recorder();
+        WebSocketDecoder decoder = new WebSocketDecoder(1 << 20, recorder);
+        byte[] medium = new byte[300];
+        byte[] large = new byte[70000];
+        for (int i = 0; i < large.length; ++i) {
+            large[i] = (byte) ('a' + i % 26);
+        }
+        System.arraycopy(large, 0, medium, 0, medium.length);
+
+        decoder.decode(ByteBuffer.wrap(concat(frame(true, WebSocketDecoder.OPCODE_BINARY, medium),
+                frame(true, WebSocketDecoder.OPCODE_BINARY, large))));
+        Assert.assertEquals("binary:" + new String(medium, StandardCharsets.UTF_8), recorder.events.get(0));
+        Assert.assertEquals("binary:" + new String(large, StandardCharsets.UTF_8), recorder.events.get(1));
+    }
+
+    @Test
+    public void testFragmentsWithInterleavedPing() throws IOException {
+        Recorder recorder = new Recorder();
+        WebSocketDecoder decoder = new WebSocketDecoder(1024, recorder);
+        decoder.decode(ByteBuffer.wrap(concat(
+                frame(false, WebSocketDecoder.OPCODE_TEXT, "abc"),
+                frame(true, WebSocketDecoder.OPCODE_PING, "p"),
+                frame(false, WebSocketDecoder.OPCODE_CONTINUATION, "defghijkl"),
+                frame(true, WebSocketDecoder.OPCODE_CONTINUATION, "m"))));
+        Assert.assertEquals(2, recorder.events.size());
+        Assert.assertEquals("ping:p", recorder.events.get(0));
+        Assert.assertEquals("text:abcdefghijklm", recorder.events.get(1));
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        Recorder recorder = new Recorder();
+        WebSocketDecoder decoder = new WebSocketDecoder(1024, recorder);
+        ByteBuffer payload = ByteBuffer.allocate(5);
+        payload.putShort((short) 1001).put("bye".getBytes(StandardCharsets.UTF_8));
+        decoder.decode(ByteBuffer.wrap(concat(frame(true, WebSocketDecoder.OPCODE_CLOSE, payload.array()),
+                frame(true, WebSocketDecoder.OPCODE_TEXT, "ignored"))));
+        Assert.assertTrue(decoder.isClosed());
+        Assert.assertEquals(1, recorder.events.size());
+        Assert.assertEquals("close:1001:bye", recorder.events.get(0));
+    }
+
+    @Test
+    public void testMessageTooLarge() throws IOException {
+        WebSocketDecoder decoder = new WebSocketDecoder(8, new Recorder());
+        decoder.decode(ByteBuffer.wrap(frame(false, WebSocketDecoder.OPCODE_BINARY, "12345")));
+        try {
+            decoder.decode(ByteBuffer.wrap(frame(true, WebSocketDecoder.OPCODE_CONTINUATION, "6789")));
+            Assert.fail();
+        } catch (WebSocketProtocolException e) {
+            Assert.assertEquals(WebSocketDecoder.CLOSE_TOO_BIG, e.getCloseCode());
+        }
+    }
+
+    @Test
+    public void testUnexpectedContinuation() throws IOException {
+        WebSocketDecoder decoder = new WebSocketDecoder(1024, new Recorder());
+        try {
+            decoder.decode(ByteBuffer.wrap(frame(true, WebSocketDecoder.OPCODE_CONTINUATION, "x")));
+            Assert.fail();
+        } catch (WebSocketProtocolException e) {
+            Assert.assertEquals(WebSocketDecoder.CLOSE_PROTOCOL_ERROR, e.getCloseCode());
+        }
+    }
+
+    @Test
+    public void testCompressedMessage() throws IOException {
+        PerMessageDeflate sender = PerMessageDeflate.negotiate("permessage-deflate", true);
+        ByteBuffer compressed = sender.compress("hello hello hello hello".getBytes(StandardCharsets.UTF_8));
+        byte[] payload = new byte[compressed.remaining()];
+        compressed.get(payload);
+
+        Recorder recorder = new Recorder();
+        WebSocketDecoder decoder = new WebSocketDecoder(1024, recorder, PerMessageDeflate.negotiate("permessage-deflate", true));
+        decoder.decode(ByteBuffer.wrap(concat(frame(true, WebSocketDecoder.OPCODE_TEXT | WebSocketDecoder.RSV1, payload),
+                frame(true, WebSocketDecoder.OPCODE_TEXT, "plain"))));
+        Assert.assertEquals("text:hello hello hello hello", recorder.events.get(0));
+        Assert.assertEquals("text:plain", recorder.events.get(1));
+    }
+
+    @Test(expected = WebSocketProtocolException.class)
+    public void testCompressedWithoutExtension() throws IOException {
+        WebSocketDecoder decoder = new WebSocketDecoder(1024, new Recorder());
+        decoder.decode(ByteBuffer.wrap(frame(true, WebSocketDecoder.OPCODE_TEXT | WebSocketDecoder.RSV1, "x")));
+    }
+
+    @Test(expected = WebSocketProtocolException.class)
+    public void testUnmaskedFrame() throws IOException {
+        WebSocketDecoder decoder = new WebSocketDecoder(1024, new Recorder());
+        decoder.decode(ByteBuffer.wrap(new byte[] {(byte) 0x81, 1, 'x'}));
+    }
+}
@@ -0,0 +1,66 @@
+package com.genymobile.scrcpy.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class WorkerPoolTest {
+
+    @Test
+    public void testSaturation() throws InterruptedException {
+        WorkerPool pool = new WorkerPool("test", 2, 1);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        try {
+            Assert.assertTrue(pool.tryExecute(blocking));
+            Assert.assertTrue(pool.tryExecute(blocking));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(2, pool.getActive());
+
+            // One more task may wait in the queue, the next ones are rejected
+            Assert.assertTrue(pool.tryExecute(blocking));
+            Assert.assertEquals(1, pool.getQueued());
+            Assert.assertFalse(pool.tryExecute(blocking));
+            Assert.assertFalse(pool.tryExecute(blocking));
+            Assert.assertEquals(2, pool.getRejected());
+            Assert.assertEquals(2, pool.getThreads());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testNoQueue() throws InterruptedException {
+        WorkerPool pool = new WorkerPool("test", 1, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            Assert.assertTrue(pool.tryExecute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            Assert.assertFalse(pool.tryExecute(() -> { }));
+            Assert.assertEquals(1, pool.getRejected());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+
+        Assert.assertTrue(pool.isShutdown());
+        Assert.assertFalse(pool.tryExecute(() -> { }));
+    }
+}
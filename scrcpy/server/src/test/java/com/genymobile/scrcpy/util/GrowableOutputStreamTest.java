@@ -0,0 +1,38 @@
+package com.genymobile.scrcpy.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GrowableOutputStreamTest {
+
+    @Test
+    public void testReservedHeader() {
+        GrowableOutputStream out = new GrowableOutputStream(4);
+        out.reset(4);
+        out.write(new byte[] {1, 2, 3}, 0, 3);
+        out.writeInt(0x01020304);
+        out.putInt(0, 3);
+
+        byte[] expected = {0, 0, 0, 3, 1, 2, 3, 1, 2, 3, 4};
+        Assert.assertArrayEquals(expected, out.toByteArray());
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, out.toByteArray(4, 7));
+    }
+
+    @Test
+    public void testBufferReused() {
+        GrowableOutputStream out = new GrowableOutputStream(2);
+        out.reset(0);
+        for (int i = 0; i < 100; ++i) {
+            out.write(i);
+        }
+        int capacity = out.capacity();
+        Assert.assertTrue(capacity >= 100);
+
+        out.reset(0);
+        for (int i = 0; i < 100; ++i) {
+            out.write(i);
+        }
+        Assert.assertEquals(capacity, out.capacity());
+        Assert.assertEquals(100, out.size());
+    }
+}
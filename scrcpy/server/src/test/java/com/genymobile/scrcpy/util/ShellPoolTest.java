@@ -0,0 +1,62 @@
+package com.genymobile.scrcpy.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShellPoolTest {
+
+    @Test
+    public void testExec() throws Exception {
+        ShellPool pool = new ShellPool(1);
+        try {
+            ShellPool.Result result = pool.exec("echo hello; echo 'it'\"'\"'s' >&2", 5000);
+            Assert.assertEquals(0, result.getExitCode());
+            Assert.assertEquals("hello\nit's\n", result.getOutput());
+
+            // Output without a trailing newline
+            result = pool.exec("printf abc", 5000);
+            Assert.assertEquals("abc", result.getOutput());
+
+            result = pool.exec("cd /; x=1; exit 3", 5000);
+            Assert.assertEquals(3, result.getExitCode());
+
+            // The state of the previous command does not leak, and the same shell is reused
+            result = pool.exec("echo \"$x\"", 5000);
+            Assert.assertEquals(0, result.getExitCode());
+            Assert.assertEquals("\n", result.getOutput());
+            Assert.assertEquals(1, pool.getStarted());
+            Assert.assertEquals(4, pool.getCommands());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        ShellPool pool = new ShellPool(1);
+        try {
+            try {
+                pool.exec("sleep 5", 200);
+                Assert.fail();
+            } catch (ShellTimeoutException e) {
+                // expected
+            }
+            Assert.assertEquals(1, pool.getTimeouts());
+            Assert.assertEquals(1, pool.getReplaced());
+            Assert.assertEquals(0, pool.getOpen());
+
+            // The wedged shell has been replaced
+            ShellPool.Result result = pool.exec("echo ok", 5000);
+            Assert.assertEquals("ok\n", result.getOutput());
+            Assert.assertEquals(2, pool.getStarted());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testQuote() {
+        Assert.assertEquals("'a b'", ShellPool.quote("a b"));
+        Assert.assertEquals("'it'\\''s'", ShellPool.quote("it's"));
+    }
+}
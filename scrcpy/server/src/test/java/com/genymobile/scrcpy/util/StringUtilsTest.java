@@ -39,4 +39,11 @@ public class StringUtilsTest {
         count = StringUtils.getUtf8TruncationIndex(utf8, 8);
         Assert.assertEquals(7, count); // no more chars
     }
+
+    @Test
+    public void testAppendJsonString() {
+        StringBuilder builder = new StringBuilder();
+        StringUtils.appendJsonString(builder, "a\"b\\c\nd\u0001é");
+        Assert.assertEquals("\"a\\\"b\\\\c\\nd\\u0001é\"", builder.toString());
+    }
 }
@@ -0,0 +1,32 @@
+package com.genymobile.scrcpy.video;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class JpegEncoderTest {
+
+    @Test
+    public void testFrame() throws IOException {
+        byte[] jpeg = {(byte) 0xff, (byte) 0xd8, 42, (byte) 0xff, (byte) 0xd9};
+        byte[] framed = JpegEncoder.frame(jpeg, 1080, 2400, 80, 0.5f, 1700000000123L);
+
+        // The format historically written with a DataOutputStream
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(expected);
+        dos.writeInt(jpeg.length);
+        dos.write(jpeg);
+        dos.writeInt(1080);
+        dos.writeInt(2400);
+        dos.writeInt(80);
+        dos.writeInt(50);
+        dos.writeInt(1700000000);
+        dos.writeInt(123);
+        Assert.assertArrayEquals(expected.toByteArray(), framed);
+
+        Assert.assertArrayEquals(jpeg, JpegEncoder.unframe(framed));
+    }
+}